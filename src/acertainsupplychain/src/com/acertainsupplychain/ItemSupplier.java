@@ -24,6 +24,21 @@ public interface ItemSupplier {
 	 */
 	public void executeStep(OrderStep step) throws OrderProcessingException;
 
+	/**
+	 * Executes a batch of order steps with the item supplier. Each step is
+	 * executed atomically on its own, a step that is malformed fails without
+	 * affecting the other steps of the batch.
+	 * 
+	 * @param steps
+	 *            - the order steps to be executed by this item supplier.
+	 * @return the result of every step, in the order of the given steps.
+	 * @throws OrderProcessingException
+	 *             - if the list of steps itself is malformed or another
+	 *             exception occurs.
+	 */
+	public List<OrderStepResult> executeSteps(List<OrderStep> steps)
+			throws OrderProcessingException;
+
 	/**
 	 * Returns the total quantity ordered per item at this item supplier.
 	 * 
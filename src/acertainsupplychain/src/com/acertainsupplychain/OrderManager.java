@@ -34,6 +34,21 @@ public interface OrderManager {
 	public int registerOrderWorkflow(List<OrderStep> steps)
 			throws OrderProcessingException;
 
+	/**
+	 * This function is added so clients can register many workflows at once.
+	 * The workflows are registered as by registerOrderWorkflow, all or nothing,
+	 * and get consecutive IDs.
+	 * 
+	 * @param workflows
+	 *            - the order steps of every workflow to be executed.
+	 * @return the IDs of the order workflows, in the order given.
+	 * @throws OrderProcessingException
+	 *             - an exception thrown if any of the workflows is malformed,
+	 *             in which case none of them is registered.
+	 */
+	public int[] registerOrderWorkflows(List<List<OrderStep>> workflows)
+			throws OrderProcessingException;
+
 	/**
 	 * Queries the current state of a given order workflow registered with the
 	 * order manager.
@@ -47,6 +62,39 @@ public interface OrderManager {
 	public List<StepStatus> getOrderWorkflowStatus(int orderWorkflowId)
 			throws InvalidWorkflowException;
 
+	/**
+	 * This function is added so clients can query many workflows at once. It
+	 * returns the same as getOrderWorkflowStatus for every given ID.
+	 * 
+	 * @param orderWorkflowIds
+	 *            - the IDs of the workflows being queried.
+	 * @return the list of states of every given workflow, in the order given.
+	 * @throw InvalidWorkflowException - if any of the workflow IDs given is not
+	 *        valid.
+	 */
+	public List<List<StepStatus>> getOrderWorkflowStatuses(
+			int[] orderWorkflowIds) throws InvalidWorkflowException;
+
+	/**
+	 * This function is added so clients can wait for a workflow to finish
+	 * instead of polling its status. The function blocks until no step of the
+	 * given workflow is REGISTERED any more, or until the timeout expires.
+	 * 
+	 * @param orderWorkflowId
+	 *            - the ID of the workflow being waited for.
+	 * @param timeoutMillis
+	 *            - the longest time to wait, the status is returned right away
+	 *            if it is not positive.
+	 * @return the list of states of the multiple steps of the given workflow
+	 *         when it finished or the timeout expired (order matters).
+	 * @throws OrderProcessingException
+	 *             - an InvalidWorkflowException if the workflow ID given is not
+	 *             valid, or an OrderProcessingException if the wait is
+	 *             interrupted.
+	 */
+	public List<StepStatus> awaitWorkflow(int orderWorkflowId,
+			long timeoutMillis) throws OrderProcessingException;
+
 	/**
 	 * This function is added for the sake of testing. It puts the ItemSupplier
 	 * in a same state as if it was reallocated.
@@ -1,10 +1,12 @@
 package com.acertainsupplychain;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * An OrderStep instance contains a quantity ordered against specific items, all
- * managed by a specific item supplier.
+ * managed by a specific item supplier. A step may depend on earlier steps of
+ * its workflow, in which case it is only executed once they have succeeded.
  */
 public final class OrderStep {
 
@@ -18,12 +20,34 @@ public final class OrderStep {
 	 */
 	private final List<ItemQuantity> items;
 
+	/**
+	 * The indices of the steps of the same workflow that this step depends on,
+	 * or NULL if it depends on none.
+	 */
+	private final int[] dependencies;
+
 	/**
 	 * Constructs an OrderStep instance with given supplier, item, and quantity.
 	 */
 	public OrderStep(int supplierId, List<ItemQuantity> items) {
+		this(supplierId, items, null);
+	}
+
+	/**
+	 * Constructs an OrderStep instance with given supplier, item, and quantity,
+	 * which depends on the steps of its workflow at the given indices. Every
+	 * index must be smaller than the index of this step, so the dependencies
+	 * of a workflow never form a cycle.
+	 */
+	public OrderStep(int supplierId, List<ItemQuantity> items,
+			int[] dependencies) {
 		this.supplierId = supplierId;
 		this.items = items;
+		if (dependencies == null || dependencies.length == 0) {
+			this.dependencies = null;
+		} else {
+			this.dependencies = dependencies.clone();
+		}
 	}
 
 	/**
@@ -40,8 +64,38 @@ public final class OrderStep {
 		return items;
 	}
 
+	/**
+	 * @return the indices of the steps this step depends on, which is empty
+	 *         if it depends on none
+	 */
+	public int[] getDependencies() {
+		return dependencies == null ? new int[0] : dependencies.clone();
+	}
+
+	/**
+	 * @return the number of steps this step depends on
+	 */
+	public int getDependencyCount() {
+		return dependencies == null ? 0 : dependencies.length;
+	}
+
+	/**
+	 * Returns the index of a step this step depends on, without copying the
+	 * dependencies.
+	 * 
+	 * @param i
+	 *            , between 0 and getDependencyCount() - 1.
+	 * @return
+	 */
+	public int getDependency(int i) {
+		return dependencies[i];
+	}
+
 	@Override
 	public String toString() {
+		if (dependencies != null)
+			return "OrderStep: [" + supplierId + "," + items + ","
+					+ Arrays.toString(dependencies) + "]";
 		return "OrderStep: [" + supplierId + "," + items + "]";
 	}
 
@@ -56,7 +110,8 @@ public final class OrderStep {
 
 		OrderStep item = (OrderStep) obj;
 
-		return supplierId == item.supplierId && items.equals(item.items);
+		return supplierId == item.supplierId && items.equals(item.items)
+				&& Arrays.equals(dependencies, item.dependencies);
 	}
 
 }
@@ -0,0 +1,51 @@
+package com.acertainsupplychain;
+
+/**
+ * An OrderStepResult instance holds the outcome of a single order step that
+ * was executed as part of a batch. A failed step carries the exception that
+ * made it fail.
+ */
+public final class OrderStepResult {
+
+	/**
+	 * The exception that made the step fail, or null if it succeeded.
+	 */
+	private final OrderProcessingException exception;
+
+	/**
+	 * Constructs an OrderStepResult for a successful step.
+	 */
+	public OrderStepResult() {
+		this.exception = null;
+	}
+
+	/**
+	 * Constructs an OrderStepResult for a step that failed with the given
+	 * exception.
+	 */
+	public OrderStepResult(OrderProcessingException exception) {
+		this.exception = exception;
+	}
+
+	/**
+	 * @return true if the step was executed
+	 */
+	public boolean isSuccessful() {
+		return exception == null;
+	}
+
+	/**
+	 * @return the exception, or null if the step was executed
+	 */
+	public OrderProcessingException getException() {
+		return exception;
+	}
+
+	@Override
+	public String toString() {
+		return "OrderStepResult: ["
+				+ (exception == null ? "SUCCESSFUL" : exception.getMessage())
+				+ "]";
+	}
+
+}
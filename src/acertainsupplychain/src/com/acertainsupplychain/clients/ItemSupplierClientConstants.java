@@ -9,6 +9,7 @@ package com.acertainsupplychain.clients;
 public final class ItemSupplierClientConstants {
 
 	public static final int ORDERMANAGER_MAX_THREADSPOOL_SIZE = 10;
+	public static final int ORDERMANAGER_MAX_VIRTUAL_THREADS = 1000;
 	public static final String GETWORKFLOWSTATUS_PARAM = "workflowID";
 	public static final String JOBGETSUPPLIER_PARAM = "jobSupplierID";
 	public static final String JOBGETWORKFLOW_PARAM = "jobWorkflowID";
@@ -16,6 +17,12 @@ public final class ItemSupplierClientConstants {
 	public static final String JOBSETSTATUS_PARAM_STEPINDEX = "jobSetStepIndex";
 	public static final String INIT_ITEMSUPPLIER_PARAM = "initSupplierID";
 	public static final String INIT_ORDERMANAGER_ID = "initOrderManagerID";
+	public static final String LOCKPROFILING_PARAM = "lockProfilingSampling";
+	public static final String GETLOCKPROFILE_PARAM = "lockProfileCount";
+	public static final String AWAITWORKFLOW_PARAM_WID = "awaitWorkflowID";
+	public static final String AWAITWORKFLOW_PARAM_TIMEOUT = "awaitTimeout";
+	public static final String GETWORKFLOWSINSTATE_PARAM_FROM = "stateFromWorkflowID";
+	public static final String GETWORKFLOWSINSTATE_PARAM_LIMIT = "stateLimit";
 
 	public static final int CLIENT_MAX_CONNECTION_ADDRESS = 200;
 	public static final int CLIENT_MAX_THREADSPOOL_THREADS = 250;
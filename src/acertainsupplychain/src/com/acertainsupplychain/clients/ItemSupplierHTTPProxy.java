@@ -13,9 +13,11 @@ import com.acertainsupplychain.ItemQuantity;
 import com.acertainsupplychain.ItemSupplier;
 import com.acertainsupplychain.OrderProcessingException;
 import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.OrderStepResult;
 import com.acertainsupplychain.utility.ItemSupplierMessageTag;
 import com.acertainsupplychain.utility.ItemSupplierResult;
 import com.acertainsupplychain.utility.ItemSupplierUtility;
+import com.acertainsupplychain.utility.LockProfile;
 
 /**
  * This class works as a proxy to an actual ItemSupplier server. This class uses
@@ -101,6 +103,25 @@ public class ItemSupplierHTTPProxy implements ItemSupplier {
 		ItemSupplierUtility.sendAndRecv(client, exchange);
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<OrderStepResult> executeSteps(List<OrderStep> steps)
+			throws OrderProcessingException {
+		String stepsXMLString = ItemSupplierUtility
+				.serializeObjectToXMLString(steps);
+		Buffer requestContent = new ByteArrayBuffer(stepsXMLString);
+
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("POST");
+		String urlString = itemSupplierAddress + "/"
+				+ ItemSupplierMessageTag.EXECUTESTEPS;
+		exchange.setURL(urlString);
+		exchange.setRequestContent(requestContent);
+
+		return (List<OrderStepResult>) ItemSupplierUtility.sendAndRecv(client,
+				exchange).getResult();
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public List<ItemQuantity> getOrdersPerItem(Set<Integer> itemIds)
@@ -163,6 +184,50 @@ public class ItemSupplierHTTPProxy implements ItemSupplier {
 		return (Integer) result.getResult();
 	}
 
+	/**
+	 * Starts sampling one in every sampling lock calls of the supplier, or
+	 * stops sampling if sampling is 0.
+	 * 
+	 * @param sampling
+	 * @throws OrderProcessingException
+	 */
+	public void setLockProfiling(int sampling) throws OrderProcessingException {
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("GET");
+		String urlString = itemSupplierAddress + "/"
+				+ ItemSupplierMessageTag.LOCKPROFILING + "?"
+				+ ItemSupplierClientConstants.LOCKPROFILING_PARAM + "="
+				+ ItemSupplierUtility.encodeInteger(sampling);
+		exchange.setURL(urlString);
+
+		// We do not care about the responds, only if an exception had occurred
+		ItemSupplierUtility.sendAndRecv(client, exchange);
+	}
+
+	/**
+	 * Returns the lock profiles of the given number of the most contended
+	 * objects of the supplier.
+	 * 
+	 * @param count
+	 * @return
+	 * @throws OrderProcessingException
+	 */
+	@SuppressWarnings("unchecked")
+	public List<LockProfile> getHottestLocks(int count)
+			throws OrderProcessingException {
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("GET");
+		String urlString = itemSupplierAddress + "/"
+				+ ItemSupplierMessageTag.GETLOCKPROFILE + "?"
+				+ ItemSupplierClientConstants.GETLOCKPROFILE_PARAM + "="
+				+ ItemSupplierUtility.encodeInteger(count);
+		exchange.setURL(urlString);
+
+		ItemSupplierResult result = ItemSupplierUtility.sendAndRecv(client,
+				exchange);
+		return (List<LockProfile>) result.getResult();
+	}
+
 	// @Override
 	// public boolean equals(Object obj) {
 	// if (obj == null)
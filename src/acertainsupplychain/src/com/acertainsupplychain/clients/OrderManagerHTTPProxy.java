@@ -13,9 +13,11 @@ import com.acertainsupplychain.ItemSupplier;
 import com.acertainsupplychain.OrderManager;
 import com.acertainsupplychain.OrderProcessingException;
 import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.storage.WorkflowStateIndex;
 import com.acertainsupplychain.utility.ItemSupplierMessageTag;
 import com.acertainsupplychain.utility.ItemSupplierResult;
 import com.acertainsupplychain.utility.ItemSupplierUtility;
+import com.acertainsupplychain.utility.LockProfile;
 
 //import org.eclipse.jetty.io.ByteArrayBuffer;
 
@@ -170,6 +172,25 @@ public class OrderManagerHTTPProxy implements OrderManager {
 				.getResult();
 	}
 
+	@Override
+	public int[] registerOrderWorkflows(List<List<OrderStep>> workflows)
+			throws OrderProcessingException {
+
+		String workflowsXMLString = ItemSupplierUtility
+				.serializeObjectToXMLString(workflows);
+		Buffer requestContent = new ByteArrayBuffer(workflowsXMLString);
+
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("POST");
+		String urlString = orderManagerAddress + "/"
+				+ ItemSupplierMessageTag.REGISTERWORKFLOWS;
+		exchange.setURL(urlString);
+		exchange.setRequestContent(requestContent);
+
+		return (int[]) ItemSupplierUtility.sendAndRecv(client, exchange)
+				.getResult();
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public List<StepStatus> getOrderWorkflowStatus(int orderWorkflowId)
@@ -204,6 +225,61 @@ public class OrderManagerHTTPProxy implements OrderManager {
 		return (List<StepStatus>) result.getResult();
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<List<StepStatus>> getOrderWorkflowStatuses(
+			int[] orderWorkflowIds) throws InvalidWorkflowException {
+
+		String idsXMLString = ItemSupplierUtility
+				.serializeObjectToXMLString(orderWorkflowIds);
+		Buffer requestContent = new ByteArrayBuffer(idsXMLString);
+
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("POST");
+		String urlString = orderManagerAddress + "/"
+				+ ItemSupplierMessageTag.GETWORKFLOWSTATUSES;
+		exchange.setURL(urlString);
+		exchange.setRequestContent(requestContent);
+
+		ItemSupplierResult result = null;
+		try {
+			result = ItemSupplierUtility.sendAndRecv(client, exchange);
+		} catch (OrderProcessingException e) {
+			throw new InvalidWorkflowException(e);
+		}
+
+		return (List<List<StepStatus>>) result.getResult();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<StepStatus> awaitWorkflow(int orderWorkflowId,
+			long timeoutMillis) throws OrderProcessingException {
+
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("GET");
+
+		// The server holds the request until the workflow finishes, so the
+		// exchange must outlive the wait.
+		int timeout = (int) Math.max(0, Math.min(timeoutMillis,
+				Integer.MAX_VALUE
+						- ItemSupplierClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS));
+		exchange.setTimeout(timeout
+				+ ItemSupplierClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+
+		String urlString = orderManagerAddress + "/"
+				+ ItemSupplierMessageTag.AWAITWORKFLOW + "?"
+				+ ItemSupplierClientConstants.AWAITWORKFLOW_PARAM_WID + "="
+				+ ItemSupplierUtility.encodeInteger(orderWorkflowId) + "&"
+				+ ItemSupplierClientConstants.AWAITWORKFLOW_PARAM_TIMEOUT + "="
+				+ ItemSupplierUtility.encodeInteger(timeout);
+		exchange.setURL(urlString);
+
+		ItemSupplierResult result = ItemSupplierUtility.sendAndRecv(client,
+				exchange);
+		return (List<StepStatus>) result.getResult();
+	}
+
 	@Override
 	public ItemSupplier jobGetSupplier(int supplierID)
 			throws OrderProcessingException {
@@ -318,4 +394,101 @@ public class OrderManagerHTTPProxy implements OrderManager {
 		}
 	}
 
+	/**
+	 * Starts sampling one in every sampling lock calls of the OrderManager, or
+	 * stops sampling if sampling is 0.
+	 * 
+	 * @param sampling
+	 * @throws OrderProcessingException
+	 */
+	public void setLockProfiling(int sampling) throws OrderProcessingException {
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("GET");
+		String urlString = orderManagerAddress + "/"
+				+ ItemSupplierMessageTag.LOCKPROFILING + "?"
+				+ ItemSupplierClientConstants.LOCKPROFILING_PARAM + "="
+				+ ItemSupplierUtility.encodeInteger(sampling);
+		exchange.setURL(urlString);
+
+		// We do not care about the responds, only if an exception had occurred
+		ItemSupplierUtility.sendAndRecv(client, exchange);
+	}
+
+	/**
+	 * Returns the lock profiles of the given number of the most contended
+	 * objects of the OrderManager.
+	 * 
+	 * @param count
+	 * @return
+	 * @throws OrderProcessingException
+	 */
+	@SuppressWarnings("unchecked")
+	public List<LockProfile> getHottestLocks(int count)
+			throws OrderProcessingException {
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("GET");
+		String urlString = orderManagerAddress + "/"
+				+ ItemSupplierMessageTag.GETLOCKPROFILE + "?"
+				+ ItemSupplierClientConstants.GETLOCKPROFILE_PARAM + "="
+				+ ItemSupplierUtility.encodeInteger(count);
+		exchange.setURL(urlString);
+
+		ItemSupplierResult result = ItemSupplierUtility.sendAndRecv(client,
+				exchange);
+		return (List<LockProfile>) result.getResult();
+	}
+
+	/**
+	 * Returns the number of workflows of the OrderManager in the given state.
+	 * 
+	 * @param state
+	 * @return
+	 * @throws OrderProcessingException
+	 */
+	public int getWorkflowCount(WorkflowStateIndex.State state)
+			throws OrderProcessingException {
+		Buffer requestContent = new ByteArrayBuffer(
+				ItemSupplierUtility.serializeObjectToXMLString(state));
+
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("POST");
+		String urlString = orderManagerAddress + "/"
+				+ ItemSupplierMessageTag.GETWORKFLOWCOUNT;
+		exchange.setURL(urlString);
+		exchange.setRequestContent(requestContent);
+
+		return (Integer) ItemSupplierUtility.sendAndRecv(client, exchange)
+				.getResult();
+	}
+
+	/**
+	 * Returns a page of the IDs of the workflows of the OrderManager in the
+	 * given state, see OrderManagerImpl.getWorkflowsInState.
+	 * 
+	 * @param state
+	 * @param fromWorkflowID
+	 * @param limit
+	 * @return
+	 * @throws OrderProcessingException
+	 */
+	public int[] getWorkflowsInState(WorkflowStateIndex.State state,
+			int fromWorkflowID, int limit) throws OrderProcessingException {
+		Buffer requestContent = new ByteArrayBuffer(
+				ItemSupplierUtility.serializeObjectToXMLString(state));
+
+		ContentExchange exchange = new ContentExchange();
+		exchange.setMethod("POST");
+		String urlString = orderManagerAddress + "/"
+				+ ItemSupplierMessageTag.GETWORKFLOWSINSTATE + "?"
+				+ ItemSupplierClientConstants.GETWORKFLOWSINSTATE_PARAM_FROM
+				+ "=" + ItemSupplierUtility.encodeInteger(fromWorkflowID) + "&"
+				+ ItemSupplierClientConstants.GETWORKFLOWSINSTATE_PARAM_LIMIT
+				+ "=" + ItemSupplierUtility.encodeInteger(limit);
+		exchange.setURL(urlString);
+		exchange.setRequestContent(requestContent);
+
+		return (int[]) ItemSupplierUtility.sendAndRecv(client, exchange)
+				.getResult();
+	}
+
 }
@@ -1,22 +1,36 @@
 package com.acertainsupplychain.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.acertainsupplychain.InvalidItemException;
 import com.acertainsupplychain.ItemQuantity;
 import com.acertainsupplychain.ItemSupplier;
 import com.acertainsupplychain.OrderProcessingException;
 import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.OrderStepResult;
+import com.acertainsupplychain.log.LogSegments;
+import com.acertainsupplychain.log.RecoveryStatistics;
+import com.acertainsupplychain.log.SupplierCheckpoint;
+import com.acertainsupplychain.log.SupplierLogFormat;
+import com.acertainsupplychain.log.SupplierLogRecord;
+import com.acertainsupplychain.log.SupplierLogRecovery;
+import com.acertainsupplychain.storage.ItemStore;
+import com.acertainsupplychain.storage.OpenAddressingItemStore;
+import com.acertainsupplychain.storage.SnapshotManager;
 import com.acertainsupplychain.utility.FileLogger;
-import com.acertainsupplychain.utility.LockMapManager;
+import com.acertainsupplychain.utility.IntStripedLockManager;
+import com.acertainsupplychain.utility.LockProfile;
+import com.acertainsupplychain.utility.LockProfiler;
 
 /**
  * This class is an implementation of the ItemSupplier interface.
@@ -27,11 +41,19 @@ import com.acertainsupplychain.utility.LockMapManager;
 public class ItemSupplierImpl implements ItemSupplier {
 
 	private final int supplierID;
-	private final Map<Integer, Integer> summedOrders;
-	private final FileLogger fileLogger;
-	private int logID;
-	private final ReadWriteLock logIDLock;
-	private final LockMapManager<Integer> lockManager;
+	private final ItemStore summedOrders;
+	private final SnapshotManager snapshots;
+	private final IntStripedLockManager lockManager;
+	private final File checkpointFile;
+	private final Object checkpointLock;
+	private RecoveryStatistics recoveryStatistics;
+	private boolean recovered;
+
+	// The log and the checkpoints run threads of their own, so they are not
+	// sent along when the supplier is serialized, see getLogger.
+	private transient volatile FileLogger fileLogger;
+	private transient LogSegments segments;
+	private transient ScheduledExecutorService checkpointer;
 
 	/**
 	 * Initializes the ItemSupplier with a given supplier ID.
@@ -39,15 +61,257 @@ public class ItemSupplierImpl implements ItemSupplier {
 	 * @param supplierID
 	 */
 	public ItemSupplierImpl(int supplierID) {
+		this(supplierID, new OpenAddressingItemStore());
+	}
+
+	/**
+	 * Initializes the ItemSupplier with a given supplier ID and the store in
+	 * which the summed orders are kept.
+	 * 
+	 * @param supplierID
+	 * @param summedOrders
+	 */
+	public ItemSupplierImpl(int supplierID, ItemStore summedOrders) {
+		this(supplierID, summedOrders, false);
+	}
+
+	/**
+	 * Initializes the ItemSupplier with a given supplier ID and the store in
+	 * which the summed orders are kept. If recover is true the store is
+	 * rebuilt from the log of the supplier before any new step is accepted,
+	 * which must not be done for a store that persists the totals itself.
+	 * 
+	 * @param supplierID
+	 * @param summedOrders
+	 * @param recover
+	 */
+	public ItemSupplierImpl(int supplierID, ItemStore summedOrders,
+			boolean recover) {
 		this.supplierID = supplierID;
-		logID = 0;
-		summedOrders = new ConcurrentHashMap<Integer, Integer>();
-		lockManager = new LockMapManager<Integer>();
-		logIDLock = new ReentrantReadWriteLock();
-
-		fileLogger = new FileLogger(this.supplierID + "_Supplier_logfile", "");
-		fileLogger.logToFile("INITSUP " + this.supplierID
-						+ System.getProperty("line.separator"), true);
+		this.summedOrders = summedOrders;
+		snapshots = new SnapshotManager(summedOrders);
+		lockManager = new IntStripedLockManager();
+
+		checkpointLock = new Object();
+		openLog();
+		File logFile = new File(fileLogger.getFullPath());
+		checkpointFile = new File(logFile.getParentFile(), this.supplierID
+				+ "_Supplier_checkpoint." + SupplierCheckpoint.FILE_TYPE);
+		recovered = false;
+		if (recover) {
+			recoverFromLog();
+		} else {
+			// A store that keeps its totals across restarts also keeps the ID
+			// of its last commit, so the log IDs continue after it.
+			snapshots.skipTo(summedOrders.getLastCommitID());
+		}
+		fileLogger.logToFile(SupplierLogRecord.encodeInit(this.supplierID));
+	}
+
+	/**
+	 * Opens the log of the supplier and the segments it rolls into.
+	 */
+	private void openLog() {
+		FileLogger logger = new FileLogger(supplierID + "_Supplier_logfile",
+				SupplierLogRecord.FILE_TYPE, "", new SupplierLogFormat());
+		segments = logger.getSegments() != null ? logger.getSegments()
+				: new LogSegments(new File(logger.getFullPath()));
+		fileLogger = logger;
+	}
+
+	/**
+	 * Returns the log of the supplier. A supplier that was sent to another
+	 * process with XStream arrives without its log and opens it again on first
+	 * use.
+	 * 
+	 * @return the log of the supplier
+	 */
+	private FileLogger getLogger() {
+		FileLogger logger = fileLogger;
+		if (logger != null)
+			return logger;
+		synchronized (checkpointLock) {
+			if (fileLogger == null) {
+				openLog();
+			}
+			return fileLogger;
+		}
+	}
+
+	/**
+	 * Loads the last checkpoint of the supplier into the store of summed
+	 * orders, replays the log after it and continues the log IDs after the
+	 * last one in the log. A record that was only partly written when the
+	 * supplier stopped is cut off the end of the log, so new records are not
+	 * appended behind it. A supplier whose checkpoint or log cannot be
+	 * recovered does not start, rather than accept steps on top of partial
+	 * totals.
+	 */
+	private void recoverFromLog() {
+		summedOrders.clear();
+		long checkpointSequence = 0;
+		long checkpointSegment = 0;
+		try {
+			SupplierCheckpoint checkpoint = SupplierCheckpoint.load(
+					checkpointFile, summedOrders);
+			if (checkpoint != null) {
+				checkpointSequence = checkpoint.getSequence();
+				checkpointSegment = checkpoint.getSegment();
+				System.out.println("ItemSupplierImpl: Supplier with id ["
+						+ supplierID + "] loaded its checkpoint, "
+						+ checkpoint);
+			}
+		} catch (IOException e) {
+			// The segments up to the checkpoint may already be deleted, so
+			// the remaining log alone would give partial totals.
+			throw new IllegalStateException("ItemSupplierImpl: Supplier with "
+					+ "id [" + supplierID + "] could not load its checkpoint ["
+					+ checkpointFile.getPath() + "].", e);
+		}
+
+		try {
+			List<File> logFiles = segments.getTail(checkpointSegment);
+			recoveryStatistics = new SupplierLogRecovery().recover(logFiles,
+					summedOrders, checkpointSequence);
+			cutDamagedTail(logFiles);
+			snapshots.skipTo(Math.max(checkpointSequence,
+					recoveryStatistics.getLastSequence()));
+			segments.reserve(checkpointSegment);
+			recovered = true;
+			System.out.println("ItemSupplierImpl: Supplier with id ["
+					+ supplierID + "] recovered its log, "
+					+ recoveryStatistics);
+		} catch (IOException e) {
+			throw new IllegalStateException("ItemSupplierImpl: Supplier with "
+					+ "id [" + supplierID + "] could not recover its log.", e);
+		}
+	}
+
+	/**
+	 * Cuts the damaged record the replay stopped at, and anything after it,
+	 * off the end of the log. Only the last file of the log can end in such a
+	 * record after a crash, a damaged record in any earlier file means that
+	 * records the supplier acknowledged were lost.
+	 * 
+	 * @param logFiles
+	 *            , the files the log was replayed from.
+	 * @throws IOException
+	 */
+	private void cutDamagedTail(List<File> logFiles) throws IOException {
+		File damaged = recoveryStatistics.getDamagedFile();
+		if (damaged == null)
+			return;
+		File last = null;
+		for (File logFile : logFiles) {
+			if (logFile.exists()) {
+				last = logFile;
+			}
+		}
+		if (!damaged.equals(last))
+			throw new IOException("ItemSupplierImpl: The log segment ["
+					+ damaged.getPath() + "] of supplier with id ["
+					+ supplierID + "] is damaged before the end of the log.");
+
+		long length = recoveryStatistics.getDamagedFileLength();
+		RandomAccessFile file = new RandomAccessFile(damaged, "rw");
+		try {
+			long damagedBytes = file.length() - length;
+			file.getChannel().truncate(length);
+			file.getChannel().force(true);
+			System.out.println("ItemSupplierImpl: Supplier with id ["
+					+ supplierID + "] cut " + damagedBytes + " bytes of a "
+					+ "damaged record off the end of its log.");
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Takes a fuzzy checkpoint of the summed orders and truncates the log up
+	 * to it. Steps keep being executed while the checkpoint is taken.
+	 * 
+	 * The log is first rolled, so every step in the archived segments is
+	 * already visible. The totals are then read from a snapshot as of a log ID
+	 * at least as new as those steps, and any step in the new segment up to
+	 * that log ID is skipped when the log is replayed. Once the checkpoint is
+	 * durable the archived segments are deleted.
+	 * 
+	 * Only a supplier that recovered its log can take checkpoints, as the log
+	 * of any other supplier holds steps that are not in its totals.
+	 * 
+	 * @return the log ID the checkpoint was taken as of.
+	 * @throws IOException
+	 */
+	public long checkpoint() throws IOException {
+		if (!recovered)
+			throw new IllegalStateException("Supplier with id ["
+					+ supplierID + "]: Only a supplier that recovered its "
+					+ "log can take checkpoints.");
+
+		synchronized (checkpointLock) {
+			long segment = getLogger().roll();
+			SupplierCheckpoint.Writer writer = new SupplierCheckpoint.Writer(
+					checkpointFile, segment);
+			long sequence;
+			try {
+				sequence = snapshots.readAll(writer);
+			} catch (RuntimeException e) {
+				writer.abort();
+				throw e;
+			}
+			writer.commit(sequence);
+			segments.truncate(segment);
+			return sequence;
+		}
+	}
+
+	/**
+	 * Starts taking a checkpoint in the background with the given interval,
+	 * unless the supplier did not recover its log.
+	 * 
+	 * @param intervalMillis
+	 */
+	public synchronized void startCheckpoints(long intervalMillis) {
+		if (checkpointer != null)
+			return;
+		if (!recovered) {
+			System.out.println("ItemSupplierImpl: Supplier with id ["
+					+ supplierID + "] did not recover its log and cannot "
+					+ "take checkpoints.");
+			return;
+		}
+		checkpointer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"ItemSupplierImpl-Checkpoint-" + supplierID);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		checkpointer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (IOException e) {
+					System.out.println("ItemSupplierImpl: Supplier with id ["
+							+ supplierID + "] could not take a checkpoint.");
+					e.printStackTrace();
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops taking checkpoints in the background.
+	 */
+	public synchronized void stopCheckpoints() {
+		if (checkpointer == null)
+			return;
+		checkpointer.shutdown();
+		checkpointer = null;
 	}
 
 	@Override
@@ -55,12 +319,81 @@ public class ItemSupplierImpl implements ItemSupplier {
 		// Validate the step before processing it.
 		validateStep(step);
 
-		// Update the lockMap before executing the step to ensure that the
-		// needed locks exist
-		lockManager.addToLockMap(extractSortedItemIDs(step));
+		// The item IDs are put into lock order once, for both the locking and
+		// the unlocking of the step.
+		int[] itemIDs = lockManager.lockOrder(extractItemIDs(step));
+		reserveItems(itemIDs);
 
 		// Execute the step
-		addStepToSummedOrders(step);
+		addStepToSummedOrders(step, itemIDs);
+	}
+
+	@Override
+	public List<OrderStepResult> executeSteps(List<OrderStep> steps)
+			throws OrderProcessingException {
+		if (steps == null)
+			throw new OrderProcessingException("Supplier with id ["
+					+ supplierID + "]: The given list of OrderSteps cannot be "
+					+ "NULL.");
+
+		// Validate every step up front, an invalid step only fails itself.
+		List<OrderStepResult> results = new ArrayList<OrderStepResult>();
+		List<OrderStep> validSteps = new ArrayList<OrderStep>();
+		int items = 0;
+		for (OrderStep step : steps) {
+			try {
+				validateStep(step);
+				reserveItems(extractItemIDs(step));
+				validSteps.add(step);
+				items += step.getItems().size();
+				results.add(new OrderStepResult());
+			} catch (OrderProcessingException e) {
+				results.add(new OrderStepResult(e));
+			}
+		}
+
+		if (validSteps.isEmpty())
+			return results;
+
+		// The union of the item IDs is locked once for the whole batch, in
+		// lock order as for a single step.
+		int[] itemIDs = new int[items];
+		items = 0;
+		for (OrderStep step : validSteps) {
+			for (ItemQuantity item : step.getItems()) {
+				itemIDs[items++] = item.getItemId();
+			}
+		}
+		itemIDs = lockManager.lockOrder(itemIDs);
+		lockManager.acquireWriteLocks(itemIDs);
+
+		// Every step is still committed on its own, so a snapshot read sees
+		// either all or none of the items of a step.
+		long logSequence;
+		try {
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			for (OrderStep step : validSteps) {
+				long mylogID = snapshots.beginCommit();
+				try {
+					applyStep(step, mylogID);
+				} finally {
+					snapshots.endCommit(mylogID);
+				}
+				byte[] record = SupplierLogRecord.encodeStep(mylogID,
+						step.getItems());
+				records.write(record, 0, record.length);
+			}
+
+			// Every step of the batch is written to the log with a single
+			// write, and the steps are only acknowledged once the write is
+			// durable. The locks are released first, so other steps are not
+			// held up by it.
+			logSequence = getLogger().logToFile(records.toByteArray());
+		} finally {
+			lockManager.releaseWriteLocks(itemIDs);
+		}
+		getLogger().awaitDurable(logSequence);
+		return results;
 	}
 
 	/**
@@ -101,90 +434,101 @@ public class ItemSupplierImpl implements ItemSupplier {
 				throw new OrderProcessingException("Supplier with id ["
 						+ supplierID + "]: You cannot order a non-positive "
 						+ "amount of some item");
+			if (!summedOrders.canStore(item.getItemId()))
+				throw new InvalidItemException("Supplier with id ["
+						+ supplierID + "]: The item with id ["
+						+ item.getItemId() + "] is outside the range of "
+						+ "items managed by this supplier.");
 		}
 	}
 
 	/**
-	 * Returns the next log ID and guarantees that no one else can get the same
-	 * ID as you.
+	 * Makes room in the store of summed orders for every item of a step before
+	 * any of them is added, so a step never fails halfway through.
 	 * 
-	 * @return a unique log ID.
+	 * @param itemIDs
+	 *            , the item IDs of the step.
+	 * @throws InvalidItemException
 	 */
-	private int getNextLogID() {
-		logIDLock.writeLock().lock();
-		int nextID = logID;
-		logID++;
-		logIDLock.writeLock().unlock();
-		return nextID;
+	private void reserveItems(int[] itemIDs) throws InvalidItemException {
+		if (!summedOrders.reserve(itemIDs))
+			throw new InvalidItemException("Supplier with id [" + supplierID
+					+ "]: The store of the supplier has no room for the new "
+					+ "items of the given OrderStep.");
 	}
 
 	/**
-	 * Extracts a list of item IDs from a given OrderStep and sorts the list in
-	 * ascending order before returning it.
+	 * Extracts the item IDs of a given OrderStep, in the order of its items.
 	 * 
 	 * @param step
 	 *            , the step to be extracted.
-	 * @return the sorted list of item IDs.
+	 * @return the item IDs.
 	 */
-	private List<Integer> extractSortedItemIDs(OrderStep step) {
-		List<Integer> itemIDs = new ArrayList<Integer>();
-
-		for (ItemQuantity item : step.getItems()) {
-			itemIDs.add(item.getItemId());
+	private int[] extractItemIDs(OrderStep step) {
+		List<ItemQuantity> items = step.getItems();
+		int[] itemIDs = new int[items.size()];
+		int i = 0;
+		for (ItemQuantity item : items) {
+			itemIDs[i++] = item.getItemId();
 		}
-
-		Collections.sort(itemIDs);
 		return itemIDs;
 	}
 
 	/**
-	 * This function executes the OrderStep by adding it atomically to the map
-	 * of summed orders. This function assumes that the step is valid
+	 * This function executes the OrderStep by adding it atomically to the
+	 * store of summed orders. This function assumes that the step is valid
 	 * 
 	 * @param step
 	 *            , the OrderStep to be executed.
+	 * @param itemIDs
+	 *            , the item IDs of the step in lock order.
 	 */
-	private void addStepToSummedOrders(OrderStep step) {
-		int mylogID = getNextLogID();
-
-		fileLogger.logToFile("EXEC-START " + mylogID
-					+ System.getProperty("line.separator"), true);
-
-		// To make sure that this function is atomic, we must 'prepare' how the
-		// map is going to be after this execution
-		Map<Integer, Integer> preparedMap = new HashMap<Integer, Integer>();
-		List<Integer> itemIDs = extractSortedItemIDs(step);
+	private void addStepToSummedOrders(OrderStep step, int[] itemIDs) {
+		// The write locks of every item in the step are held while the
+		// quantities are added, so no other writer can interleave with the
+		// step. The log ID is the commit ID of the step, which is only taken
+		// once the locks are held.
 		lockManager.acquireWriteLocks(itemIDs);
-
-		for (ItemQuantity item : step.getItems()) {
-			int summed = item.getQuantity();
-
-			if (preparedMap.containsKey(item.getItemId())) {
-				summed += preparedMap.get(item.getItemId());
-			} else if (summedOrders.containsKey(item.getItemId())) {
-				summed += summedOrders.get(item.getItemId());
+		long logSequence;
+		try {
+			long mylogID = snapshots.beginCommit();
+			try {
+				applyStep(step, mylogID);
+			} finally {
+				snapshots.endCommit(mylogID);
 			}
-			preparedMap.put(item.getItemId(), summed);
 
+			// The whole step is appended to the log as a single record, and
+			// the step is only acknowledged once the record is durable. The
+			// locks are released first, so other steps are not held up by the
+			// write.
+			logSequence = getLogger().logToFile(SupplierLogRecord.encodeStep(
+					mylogID, step.getItems()));
+		} finally {
+			lockManager.releaseWriteLocks(itemIDs);
 		}
+		getLogger().awaitDurable(logSequence);
+	}
 
-		// Do the atomic write
-		summedOrders.putAll(preparedMap);
-
-		// The logs in the loop below is supposed be inside the puAll function
-		// and happen right after an element has been written to the
-		// summedOrders map. Although instead of overwritten the putAll method
-		// and forcing myself into a possible daring challenge I will for now
-		// just do the logging afterwards.
+	/**
+	 * Adds the quantities of a step to the store of summed orders as the
+	 * commit with the given ID. The caller must hold the write locks of every
+	 * item in the step.
+	 * 
+	 * @param step
+	 * @param commitID
+	 */
+	private void applyStep(OrderStep step, long commitID) {
 		for (ItemQuantity item : step.getItems()) {
-			fileLogger.logToFile("WRT " + mylogID + " " + item.getItemId()
-					+ " " + item.getQuantity()
-					+ System.getProperty("line.separator"), true);
+			snapshots.beforeWrite(item.getItemId(), commitID);
 		}
-
-		fileLogger.logToFile("EXEC-DONE " + mylogID
-					+ System.getProperty("line.separator"), true);
-		lockManager.releaseWriteLocks(itemIDs);
+		for (ItemQuantity item : step.getItems()) {
+			summedOrders.add(item.getItemId(), item.getQuantity());
+		}
+		for (ItemQuantity item : step.getItems()) {
+			snapshots.afterWrite(item.getItemId(), commitID);
+		}
+		summedOrders.setLastCommitID(commitID);
 	}
 
 	@Override
@@ -193,18 +537,85 @@ public class ItemSupplierImpl implements ItemSupplier {
 		// Validate the set of item IDs before processing them.
 		validateItemIDs(itemIds);
 
-		List<ItemQuantity> allItems = new ArrayList<ItemQuantity>();
-
-		List<Integer> itemIdList = new ArrayList<Integer>(itemIds);
-		lockManager.acquireReadLocks(itemIdList);
-
+		// The totals are read from a snapshot as of the last visible step, so
+		// no locks are taken and concurrent steps are not blocked.
+		int[] ids = new int[itemIds.size()];
+		int i = 0;
 		for (Integer id : itemIds) {
-			allItems.add(new ItemQuantity(id, summedOrders.get(id)));
+			ids[i++] = id;
+		}
+		long[] totals = snapshots.read(ids);
+
+		List<ItemQuantity> allItems = new ArrayList<ItemQuantity>();
+		for (i = 0; i < ids.length; i++) {
+			if (totals[i] == 0)
+				throw new InvalidItemException("Supplier with id ["
+						+ supplierID + "]: Supplier have no records of "
+						+ "any orders on item with id [" + ids[i] + "]");
+			allItems.add(new ItemQuantity(ids[i], toQuantity(totals[i])));
 		}
-		lockManager.releaseReadLocks(itemIdList);
 		return allItems;
 	}
 
+	/**
+	 * Converts a total from the store to the int quantity of an ItemQuantity.
+	 * The store keeps the totals as longs so they never overflow, a total that
+	 * does not fit in an int is reported as Integer.MAX_VALUE.
+	 * 
+	 * @param total
+	 * @return
+	 */
+	private static int toQuantity(long total) {
+		if (total > Integer.MAX_VALUE)
+			return Integer.MAX_VALUE;
+		return (int) total;
+	}
+
+	/**
+	 * @return the statistics of the replay of the log when the supplier was
+	 *         created, or null if the log was not replayed
+	 */
+	public RecoveryStatistics getRecoveryStatistics() {
+		return recoveryStatistics;
+	}
+
+	/**
+	 * Returns the approximate number of bytes the summed orders and their
+	 * commit IDs use per item. Both are kept in the store.
+	 * 
+	 * @return
+	 */
+	public double getMemoryPerItem() {
+		int size = Math.max(summedOrders.size(), 1);
+		return (double) summedOrders.getMemoryUsage() / size;
+	}
+
+	/**
+	 * Starts sampling one in every sampling lock calls of the supplier to find
+	 * its contended items, or stops sampling if sampling is 0. Starting again
+	 * forgets the previous profile.
+	 * 
+	 * @param sampling
+	 */
+	public void setLockProfiling(int sampling) {
+		lockManager.setProfiler(sampling > 0 ? new LockProfiler<Integer>(
+				sampling) : null);
+	}
+
+	/**
+	 * Returns the lock profiles of the given number of items whose locks
+	 * were waited for the longest, see LockProfiler.
+	 * 
+	 * @param count
+	 * @return the profiles, which are empty if the locks are not profiled.
+	 */
+	public List<LockProfile> getHottestLocks(int count) {
+		LockProfiler<Integer> profiler = lockManager.getProfiler();
+		if (profiler == null)
+			return new ArrayList<LockProfile>();
+		return profiler.getHottestKeys(count);
+	}
+
 	/**
 	 * Validates a given set of item IDs. The function throws an
 	 * InvalidItemException if the set is invalid, otherwise just returns
@@ -224,19 +635,25 @@ public class ItemSupplierImpl implements ItemSupplier {
 				throw new InvalidItemException("Supplier with id ["
 						+ supplierID + "]: The given Integer set cannot"
 						+ "contain a NULL Integer.");
-			if (!summedOrders.containsKey(id))
-				throw new InvalidItemException("Supplier with id ["
-						+ supplierID + "]: Supplier have no records of "
-						+ "any orders on item with id [" + id + "]");
 		}
 	}
 
 	@Override
 	public void clear() {
-		logID = 0;
-		summedOrders.clear();
-		fileLogger.logToFile("CLEARDONE" 
-				+ System.getProperty("line.separator"), true);
+		// A checkpoint must not read the store while it is cleared. The clear
+		// is only acknowledged once its record is durable, but other threads
+		// are not kept off the checkpoint lock while it is waited for.
+		long logSequence;
+		synchronized (checkpointLock) {
+			long mylogID = snapshots.beginCommit();
+			summedOrders.clear();
+			snapshots.clear();
+			summedOrders.setLastCommitID(mylogID);
+			snapshots.endCommit(mylogID);
+			logSequence = getLogger().logToFile(
+					SupplierLogRecord.encodeClear(mylogID));
+		}
+		getLogger().awaitDurable(logSequence);
 	}
 
 	@Override
@@ -1,22 +1,38 @@
 package com.acertainsupplychain.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.acertainsupplychain.InvalidWorkflowException;
-import com.acertainsupplychain.ItemQuantity;
 import com.acertainsupplychain.ItemSupplier;
 import com.acertainsupplychain.OrderManager;
 import com.acertainsupplychain.OrderProcessingException;
 import com.acertainsupplychain.OrderStep;
 import com.acertainsupplychain.clients.ItemSupplierHTTPProxy;
+import com.acertainsupplychain.log.OrderManagerLogEncoder;
+import com.acertainsupplychain.log.OrderManagerLogFormat;
+import com.acertainsupplychain.log.OrderManagerLogRecovery;
+import com.acertainsupplychain.log.RecoveryStatistics;
+import com.acertainsupplychain.storage.WorkflowArchive;
+import com.acertainsupplychain.storage.WorkflowStateIndex;
+import com.acertainsupplychain.storage.WorkflowStatusTable;
 import com.acertainsupplychain.utility.FileLogger;
-import com.acertainsupplychain.utility.LockMapManager;
+import com.acertainsupplychain.utility.IntStripedLockManager;
+import com.acertainsupplychain.utility.LockProfile;
+import com.acertainsupplychain.utility.LockProfiler;
 
 /**
  * This is an implementation of the OrderManager interface.
@@ -26,16 +42,31 @@ import com.acertainsupplychain.utility.LockMapManager;
  */
 public class OrderManagerImpl implements OrderManager {
 
+	// Every thread encodes its log lines into its own reusable buffer.
+	private final static ThreadLocal<OrderManagerLogEncoder> ENCODERS = new ThreadLocal<OrderManagerLogEncoder>() {
+		@Override
+		protected OrderManagerLogEncoder initialValue() {
+			return new OrderManagerLogEncoder();
+		}
+	};
+
 	private final Map<Integer, List<OrderStep>> workflows;
-	private final Map<Integer, List<StepStatus>> status;
-	private int nextWorkflowID;
+	private final WorkflowStatusTable status;
+	private final WorkflowStateIndex states;
+	private final AtomicInteger nextWorkflowID;
+	private final ConcurrentMap<Integer, Queue<Runnable>> completionListeners;
+	// Serializes the state changes of a workflow whose steps finish at once.
+	private final IntStripedLockManager workflowLocks;
 	private final Map<Integer, ItemSupplier> suppliers;
 	private OrderManagerScheduler scheduler;
+	private volatile boolean parallelSteps;
+	private volatile int maxStepBatchSize;
+	private volatile long stepFlushIntervalMillis;
+	private final int virtualThreadLimit;
 	private final FileLogger fileLogger;
+	private final WorkflowArchive archive;
 	private final int orderManagerID;
 
-	private final ReadWriteLock workflowIDLock;
-	private final LockMapManager<Integer> lockManager;
 
 	/**
 	 * Initialize the OrderManager with a given OrderManager ID and map of
@@ -48,23 +79,165 @@ public class OrderManagerImpl implements OrderManager {
 	public OrderManagerImpl(int orderManagerID,
 			Map<Integer, ItemSupplier> suppliers)
 			throws OrderProcessingException {
+		this(orderManagerID, suppliers, false);
+	}
+
+	/**
+	 * Initialize the OrderManager with a given OrderManager ID and map of
+	 * ItemSupplier instances. If recover is true the workflows and their
+	 * statuses are rebuilt from the log of the OrderManager, and every
+	 * workflow with a step that is still REGISTERED is scheduled again.
+	 * 
+	 * @param orderManagerID
+	 * @param suppliers
+	 * @param recover
+	 * @throws OrderProcessingException
+	 */
+	public OrderManagerImpl(int orderManagerID,
+			Map<Integer, ItemSupplier> suppliers, boolean recover)
+			throws OrderProcessingException {
+		this(orderManagerID, suppliers, recover, 0);
+	}
+
+	/**
+	 * Initialize the OrderManager as above, whose jobs run on virtual threads
+	 * with at most virtualThreadLimit jobs and steps in flight, or on a fixed
+	 * pool of ORDERMANAGER_MAX_THREADSPOOL_SIZE threads if it is 0. A job
+	 * blocked on a supplier then no longer keeps the other workflows from
+	 * making progress, though before Java 24 a job blocked on an
+	 * ItemSupplierHTTPProxy still pins its carrier thread, see
+	 * OrderManagerScheduler.
+	 * 
+	 * @param orderManagerID
+	 * @param suppliers
+	 * @param recover
+	 * @param virtualThreadLimit
+	 * @throws OrderProcessingException
+	 */
+	public OrderManagerImpl(int orderManagerID,
+			Map<Integer, ItemSupplier> suppliers, boolean recover,
+			int virtualThreadLimit) throws OrderProcessingException {
 
 		// Validate the map of suppliers, to ensure that it is okay.
 		validateSupplierMap(suppliers);
+		if (virtualThreadLimit < 0)
+			throw new OrderProcessingException(
+					"OrderManager: The limit of virtual threads cannot be"
+							+ " negative.");
 		this.orderManagerID = orderManagerID;
 		this.suppliers = suppliers;
-		nextWorkflowID = 0;
+		this.virtualThreadLimit = virtualThreadLimit;
+		nextWorkflowID = new AtomicInteger(0);
 		workflows = new ConcurrentHashMap<Integer, List<OrderStep>>();
-		status = new ConcurrentHashMap<Integer, List<StepStatus>>();
-		scheduler = new OrderManagerScheduler();
-		workflowIDLock = new ReentrantReadWriteLock();
-		lockManager = new LockMapManager<Integer>();
+		status = new WorkflowStatusTable();
+		states = new WorkflowStateIndex();
+		completionListeners = new ConcurrentHashMap<Integer, Queue<Runnable>>();
+		workflowLocks = new IntStripedLockManager();
+		scheduler = new OrderManagerScheduler(false, virtualThreadLimit);
 
 		fileLogger = new FileLogger(this.orderManagerID
-				+ "_OrderManager_logfile", "How to read this log file?%n");
+				+ "_OrderManager_logfile", OrderManagerLogFormat.FILE_TYPE,
+				"How to read this log file?%n", new OrderManagerLogFormat());
+		archive = openArchive();
+		if (recover) {
+			recoverFromLog();
+		}
 		fileLogger.logToFile("INITOM " + orderManagerID + System.getProperty("line.separator"), true);
 	}
 
+	/**
+	 * Rebuilds the workflows and their statuses from every segment of the log,
+	 * continues the workflow IDs after the last one and schedules every
+	 * workflow that has a step left to execute. A step that was being executed
+	 * when the OrderManager stopped is executed again. Finished workflows are
+	 * written to the archive while the log is replayed, so only the workflows
+	 * that have a step left are kept in memory.
+	 */
+	private void recoverFromLog() {
+		List<File> logFiles = fileLogger.getSegments() != null ? fileLogger
+				.getSegments().getTail(0) : Collections.singletonList(new File(
+				fileLogger.getFullPath()));
+		Map<Integer, List<StepStatus>> recovered = new HashMap<Integer, List<StepStatus>>();
+		OrderManagerLogRecovery.FinishedWorkflows finished = null;
+		if (archive != null) {
+			finished = new OrderManagerLogRecovery.FinishedWorkflows() {
+				@Override
+				public void finished(int workflowID, List<OrderStep> steps,
+						List<StepStatus> statuses) throws IOException {
+					archive.add(workflowID, steps, statuses);
+					states.setState(workflowID,
+							WorkflowStateIndex.stateOf(statuses));
+				}
+
+				@Override
+				public void cleared() throws IOException {
+					archive.clear();
+					states.clear();
+				}
+			};
+		}
+		RecoveryStatistics statistics;
+		try {
+			statistics = new OrderManagerLogRecovery().recover(logFiles,
+					workflows, recovered, finished);
+		} catch (IOException e) {
+			System.out.println("OrderManagerImpl: OrderManager with id ["
+					+ orderManagerID + "] could not recover its log.");
+			e.printStackTrace();
+			workflows.clear();
+			states.clear();
+			if (archive != null) {
+				try {
+					archive.clear();
+				} catch (IOException cleared) {
+					cleared.printStackTrace();
+				}
+			}
+			return;
+		}
+
+		nextWorkflowID.set((int) statistics.getLastSequence() + 1);
+		int resumed = 0;
+		for (Map.Entry<Integer, List<StepStatus>> entry : recovered.entrySet()) {
+			status.add(entry.getKey(), entry.getValue());
+			states.setState(entry.getKey(),
+					WorkflowStateIndex.stateOf(entry.getValue()));
+			if (entry.getValue().contains(StepStatus.REGISTERED)) {
+				scheduler.scheduleJob(this, entry.getKey());
+				resumed++;
+			} else {
+				archiveWorkflow(entry.getKey());
+			}
+		}
+		System.out.println("OrderManagerImpl: OrderManager with id ["
+				+ orderManagerID + "] recovered its log, resuming " + resumed
+				+ " workflows, " + statistics);
+	}
+
+	/**
+	 * Opens an empty archive for the finished workflows next to the log file.
+	 * The archive is scratch space that only moves workflows out of memory, it
+	 * is not kept across restarts. Finished workflows are recovered from the
+	 * log into the new archive, so every OrderManager gets a new archive.
+	 * 
+	 * @return the archive, or null if it could not be opened, in which case
+	 *         every workflow is kept in memory.
+	 */
+	private WorkflowArchive openArchive() {
+		File directory = new File(fileLogger.getFullPath()).getAbsoluteFile()
+				.getParentFile();
+		try {
+			File file = File.createTempFile(orderManagerID
+					+ "_OrderManager_archive", ".dat", directory);
+			return new WorkflowArchive(file, WorkflowArchive.DEFAULT_CACHE_SIZE);
+		} catch (IOException e) {
+			System.out.println("OrderManagerImpl: OrderManager with id ["
+					+ orderManagerID + "] could not open its archive.");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	/**
 	 * Validates a map of ItemSuppliers by throwing an OrderProcessingException
 	 * if the map is invalid.
@@ -105,23 +278,73 @@ public class OrderManagerImpl implements OrderManager {
 		// Sanity checks.
 		if (workflows.containsKey(id))
 			throw new OrderProcessingException("Should not be possible");
-		if (status.containsKey(id))
-			throw new OrderProcessingException("Should not be possible");
 
-		// As the workflowIDLock makes sure that no two (or more) threads
-		// can get the same workflowID, then it does not matter if the next five
+		// As the atomic counter makes sure that no two (or more) threads
+		// can get the same workflowID, then it does not matter if the next
 		// lines are interleaved, as it will not conflict with any entry in the
 		// maps, nor will it break all-or-nothing atomicity.
 
-		lockManager.addToLockMap(id);
 		workflows.put(id, steps);
-		status.put(id, initializeStatusList(steps.size()));
-		logWorkflow(id, steps);
+		if (!status.add(id, steps.size()))
+			throw new OrderProcessingException("Should not be possible");
+		states.setState(id, WorkflowStateIndex.State.IN_PROGRESS);
+		long logSequence = logWorkflow(id, steps);
 		scheduler.scheduleJob(this, id);
 
+		// The workflow ID is only handed out once the workflow is durable in
+		// the log, status updates are logged without waiting.
+		fileLogger.awaitDurable(logSequence);
+
 		return id;
 	}
 
+	@Override
+	public int[] registerOrderWorkflows(List<List<OrderStep>> workflows)
+			throws OrderProcessingException {
+
+		// Every workflow is validated before any is registered, so a batch is
+		// registered all or nothing.
+		if (workflows == null)
+			throw new InvalidWorkflowException(
+					"The given list of workflows cannot be null.");
+		for (List<OrderStep> steps : workflows) {
+			validateWorkflow(steps);
+		}
+
+		int[] ids = new int[workflows.size()];
+		if (ids.length == 0)
+			return ids;
+
+		// The batch takes one range of IDs from the counter, and its REGISTER
+		// lines are written to the log as a single record.
+		int firstID = nextWorkflowID.getAndAdd(ids.length);
+		OrderManagerLogEncoder encoder = ENCODERS.get();
+		long now = System.currentTimeMillis();
+		int length = 0;
+		for (int i = 0; i < ids.length; i++) {
+			int id = firstID + i;
+			List<OrderStep> steps = workflows.get(i);
+			if (this.workflows.containsKey(id))
+				throw new OrderProcessingException("Should not be possible");
+			this.workflows.put(id, steps);
+			if (!status.add(id, steps.size()))
+				throw new OrderProcessingException("Should not be possible");
+			states.setState(id, WorkflowStateIndex.State.IN_PROGRESS);
+			length = i == 0 ? encoder.encodeRegister(id, steps, now) : encoder
+					.appendRegister(id, steps, now);
+			ids[i] = id;
+		}
+		long logSequence = fileLogger.logToFile(encoder.getBuffer(), 0, length);
+		encoder.trim();
+		for (int id : ids) {
+			scheduler.scheduleJob(this, id);
+		}
+
+		fileLogger.awaitDurable(logSequence);
+
+		return ids;
+	}
+
 	/**
 	 * This function validates a given workflow, i.e. a list of OrderSteps by
 	 * throwing a OrderProcessingException if the list is not valid.
@@ -138,7 +361,8 @@ public class OrderManagerImpl implements OrderManager {
 		if (steps.isEmpty())
 			throw new InvalidWorkflowException(
 					"The given workflow is not allowed to be empty.");
-		for (OrderStep orderStep : steps) {
+		for (int i = 0; i < steps.size(); i++) {
+			OrderStep orderStep = steps.get(i);
 			if (orderStep == null)
 				throw new InvalidWorkflowException(
 						"The given workflow cannot contain a NULL step.");
@@ -147,6 +371,16 @@ public class OrderManagerImpl implements OrderManager {
 						"The given workflow cannot a step that is intended for"
 								+ " ItemSupplier whom this OrderManager knows"
 								+ " nothing about.");
+			// A step may only depend on the steps before it, so the
+			// dependencies of a workflow always form a DAG.
+			for (int j = 0; j < orderStep.getDependencyCount(); j++) {
+				int dependency = orderStep.getDependency(j);
+				if (dependency < 0 || dependency >= i)
+					throw new InvalidWorkflowException(
+							"The given workflow cannot contain a step that"
+									+ " depends on a step that is not before"
+									+ " it [" + dependency + "].");
+			}
 			// Note that the below validations has been commented out to allow
 			// for any other then SUCCESS steps when trying to execute validated
 			// steps with an ItemSupplier.
@@ -167,141 +401,259 @@ public class OrderManagerImpl implements OrderManager {
 	}
 
 	/**
-	 * Logs a workflow to the log file.
+	 * Logs a workflow to the log file. The line is encoded into the buffer of
+	 * the encoder of the calling thread and copied into the log from there.
 	 * 
 	 * @param workflowID
 	 * @param steps
+	 * @return the sequence number of the log write.
 	 */
-	private void logWorkflow(int workflowID, List<OrderStep> steps) {
-		String log = "REGISTER " + workflowID + " ";
-
-		log = log + createWorkflowString(steps) + System.getProperty("line.separator");
+	private long logWorkflow(int workflowID, List<OrderStep> steps) {
+		OrderManagerLogEncoder encoder = ENCODERS.get();
+		int length = encoder.encodeRegister(workflowID, steps,
+				System.currentTimeMillis());
+		return fileLogger.logToFile(encoder.getBuffer(), 0, length);
+	}
 
-		fileLogger.logToFile(log, true);
+	/**
+	 * This function logs a status update to the log file.
+	 * 
+	 * @param workflowID
+	 * @param stepIndex
+	 * @param status
+	 */
+	private void logStatusUpdate(int workflowID, int stepIndex,
+			StepStatus status) {
+		OrderManagerLogEncoder encoder = ENCODERS.get();
+		int length = encoder.encodeUpdate(workflowID, stepIndex, status,
+				System.currentTimeMillis());
+		fileLogger.logToFile(encoder.getBuffer(), 0, length);
 	}
 
 	/**
-	 * This function creates a string representation of a workflow to use when
-	 * logging.
+	 * Returns the next workflow ID to be used. The IDs are handed out by an
+	 * atomic counter, so concurrent registrations never wait for each other.
 	 * 
-	 * @param steps
-	 * @return
+	 * @return a unique workflow ID.
 	 */
-	private String createWorkflowString(List<OrderStep> steps) {
-		if (steps == null)
-			return "(null)";
-		String string = "";
+	private int getNextWorkflowID() {
+		return nextWorkflowID.getAndIncrement();
+	}
 
-		for (OrderStep orderStep : steps) {
-			string = string + createStepString(orderStep) + " ";
-		}
+	@Override
+	public List<StepStatus> getOrderWorkflowStatus(int orderWorkflowId)
+			throws InvalidWorkflowException {
 
-		if (string.endsWith(",")) {
-			string = string.substring(0, string.length() - 1);
-		}
+		// Validate the workflow ID before trying to use it.
+		validateOrderWorkflowID(orderWorkflowId);
 
-		return string;
+		return getStatuses(orderWorkflowId);
 	}
 
 	/**
-	 * This function create a string representation of a single OrderStep. Is
-	 * used during logging.
+	 * Returns the statuses of a validated workflow, from memory or from the
+	 * archive.
 	 * 
-	 * @param step
+	 * @param workflowID
 	 * @return
+	 * @throws InvalidWorkflowException
 	 */
-	private String createStepString(OrderStep step) {
-		if (step == null)
-			return "(null)";
-		String string = "[" + step.getSupplierId() + ",";
-
-		for (ItemQuantity itemQuantity : step.getItems()) {
-			if (itemQuantity == null) {
-				string = string + "(null)";
-			} else {
-				string = string + "(" + itemQuantity.getItemId() + ","
-						+ itemQuantity.getQuantity() + "),";
-			}
+	private List<StepStatus> getStatuses(int workflowID)
+			throws InvalidWorkflowException {
+		// The table decodes a new list of the statuses, read optimistically.
+		List<StepStatus> statuses = status.get(workflowID);
+		if (statuses != null || archive == null)
+			return statuses;
+		try {
+			return archive.getStatuses(workflowID);
+		} catch (IOException e) {
+			throw new InvalidWorkflowException(
+					"OrderManager: The archive could not be read ["
+							+ workflowID + "]", e);
 		}
+	}
 
-		if (string.endsWith(",")) {
-			string = string.substring(0, string.length() - 1);
+	/**
+	 * Moves the given finished workflow from memory to the archive. The
+	 * workflow is written to the archive before it is removed from memory, so
+	 * a concurrent reader finds it in at least one of them.
+	 * 
+	 * @param workflowID
+	 */
+	private void archiveWorkflow(int workflowID) {
+		List<OrderStep> steps = workflows.get(workflowID);
+		List<StepStatus> statuses = status.get(workflowID);
+		if (archive == null || steps == null || statuses == null)
+			return;
+		try {
+			archive.add(workflowID, steps, statuses);
+		} catch (IOException e) {
+			System.out.println("OrderManagerImpl: OrderManager with id ["
+					+ orderManagerID + "] could not archive workflow ["
+					+ workflowID + "].");
+			e.printStackTrace();
+			return;
 		}
-
-		string = string + "]";
-		return string;
+		workflows.remove(workflowID);
+		status.remove(workflowID);
 	}
 
 	/**
-	 * This function logs a status update to the log file.
+	 * Returns true if the given workflow has been moved to the archive.
 	 * 
 	 * @param workflowID
-	 * @param stepIndex
-	 * @param status
+	 * @return
+	 * @throws InvalidWorkflowException
 	 */
-	private void logStatusUpdate(int workflowID, int stepIndex,
-			StepStatus status) {
-		String log = "UPDATE ";
-
-		if (status == null) {
-			log = log + workflowID + " " + stepIndex + " (null)"
-					+ System.getProperty("line.separator");
-		} else {
-			log = log + workflowID + " " + stepIndex + " " + status 
-					+ System.getProperty("line.separator");
+	private boolean isArchived(int workflowID) throws InvalidWorkflowException {
+		if (archive == null)
+			return false;
+		try {
+			return archive.contains(workflowID);
+		} catch (IOException e) {
+			throw new InvalidWorkflowException(
+					"OrderManager: The archive could not be read ["
+							+ workflowID + "]", e);
 		}
+	}
 
-		fileLogger.logToFile(log, true);
+	@Override
+	public List<StepStatus> awaitWorkflow(int orderWorkflowId,
+			long timeoutMillis) throws OrderProcessingException {
+		validateOrderWorkflowID(orderWorkflowId);
+		if (timeoutMillis > 0) {
+			final CountDownLatch finished = new CountDownLatch(1);
+			Runnable listener = new Runnable() {
+				@Override
+				public void run() {
+					finished.countDown();
+				}
+			};
+			addCompletionListener(orderWorkflowId, listener);
+			try {
+				finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new OrderProcessingException(e);
+			} finally {
+				removeCompletionListener(orderWorkflowId, listener);
+			}
+		}
+		return getOrderWorkflowStatus(orderWorkflowId);
 	}
 
 	/**
-	 * This function is a helper function to create a list of stepStatus with
-	 * the status REGISTERED. If the given size is non-positive then an
-	 * OrderProcessingException is thrown.
+	 * Returns true if no step of the given workflow is REGISTERED any more.
 	 * 
-	 * @param size
-	 *            , the size of the list
+	 * @param orderWorkflowId
 	 * @return
-	 * @throws OrderProcessingException
+	 * @throws InvalidWorkflowException
 	 */
-	private List<StepStatus> initializeStatusList(int size)
-			throws OrderProcessingException {
-		if (size < 1)
-			throw new OrderProcessingException(
-					"Cannot create a list with a non-positive size.");
+	public boolean isWorkflowFinished(int orderWorkflowId)
+			throws InvalidWorkflowException {
+		validateOrderWorkflowID(orderWorkflowId);
+		return isFinished(orderWorkflowId);
+	}
+
+	private boolean isFinished(int workflowID) {
+		List<StepStatus> statuses = status.get(workflowID);
+		return statuses == null || !statuses.contains(StepStatus.REGISTERED);
+	}
 
-		List<StepStatus> list = new ArrayList<StepStatus>();
-		for (int i = 0; i < size; i++) {
-			list.add(StepStatus.REGISTERED);
+	/**
+	 * Runs the given listener once no step of the given workflow is REGISTERED
+	 * any more. The listener is run by the thread that sets the last status,
+	 * or right away by the calling thread if the workflow has already
+	 * finished, and must therefore return quickly. It is also run if the
+	 * OrderManager is cleared. A listener is run at most once, and not at all
+	 * once it is removed.
+	 * 
+	 * This lets the HTTP message handler answer a waiting client without
+	 * holding a thread while the workflow runs.
+	 * 
+	 * @param workflowID
+	 * @param listener
+	 */
+	public void addCompletionListener(int workflowID, Runnable listener) {
+		Queue<Runnable> listeners = completionListeners.get(workflowID);
+		if (listeners == null) {
+			listeners = new ConcurrentLinkedQueue<Runnable>();
+			Queue<Runnable> existing = completionListeners.putIfAbsent(
+					workflowID, listeners);
+			if (existing != null) {
+				listeners = existing;
+			}
 		}
+		listeners.add(listener);
 
-		return list;
+		// The workflow may have finished before the listener was added, in
+		// which case the thread that set its last status may have missed it.
+		// Whoever removes the listener from the queue runs it.
+		if (isFinished(workflowID) && listeners.remove(listener)) {
+			runCompletionListener(listener);
+		}
 	}
 
 	/**
-	 * Returns the next workflow ID to be used. Locking is used to ensure that
-	 * function is not interleaved by any other thread.
+	 * Removes a listener added by addCompletionListener that has not been run
+	 * yet, e.g. when the wait for the workflow timed out.
 	 * 
-	 * @return a unique workflow ID.
+	 * @param workflowID
+	 * @param listener
+	 * @return true if the listener was removed, false if it has been run or is
+	 *         being run.
 	 */
-	private int getNextWorkflowID() {
-		workflowIDLock.writeLock().lock();
-		int nextID = nextWorkflowID;
-		nextWorkflowID++;
-		workflowIDLock.writeLock().unlock();
-		return nextID;
+	public boolean removeCompletionListener(int workflowID, Runnable listener) {
+		// An empty queue is left in the map, as a concurrent caller may just
+		// be adding to it, and is dropped once the workflow finishes.
+		Queue<Runnable> listeners = completionListeners.get(workflowID);
+		return listeners != null && listeners.remove(listener);
 	}
 
-	@Override
-	public List<StepStatus> getOrderWorkflowStatus(int orderWorkflowId)
-			throws InvalidWorkflowException {
+	/**
+	 * Runs the completion listeners of the given finished workflow.
+	 * 
+	 * @param workflowID
+	 */
+	private void notifyFinished(int workflowID) {
+		Queue<Runnable> listeners = completionListeners.get(workflowID);
+		if (listeners == null
+				|| !completionListeners.remove(workflowID, listeners))
+			return;
+		runCompletionListeners(listeners);
+	}
 
-		// Validate the workflow ID before trying to use it.
-		validateOrderWorkflowID(orderWorkflowId);
-		lockManager.acquireReadLock(orderWorkflowId);
-		List<StepStatus> statuses = status.get(orderWorkflowId);
-		lockManager.releaseReadLock(orderWorkflowId);
+	private void runCompletionListeners(Queue<Runnable> listeners) {
+		Runnable listener;
+		while ((listener = listeners.poll()) != null) {
+			runCompletionListener(listener);
+		}
+	}
+
+	private void runCompletionListener(Runnable listener) {
+		try {
+			listener.run();
+		} catch (RuntimeException e) {
+			System.out.println("OrderManagerImpl: A completion listener of "
+					+ "OrderManager with id [" + orderManagerID + "] failed.");
+			e.printStackTrace();
+		}
+	}
 
+	@Override
+	public List<List<StepStatus>> getOrderWorkflowStatuses(
+			int[] orderWorkflowIds) throws InvalidWorkflowException {
+		if (orderWorkflowIds == null)
+			throw new InvalidWorkflowException(
+					"OrderManager: The given orderWorkflowIds cannot be null.");
+		for (int orderWorkflowId : orderWorkflowIds) {
+			validateOrderWorkflowID(orderWorkflowId);
+		}
+
+		List<List<StepStatus>> statuses = new ArrayList<List<StepStatus>>(
+				orderWorkflowIds.length);
+		for (int orderWorkflowId : orderWorkflowIds) {
+			statuses.add(getStatuses(orderWorkflowId));
+		}
 		return statuses;
 	}
 
@@ -315,12 +667,18 @@ public class OrderManagerImpl implements OrderManager {
 	 */
 	private void validateOrderWorkflowID(int orderWorkflowId)
 			throws InvalidWorkflowException {
-		if (!workflows.containsKey(orderWorkflowId))
+		// A finished workflow is only in the archive, and while it is being
+		// archived it may be in both.
+		if (!workflows.containsKey(orderWorkflowId)) {
+			if (isArchived(orderWorkflowId))
+				return;
 			throw new InvalidWorkflowException(
 					"OrderManager: The given orderWorkflowId does not exist in"
 							+ " the database [" + orderWorkflowId + "]");
+		}
 
-		if (!status.containsKey(orderWorkflowId))
+		if (!status.contains(orderWorkflowId)
+				&& !isArchived(orderWorkflowId))
 			throw new InvalidWorkflowException(
 					"OrderManager: The given orderWorkflowId does not exist in"
 							+ " the database of statusses [" + orderWorkflowId
@@ -329,12 +687,30 @@ public class OrderManagerImpl implements OrderManager {
 
 	@Override
 	public void clear() {
-		nextWorkflowID = 0;
+		nextWorkflowID.set(0);
 		workflows.clear();
 		status.clear();
+		states.clear();
+		if (archive != null) {
+			try {
+				archive.clear();
+			} catch (IOException e) {
+				System.out.println("OrderManagerImpl: OrderManager with id ["
+						+ orderManagerID + "] could not clear its archive.");
+				e.printStackTrace();
+			}
+		}
 		// Must stop any working thread
 		scheduler.shutDown();
-		scheduler = new OrderManagerScheduler();
+		scheduler = new OrderManagerScheduler(parallelSteps, virtualThreadLimit);
+		scheduler.setStepCoalescing(maxStepBatchSize, stepFlushIntervalMillis);
+		// Wake up anyone waiting for a workflow, which no longer exists.
+		for (Integer workflowID : completionListeners.keySet()) {
+			Queue<Runnable> listeners = completionListeners.remove(workflowID);
+			if (listeners != null) {
+				runCompletionListeners(listeners);
+			}
+		}
 		fileLogger.logToFile("CLEARDONE"
 				+ System.getProperty("line.separator"), true);
 	}
@@ -353,7 +729,16 @@ public class OrderManagerImpl implements OrderManager {
 	public List<OrderStep> jobGetWorkflow(int workflowID)
 			throws OrderProcessingException {
 		validateOrderWorkflowID(workflowID);
-		return workflows.get(workflowID);
+		List<OrderStep> steps = workflows.get(workflowID);
+		if (steps != null || archive == null)
+			return steps;
+		try {
+			return archive.getSteps(workflowID);
+		} catch (IOException e) {
+			throw new InvalidWorkflowException(
+					"OrderManager: The archive could not be read ["
+							+ workflowID + "]", e);
+		}
 	}
 
 	// This function assumes that the given stepIndex is valid.
@@ -362,12 +747,35 @@ public class OrderManagerImpl implements OrderManager {
 			throws OrderProcessingException {
 		validateOrderWorkflowID(workflowID);
 
-		lockManager.acquireWriteLock(workflowID);
-		List<StepStatus> newStatus = this.status.get(workflowID);
-		newStatus.set(stepIndex, status);
-		this.status.put(workflowID, newStatus);
-		lockManager.releaseWriteLock(workflowID);
+		if (!this.status.set(workflowID, stepIndex, status)
+				&& !this.status.contains(workflowID))
+			throw new InvalidWorkflowException(
+					"OrderManager: The given orderWorkflowId has finished and"
+							+ " is archived [" + workflowID + "]");
 		logStatusUpdate(workflowID, stepIndex, status);
+
+		// The workflow is indexed by its new state, and once finished it is
+		// moved out of memory before anyone waiting for it is woken up. Steps
+		// executed in parallel may finish at once, so only one of them at a
+		// time indexes the workflow, and only one finds it finished.
+		boolean finished;
+		workflowLocks.acquireWriteLock(workflowID);
+		try {
+			List<StepStatus> statuses = this.status.get(workflowID);
+			if (statuses == null)
+				return; // The OrderManager was cleared or it was archived
+			states.setState(workflowID, WorkflowStateIndex.stateOf(statuses));
+			finished = status != StepStatus.REGISTERED
+					&& !statuses.contains(StepStatus.REGISTERED);
+			if (finished) {
+				archiveWorkflow(workflowID);
+			}
+		} finally {
+			workflowLocks.releaseWriteLock(workflowID);
+		}
+		if (finished) {
+			notifyFinished(workflowID);
+		}
 	}
 
 	@Override
@@ -390,4 +798,129 @@ public class OrderManagerImpl implements OrderManager {
 		}
 	}
 
+	/**
+	 * Sets whether the steps of a workflow are executed in parallel, where the
+	 * steps aimed at different suppliers overlap and a step only waits for the
+	 * steps it depends on and the step before it at the same supplier. The
+	 * mode applies to the workflows scheduled from now on, and the steps share
+	 * the threads of the scheduler either way.
+	 * 
+	 * @param parallelSteps
+	 */
+	public void setParallelSteps(boolean parallelSteps) {
+		this.parallelSteps = parallelSteps;
+		scheduler.setParallelSteps(parallelSteps);
+	}
+
+	/**
+	 * @return true if the jobs run on virtual threads
+	 */
+	public boolean isVirtualThreads() {
+		return scheduler.isVirtualThreads();
+	}
+
+	/**
+	 * @return true if the steps of a workflow are executed in parallel
+	 */
+	public boolean isParallelSteps() {
+		return parallelSteps;
+	}
+
+	/**
+	 * Sets whether the steps of different workflows aimed at the same supplier
+	 * are coalesced into batches, see StepDispatcher. A supplier queue is sent
+	 * once it holds the largest batch or once its first step has waited for
+	 * the flush interval. The mode applies to the workflows scheduled from now
+	 * on.
+	 * 
+	 * @param maxBatchSize
+	 *            , the largest batch, or 0 if the steps are not coalesced.
+	 * @param flushIntervalMillis
+	 *            , the longest time a step waits before it is sent.
+	 */
+	public void setStepCoalescing(int maxBatchSize, long flushIntervalMillis) {
+		scheduler.setStepCoalescing(maxBatchSize, flushIntervalMillis);
+		this.maxStepBatchSize = maxBatchSize;
+		this.stepFlushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Returns the approximate number of bytes the step statuses use per
+	 * workflow.
+	 * 
+	 * @return
+	 */
+	public double getStatusMemoryPerWorkflow() {
+		int size = Math.max(status.size(), 1);
+		return (double) status.getMemoryUsage() / size;
+	}
+
+	/**
+	 * Returns the number of workflows in the given state, archived workflows
+	 * included. The count is kept up to date as the statuses are set.
+	 * 
+	 * @param state
+	 * @return
+	 */
+	public int getWorkflowCount(WorkflowStateIndex.State state) {
+		return states.count(state);
+	}
+
+	/**
+	 * Returns a page of the IDs of the workflows in the given state, archived
+	 * workflows included, in ascending order. The next page is fetched from
+	 * the ID after the last one of this page.
+	 * 
+	 * @param state
+	 * @param fromWorkflowID
+	 * @param limit
+	 *            , the largest number of IDs to return.
+	 * @return
+	 */
+	public int[] getWorkflowsInState(WorkflowStateIndex.State state,
+			int fromWorkflowID, int limit) {
+		return states.list(state, fromWorkflowID, limit);
+	}
+
+	/**
+	 * @return the number of workflows kept in memory, which are the workflows
+	 *         that have not finished yet unless the archive is unavailable
+	 */
+	public int getWorkflowsInMemory() {
+		return workflows.size();
+	}
+
+	/**
+	 * @return the number of finished workflows moved to the archive
+	 */
+	public int getArchivedWorkflows() {
+		return archive == null ? 0 : archive.size();
+	}
+
+	/**
+	 * Starts sampling one in every sampling lock calls of the OrderManager to
+	 * find its contended workflows, or stops sampling if sampling is 0.
+	 * Starting again forgets the previous profile.
+	 * 
+	 * @param sampling
+	 */
+	public void setLockProfiling(int sampling) {
+		status.getLockManager().setProfiler(
+				sampling > 0 ? new LockProfiler<Integer>(sampling) : null);
+	}
+
+	/**
+	 * Returns the lock profiles of the given number of status segments whose
+	 * locks were waited for the longest, see LockProfiler. The key of a
+	 * profile is the number of a segment of WorkflowStatusTable.
+	 * 
+	 * @param count
+	 * @return the profiles, which are empty if the locks are not profiled.
+	 */
+	public List<LockProfile> getHottestLocks(int count) {
+		LockProfiler<Integer> profiler = status.getLockManager().getProfiler();
+		if (profiler == null)
+			return new ArrayList<LockProfile>();
+		return profiler.getHottestKeys(count);
+	}
 }
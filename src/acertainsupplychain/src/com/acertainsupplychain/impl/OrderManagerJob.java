@@ -1,6 +1,9 @@
 package com.acertainsupplychain.impl;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.acertainsupplychain.ItemSupplier;
 import com.acertainsupplychain.NetworkException;
@@ -13,6 +16,17 @@ import com.acertainsupplychain.OrderStep;
  * This class is a worker processing thread that given a workflow ID and a
  * OrderManager parent processes a workflow.
  * 
+ * By default the steps are executed one after another in the order of the
+ * workflow. If the job is given a scheduler, steps aimed at different
+ * suppliers are executed in parallel on the threads of the scheduler, see
+ * StepGraph. In both modes a step is failed without being executed if a step
+ * it depends on has not succeeded.
+ * 
+ * If the job is given a StepDispatcher, a step is not executed by the job but
+ * queued at the dispatcher, which coalesces it with the steps of other
+ * workflows. The job then continues from the callback of the step, once its
+ * status has been recorded, so no thread waits for a queued step.
+ * 
  * @author Arni
  * 
  */
@@ -20,6 +34,8 @@ public class OrderManagerJob implements Runnable {
 
 	private final OrderManager parent;
 	private final int workflowID;
+	private final OrderManagerScheduler scheduler;
+	private final StepDispatcher dispatcher;
 
 	/**
 	 * Initializes the worker thread with a given OrderManager parent and a
@@ -29,39 +45,132 @@ public class OrderManagerJob implements Runnable {
 	 * @param workflowID
 	 */
 	public OrderManagerJob(OrderManager parent, int workflowID) {
+		this(parent, workflowID, null, null);
+	}
+
+	/**
+	 * Initializes the worker thread with a given OrderManager parent and a
+	 * workflowID, whose steps are executed in parallel on the threads of the
+	 * given scheduler, or one after another if it is null.
+	 * 
+	 * @param parent
+	 * @param workflowID
+	 * @param scheduler
+	 */
+	public OrderManagerJob(OrderManager parent, int workflowID,
+			OrderManagerScheduler scheduler) {
+		this(parent, workflowID, scheduler, null);
+	}
+
+	/**
+	 * Initializes the worker thread as above, whose steps are queued at the
+	 * given dispatcher, or executed by the job itself if it is null.
+	 * 
+	 * @param parent
+	 * @param workflowID
+	 * @param scheduler
+	 * @param dispatcher
+	 */
+	public OrderManagerJob(OrderManager parent, int workflowID,
+			OrderManagerScheduler scheduler, StepDispatcher dispatcher) {
 		this.parent = parent;
 		this.workflowID = workflowID;
+		this.scheduler = scheduler;
+		this.dispatcher = dispatcher;
 	}
 
 	@Override
 	public void run() {
 		// loop until no steps are left:
 		List<OrderStep> steps;
+		List<StepStatus> statuses;
 		try {
 			steps = parent.jobGetWorkflow(workflowID);
+			statuses = parent.getOrderWorkflowStatus(workflowID);
 		} catch (OrderProcessingException e) {
 			e.printStackTrace();
 			return;
 		}
-		int size = steps.size();
-		for (int i = 0; i < size; i++) {
-			OrderStep orderStep = steps.get(i);
-			ItemSupplier supplier = null;
-			try {
-				supplier = parent.jobGetSupplier(orderStep.getSupplierId());
-			} catch (OrderProcessingException e) {
-				e.printStackTrace();
-				return;
-			}
-			StepStatus status = executeStep(supplier, orderStep);
+		if (scheduler != null) {
+			new StepGraph(steps, statuses).start();
+		} else {
+			new StepSequence(steps, statuses).runFrom(0);
+		}
+	}
 
-			// - update status in db
-			try {
-				parent.jobSetStatus(workflowID, i, status);
-			} catch (OrderProcessingException e) {
-				e.printStackTrace();
-				return;
+	/**
+	 * Executes the step at the given index and records its status, or records
+	 * it as FAILED without executing it if a step it depends on has failed.
+	 * 
+	 * @param stepIndex
+	 * @param orderStep
+	 * @param dependencyFailed
+	 * @return the status of the step, or null if the job must stop.
+	 */
+	private StepStatus processStep(int stepIndex, OrderStep orderStep,
+			boolean dependencyFailed) {
+		StepStatus status = StepStatus.FAILED;
+		if (!dependencyFailed) {
+			ItemSupplier supplier = getSupplier(orderStep);
+			if (supplier == null)
+				return null;
+			status = executeStep(supplier, orderStep);
+		}
+		return recordStatus(stepIndex, status) ? status : null;
+	}
+
+	/**
+	 * Queues the step at the given index at the dispatcher. Once the step has
+	 * been executed its status is recorded and then passed to the given
+	 * callback, unless the job must stop.
+	 * 
+	 * @param stepIndex
+	 * @param orderStep
+	 * @param next
+	 * @return false if the job must stop.
+	 */
+	private boolean queueStep(final int stepIndex, OrderStep orderStep,
+			final StepDispatcher.Callback next) {
+		ItemSupplier supplier = getSupplier(orderStep);
+		if (supplier == null)
+			return false;
+		dispatcher.submit(supplier, orderStep, new StepDispatcher.Callback() {
+			@Override
+			public void stepExecuted(StepStatus status) {
+				if (recordStatus(stepIndex, status)) {
+					next.stepExecuted(status);
+				}
 			}
+		});
+		return true;
+	}
+
+	/**
+	 * @param orderStep
+	 * @return the supplier of the given step, or null if the job must stop.
+	 */
+	private ItemSupplier getSupplier(OrderStep orderStep) {
+		try {
+			return parent.jobGetSupplier(orderStep.getSupplierId());
+		} catch (OrderProcessingException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @param stepIndex
+	 * @param status
+	 * @return false if the job must stop.
+	 */
+	private boolean recordStatus(int stepIndex, StepStatus status) {
+		// - update status in db
+		try {
+			parent.jobSetStatus(workflowID, stepIndex, status);
+			return true;
+		} catch (OrderProcessingException e) {
+			e.printStackTrace();
+			return false;
 		}
 	}
 
@@ -93,4 +202,226 @@ public class OrderManagerJob implements Runnable {
 		}
 		return status;
 	}
+
+	/**
+	 * The steps of a workflow executed one after another. A step queued at the
+	 * dispatcher continues the sequence from its callback.
+	 */
+	private class StepSequence {
+		private final List<OrderStep> steps;
+		private final List<StepStatus> statuses;
+		private final boolean[] failed;
+
+		private StepSequence(List<OrderStep> steps, List<StepStatus> statuses) {
+			this.steps = steps;
+			this.statuses = statuses;
+			failed = new boolean[steps.size()];
+		}
+
+		private void runFrom(int first) {
+			for (int i = first; i < steps.size(); i++) {
+				// A recovered workflow only executes the steps that were not
+				// executed before the OrderManager stopped.
+				if (statuses.get(i) != StepStatus.REGISTERED) {
+					failed[i] = statuses.get(i) != StepStatus.SUCCESSFUL;
+					continue;
+				}
+				final int stepIndex = i;
+				OrderStep orderStep = steps.get(i);
+				boolean dependencyFailed = false;
+				for (int j = 0; j < orderStep.getDependencyCount(); j++) {
+					dependencyFailed |= failed[orderStep.getDependency(j)];
+				}
+				if (!dependencyFailed && dispatcher != null) {
+					queueStep(stepIndex, orderStep,
+							new StepDispatcher.Callback() {
+								@Override
+								public void stepExecuted(StepStatus status) {
+									continueAfter(stepIndex, status);
+								}
+							});
+					return;
+				}
+				StepStatus status = processStep(i, orderStep, dependencyFailed);
+				if (status == null)
+					return;
+				failed[i] = status != StepStatus.SUCCESSFUL;
+			}
+		}
+
+		private void continueAfter(int stepIndex, StepStatus status) {
+			failed[stepIndex] = status != StepStatus.SUCCESSFUL;
+			runFrom(stepIndex + 1);
+		}
+	}
+
+	/**
+	 * The steps of a workflow executed in parallel. A step waits for the steps
+	 * it depends on and for the step before it at the same supplier, so the
+	 * steps of a supplier are still executed in the order of the workflow
+	 * while the steps of different suppliers overlap.
+	 * 
+	 * When a step finishes, the thread that executed it takes the steps that
+	 * were only waiting for it, submits all of them but one to the scheduler
+	 * and executes the last one itself. No thread ever blocks waiting for
+	 * another step, so the steps of every workflow share the threads of the
+	 * scheduler and never use more.
+	 */
+	private class StepGraph {
+		private final List<OrderStep> steps;
+		private final List<StepStatus> statuses;
+		private final List<List<Integer>> successors;
+		private final int[] waiting;
+		private final boolean[] dependencyFailed;
+
+		/**
+		 * Builds the graph of the given steps, where the steps that are no
+		 * longer REGISTERED are finished as soon as they are ready.
+		 * 
+		 * @param steps
+		 * @param statuses
+		 */
+		private StepGraph(List<OrderStep> steps, List<StepStatus> statuses) {
+			int size = steps.size();
+			this.steps = steps;
+			this.statuses = statuses;
+			successors = new ArrayList<List<Integer>>(size);
+			waiting = new int[size];
+			dependencyFailed = new boolean[size];
+
+			Map<Integer, Integer> lastSteps = new HashMap<Integer, Integer>();
+			for (int i = 0; i < size; i++) {
+				successors.add(new ArrayList<Integer>(2));
+				OrderStep step = steps.get(i);
+				Integer previous = lastSteps.put(step.getSupplierId(), i);
+				if (previous != null) {
+					addEdge(previous, i);
+				}
+				for (int j = 0; j < step.getDependencyCount(); j++) {
+					addEdge(step.getDependency(j), i);
+				}
+			}
+		}
+
+		/**
+		 * Makes the step to wait for the step from, unless it already does.
+		 * The edges to a step are all added before the edges to the next one,
+		 * so a duplicate edge is always the last one of the step from.
+		 * 
+		 * @param from
+		 * @param to
+		 */
+		private void addEdge(int from, int to) {
+			List<Integer> next = successors.get(from);
+			if (!next.isEmpty() && next.get(next.size() - 1) == to)
+				return;
+			next.add(to);
+			waiting[to]++;
+		}
+
+		private void start() {
+			List<Integer> ready = new ArrayList<Integer>();
+			synchronized (this) {
+				for (int i = 0; i < waiting.length; i++) {
+					if (waiting[i] == 0) {
+						ready.add(i);
+					}
+				}
+			}
+			dispatch(ready);
+		}
+
+		/**
+		 * Submits every given step but the last to the scheduler, and
+		 * processes the last one and then the steps it makes ready in this
+		 * thread.
+		 * 
+		 * @param ready
+		 */
+		private void dispatch(List<Integer> ready) {
+			while (!ready.isEmpty()) {
+				int last = ready.remove(ready.size() - 1);
+				for (final int stepIndex : ready) {
+					Runnable task = new Runnable() {
+						@Override
+						public void run() {
+							dispatch(process(stepIndex));
+						}
+					};
+					// A scheduler that has been shut down by clear rejects the
+					// step, whose workflow no longer exists.
+					if (!scheduler.submitStep(task))
+						return;
+				}
+				ready = process(last);
+			}
+		}
+
+		/**
+		 * Processes a ready step.
+		 * 
+		 * @param stepIndex
+		 * @return the steps that became ready, which are none if the job must
+		 *         stop.
+		 */
+		private List<Integer> process(final int stepIndex) {
+			StepStatus status = statuses.get(stepIndex);
+			if (status == StepStatus.REGISTERED) {
+				boolean dependencyFailed = isDependencyFailed(stepIndex);
+				if (!dependencyFailed && dispatcher != null) {
+					// The steps made ready by a queued step are dispatched
+					// from its callback.
+					queueStep(stepIndex, steps.get(stepIndex),
+							new StepDispatcher.Callback() {
+								@Override
+								public void stepExecuted(StepStatus status) {
+									dispatch(finish(stepIndex, status));
+								}
+							});
+					return new ArrayList<Integer>(0);
+				}
+				status = processStep(stepIndex, steps.get(stepIndex),
+						dependencyFailed);
+				if (status == null)
+					return new ArrayList<Integer>(0);
+			}
+			return finish(stepIndex, status);
+		}
+
+		private synchronized boolean isDependencyFailed(int stepIndex) {
+			return dependencyFailed[stepIndex];
+		}
+
+		/**
+		 * Marks the given step as finished with the given status.
+		 * 
+		 * @param stepIndex
+		 * @param status
+		 * @return the steps that were only waiting for the given step.
+		 */
+		private synchronized List<Integer> finish(int stepIndex,
+				StepStatus status) {
+			List<Integer> ready = new ArrayList<Integer>();
+			for (int successor : successors.get(stepIndex)) {
+				// Only a declared dependency fails a step, not a failed step
+				// before it at the same supplier.
+				if (status != StepStatus.SUCCESSFUL
+						&& dependsOn(steps.get(successor), stepIndex)) {
+					dependencyFailed[successor] = true;
+				}
+				if (--waiting[successor] == 0) {
+					ready.add(successor);
+				}
+			}
+			return ready;
+		}
+
+		private boolean dependsOn(OrderStep step, int stepIndex) {
+			for (int i = 0; i < step.getDependencyCount(); i++) {
+				if (step.getDependency(i) == stepIndex)
+					return true;
+			}
+			return false;
+		}
+	}
 }
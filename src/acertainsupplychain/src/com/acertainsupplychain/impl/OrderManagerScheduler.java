@@ -1,18 +1,38 @@
 package com.acertainsupplychain.impl;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.acertainsupplychain.OrderManager;
 import com.acertainsupplychain.clients.ItemSupplierClientConstants;
 
 /**
  * This class acts as a simple wrapper around a ExecutorService and acts as a
- * thread pool.
+ * thread pool. If the steps of workflows are executed in parallel, every step
+ * is a task of the same pool, so the pool limits the number of steps executed
+ * at once. If steps are coalesced, the batches of the StepDispatcher are
+ * tasks of the pool as well.
+ * 
+ * Instead of the fixed pool, every task can run on a virtual thread of its
+ * own, while a semaphore caps the number of tasks in flight. A task blocked
+ * on a supplier then no longer holds one of a few platform threads, so far
+ * more workflows make progress at once. Virtual threads are looked up by
+ * reflection, and on a JVM without them the fixed pool is used.
+ * 
+ * An ItemSupplierHTTPProxy waits for its response on a monitor inside Jetty
+ * 8, which pins the carrier thread of a virtual thread before Java 24. Until
+ * then at most as many tasks as there are carrier threads wait for a remote
+ * supplier at once.
  * 
  * @author Arni
  * 
@@ -20,39 +40,181 @@ import com.acertainsupplychain.clients.ItemSupplierClientConstants;
 public class OrderManagerScheduler {
 
 	private final ExecutorService executor;
-	private final List<Future<?>> futures;
+	// The permits of the tasks in flight on virtual threads, or null.
+	private final Semaphore inFlight;
+	private final Queue<Future<?>> futures;
+	private volatile boolean parallelSteps;
+	private volatile StepDispatcher dispatcher;
+	private ScheduledExecutorService timer;
 
 	/**
 	 * Initialize a scheduler object.
 	 */
 	public OrderManagerScheduler() {
-		futures = new ArrayList<Future<?>>();
-		executor = Executors
-				.newFixedThreadPool(ItemSupplierClientConstants.ORDERMANAGER_MAX_THREADSPOOL_SIZE);
+		this(false);
+	}
+
+	/**
+	 * Initialize a scheduler object, which executes the steps of a workflow in
+	 * parallel if parallelSteps is true.
+	 * 
+	 * @param parallelSteps
+	 */
+	public OrderManagerScheduler(boolean parallelSteps) {
+		this(parallelSteps, 0);
+	}
+
+	/**
+	 * Initialize a scheduler object, which runs every task on a virtual thread
+	 * with at most virtualThreadLimit tasks in flight, or on the fixed pool if
+	 * virtualThreadLimit is 0.
+	 * 
+	 * @param parallelSteps
+	 * @param virtualThreadLimit
+	 */
+	public OrderManagerScheduler(boolean parallelSteps, int virtualThreadLimit) {
+		if (virtualThreadLimit < 0)
+			throw new IllegalArgumentException("OrderManagerScheduler: The "
+					+ "limit of virtual threads must not be negative.");
+		this.parallelSteps = parallelSteps;
+		futures = new ConcurrentLinkedQueue<Future<?>>();
+		ExecutorService virtual = null;
+		if (virtualThreadLimit > 0) {
+			virtual = newVirtualThreadExecutor();
+		}
+		if (virtual != null) {
+			executor = virtual;
+			inFlight = new Semaphore(virtualThreadLimit);
+		} else {
+			executor = Executors
+					.newFixedThreadPool(ItemSupplierClientConstants.ORDERMANAGER_MAX_THREADSPOOL_SIZE);
+			inFlight = null;
+		}
 	}
 
 	/**
 	 * This function submits a new processing task based on the given
 	 * OrderManager and workflow ID and starts the new thread asynchronously.
+	 * Jobs can be scheduled by several threads at once.
 	 * 
 	 * @param orderManager
 	 * @param workflowID
 	 * @return
 	 */
 	public boolean scheduleJob(OrderManager orderManager, int workflowID) {
-		Runnable job = new OrderManagerJob(orderManager, workflowID);
-		futures.add(executor.submit(job));
+		Runnable job = new OrderManagerJob(orderManager, workflowID,
+				parallelSteps ? this : null, dispatcher);
+		futures.add(submit(job));
 		return true;
 	}
 
+	/**
+	 * Submits a single step of a workflow whose steps are executed in
+	 * parallel. The step is waited for by waitForJobsToFinish like a job.
+	 * 
+	 * @param step
+	 * @return false if the scheduler has been shut down.
+	 */
+	public boolean submitStep(Runnable step) {
+		try {
+			futures.add(submit(step));
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Submits a task of the StepDispatcher to be run after the given delay.
+	 * The task is waited for by waitForJobsToFinish like a job.
+	 * 
+	 * @param task
+	 * @param delayMillis
+	 * @return false if the scheduler has been shut down.
+	 */
+	public boolean scheduleStep(Runnable task, long delayMillis) {
+		try {
+			futures.add(getTimer().schedule(task, delayMillis,
+					TimeUnit.MILLISECONDS));
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Sets whether the steps of the jobs scheduled from now on are coalesced
+	 * per supplier by a StepDispatcher, see StepDispatcher. Steps already
+	 * queued are still sent by the previous dispatcher.
+	 * 
+	 * @param maxBatchSize
+	 *            , the number of steps that makes a supplier queue be sent at
+	 *            once, or 0 if the steps are not coalesced.
+	 * @param flushIntervalMillis
+	 *            , the longest time a step waits in the queue.
+	 */
+	public void setStepCoalescing(int maxBatchSize, long flushIntervalMillis) {
+		dispatcher = maxBatchSize == 0 ? null : new StepDispatcher(this,
+				maxBatchSize, flushIntervalMillis);
+	}
+
+	/**
+	 * @return true if the tasks run on virtual threads
+	 */
+	public boolean isVirtualThreads() {
+		return inFlight != null;
+	}
+
+	/**
+	 * @return the dispatcher coalescing the steps, or null if they are not
+	 *         coalesced
+	 */
+	public StepDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Sets whether the steps of the jobs scheduled from now on are executed in
+	 * parallel.
+	 * 
+	 * @param parallelSteps
+	 */
+	public void setParallelSteps(boolean parallelSteps) {
+		this.parallelSteps = parallelSteps;
+	}
+
+	/**
+	 * @return true if the steps of a workflow are executed in parallel
+	 */
+	public boolean isParallelSteps() {
+		return parallelSteps;
+	}
+
 	/**
 	 * shutDown shuts down the thread pool and must be reallocated to be of use
 	 * again.
 	 */
 	public void shutDown() {
+		// A timer that fires later finds the pool shut down and drops its
+		// batch.
+		synchronized (this) {
+			if (timer != null) {
+				timer.shutdown();
+			}
+		}
 		executor.shutdown();
+		// The caller waits parked rather than spinning on the pool, which
+		// would keep a carrier thread busy if it is a virtual thread.
+		boolean interrupted = false;
 		while (!executor.isTerminated()) {
-			;
+			try {
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -64,9 +226,76 @@ public class OrderManagerScheduler {
 	 */
 	public void waitForJobsToFinish() throws InterruptedException,
 			ExecutionException {
-		for (Future<?> futureResult : futures) {
+		Future<?> futureResult;
+		while ((futureResult = futures.peek()) != null) {
 			futureResult.get();
+			futures.remove(futureResult);
+		}
+	}
+
+	/**
+	 * Submits a task to the executor. On virtual threads the task first takes
+	 * a permit, so only a limited number of tasks run at once while the rest
+	 * wait parked, which costs no platform thread.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	private Future<?> submit(final Runnable task) {
+		if (inFlight == null)
+			return executor.submit(task);
+		return executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				inFlight.acquireUninterruptibly();
+				try {
+					task.run();
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns an executor that starts a virtual thread per task. It is looked
+	 * up by reflection, so the project still builds and runs on a JVM before
+	 * Java 21.
+	 * 
+	 * @return the executor, or null if the JVM has no virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// Either Java before 19, or Java 19 and 20 without preview
+			// features, whose factory throws.
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the thread that runs the timers of the StepDispatcher, which is
+	 * only started once steps are coalesced. It does not keep the process
+	 * alive.
+	 * 
+	 * @return
+	 */
+	private synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable,
+									"OrderManagerScheduler-timer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
 		}
-		futures.clear();
+		return timer;
 	}
 }
@@ -0,0 +1,576 @@
+package com.acertainsupplychain.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainsupplychain.InvalidItemException;
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.ItemSupplier;
+import com.acertainsupplychain.OrderProcessingException;
+import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.OrderStepResult;
+import com.acertainsupplychain.log.SupplierLogFormat;
+import com.acertainsupplychain.log.SupplierLogRecord;
+import com.acertainsupplychain.storage.ItemStore;
+import com.acertainsupplychain.storage.OpenAddressingItemStore;
+import com.acertainsupplychain.utility.FileLogger;
+
+/**
+ * This class is an implementation of the ItemSupplier interface that
+ * partitions the item IDs across a number of shards. Every shard owns the
+ * totals of its items and is only ever touched by its own thread, so no locks
+ * are taken on the items.
+ * 
+ * A step whose items all live in one shard is simply handed to that shard. A
+ * step that spans several shards is committed with a two-phase protocol: every
+ * shard involved is asked to prepare, in ascending order, and a prepared shard
+ * does not process anything else until the step is committed or aborted.
+ * Asking in ascending order means two steps can never wait for each other.
+ * A shard only votes to commit if its store has room for its items, and a step
+ * is logged while every shard involved is still held for it, so the log holds
+ * a step and a clear in the order the shards run them. Multi-item reads use
+ * the same protocol and therefore see a consistent state.
+ * 
+ * @author Arni
+ * 
+ */
+public class ShardedItemSupplierImpl implements ItemSupplier {
+
+	private final int supplierID;
+	private final Shard[] shards;
+	private final FileLogger fileLogger;
+	private final AtomicLong logID;
+
+	/**
+	 * A part of the items of the supplier together with the single thread
+	 * that owns them.
+	 */
+	private static class Shard {
+		private final ItemStore store;
+		private final ExecutorService executor;
+
+		private Shard(final String name, ItemStore store) {
+			this.store = store;
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * The work done by a shard on its own store as part of a step or a read.
+	 */
+	private static abstract class ShardWork {
+
+		/**
+		 * Prepares the work on the store of the shard, before it is run on any
+		 * shard.
+		 * 
+		 * @param store
+		 * @return false if the work cannot be run, which aborts it on every
+		 *         shard.
+		 */
+		public boolean prepare(ItemStore store) {
+			return true;
+		}
+
+		public abstract void run(ItemStore store);
+	}
+
+	/**
+	 * The log record of a step or a clear, given the log ID it is assigned
+	 * once every shard involved is held for it.
+	 */
+	private interface ShardLogRecord {
+		public byte[] encode(long logID);
+	}
+
+	/**
+	 * Initializes the ItemSupplier with a given supplier ID and one shard per
+	 * available processor.
+	 * 
+	 * @param supplierID
+	 */
+	public ShardedItemSupplierImpl(int supplierID) {
+		this(supplierID, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Initializes the ItemSupplier with a given supplier ID and number of
+	 * shards.
+	 * 
+	 * @param supplierID
+	 * @param numberOfShards
+	 */
+	public ShardedItemSupplierImpl(int supplierID, int numberOfShards) {
+		this(supplierID, newStores(numberOfShards));
+	}
+
+	/**
+	 * Initializes the ItemSupplier with a given supplier ID and one shard per
+	 * given store, in which the summed orders of the shard are kept.
+	 * 
+	 * @param supplierID
+	 * @param stores
+	 */
+	public ShardedItemSupplierImpl(int supplierID, ItemStore[] stores) {
+		if (stores.length < 1)
+			throw new IllegalArgumentException("ShardedItemSupplierImpl: The "
+					+ "number of shards must be positive.");
+		this.supplierID = supplierID;
+		logID = new AtomicLong(0);
+		shards = new Shard[stores.length];
+		for (int i = 0; i < stores.length; i++) {
+			shards[i] = new Shard("Supplier-" + supplierID + "-Shard-" + i,
+					stores[i]);
+		}
+
+		fileLogger = new FileLogger(this.supplierID + "_Supplier_logfile",
+				SupplierLogRecord.FILE_TYPE, "", new SupplierLogFormat());
+		fileLogger.logToFile(SupplierLogRecord.encodeInit(this.supplierID));
+	}
+
+	/**
+	 * Returns the given number of empty stores.
+	 * 
+	 * @param numberOfShards
+	 * @return
+	 */
+	private static ItemStore[] newStores(int numberOfShards) {
+		if (numberOfShards < 1)
+			throw new IllegalArgumentException("ShardedItemSupplierImpl: The "
+					+ "number of shards must be positive.");
+		ItemStore[] stores = new ItemStore[numberOfShards];
+		for (int i = 0; i < numberOfShards; i++) {
+			stores[i] = new OpenAddressingItemStore();
+		}
+		return stores;
+	}
+
+	/**
+	 * Returns the index of the shard that owns the given item.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	private int shardOf(int itemID) {
+		int h = itemID * 0x9E3779B9;
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % shards.length;
+	}
+
+	@Override
+	public void executeStep(final OrderStep step)
+			throws OrderProcessingException {
+		// Validate the step before processing it.
+		validateStep(step);
+
+		// Group the items by shard, the TreeMap keeps the shards in ascending
+		// order.
+		Map<Integer, List<ItemQuantity>> itemsPerShard = new TreeMap<Integer, List<ItemQuantity>>();
+		for (ItemQuantity item : step.getItems()) {
+			int shard = shardOf(item.getItemId());
+			List<ItemQuantity> items = itemsPerShard.get(shard);
+			if (items == null) {
+				items = new ArrayList<ItemQuantity>();
+				itemsPerShard.put(shard, items);
+			}
+			items.add(item);
+		}
+
+		Map<Integer, ShardWork> work = new TreeMap<Integer, ShardWork>();
+		for (Map.Entry<Integer, List<ItemQuantity>> entry : itemsPerShard
+				.entrySet()) {
+			final List<ItemQuantity> items = entry.getValue();
+			work.put(entry.getKey(), new ShardWork() {
+				@Override
+				public boolean prepare(ItemStore store) {
+					int[] itemIDs = new int[items.size()];
+					for (int i = 0; i < itemIDs.length; i++) {
+						itemIDs[i] = items.get(i).getItemId();
+					}
+					return store.reserve(itemIDs);
+				}
+
+				@Override
+				public void run(ItemStore store) {
+					for (ItemQuantity item : items) {
+						store.add(item.getItemId(), item.getQuantity());
+					}
+				}
+			});
+		}
+		long logSequence = runOnShards(work, new ShardLogRecord() {
+			@Override
+			public byte[] encode(long logID) {
+				return SupplierLogRecord.encodeStep(logID, step.getItems());
+			}
+		});
+
+		// The step has been committed on every shard, so it is acknowledged
+		// once its record is durable.
+		fileLogger.awaitDurable(logSequence);
+	}
+
+	@Override
+	public List<OrderStepResult> executeSteps(List<OrderStep> steps)
+			throws OrderProcessingException {
+		if (steps == null)
+			throw new OrderProcessingException("Supplier with id ["
+					+ supplierID + "]: The given list of OrderSteps cannot be "
+					+ "NULL.");
+
+		// Every step is committed on its own, an invalid step only fails
+		// itself.
+		List<OrderStepResult> results = new ArrayList<OrderStepResult>();
+		for (OrderStep step : steps) {
+			try {
+				executeStep(step);
+				results.add(new OrderStepResult());
+			} catch (OrderProcessingException e) {
+				results.add(new OrderStepResult(e));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Runs the given work on the given shards as one atomic action. The work
+	 * of a single shard is handed to it directly, otherwise the two-phase
+	 * protocol is used. The given record, if any, is logged once every shard
+	 * has voted to commit and before any of them runs its work.
+	 * 
+	 * @param work
+	 *            , the work per shard index, in ascending order.
+	 * @param record
+	 *            , the log record of the action, or null for a read.
+	 * @return the log sequence of the record, or -1 if there is none.
+	 * @throws OrderProcessingException
+	 */
+	private long runOnShards(Map<Integer, ShardWork> work,
+			ShardLogRecord record) throws OrderProcessingException {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long[] logSequence = new long[] { -1 };
+		AtomicBoolean vetoed = new AtomicBoolean(false);
+
+		if (work.size() == 1) {
+			Map.Entry<Integer, ShardWork> entry = work.entrySet().iterator()
+					.next();
+			futures.add(submit(shards[entry.getKey()], entry.getValue(),
+					record, logSequence, vetoed));
+			awaitAll(futures);
+			if (vetoed.get())
+				throw abortedByShard();
+			return logSequence[0];
+		}
+
+		// Phase one: every shard is asked to prepare, and the next shard is
+		// only asked once the previous one has voted to commit.
+		CountDownLatch decision = new CountDownLatch(1);
+		AtomicBoolean commit = new AtomicBoolean(false);
+		try {
+			for (Map.Entry<Integer, ShardWork> entry : work.entrySet()) {
+				CountDownLatch prepared = new CountDownLatch(1);
+				futures.add(submitPrepared(shards[entry.getKey()],
+						entry.getValue(), prepared, decision, commit, vetoed));
+				prepared.await();
+				if (vetoed.get())
+					break;
+			}
+			if (!vetoed.get()) {
+				// Every shard involved is held, so no conflicting action can
+				// be logged in between.
+				logSequence[0] = log(record);
+				commit.set(true);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// Phase two: the shards are released, and they run their work
+			// only if every shard voted to commit.
+			decision.countDown();
+		}
+
+		if (vetoed.get()) {
+			awaitAll(futures);
+			throw abortedByShard();
+		}
+		if (!commit.get())
+			throw new OrderProcessingException("Supplier with id ["
+					+ supplierID + "]: Interrupted while preparing the shards,"
+					+ " the step was aborted.");
+		awaitAll(futures);
+		return logSequence[0];
+	}
+
+	/**
+	 * Assigns the next log ID to the given record and appends it to the log.
+	 * 
+	 * @param record
+	 * @return the log sequence of the record, or -1 if there is none.
+	 */
+	private long log(ShardLogRecord record) {
+		if (record == null)
+			return -1;
+		return fileLogger.logToFile(record.encode(logID.incrementAndGet()));
+	}
+
+	private InvalidItemException abortedByShard() {
+		return new InvalidItemException("Supplier with id [" + supplierID
+				+ "]: A shard of the supplier has no room for the new items of "
+				+ "the given OrderStep, the step was aborted.");
+	}
+
+	/**
+	 * Hands the given work directly to a shard, which logs the given record
+	 * before it runs the work.
+	 * 
+	 * @param shard
+	 * @param work
+	 * @param record
+	 * @param logSequence
+	 * @param vetoed
+	 * @return
+	 */
+	private Future<?> submit(final Shard shard, final ShardWork work,
+			final ShardLogRecord record, final long[] logSequence,
+			final AtomicBoolean vetoed) {
+		return shard.executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (!work.prepare(shard.store)) {
+					vetoed.set(true);
+					return null;
+				}
+				logSequence[0] = log(record);
+				work.run(shard.store);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Hands the given work to a shard as part of a multi-shard action. Once
+	 * the shard reaches the work it prepares it, signals its vote and waits
+	 * for the decision, so nothing else runs on the shard in between.
+	 * 
+	 * @param shard
+	 * @param work
+	 * @param prepared
+	 * @param decision
+	 * @param commit
+	 * @param vetoed
+	 * @return
+	 */
+	private Future<?> submitPrepared(final Shard shard, final ShardWork work,
+			final CountDownLatch prepared, final CountDownLatch decision,
+			final AtomicBoolean commit, final AtomicBoolean vetoed) {
+		return shard.executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				if (!work.prepare(shard.store)) {
+					vetoed.set(true);
+				}
+				prepared.countDown();
+				decision.await();
+				if (commit.get()) {
+					work.run(shard.store);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Waits for every given future to be done.
+	 * 
+	 * @param futures
+	 * @throws OrderProcessingException
+	 */
+	private void awaitAll(List<Future<?>> futures)
+			throws OrderProcessingException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new OrderProcessingException("Supplier with id ["
+						+ supplierID + "]: Interrupted while waiting for the "
+						+ "shards.");
+			} catch (ExecutionException e) {
+				throw new OrderProcessingException("Supplier with id ["
+						+ supplierID + "]: A shard failed.", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Validates a given OrderStep. If the step is not valid then an
+	 * OrderProcessingException is thrown, otherwise the function simply returns
+	 * with no exception.
+	 * 
+	 * @param step
+	 *            , the OrderStep to be validated.
+	 * @throws OrderProcessingException
+	 */
+	private void validateStep(OrderStep step) throws OrderProcessingException {
+		if (step == null)
+			throw new OrderProcessingException("Supplier with id ["
+					+ supplierID + "]: The given OrderStep cannot be NULL.");
+
+		if (step.getSupplierId() != supplierID)
+			throw new OrderProcessingException("Supplier with id ["
+					+ supplierID + "]: The given OrderStep does not have a "
+					+ "matching supplier id [" + step.getSupplierId() + "]");
+
+		if (step.getItems() == null)
+			throw new OrderProcessingException("Supplier with id ["
+					+ supplierID
+					+ "]: The given OrderStep contains a NULL item");
+
+		if (step.getItems().isEmpty())
+			throw new OrderProcessingException("Supplier with id ["
+					+ supplierID + "]: The given OrderStep cannot contain an "
+					+ "empty list of items");
+
+		for (ItemQuantity item : step.getItems()) {
+			if (item == null)
+				throw new OrderProcessingException("Supplier with id ["
+						+ supplierID + "]: No items in the given OrderStep can"
+						+ " be NULL.");
+			if (item.getQuantity() < 1)
+				throw new OrderProcessingException("Supplier with id ["
+						+ supplierID + "]: You cannot order a non-positive "
+						+ "amount of some item");
+			if (!shards[shardOf(item.getItemId())].store.canStore(item
+					.getItemId()))
+				throw new InvalidItemException("Supplier with id ["
+						+ supplierID + "]: The item with id ["
+						+ item.getItemId() + "] is outside the range of "
+						+ "items managed by this supplier.");
+		}
+	}
+
+	@Override
+	public List<ItemQuantity> getOrdersPerItem(Set<Integer> itemIds)
+			throws InvalidItemException {
+		if (itemIds == null)
+			throw new InvalidItemException("Supplier with id [" + supplierID
+					+ "]: The given Integer set cannot be NULL.");
+
+		final int[] ids = new int[itemIds.size()];
+		final long[] totals = new long[ids.length];
+		Map<Integer, List<Integer>> positionsPerShard = new TreeMap<Integer, List<Integer>>();
+		int i = 0;
+		for (Integer id : itemIds) {
+			if (id == null)
+				throw new InvalidItemException("Supplier with id ["
+						+ supplierID + "]: The given Integer set cannot"
+						+ "contain a NULL Integer.");
+			ids[i] = id;
+			List<Integer> positions = positionsPerShard.get(shardOf(id));
+			if (positions == null) {
+				positions = new ArrayList<Integer>();
+				positionsPerShard.put(shardOf(id), positions);
+			}
+			positions.add(i);
+			i++;
+		}
+
+		if (!positionsPerShard.isEmpty()) {
+			// Every shard fills in the totals of its own positions.
+			Map<Integer, ShardWork> work = new TreeMap<Integer, ShardWork>();
+			for (Map.Entry<Integer, List<Integer>> entry : positionsPerShard
+					.entrySet()) {
+				final List<Integer> positions = entry.getValue();
+				work.put(entry.getKey(), new ShardWork() {
+					@Override
+					public void run(ItemStore store) {
+						for (int position : positions) {
+							totals[position] = store.get(ids[position]);
+						}
+					}
+				});
+			}
+			try {
+				runOnShards(work, null);
+			} catch (OrderProcessingException e) {
+				throw new InvalidItemException("Supplier with id ["
+						+ supplierID + "]: Could not read the items.", e);
+			}
+		}
+
+		List<ItemQuantity> allItems = new ArrayList<ItemQuantity>();
+		for (i = 0; i < ids.length; i++) {
+			if (totals[i] == 0)
+				throw new InvalidItemException("Supplier with id ["
+						+ supplierID + "]: Supplier have no records of "
+						+ "any orders on item with id [" + ids[i] + "]");
+			allItems.add(new ItemQuantity(ids[i], totals[i] > Integer.MAX_VALUE
+					? Integer.MAX_VALUE : (int) totals[i]));
+		}
+		return allItems;
+	}
+
+	@Override
+	public void clear() {
+		Map<Integer, ShardWork> work = new TreeMap<Integer, ShardWork>();
+		for (int i = 0; i < shards.length; i++) {
+			work.put(i, new ShardWork() {
+				@Override
+				public void run(ItemStore store) {
+					store.clear();
+				}
+			});
+		}
+		try {
+			runOnShards(work, new ShardLogRecord() {
+				@Override
+				public byte[] encode(long logID) {
+					return SupplierLogRecord.encodeClear(logID);
+				}
+			});
+		} catch (OrderProcessingException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int getSupplierID() {
+		return supplierID;
+	}
+
+	/**
+	 * @return the number of shards of this supplier
+	 */
+	public int getNumberOfShards() {
+		return shards.length;
+	}
+
+	/**
+	 * Stops the threads of every shard. The supplier cannot be used after it
+	 * has been shut down.
+	 */
+	public void shutdown() {
+		for (Shard shard : shards) {
+			shard.executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.acertainsupplychain.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.acertainsupplychain.ItemSupplier;
+import com.acertainsupplychain.OrderManager.StepStatus;
+import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.OrderStepResult;
+
+/**
+ * This class coalesces the steps that the jobs of a scheduler send to the same
+ * supplier, across workflows. A step is queued at its supplier, and the queue
+ * is sent as a single batch with ItemSupplier.executeSteps once it holds the
+ * largest batch, or once the first step of the queue has waited for the flush
+ * interval. A batch is executed on a thread of the scheduler, which then
+ * passes the status of every step to the callback of its job.
+ * 
+ * Under load a supplier thereby gets one request per batch instead of one
+ * per step, while a step waits at most the flush interval before it is sent.
+ * 
+ * @author Arni
+ * 
+ */
+public class StepDispatcher {
+
+	/**
+	 * Receives the status of a step once its batch has been executed.
+	 */
+	public interface Callback {
+		public void stepExecuted(StepStatus status);
+	}
+
+	private final OrderManagerScheduler scheduler;
+	private final int maxBatchSize;
+	private final long flushIntervalMillis;
+	private final ConcurrentMap<ItemSupplier, SupplierQueue> queues;
+
+	/**
+	 * A step waiting in the queue of its supplier.
+	 */
+	private static class PendingStep {
+		private final OrderStep step;
+		private final Callback callback;
+
+		private PendingStep(OrderStep step, Callback callback) {
+			this.step = step;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * The steps waiting to be sent to a supplier, guarded by the queue itself.
+	 */
+	private static class SupplierQueue {
+		private final ItemSupplier supplier;
+		private List<PendingStep> pending;
+
+		private SupplierQueue(ItemSupplier supplier) {
+			this.supplier = supplier;
+			pending = new ArrayList<PendingStep>();
+		}
+
+		/**
+		 * Takes every waiting step out of the queue.
+		 * 
+		 * @return
+		 */
+		private List<PendingStep> take() {
+			List<PendingStep> batch = pending;
+			pending = new ArrayList<PendingStep>();
+			return batch;
+		}
+	}
+
+	/**
+	 * Initialize a dispatcher which sends its batches on the threads of the
+	 * given scheduler.
+	 * 
+	 * @param scheduler
+	 * @param maxBatchSize
+	 *            , the number of steps that makes a supplier queue be sent at
+	 *            once.
+	 * @param flushIntervalMillis
+	 *            , the longest time a step waits in the queue.
+	 */
+	public StepDispatcher(OrderManagerScheduler scheduler, int maxBatchSize,
+			long flushIntervalMillis) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("StepDispatcher: The largest "
+					+ "batch must hold at least one step.");
+		if (flushIntervalMillis < 0)
+			throw new IllegalArgumentException("StepDispatcher: The flush "
+					+ "interval must not be negative.");
+		this.scheduler = scheduler;
+		this.maxBatchSize = maxBatchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		queues = new ConcurrentHashMap<ItemSupplier, SupplierQueue>();
+	}
+
+	/**
+	 * Queues a step to be sent to the given supplier. The callback is called
+	 * on a thread of the scheduler once the batch holding the step has been
+	 * executed, and never by this call.
+	 * 
+	 * @param supplier
+	 * @param step
+	 * @param callback
+	 */
+	public void submit(ItemSupplier supplier, OrderStep step,
+			Callback callback) {
+		SupplierQueue queue = queues.get(supplier);
+		if (queue == null) {
+			SupplierQueue created = new SupplierQueue(supplier);
+			queue = queues.putIfAbsent(supplier, created);
+			if (queue == null) {
+				queue = created;
+			}
+		}
+
+		List<PendingStep> batch = null;
+		boolean first;
+		synchronized (queue) {
+			queue.pending.add(new PendingStep(step, callback));
+			first = queue.pending.size() == 1;
+			if (queue.pending.size() >= maxBatchSize) {
+				batch = queue.take();
+			}
+		}
+		if (batch != null) {
+			send(queue.supplier, batch);
+		} else if (first) {
+			// Every step that finds the queue empty starts a timer, so the
+			// queue is sent within the interval of its first step even if it
+			// never fills up. A timer that finds the queue empty, because it
+			// was full meanwhile, does nothing.
+			final SupplierQueue flushed = queue;
+			scheduler.scheduleStep(new Runnable() {
+				@Override
+				public void run() {
+					List<PendingStep> batch;
+					synchronized (flushed) {
+						batch = flushed.take();
+					}
+					if (!batch.isEmpty()) {
+						send(flushed.supplier, batch);
+					}
+				}
+			}, flushIntervalMillis);
+		}
+	}
+
+	/**
+	 * @return the number of steps that makes a supplier queue be sent at once
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * @return the longest time a step waits in the queue
+	 */
+	public long getFlushIntervalMillis() {
+		return flushIntervalMillis;
+	}
+
+	/**
+	 * Executes the given batch on a thread of the scheduler. A scheduler that
+	 * has been shut down by clear rejects the batch, whose workflows no longer
+	 * exist.
+	 * 
+	 * @param supplier
+	 * @param batch
+	 */
+	private void send(final ItemSupplier supplier,
+			final List<PendingStep> batch) {
+		scheduler.submitStep(new Runnable() {
+			@Override
+			public void run() {
+				execute(supplier, batch);
+			}
+		});
+	}
+
+	private void execute(ItemSupplier supplier, List<PendingStep> batch) {
+		List<OrderStep> steps = new ArrayList<OrderStep>(batch.size());
+		for (PendingStep pending : batch) {
+			steps.add(pending.step);
+		}
+		List<OrderStepResult> results = null;
+		try {
+			results = supplier.executeSteps(steps);
+		} catch (Exception e) {
+			// The whole batch failed, e.g. as the supplier could not be
+			// reached, so every step failed as it would have on its own.
+			results = null;
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			StepStatus status = results != null && i < results.size()
+					&& results.get(i).isSuccessful() ? StepStatus.SUCCESSFUL
+					: StepStatus.FAILED;
+			try {
+				batch.get(i).callback.stepExecuted(status);
+			} catch (RuntimeException e) {
+				// A failing job must not keep the other steps of the batch
+				// from being recorded.
+				System.out.println("StepDispatcher: The callback of a step "
+						+ "at supplier [" + supplier.getSupplierID()
+						+ "] failed.");
+				e.printStackTrace();
+			}
+		}
+	}
+}
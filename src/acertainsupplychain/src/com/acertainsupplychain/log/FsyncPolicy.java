@@ -0,0 +1,26 @@
+package com.acertainsupplychain.log;
+
+/**
+ * The policies a WriteAheadLog can use to force its records to disk.
+ * 
+ * @author Arni
+ * 
+ */
+public enum FsyncPolicy {
+	/**
+	 * Records are never forced, they are durable once handed to the operating
+	 * system.
+	 */
+	NONE,
+
+	/**
+	 * Every batch of records is forced before its appenders are acknowledged.
+	 */
+	PER_BATCH,
+
+	/**
+	 * The log is forced by a background thread at a fixed interval, and the
+	 * records written before a force are acknowledged by it.
+	 */
+	INTERVAL;
+}
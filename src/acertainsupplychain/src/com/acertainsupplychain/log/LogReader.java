@@ -0,0 +1,201 @@
+package com.acertainsupplychain.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class finds the records of a single key in a segmented log, e.g. the
+ * step with a given log ID in a supplier log or every line of a given workflow
+ * in an order manager log.
+ * 
+ * Archived segments are searched through their sparse indexes, so only the
+ * blocks whose keys span the key are read. An index that is missing or does
+ * not match its segment is built again and written next to the segment. The
+ * log file itself is still being appended to, so its index is only kept in
+ * memory and extended by the records appended since the previous search. It
+ * is built again once the log has rolled or the file has been cut shorter.
+ * 
+ * Segments are read through a channel rather than mapped, as Java 8 still
+ * cannot unmap a MappedByteBuffer before it is garbage collected, and a
+ * mapped segment could then not be deleted by a checkpoint on every platform.
+ * 
+ * @author Arni
+ * 
+ */
+public class LogReader {
+
+	private final LogSegments segments;
+	private final LogRecordFormat format;
+	private final Map<Long, LogSegmentIndex> indexes;
+	private LogSegmentIndex logFileIndex;
+	private long logFileSegment;
+	private Object logFileKey;
+
+	/**
+	 * Initializes the LogReader of the given log file, whose records have the
+	 * given format.
+	 * 
+	 * @param logFile
+	 * @param format
+	 */
+	public LogReader(File logFile, LogRecordFormat format) {
+		this.format = format;
+		segments = new LogSegments(logFile, format);
+		indexes = new ConcurrentHashMap<Long, LogSegmentIndex>();
+	}
+
+	/**
+	 * Returns the records with the given key, oldest segment first. Records
+	 * that are archived while the log is searched may be missed.
+	 * 
+	 * @param key
+	 * @return the bytes of every record with the key.
+	 * @throws IOException
+	 */
+	public List<byte[]> find(final long key) throws IOException {
+		final List<byte[]> records = new ArrayList<byte[]>();
+		LogScanner.RecordVisitor collector = new LogScanner.RecordVisitor() {
+			@Override
+			public void visit(long offset, byte[] buffer, int start,
+					int length) {
+				if (format.keyOf(buffer, start, length) == key) {
+					byte[] record = new byte[length];
+					System.arraycopy(buffer, start, record, 0, length);
+					records.add(record);
+				}
+			}
+		};
+
+		long[] archived = segments.listSegments();
+		for (long segment : archived) {
+			File file = segments.getSegmentFile(segment);
+			LogSegmentIndex index = getIndex(segment);
+			if (index == null)
+				continue;
+			long[] ranges = index.find(key);
+			for (int i = 0; i < ranges.length; i += 2) {
+				LogScanner.scan(file, ranges[i], ranges[i + 1], format,
+						collector);
+			}
+		}
+
+		File logFile = segments.getLogFile();
+		if (logFile.exists()) {
+			long newest = archived.length == 0 ? 0
+					: archived[archived.length - 1];
+			long[] ranges = getLogFileIndex(logFile, newest).find(key);
+			for (int i = 0; i < ranges.length; i += 2) {
+				LogScanner.scan(logFile, ranges[i], ranges[i + 1], format,
+						collector);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the index of the log file, extended by the records appended to
+	 * it since the previous search. The index is built again if the log has
+	 * rolled since, which archives a newer segment and replaces the file, or
+	 * if the file is shorter than the indexed records.
+	 * 
+	 * @param logFile
+	 * @param newest
+	 *            , the newest archived segment, or 0 if there is none.
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized LogSegmentIndex getLogFileIndex(File logFile,
+			long newest) throws IOException {
+		// Not every platform has a key that tells the files apart.
+		Object key = Files.readAttributes(logFile.toPath(),
+				BasicFileAttributes.class).fileKey();
+		if (logFileIndex == null || logFileSegment != newest
+				|| (key != null && !key.equals(logFileKey))
+				|| logFileIndex.getLength() > logFile.length()) {
+			logFileIndex = LogSegmentIndex.build(logFile, format);
+			logFileSegment = newest;
+			logFileKey = key;
+		} else {
+			logFileIndex = logFileIndex.extend(logFile, format);
+		}
+		return logFileIndex;
+	}
+
+	/**
+	 * Returns the index of the given archived segment, loading or building it
+	 * if it is not cached.
+	 * 
+	 * @param segment
+	 * @return the index, or null if the segment no longer exists.
+	 * @throws IOException
+	 */
+	private LogSegmentIndex getIndex(long segment) throws IOException {
+		File file = segments.getSegmentFile(segment);
+		long length = file.length();
+		LogSegmentIndex index = indexes.get(segment);
+		if (index != null && index.getLength() <= length)
+			return index;
+
+		File indexFile = segments.getIndexFile(segment);
+		index = null;
+		if (indexFile.exists()) {
+			try {
+				index = LogSegmentIndex.load(indexFile);
+				if (index.getLength() > length) {
+					index = null;
+				}
+			} catch (IOException e) {
+				System.out.println("LogReader: Rebuilding the index ["
+						+ indexFile.getPath() + "]");
+				index = null;
+			}
+		}
+		if (index == null) {
+			if (!file.exists())
+				return null;
+			index = LogSegmentIndex.build(file, format);
+			try {
+				index.write(indexFile);
+			} catch (IOException e) {
+				// The index is still used from memory.
+				e.printStackTrace();
+			}
+		}
+		indexes.put(segment, index);
+		return index;
+	}
+
+	/**
+	 * Prints the records with a given key of a supplier or order manager log.
+	 * 
+	 * @param args
+	 *            , the log file, "supplier" or "ordermanager" and the key.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.out.println("Usage: LogReader <log file> "
+					+ "supplier|ordermanager <log ID or workflow ID>");
+			return;
+		}
+		boolean supplier = args[1].equals("supplier");
+		LogRecordFormat format = supplier ? new SupplierLogFormat()
+				: new OrderManagerLogFormat();
+		LogReader reader = new LogReader(new File(args[0]), format);
+		for (byte[] record : reader.find(Long.parseLong(args[2]))) {
+			if (supplier) {
+				SupplierLogRecord decoded = SupplierLogRecord.decode(record, 0,
+						record.length);
+				System.out.print(decoded.toText());
+			} else {
+				System.out.print(new String(record));
+			}
+		}
+	}
+}
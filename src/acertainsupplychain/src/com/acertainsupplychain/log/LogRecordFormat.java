@@ -0,0 +1,40 @@
+package com.acertainsupplychain.log;
+
+/**
+ * The LogRecordFormat interface tells how the records of a log are framed and
+ * which key every record belongs to, e.g. the log ID of a step in a supplier
+ * log or the workflow ID in an order manager log. It is used to index the
+ * segments of a log and to find the records of a single key.
+ * 
+ * @author Arni
+ * 
+ */
+public interface LogRecordFormat {
+
+	/**
+	 * The key of a record that does not belong to any key.
+	 */
+	public final static long NO_KEY = Long.MIN_VALUE;
+
+	/**
+	 * Returns the length of the record starting at the given offset, of which
+	 * the given number of bytes are available.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param available
+	 * @return the length of the record, 0 if more bytes are needed to tell,
+	 *         or -1 if no valid record starts at the offset.
+	 */
+	public int recordLength(byte[] buffer, int offset, int available);
+
+	/**
+	 * Returns the key of the whole record at the given offset.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return the key, or NO_KEY.
+	 */
+	public long keyOf(byte[] buffer, int offset, int length);
+}
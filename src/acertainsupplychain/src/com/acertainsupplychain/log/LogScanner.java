@@ -0,0 +1,107 @@
+package com.acertainsupplychain.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads the records of a log file in a range of byte offsets,
+ * framing them with a LogRecordFormat.
+ * 
+ * @author Arni
+ * 
+ */
+public final class LogScanner {
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A visitor of the records of a log file.
+	 */
+	public interface RecordVisitor {
+		/**
+		 * Visits the whole record at the given offset of the file, whose bytes
+		 * are in the given part of the buffer.
+		 * 
+		 * @param offset
+		 * @param buffer
+		 * @param start
+		 * @param length
+		 */
+		public void visit(long offset, byte[] buffer, int start, int length);
+	}
+
+	private LogScanner() {
+	}
+
+	/**
+	 * Visits every whole record of the given file that starts at or after the
+	 * first offset and before the second. The scan stops early at the end of
+	 * the file or at the first offset where no valid record starts.
+	 * 
+	 * @param file
+	 * @param from
+	 *            , an offset where a record starts.
+	 * @param to
+	 * @param format
+	 * @param visitor
+	 * @return the offset right after the last record visited.
+	 * @throws IOException
+	 */
+	public static long scan(File file, long from, long to,
+			LogRecordFormat format, RecordVisitor visitor) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			ByteBuffer view = ByteBuffer.wrap(buffer);
+			int start = 0;
+			int end = 0;
+			long position = from;
+			long readPosition = from;
+			boolean endOfFile = false;
+
+			while (position < to) {
+				int length = format.recordLength(buffer, start, end - start);
+				if (length < 0)
+					break;
+				if (length > 0) {
+					visitor.visit(position, buffer, start, length);
+					start += length;
+					position += length;
+					continue;
+				}
+				if (endOfFile)
+					break;
+
+				// The record continues past the buffer, so the rest of the
+				// buffer is moved to the front and more bytes are read.
+				if (start > 0) {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end -= start;
+					start = 0;
+				}
+				if (end == buffer.length) {
+					byte[] larger = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, larger, 0, end);
+					buffer = larger;
+					view = ByteBuffer.wrap(buffer);
+				}
+				view.limit(buffer.length);
+				view.position(end);
+				int read = channel.read(view, readPosition);
+				if (read < 0) {
+					endOfFile = true;
+				} else {
+					end += read;
+					readPosition += read;
+				}
+			}
+			return position;
+		} finally {
+			input.close();
+		}
+	}
+}
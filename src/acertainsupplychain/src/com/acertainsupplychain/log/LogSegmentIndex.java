@@ -0,0 +1,361 @@
+package com.acertainsupplychain.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * This class is a sparse index of an archived log segment. The segment is cut
+ * into blocks of about the same number of bytes, each starting at a record,
+ * and the index keeps the offset of every block together with the smallest
+ * and largest key of the records in it:
+ * 
+ * <pre>
+ * int  magic number
+ * int  version
+ * long length of the indexed records
+ * int  number of blocks
+ * for every block: long offset, long smallest key, long largest key
+ * int  CRC32 of every byte before it
+ * </pre>
+ * 
+ * Keys grow roughly with the offset, but not strictly, as records are
+ * appended concurrently and a workflow is updated long after it registered.
+ * The blocks that may hold a key are therefore bounded by two binary searches,
+ * over the running largest key from the front and the running smallest key
+ * from the back, and within those bounds only the blocks whose keys span the
+ * key are read.
+ * 
+ * @author Arni
+ * 
+ */
+public final class LogSegmentIndex {
+
+	public final static int DEFAULT_INTERVAL = 4096;
+
+	private final static int MAGIC = 0x4C534958;
+	private final static int VERSION = 1;
+
+	private final long length;
+	private final long[] offsets;
+	private final long[] minKeys;
+	private final long[] maxKeys;
+	private final long[] prefixMax;
+	private final long[] suffixMin;
+
+	private LogSegmentIndex(long length, long[] offsets, long[] minKeys,
+			long[] maxKeys) {
+		this.length = length;
+		this.offsets = offsets;
+		this.minKeys = minKeys;
+		this.maxKeys = maxKeys;
+		int blocks = offsets.length;
+		prefixMax = new long[blocks];
+		suffixMin = new long[blocks];
+		long running = Long.MIN_VALUE;
+		for (int i = 0; i < blocks; i++) {
+			running = Math.max(running, maxKeys[i]);
+			prefixMax[i] = running;
+		}
+		running = Long.MAX_VALUE;
+		for (int i = blocks - 1; i >= 0; i--) {
+			running = Math.min(running, minKeys[i]);
+			suffixMin[i] = running;
+		}
+	}
+
+	/**
+	 * Collects the blocks of a segment while it is scanned.
+	 */
+	private static class Builder implements LogScanner.RecordVisitor {
+		private final LogRecordFormat format;
+		private final int interval;
+		private long[] offsets = new long[64];
+		private long[] minKeys = new long[64];
+		private long[] maxKeys = new long[64];
+		private int blocks = 0;
+		private long nextBlock = 0;
+
+		private Builder(LogRecordFormat format, int interval) {
+			this.format = format;
+			this.interval = interval;
+		}
+
+		/**
+		 * Continues the blocks of the given index, so records after its
+		 * length join its last block until the interval has been passed.
+		 */
+		private Builder(LogSegmentIndex index, LogRecordFormat format,
+				int interval) {
+			this(format, interval);
+			blocks = index.offsets.length;
+			int capacity = Math.max(offsets.length, blocks * 2);
+			offsets = Arrays.copyOf(index.offsets, capacity);
+			minKeys = Arrays.copyOf(index.minKeys, capacity);
+			maxKeys = Arrays.copyOf(index.maxKeys, capacity);
+			nextBlock = blocks == 0 ? 0 : offsets[blocks - 1] + interval;
+		}
+
+		private LogSegmentIndex toIndex(long length) {
+			return new LogSegmentIndex(length, Arrays.copyOf(offsets, blocks),
+					Arrays.copyOf(minKeys, blocks), Arrays.copyOf(maxKeys,
+							blocks));
+		}
+
+		@Override
+		public void visit(long offset, byte[] buffer, int start, int length) {
+			if (offset >= nextBlock) {
+				if (blocks == offsets.length) {
+					offsets = Arrays.copyOf(offsets, blocks * 2);
+					minKeys = Arrays.copyOf(minKeys, blocks * 2);
+					maxKeys = Arrays.copyOf(maxKeys, blocks * 2);
+				}
+				offsets[blocks] = offset;
+				minKeys[blocks] = Long.MAX_VALUE;
+				maxKeys[blocks] = Long.MIN_VALUE;
+				blocks++;
+				nextBlock = offset + interval;
+			}
+			long key = format.keyOf(buffer, start, length);
+			if (key == LogRecordFormat.NO_KEY)
+				return;
+			int block = blocks - 1;
+			if (key < minKeys[block]) {
+				minKeys[block] = key;
+			}
+			if (key > maxKeys[block]) {
+				maxKeys[block] = key;
+			}
+		}
+	}
+
+	/**
+	 * Builds the index of the given segment with the default block size.
+	 * 
+	 * @param segment
+	 * @param format
+	 * @return
+	 * @throws IOException
+	 */
+	public static LogSegmentIndex build(File segment, LogRecordFormat format)
+			throws IOException {
+		return build(segment, format, DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * Builds the index of the given segment, starting a new block once the
+	 * given number of bytes has been passed.
+	 * 
+	 * @param segment
+	 * @param format
+	 * @param interval
+	 * @return
+	 * @throws IOException
+	 */
+	public static LogSegmentIndex build(File segment, LogRecordFormat format,
+			int interval) throws IOException {
+		Builder builder = new Builder(format, interval);
+		long length = LogScanner.scan(segment, 0, Long.MAX_VALUE, format,
+				builder);
+		return builder.toIndex(length);
+	}
+
+	/**
+	 * Returns the index of the given file after it grew past the length of
+	 * this index, e.g. the log file that is still being appended to. Only the
+	 * records after the indexed length are read, and new blocks are started
+	 * with the default block size. The file must still hold the indexed
+	 * records at the same offsets.
+	 * 
+	 * @param file
+	 * @param format
+	 * @return this index if the file holds no new whole record.
+	 * @throws IOException
+	 */
+	public LogSegmentIndex extend(File file, LogRecordFormat format)
+			throws IOException {
+		Builder builder = new Builder(this, format, DEFAULT_INTERVAL);
+		long extended = LogScanner.scan(file, length, Long.MAX_VALUE, format,
+				builder);
+		if (extended == length)
+			return this;
+		return builder.toIndex(extended);
+	}
+
+	/**
+	 * Writes the index to the given file, replacing it as a whole.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		CheckedOutputStream checked = new CheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporary),
+						64 * 1024), new CRC32());
+		DataOutputStream data = new DataOutputStream(checked);
+		try {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(length);
+			data.writeInt(offsets.length);
+			for (int i = 0; i < offsets.length; i++) {
+				data.writeLong(offsets[i]);
+				data.writeLong(minKeys[i]);
+				data.writeLong(maxKeys[i]);
+			}
+			data.writeInt((int) checked.getChecksum().getValue());
+		} finally {
+			data.close();
+		}
+
+		if (!temporary.renameTo(file)) {
+			// Not every platform can rename over an existing file.
+			file.delete();
+			if (!temporary.renameTo(file)) {
+				temporary.delete();
+				throw new IOException("LogSegmentIndex: Could not write the "
+						+ "index [" + file.getPath() + "]");
+			}
+		}
+	}
+
+	/**
+	 * Reads the index in the given file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the index could not be read or is damaged.
+	 */
+	public static LogSegmentIndex load(File file) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file), 64 * 1024),
+				new CRC32());
+		DataInputStream data = new DataInputStream(checked);
+		try {
+			if (data.readInt() != MAGIC || data.readInt() != VERSION)
+				throw new IOException("LogSegmentIndex: The file ["
+						+ file.getPath() + "] is not an index.");
+			long length = data.readLong();
+			int blocks = data.readInt();
+			if (blocks < 0 || blocks > file.length() / 24)
+				throw new IOException("LogSegmentIndex: The index ["
+						+ file.getPath() + "] is damaged.");
+			long[] offsets = new long[blocks];
+			long[] minKeys = new long[blocks];
+			long[] maxKeys = new long[blocks];
+			for (int i = 0; i < blocks; i++) {
+				offsets[i] = data.readLong();
+				minKeys[i] = data.readLong();
+				maxKeys[i] = data.readLong();
+			}
+			int expected = (int) checked.getChecksum().getValue();
+			if (data.readInt() != expected)
+				throw new IOException("LogSegmentIndex: The index ["
+						+ file.getPath() + "] is damaged.");
+			return new LogSegmentIndex(length, offsets, minKeys, maxKeys);
+		} catch (EOFException e) {
+			throw new IOException("LogSegmentIndex: The index ["
+					+ file.getPath() + "] is incomplete.", e);
+		} finally {
+			data.close();
+		}
+	}
+
+	/**
+	 * Returns the byte ranges of the segment that may hold records with the
+	 * given key, as pairs of a first offset and an offset after the last.
+	 * 
+	 * @param key
+	 * @return the ranges, empty if no record has the key.
+	 */
+	public long[] find(long key) {
+		int blocks = offsets.length;
+		if (blocks == 0 || key < suffixMin[0] || key > prefixMax[blocks - 1])
+			return new long[0];
+
+		// The first block whose running largest key reaches the key.
+		int low = 0;
+		int high = blocks - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (prefixMax[middle] >= key) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		int first = low;
+
+		// The last block whose running smallest key reaches the key.
+		low = first;
+		high = blocks - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (suffixMin[middle] <= key) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		int last = low;
+
+		long[] ranges = new long[8];
+		int count = 0;
+		for (int i = first; i <= last; i++) {
+			if (minKeys[i] > key || maxKeys[i] < key)
+				continue;
+			long end = i + 1 < blocks ? offsets[i + 1] : length;
+			if (count > 0 && ranges[count - 1] == offsets[i]) {
+				ranges[count - 1] = end;
+				continue;
+			}
+			if (count == ranges.length) {
+				ranges = Arrays.copyOf(ranges, count * 2);
+			}
+			ranges[count++] = offsets[i];
+			ranges[count++] = end;
+		}
+		return Arrays.copyOf(ranges, count);
+	}
+
+	/**
+	 * @return the number of bytes of the segment that were indexed
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the number of blocks
+	 */
+	public int getBlocks() {
+		return offsets.length;
+	}
+
+	/**
+	 * @return the smallest key in the segment, or Long.MAX_VALUE if none
+	 */
+	public long getMinKey() {
+		return offsets.length == 0 ? Long.MAX_VALUE : suffixMin[0];
+	}
+
+	/**
+	 * @return the largest key in the segment, or Long.MIN_VALUE if none
+	 */
+	public long getMaxKey() {
+		return offsets.length == 0 ? Long.MIN_VALUE
+				: prefixMax[offsets.length - 1];
+	}
+}
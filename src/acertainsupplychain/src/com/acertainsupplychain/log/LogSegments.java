@@ -0,0 +1,250 @@
+package com.acertainsupplychain.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class names the segments of a log. New records are always appended to
+ * the log file itself. When the log rolls the log file is renamed to an
+ * archived segment, named after the log file followed by the number of the
+ * segment, and the log continues in a new log file. Segments are numbered from
+ * 1 and every roll uses a higher number than the last.
+ * 
+ * If the log has a record format, every archived segment gets a sparse index,
+ * see LogSegmentIndex, which is built in the background once the segment is
+ * closed and kept next to it with the suffix ".idx". An index is only written
+ * while its segment exists, so a segment deleted while it was indexed does
+ * not leave its index behind.
+ * 
+ * Once a checkpoint contains every record of a segment, that segment and every
+ * older one are no longer needed for recovery and may be deleted.
+ * 
+ * @author Arni
+ * 
+ */
+public class LogSegments {
+
+	public final static String INDEX_SUFFIX = ".idx";
+
+	private final static ExecutorService INDEXER = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "LogSegments-indexer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final File logFile;
+	private final LogRecordFormat format;
+	private final Object deleteLock;
+	private long lastSegment;
+
+	/**
+	 * Initializes the segments of the given log file, without indexes.
+	 * 
+	 * @param logFile
+	 */
+	public LogSegments(File logFile) {
+		this(logFile, null);
+	}
+
+	/**
+	 * Initializes the segments of the given log file, whose records have the
+	 * given format.
+	 * 
+	 * @param logFile
+	 * @param format
+	 *            , or null if the segments are not indexed.
+	 */
+	public LogSegments(File logFile, LogRecordFormat format) {
+		this.logFile = logFile;
+		this.format = format;
+		deleteLock = new Object();
+		lastSegment = 0;
+	}
+
+	/**
+	 * Returns the file of the archived segment with the given number.
+	 * 
+	 * @param segment
+	 * @return
+	 */
+	public File getSegmentFile(long segment) {
+		return new File(logFile.getPath() + "." + segment);
+	}
+
+	/**
+	 * Returns the index file of the archived segment with the given number.
+	 * 
+	 * @param segment
+	 * @return
+	 */
+	public File getIndexFile(long segment) {
+		return new File(getSegmentFile(segment).getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Returns the numbers of every archived segment on disk, in ascending
+	 * order.
+	 * 
+	 * @return
+	 */
+	public long[] listSegments() {
+		File folder = logFile.getAbsoluteFile().getParentFile();
+		String prefix = logFile.getName() + ".";
+		String[] names = folder == null ? null : folder.list();
+		if (names == null)
+			return new long[0];
+
+		long[] segments = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (!name.startsWith(prefix))
+				continue;
+			try {
+				segments[count] = Long.parseLong(name.substring(prefix
+						.length()));
+				if (segments[count] > 0) {
+					count++;
+				}
+			} catch (NumberFormatException e) {
+				// Not a segment, e.g. an index or a temporary file.
+			}
+		}
+		long[] result = Arrays.copyOf(segments, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Makes sure that every segment allocated from now on has a higher number
+	 * than the given one, e.g. the last segment of a checkpoint whose archive
+	 * has already been deleted.
+	 * 
+	 * @param segment
+	 */
+	public synchronized void reserve(long segment) {
+		if (segment > lastSegment) {
+			lastSegment = segment;
+		}
+	}
+
+	/**
+	 * Returns the number of the next archived segment, which is higher than
+	 * every segment on disk and every segment allocated or reserved before.
+	 * 
+	 * @return
+	 */
+	public synchronized long allocate() {
+		long[] segments = listSegments();
+		if (segments.length > 0) {
+			reserve(segments[segments.length - 1]);
+		}
+		return ++lastSegment;
+	}
+
+	/**
+	 * Returns the files of the archived segments after the given one in
+	 * ascending order, followed by the log file.
+	 * 
+	 * @param segment
+	 * @return
+	 */
+	public List<File> getTail(long segment) {
+		List<File> files = new ArrayList<File>();
+		for (long archived : listSegments()) {
+			if (archived > segment) {
+				files.add(getSegmentFile(archived));
+			}
+		}
+		files.add(logFile);
+		return files;
+	}
+
+	/**
+	 * Tells that the segment with the given number has been archived and will
+	 * not change anymore, so that it can be indexed.
+	 * 
+	 * @param segment
+	 */
+	public void closed(final long segment) {
+		if (format == null)
+			return;
+		INDEXER.execute(new Runnable() {
+			@Override
+			public void run() {
+				File file = getSegmentFile(segment);
+				File indexFile = getIndexFile(segment);
+				try {
+					if (!file.exists())
+						return;
+					LogSegmentIndex index = LogSegmentIndex.build(file, format);
+					// Truncate deletes the segment and its index under the
+					// same lock, so the index is either written before and
+					// deleted with the segment, or not written at all.
+					synchronized (deleteLock) {
+						if (file.exists()) {
+							index.write(indexFile);
+						}
+					}
+				} catch (IOException e) {
+					// A segment deleted while it was indexed needs no index.
+					if (file.exists()) {
+						System.out.println("LogSegments: Could not index the "
+								+ "segment [" + file.getPath() + "]");
+						e.printStackTrace();
+					}
+					indexFile.delete();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Deletes every archived segment up to and including the given one,
+	 * together with its index.
+	 * 
+	 * @param segment
+	 * @return the number of segments deleted.
+	 */
+	public int truncate(long segment) {
+		int deleted = 0;
+		synchronized (deleteLock) {
+			for (long archived : listSegments()) {
+				if (archived > segment)
+					break;
+				File file = getSegmentFile(archived);
+				getIndexFile(archived).delete();
+				if (file.delete()) {
+					deleted++;
+				} else {
+					System.out.println("LogSegments: Could not delete the "
+							+ "segment [" + file.getPath() + "]");
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * @return the log file new records are appended to
+	 */
+	public File getLogFile() {
+		return logFile;
+	}
+
+	/**
+	 * @return the format of the records, or null
+	 */
+	public LogRecordFormat getFormat() {
+		return format;
+	}
+}
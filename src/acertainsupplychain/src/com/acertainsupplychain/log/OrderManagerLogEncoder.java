@@ -0,0 +1,294 @@
+package com.acertainsupplychain.log;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.OrderManager.StepStatus;
+import com.acertainsupplychain.OrderStep;
+
+/**
+ * Encodes the REGISTER and UPDATE lines of the order manager log into a
+ * reusable byte buffer, in the same text as FileLogger writes with a
+ * timestamp, see OrderManagerLogFormat. Once the buffer is large enough and
+ * the timestamp of the current minute is cached, encoding a line allocates
+ * nothing.
+ * 
+ * Several REGISTER lines can be appended to each other, so that a batch of
+ * workflows is logged with a single write.
+ * 
+ * An encoder is not thread safe, every thread must use its own.
+ * 
+ * @author Arni
+ * 
+ */
+public class OrderManagerLogEncoder {
+
+	private final static byte[] REGISTER = "REGISTER ".getBytes();
+	private final static byte[] UPDATE = "UPDATE ".getBytes();
+	private final static byte[] NULL = "(null)".getBytes();
+	private final static int INITIAL_CAPACITY = 256;
+	// The largest buffer kept after a batch, a larger one is dropped by trim.
+	private final static int MAX_RETAINED_CAPACITY = 64 * 1024;
+	private final static byte[][] STATUSES = new byte[StepStatus.values().length][];
+	private final static byte[] LINE_SEPARATOR = System.getProperty(
+			"line.separator").getBytes();
+
+	static {
+		for (StepStatus status : StepStatus.values()) {
+			STATUSES[status.ordinal()] = status.name().getBytes();
+		}
+	}
+
+	private byte[] buffer;
+	private int length;
+
+	// The timestamp up to the seconds of the minute starting at minuteStart,
+	// e.g. "[2015-01-01 12:00:".
+	private final byte[] minutePrefix;
+	private long minuteStart;
+	private long minuteEnd;
+	private final Calendar calendar;
+
+	/**
+	 * Initialize the encoder with a small buffer.
+	 */
+	public OrderManagerLogEncoder() {
+		buffer = new byte[INITIAL_CAPACITY];
+		minutePrefix = new byte[18];
+		minuteStart = 0;
+		minuteEnd = 0;
+		calendar = Calendar.getInstance();
+	}
+
+	/**
+	 * Encodes the line registering the given workflow, which is read back by
+	 * OrderManagerLogRecovery.
+	 * 
+	 * @param workflowID
+	 * @param steps
+	 * @param timeMillis
+	 *            , the time of the timestamp of the line.
+	 * @return the length of the line, which starts at offset 0 of the buffer.
+	 */
+	public int encodeRegister(int workflowID, List<OrderStep> steps,
+			long timeMillis) {
+		length = 0;
+		return appendRegister(workflowID, steps, timeMillis);
+	}
+
+	/**
+	 * Encodes the line registering the given workflow after the lines
+	 * already in the buffer.
+	 * 
+	 * @param workflowID
+	 * @param steps
+	 * @param timeMillis
+	 *            , the time of the timestamp of the line.
+	 * @return the length of all lines, which start at offset 0 of the buffer.
+	 */
+	public int appendRegister(int workflowID, List<OrderStep> steps,
+			long timeMillis) {
+		putTimestamp(timeMillis);
+		put(REGISTER);
+		putInt(workflowID);
+		put((byte) ' ');
+		for (int i = 0; i < steps.size(); i++) {
+			putStep(steps.get(i));
+			put((byte) ' ');
+		}
+		put(LINE_SEPARATOR);
+		return length;
+	}
+
+	/**
+	 * Encodes the line updating the status of a step of a workflow.
+	 * 
+	 * @param workflowID
+	 * @param stepIndex
+	 * @param status
+	 * @param timeMillis
+	 *            , the time of the timestamp of the line.
+	 * @return the length of the line, which starts at offset 0 of the buffer.
+	 */
+	public int encodeUpdate(int workflowID, int stepIndex, StepStatus status,
+			long timeMillis) {
+		length = 0;
+		putTimestamp(timeMillis);
+		put(UPDATE);
+		putInt(workflowID);
+		put((byte) ' ');
+		putInt(stepIndex);
+		put((byte) ' ');
+		put(status == null ? NULL : STATUSES[status.ordinal()]);
+		put(LINE_SEPARATOR);
+		return length;
+	}
+
+	/**
+	 * @return the buffer holding the last encoded line
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Empties the buffer, and drops it if a large batch has grown it beyond
+	 * what is worth keeping for single lines.
+	 */
+	public void trim() {
+		length = 0;
+		if (buffer.length > MAX_RETAINED_CAPACITY) {
+			buffer = new byte[INITIAL_CAPACITY];
+		}
+	}
+
+	/**
+	 * Encodes a step as "[supplier,(item,quantity),(item,quantity)]", where a
+	 * NULL step or item is written as "(null)". The indices of the steps it
+	 * depends on follow as "<index,index>", if it depends on any.
+	 * 
+	 * @param step
+	 */
+	private void putStep(OrderStep step) {
+		if (step == null) {
+			put(NULL);
+			return;
+		}
+		put((byte) '[');
+		putInt(step.getSupplierId());
+		put((byte) ',');
+		List<ItemQuantity> items = step.getItems();
+		for (int i = 0; i < items.size(); i++) {
+			ItemQuantity item = items.get(i);
+			if (item == null) {
+				put(NULL);
+			} else {
+				put((byte) '(');
+				putInt(item.getItemId());
+				put((byte) ',');
+				putInt(item.getQuantity());
+				put((byte) ')');
+				put((byte) ',');
+			}
+		}
+		if (buffer[length - 1] == ',') {
+			length--;
+		}
+		put((byte) ']');
+		if (step.getDependencyCount() > 0) {
+			put((byte) '<');
+			for (int i = 0; i < step.getDependencyCount(); i++) {
+				if (i > 0) {
+					put((byte) ',');
+				}
+				putInt(step.getDependency(i));
+			}
+			put((byte) '>');
+		}
+	}
+
+	/**
+	 * Writes the timestamp of the given time as "[yyyy-mm-dd hh:mm:ss.f] "
+	 * like java.sql.Timestamp, whose fraction has no trailing zeros.
+	 * 
+	 * @param timeMillis
+	 */
+	private void putTimestamp(long timeMillis) {
+		if (timeMillis < minuteStart || timeMillis >= minuteEnd) {
+			cacheMinute(timeMillis);
+		}
+		put(minutePrefix);
+		int millis = (int) (timeMillis - minuteStart);
+		int seconds = millis / 1000;
+		millis %= 1000;
+		put((byte) ('0' + seconds / 10));
+		put((byte) ('0' + seconds % 10));
+		put((byte) '.');
+		put((byte) ('0' + millis / 100));
+		if (millis % 100 != 0) {
+			put((byte) ('0' + millis / 10 % 10));
+			if (millis % 10 != 0) {
+				put((byte) ('0' + millis % 10));
+			}
+		}
+		put((byte) ']');
+		put((byte) ' ');
+	}
+
+	/**
+	 * Caches the timestamp prefix of the minute holding the given time.
+	 * 
+	 * @param timeMillis
+	 */
+	private void cacheMinute(long timeMillis) {
+		calendar.setTimeInMillis(timeMillis);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		minuteStart = calendar.getTimeInMillis();
+		minuteEnd = minuteStart + 60 * 1000;
+		int position = 0;
+		minutePrefix[position++] = '[';
+		position = putDigits(minutePrefix, position,
+				calendar.get(Calendar.YEAR), 4);
+		minutePrefix[position++] = '-';
+		position = putDigits(minutePrefix, position,
+				calendar.get(Calendar.MONTH) + 1, 2);
+		minutePrefix[position++] = '-';
+		position = putDigits(minutePrefix, position,
+				calendar.get(Calendar.DAY_OF_MONTH), 2);
+		minutePrefix[position++] = ' ';
+		position = putDigits(minutePrefix, position,
+				calendar.get(Calendar.HOUR_OF_DAY), 2);
+		minutePrefix[position++] = ':';
+		position = putDigits(minutePrefix, position,
+				calendar.get(Calendar.MINUTE), 2);
+		minutePrefix[position++] = ':';
+	}
+
+	private static int putDigits(byte[] target, int position, int value,
+			int digits) {
+		for (int i = digits - 1; i >= 0; i--) {
+			target[position + i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return position + digits;
+	}
+
+	private void putInt(int value) {
+		ensure(11);
+		long remaining = value;
+		if (remaining < 0) {
+			buffer[length++] = '-';
+			remaining = -remaining;
+		}
+		int digits = 1;
+		for (long limit = 10; remaining >= limit && digits < 10; limit *= 10) {
+			digits++;
+		}
+		for (int i = length + digits - 1; i >= length; i--) {
+			buffer[i] = (byte) ('0' + remaining % 10);
+			remaining /= 10;
+		}
+		length += digits;
+	}
+
+	private void put(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		buffer[length++] = b;
+	}
+
+	private void ensure(int more) {
+		if (length + more > buffer.length) {
+			buffer = Arrays.copyOf(buffer,
+					Math.max(length + more, buffer.length * 2));
+		}
+	}
+}
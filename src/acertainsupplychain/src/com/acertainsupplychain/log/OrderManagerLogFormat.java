@@ -0,0 +1,103 @@
+package com.acertainsupplychain.log;
+
+/**
+ * The format of the text order manager log, where every line is a record that
+ * may start with a timestamp in brackets. The key of a REGISTER or UPDATE line
+ * is the workflow ID that follows the keyword.
+ * 
+ * @author Arni
+ * 
+ */
+public class OrderManagerLogFormat implements LogRecordFormat {
+
+	public final static String FILE_TYPE = "txt";
+
+	private final static byte[] REGISTER = "REGISTER ".getBytes();
+	private final static byte[] UPDATE = "UPDATE ".getBytes();
+	private final static byte[] CLEAR = "CLEARDONE".getBytes();
+
+	@Override
+	public int recordLength(byte[] buffer, int offset, int available) {
+		for (int i = 0; i < available; i++) {
+			byte b = buffer[offset + i];
+			if (b == '\n')
+				return i + 1;
+			if (b == 0)
+				return -1;
+		}
+		return 0;
+	}
+
+	@Override
+	public long keyOf(byte[] buffer, int offset, int length) {
+		int position = bodyOffset(buffer, offset, length);
+		int end = offset + length;
+		if (startsWith(buffer, position, end, REGISTER)) {
+			position += REGISTER.length;
+		} else if (startsWith(buffer, position, end, UPDATE)) {
+			position += UPDATE.length;
+		} else
+			return NO_KEY;
+
+		boolean negative = position < end && buffer[position] == '-';
+		if (negative) {
+			position++;
+		}
+		long key = 0;
+		int digits = 0;
+		while (position < end && buffer[position] >= '0'
+				&& buffer[position] <= '9' && digits < 18) {
+			key = key * 10 + (buffer[position++] - '0');
+			digits++;
+		}
+		if (digits == 0)
+			return NO_KEY;
+		return negative ? -key : key;
+	}
+
+	/**
+	 * Returns the offset of the body of the line at the given offset, that is
+	 * the offset right after its timestamp if it has one.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public int bodyOffset(byte[] buffer, int offset, int length) {
+		int position = offset;
+		int end = offset + length;
+		if (position < end && buffer[position] == '[') {
+			while (position < end && buffer[position] != ']') {
+				position++;
+			}
+			position += 2;
+		}
+		return Math.min(position, end);
+	}
+
+	/**
+	 * Returns true if the line at the given offset records that the order
+	 * manager was cleared.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public boolean isClear(byte[] buffer, int offset, int length) {
+		return startsWith(buffer, bodyOffset(buffer, offset, length), offset
+				+ length, CLEAR);
+	}
+
+	private static boolean startsWith(byte[] buffer, int position, int end,
+			byte[] prefix) {
+		if (end - position < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (buffer[position + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+}
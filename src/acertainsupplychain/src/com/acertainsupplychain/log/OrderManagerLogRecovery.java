@@ -0,0 +1,684 @@
+package com.acertainsupplychain.log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.OrderManager.StepStatus;
+import com.acertainsupplychain.OrderStep;
+
+/**
+ * This class rebuilds the workflows and step statuses of an order manager by
+ * replaying its text log.
+ * 
+ * The log is streamed by the calling thread, which only cuts it into lines
+ * and reads the workflow ID of every line, so the replay stops exactly at the
+ * first incomplete line. Every line is handed to the worker that owns its
+ * workflow ID, so the REGISTER and UPDATE lines of a workflow are applied by
+ * one worker in the order they were logged, while the lines themselves are
+ * parsed in parallel. A CLEARDONE line is passed on to every worker in order,
+ * so the workflows before it are forgotten, just as the workflow IDs start
+ * over after a clear. Finally every worker adds its workflows to the target
+ * maps.
+ * 
+ * A workflow whose every step has finished may instead be handed to a
+ * FinishedWorkflows as soon as its last step is replayed, e.g. to archive it,
+ * so a long log does not keep every finished workflow in memory until the
+ * end of the replay.
+ * 
+ * In the statistics of the replay the steps are the recovered workflows and
+ * the last sequence is the highest recovered workflow ID, -1 if there is none.
+ * 
+ * @author Arni
+ * 
+ */
+public class OrderManagerLogRecovery {
+
+	private final static int READ_SIZE = 1024 * 1024;
+	private final static int BATCH_SIZE = 64 * 1024;
+	private final static int QUEUE_SIZE = 16;
+
+	private final static Batch END = new Batch(0);
+
+	private final static byte[] REGISTER = "REGISTER ".getBytes();
+	private final static byte[] UPDATE = "UPDATE ".getBytes();
+	private final static byte[] NULL = "(null)".getBytes();
+	private final static byte[] REGISTERED = StepStatus.REGISTERED.name()
+			.getBytes();
+	private final static byte[] SUCCESSFUL = StepStatus.SUCCESSFUL.name()
+			.getBytes();
+	private final static byte[] FAILED = StepStatus.FAILED.name().getBytes();
+
+	private final OrderManagerLogFormat format;
+	private final int threads;
+
+	/**
+	 * Takes the workflows that finish while the log is replayed.
+	 */
+	public interface FinishedWorkflows {
+
+		/**
+		 * Takes a workflow whose every step has finished. It is called by
+		 * every worker, at once for different workflows, and the workflow is
+		 * not part of the recovered maps.
+		 * 
+		 * @param workflowID
+		 * @param steps
+		 * @param statuses
+		 * @throws IOException
+		 */
+		public void finished(int workflowID, List<OrderStep> steps,
+				List<StepStatus> statuses) throws IOException;
+
+		/**
+		 * Forgets every workflow taken so far, for a CLEARDONE line. It is
+		 * called once every worker has reached the line and before any of
+		 * them goes on.
+		 * 
+		 * @throws IOException
+		 */
+		public void cleared() throws IOException;
+	}
+
+	/**
+	 * A number of whole lines read from the log, without their line breaks.
+	 */
+	private static class Batch {
+		private byte[] data;
+		private int size;
+		private int[] offsets;
+		private int[] lengths;
+		private int count;
+
+		private Batch(int capacity) {
+			data = new byte[capacity];
+			size = 0;
+			offsets = new int[64];
+			lengths = new int[64];
+			count = 0;
+		}
+
+		private int remaining() {
+			return data.length - size;
+		}
+
+		private void addLine(byte[] buffer, int offset, int length) {
+			if (count == offsets.length) {
+				int[] larger = new int[offsets.length * 2];
+				System.arraycopy(offsets, 0, larger, 0, count);
+				offsets = larger;
+				larger = new int[lengths.length * 2];
+				System.arraycopy(lengths, 0, larger, 0, count);
+				lengths = larger;
+			}
+			System.arraycopy(buffer, offset, data, size, length);
+			offsets[count] = size;
+			lengths[count] = length;
+			size += length;
+			count++;
+		}
+	}
+
+	/**
+	 * A CLEARDONE line, which every worker waits at until the finished
+	 * workflows before it have been forgotten.
+	 */
+	private static class Clear extends Batch {
+		private final CountDownLatch reached;
+		private final CountDownLatch cleared;
+
+		private Clear(int workers) {
+			super(0);
+			reached = new CountDownLatch(workers);
+			cleared = new CountDownLatch(1);
+		}
+	}
+
+	/**
+	 * A thread that parses the lines of the workflows it owns and applies them
+	 * to its own maps.
+	 */
+	private class Worker extends Thread {
+		private final BlockingQueue<Batch> queue;
+		private final Map<Integer, List<OrderStep>> workflows;
+		private final Map<Integer, List<StepStatus>> status;
+		private final FinishedWorkflows finished;
+		private int lastWorkflowID;
+		private long finishedCount;
+		private long skipped;
+		private Throwable failure;
+
+		private Worker(int index, FinishedWorkflows finished) {
+			super("OrderManagerLogRecovery-" + index);
+			queue = new ArrayBlockingQueue<Batch>(QUEUE_SIZE);
+			workflows = new HashMap<Integer, List<OrderStep>>();
+			status = new HashMap<Integer, List<StepStatus>>();
+			this.finished = finished;
+			lastWorkflowID = -1;
+			finishedCount = 0;
+			skipped = 0;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Batch batch = queue.take();
+					if (batch == END)
+						return;
+					if (batch instanceof Clear) {
+						workflows.clear();
+						status.clear();
+						lastWorkflowID = -1;
+						finishedCount = 0;
+						((Clear) batch).reached.countDown();
+						((Clear) batch).cleared.await();
+						continue;
+					}
+					for (int i = 0; i < batch.count; i++) {
+						if (!apply(batch.data, batch.offsets[i],
+								batch.lengths[i])) {
+							skipped++;
+						}
+					}
+				}
+			} catch (Throwable e) {
+				failure = e;
+				// Keep draining so the reader is never blocked.
+				while (true) {
+					try {
+						Batch batch = queue.take();
+						if (batch == END)
+							return;
+						if (batch instanceof Clear) {
+							((Clear) batch).reached.countDown();
+						}
+					} catch (InterruptedException ignored) {
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Applies a REGISTER or UPDATE line.
+		 * 
+		 * @param data
+		 * @param offset
+		 * @param length
+		 * @return false if the line could not be parsed.
+		 * @throws IOException
+		 *             if a finished workflow could not be handed on.
+		 */
+		private boolean apply(byte[] data, int offset, int length)
+				throws IOException {
+			LineParser parser = new LineParser(data, format.bodyOffset(data,
+					offset, length), offset + length);
+			if (parser.skip(REGISTER)) {
+				int workflowID = parser.nextInt();
+				List<OrderStep> steps = parser.nextSteps();
+				if (parser.failed || steps.isEmpty())
+					return false;
+				List<StepStatus> statuses = new ArrayList<StepStatus>(
+						steps.size());
+				for (int i = 0; i < steps.size(); i++) {
+					statuses.add(StepStatus.REGISTERED);
+				}
+				workflows.put(workflowID, steps);
+				status.put(workflowID, statuses);
+				lastWorkflowID = Math.max(lastWorkflowID, workflowID);
+				return true;
+			}
+			if (parser.skip(UPDATE)) {
+				int workflowID = parser.nextInt();
+				parser.skipSpaces();
+				int stepIndex = parser.nextInt();
+				parser.skipSpaces();
+				StepStatus stepStatus = parser.nextStatus();
+				List<StepStatus> statuses = status.get(workflowID);
+				if (parser.failed || statuses == null || stepIndex < 0
+						|| stepIndex >= statuses.size())
+					return false;
+				statuses.set(stepIndex, stepStatus);
+				if (finished != null && stepStatus != StepStatus.REGISTERED
+						&& !statuses.contains(StepStatus.REGISTERED)) {
+					finished.finished(workflowID, workflows.remove(workflowID),
+							status.remove(workflowID));
+					finishedCount++;
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Parses the body of a REGISTER or UPDATE line, as written by the
+	 * OrderManagerImpl, straight from the bytes of the line.
+	 */
+	private static class LineParser {
+		private final byte[] data;
+		private final int end;
+		private int position;
+		private boolean failed;
+
+		private LineParser(byte[] data, int position, int end) {
+			this.data = data;
+			this.position = position;
+			// A Windows line break leaves a "\r" at the end of the line.
+			while (end > position && data[end - 1] == '\r') {
+				end--;
+			}
+			this.end = end;
+			failed = false;
+		}
+
+		private boolean skip(byte[] prefix) {
+			if (end - position < prefix.length)
+				return false;
+			for (int i = 0; i < prefix.length; i++) {
+				if (data[position + i] != prefix[i])
+					return false;
+			}
+			position += prefix.length;
+			return true;
+		}
+
+		private boolean skip(char c) {
+			if (position < end && data[position] == c) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(char c) {
+			if (!skip(c)) {
+				failed = true;
+			}
+		}
+
+		private void skipSpaces() {
+			while (position < end && data[position] == ' ') {
+				position++;
+			}
+		}
+
+		private int nextInt() {
+			boolean negative = skip('-');
+			long value = 0;
+			int digits = 0;
+			while (position < end && data[position] >= '0'
+					&& data[position] <= '9' && digits < 11) {
+				value = value * 10 + (data[position++] - '0');
+				digits++;
+			}
+			if (negative) {
+				value = -value;
+			}
+			if (digits == 0 || value < Integer.MIN_VALUE
+					|| value > Integer.MAX_VALUE) {
+				failed = true;
+				return 0;
+			}
+			return (int) value;
+		}
+
+		/**
+		 * Parses the steps "[supplier,(item,quantity),...]<index,...> ..." up
+		 * to the end of the line, where an item may also be "(null)" and the
+		 * dependencies in angle brackets are optional.
+		 * 
+		 * @return
+		 */
+		private List<OrderStep> nextSteps() {
+			List<OrderStep> steps = new ArrayList<OrderStep>();
+			skipSpaces();
+			while (!failed && position < end) {
+				expect('[');
+				int supplierID = nextInt();
+				List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+				while (!failed && !skip(']')) {
+					skip(',');
+					if (skip(NULL)) {
+						items.add(null);
+						continue;
+					}
+					expect('(');
+					int itemID = nextInt();
+					expect(',');
+					int quantity = nextInt();
+					expect(')');
+					items.add(new ItemQuantity(itemID, quantity));
+				}
+				steps.add(new OrderStep(supplierID, items, nextDependencies()));
+				skipSpaces();
+			}
+			return steps;
+		}
+
+		/**
+		 * Parses the optional dependencies "<index,...>" of a step.
+		 * 
+		 * @return the dependencies, or null if the step has none.
+		 */
+		private int[] nextDependencies() {
+			if (!skip('<'))
+				return null;
+			int[] dependencies = new int[4];
+			int count = 0;
+			while (!failed && !skip('>')) {
+				if (count > 0) {
+					expect(',');
+				}
+				if (count == dependencies.length) {
+					dependencies = Arrays.copyOf(dependencies, 2 * count);
+				}
+				dependencies[count++] = nextInt();
+			}
+			return Arrays.copyOf(dependencies, count);
+		}
+
+		private StepStatus nextStatus() {
+			if (skip(REGISTERED))
+				return StepStatus.REGISTERED;
+			if (skip(SUCCESSFUL))
+				return StepStatus.SUCCESSFUL;
+			if (skip(FAILED))
+				return StepStatus.FAILED;
+			if (skip(NULL))
+				return null;
+			failed = true;
+			return null;
+		}
+	}
+
+	/**
+	 * Initializes the recovery with one worker per available processor.
+	 */
+	public OrderManagerLogRecovery() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Initializes the recovery with the given number of workers.
+	 * 
+	 * @param threads
+	 */
+	public OrderManagerLogRecovery(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("OrderManagerLogRecovery: The "
+					+ "number of threads must be positive.");
+		this.threads = threads;
+		format = new OrderManagerLogFormat();
+	}
+
+	/**
+	 * Returns the worker that owns the given workflow.
+	 * 
+	 * @param workflowID
+	 * @return
+	 */
+	private int workerOf(long workflowID) {
+		int h = (int) workflowID * 0x9E3779B9;
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % threads;
+	}
+
+	/**
+	 * Replays the given log files in order into the given maps, which are
+	 * cleared first. Afterwards they hold exactly the workflows registered
+	 * after the last CLEARDONE line with the last logged status of every step.
+	 * Missing log files are skipped, and the replay stops at the first
+	 * incomplete or damaged line of any file.
+	 * 
+	 * @param logFiles
+	 * @param workflows
+	 * @param status
+	 * @return the statistics of the replay.
+	 * @throws IOException
+	 */
+	public RecoveryStatistics recover(List<File> logFiles,
+			Map<Integer, List<OrderStep>> workflows,
+			Map<Integer, List<StepStatus>> status) throws IOException {
+		return recover(logFiles, workflows, status, null);
+	}
+
+	/**
+	 * Replays the given log files as above, except that every workflow whose
+	 * every step has finished is handed to the given FinishedWorkflows as soon
+	 * as its last step is replayed, and is then left out of the given maps. A
+	 * finished workflow is never updated again, so it is handed on with the
+	 * last logged status of every step.
+	 * 
+	 * @param logFiles
+	 * @param workflows
+	 * @param status
+	 * @param finished
+	 *            , or null to keep every workflow in the maps.
+	 * @return the statistics of the replay, whose steps include the finished
+	 *         workflows.
+	 * @throws IOException
+	 */
+	public RecoveryStatistics recover(List<File> logFiles,
+			Map<Integer, List<OrderStep>> workflows,
+			Map<Integer, List<StepStatus>> status, FinishedWorkflows finished)
+			throws IOException {
+		long startTime = System.nanoTime();
+		workflows.clear();
+		status.clear();
+
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < threads; i++) {
+			Worker worker = new Worker(i, finished);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+		Batch[] batches = new Batch[threads];
+		for (int i = 0; i < threads; i++) {
+			batches[i] = new Batch(BATCH_SIZE);
+		}
+
+		long bytes = 0;
+		long records = 0;
+		boolean corrupt = false;
+		byte[] buffer = new byte[READ_SIZE];
+
+		try {
+			for (File logFile : logFiles) {
+				if (corrupt)
+					break;
+				if (!logFile.exists())
+					continue;
+				InputStream input = new FileInputStream(logFile);
+				try {
+					int start = 0;
+					int end = 0;
+					while (true) {
+						int length = format.recordLength(buffer, start, end
+								- start);
+						if (length < 0) {
+							corrupt = true;
+							break;
+						}
+						if (length > 0) {
+							records++;
+							bytes += length;
+							route(workers, batches, buffer, start, length - 1,
+									finished);
+							start += length;
+							continue;
+						}
+
+						// The line continues past the buffer, so the rest of
+						// the buffer is moved to the front and more is read.
+						if (start > 0) {
+							System.arraycopy(buffer, start, buffer, 0, end
+									- start);
+							end -= start;
+							start = 0;
+						}
+						if (end == buffer.length) {
+							byte[] larger = new byte[buffer.length * 2];
+							System.arraycopy(buffer, 0, larger, 0, end);
+							buffer = larger;
+						}
+						int read = input.read(buffer, end, buffer.length - end);
+						if (read < 0) {
+							// A line without a line break was never completed.
+							corrupt = end > 0;
+							break;
+						}
+						end += read;
+					}
+				} finally {
+					input.close();
+				}
+			}
+			for (int i = 0; i < threads; i++) {
+				dispatch(workers.get(i), batches[i]);
+			}
+		} finally {
+			for (Worker worker : workers) {
+				put(worker, END);
+			}
+		}
+
+		long recovered = 0;
+		long lastWorkflowID = -1;
+		long skipped = 0;
+		for (Worker worker : workers) {
+			join(worker);
+			if (worker.failure != null)
+				throw new IOException("OrderManagerLogRecovery: Could not "
+						+ "replay the log " + logFiles, worker.failure);
+			skipped += worker.skipped;
+			workflows.putAll(worker.workflows);
+			status.putAll(worker.status);
+			recovered += worker.workflows.size() + worker.finishedCount;
+			lastWorkflowID = Math.max(lastWorkflowID, worker.lastWorkflowID);
+		}
+
+		return new RecoveryStatistics(bytes, records, recovered,
+				lastWorkflowID, corrupt, System.nanoTime() - startTime, threads,
+				null, 0, skipped);
+	}
+
+	/**
+	 * Hands the given line to the worker that owns its workflow, or to every
+	 * worker in order if it is a CLEARDONE line. Other lines are skipped.
+	 * 
+	 * @param workers
+	 * @param batches
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @param finished
+	 *            , which forgets its workflows at a CLEARDONE line, or null.
+	 * @throws IOException
+	 */
+	private void route(List<Worker> workers, Batch[] batches, byte[] buffer,
+			int offset, int length, FinishedWorkflows finished)
+			throws IOException {
+		long key = format.keyOf(buffer, offset, length);
+		if (key == LogRecordFormat.NO_KEY) {
+			if (!format.isClear(buffer, offset, length))
+				return;
+			Clear clear = new Clear(threads);
+			if (finished == null) {
+				clear.cleared.countDown();
+			}
+			for (int i = 0; i < threads; i++) {
+				dispatch(workers.get(i), batches[i]);
+				batches[i] = new Batch(BATCH_SIZE);
+				put(workers.get(i), clear);
+			}
+			if (finished != null) {
+				// Every workflow before the line has been handed on once every
+				// worker has reached it, and none after it until it goes on.
+				try {
+					await(clear.reached);
+					finished.cleared();
+				} finally {
+					clear.cleared.countDown();
+				}
+			}
+			return;
+		}
+
+		int index = workerOf(key);
+		if (batches[index].remaining() < length) {
+			dispatch(workers.get(index), batches[index]);
+			batches[index] = new Batch(Math.max(BATCH_SIZE, length));
+		}
+		batches[index].addLine(buffer, offset, length);
+	}
+
+	/**
+	 * Hands a batch to the given worker, unless it holds no lines.
+	 * 
+	 * @param worker
+	 * @param batch
+	 */
+	private void dispatch(Worker worker, Batch batch) {
+		if (batch.count > 0) {
+			put(worker, batch);
+		}
+	}
+
+	private void put(Worker worker, Batch batch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				worker.queue.put(batch);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void await(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void join(Thread thread) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.acertainsupplychain.log;
+
+import java.io.File;
+
+/**
+ * An immutable summary of a replay of the supplier log or of the log of an
+ * OrderManager.
+ * 
+ * @author Arni
+ * 
+ */
+public final class RecoveryStatistics {
+
+	private final long bytes;
+	private final long records;
+	private final long steps;
+	private final long lastSequence;
+	private final boolean corrupt;
+	private final long elapsedNanos;
+	private final int threads;
+	private final File damagedFile;
+	private final long damagedFileLength;
+	private final long skipped;
+
+	public RecoveryStatistics(long bytes, long records, long steps,
+			long lastSequence, boolean corrupt, long elapsedNanos, int threads) {
+		this(bytes, records, steps, lastSequence, corrupt, elapsedNanos,
+				threads, null, 0, 0);
+	}
+
+	public RecoveryStatistics(long bytes, long records, long steps,
+			long lastSequence, boolean corrupt, long elapsedNanos,
+			int threads, File damagedFile, long damagedFileLength) {
+		this(bytes, records, steps, lastSequence, corrupt, elapsedNanos,
+				threads, damagedFile, damagedFileLength, 0);
+	}
+
+	public RecoveryStatistics(long bytes, long records, long steps,
+			long lastSequence, boolean corrupt, long elapsedNanos,
+			int threads, File damagedFile, long damagedFileLength,
+			long skipped) {
+		this.bytes = bytes;
+		this.records = records;
+		this.steps = steps;
+		this.lastSequence = lastSequence;
+		this.corrupt = corrupt;
+		this.elapsedNanos = elapsedNanos;
+		this.threads = threads;
+		this.damagedFile = damagedFile;
+		this.damagedFileLength = damagedFileLength;
+		this.skipped = skipped;
+	}
+
+	/**
+	 * @return the number of bytes of valid records replayed
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the number of valid records read
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return the number of steps applied to the store
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return the highest sequence number in the log
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return true if the replay stopped at a damaged or incomplete record
+	 */
+	public boolean isCorrupt() {
+		return corrupt;
+	}
+
+	/**
+	 * @return the file holding the damaged or incomplete record the replay
+	 *         stopped at, or null if it did not stop or the file is unknown
+	 */
+	public File getDamagedFile() {
+		return damagedFile;
+	}
+
+	/**
+	 * @return the number of bytes of the valid records before the damaged
+	 *         record in its file
+	 */
+	public long getDamagedFileLength() {
+		return damagedFileLength;
+	}
+
+	/**
+	 * @return the number of complete records that could not be parsed and
+	 *         were skipped
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return the time the replay took in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return the number of threads the steps were replayed by
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return the replay throughput in megabytes per second
+	 */
+	public double getMegabytesPerSecond() {
+		if (elapsedNanos == 0)
+			return 0;
+		return bytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9);
+	}
+
+	/**
+	 * @return the replay throughput in records per second
+	 */
+	public double getRecordsPerSecond() {
+		if (elapsedNanos == 0)
+			return 0;
+		return records / (elapsedNanos / 1e9);
+	}
+
+	@Override
+	public String toString() {
+		return "RecoveryStatistics: [" + records + " records, " + steps
+				+ " steps, " + bytes + " bytes in "
+				+ (elapsedNanos / 1000000) + " ms with " + threads
+				+ " threads, " + String.format("%.1f", getMegabytesPerSecond())
+				+ " MB/s, " + String.format("%.0f", getRecordsPerSecond())
+				+ " records/s"
+				+ (skipped > 0 ? ", skipped " + skipped + " records" : "")
+				+ (corrupt ? ", stopped at a damaged record" : "") + "]";
+	}
+}
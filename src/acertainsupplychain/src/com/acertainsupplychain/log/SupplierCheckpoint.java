@@ -0,0 +1,269 @@
+package com.acertainsupplychain.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.acertainsupplychain.storage.ItemStore;
+import com.acertainsupplychain.storage.ItemStoreVisitor;
+
+/**
+ * This class is a checkpoint of the totals of a supplier. A checkpoint holds
+ * the total of every item as of one log ID, together with the number of the
+ * last log segment whose steps are all contained in it:
+ * 
+ * <pre>
+ * int  magic number
+ * int  version
+ * long segment
+ * for every item: byte 1, int item ID, long total
+ * byte 0, long log ID, long number of items
+ * int  CRC32 of every byte before it
+ * </pre>
+ * 
+ * A checkpoint is written to a temporary file, forced to disk and then renamed
+ * over the previous checkpoint, so there is always one complete checkpoint.
+ * The folder is forced to disk after the rename, so the new checkpoint is
+ * durable before the log segments it replaces are deleted.
+ * 
+ * @author Arni
+ * 
+ */
+public final class SupplierCheckpoint {
+
+	public final static String FILE_TYPE = "ckpt";
+
+	private final static int MAGIC = 0x53434B50;
+	private final static int VERSION = 1;
+	private final static byte ENTRY = 1;
+	private final static byte END = 0;
+
+	private final long sequence;
+	private final long segment;
+	private final long items;
+
+	private SupplierCheckpoint(long sequence, long segment, long items) {
+		this.sequence = sequence;
+		this.segment = segment;
+		this.items = items;
+	}
+
+	/**
+	 * Writes a checkpoint item by item. The totals are passed to the writer
+	 * as a visitor, and the checkpoint only replaces the previous one once it
+	 * is committed.
+	 */
+	public static class Writer implements ItemStoreVisitor {
+		private final File file;
+		private final File temporary;
+		private final FileOutputStream output;
+		private final CheckedOutputStream checked;
+		private final DataOutputStream data;
+		private final long segment;
+		private long items;
+		private IOException failure;
+
+		/**
+		 * Starts a new checkpoint to replace the one in the given file.
+		 * 
+		 * @param file
+		 * @param segment
+		 *            , the last log segment whose steps are all in the
+		 *            checkpoint.
+		 * @throws IOException
+		 */
+		public Writer(File file, long segment) throws IOException {
+			this.file = file;
+			this.segment = segment;
+			temporary = new File(file.getPath() + ".tmp");
+			if (file.getParentFile() != null) {
+				file.getParentFile().mkdirs();
+			}
+			output = new FileOutputStream(temporary);
+			checked = new CheckedOutputStream(new BufferedOutputStream(output,
+					64 * 1024), new CRC32());
+			data = new DataOutputStream(checked);
+			items = 0;
+			try {
+				data.writeInt(MAGIC);
+				data.writeInt(VERSION);
+				data.writeLong(segment);
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		@Override
+		public void visit(int itemID, long total) {
+			if (failure != null)
+				return;
+			try {
+				data.writeByte(ENTRY);
+				data.writeInt(itemID);
+				data.writeLong(total);
+				items++;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Finishes the checkpoint as of the given log ID, forces it to disk
+		 * and replaces the previous checkpoint with it.
+		 * 
+		 * @param sequence
+		 * @return the checkpoint.
+		 * @throws IOException
+		 */
+		public SupplierCheckpoint commit(long sequence) throws IOException {
+			try {
+				if (failure != null)
+					throw failure;
+				data.writeByte(END);
+				data.writeLong(sequence);
+				data.writeLong(items);
+				data.writeInt((int) checked.getChecksum().getValue());
+				data.flush();
+				output.getFD().sync();
+				data.close();
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+
+			if (!temporary.renameTo(file)) {
+				// Not every platform can rename over an existing file.
+				file.delete();
+				if (!temporary.renameTo(file))
+					throw new IOException("SupplierCheckpoint: Could not "
+							+ "replace the checkpoint [" + file.getPath() + "]");
+			}
+			syncFolder(file.getAbsoluteFile().getParentFile());
+			return new SupplierCheckpoint(sequence, segment, items);
+		}
+
+		/**
+		 * Gives up the checkpoint, the previous checkpoint is kept.
+		 */
+		public void abort() {
+			try {
+				data.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Forces the entries of the given folder to disk, so a file renamed into
+	 * it survives a crash.
+	 * 
+	 * @param folder
+	 * @throws IOException
+	 */
+	private static void syncFolder(File folder) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(folder.toPath(),
+					StandardOpenOption.READ);
+		} catch (IOException e) {
+			// Not every platform can open a folder, e.g. Windows, which
+			// makes the rename durable on its own.
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Adds the totals of the checkpoint in the given file to the given store.
+	 * If the checkpoint turns out to be damaged the store is cleared.
+	 * 
+	 * @param file
+	 * @param store
+	 * @return the checkpoint, or null if there is no checkpoint.
+	 * @throws IOException
+	 *             if the checkpoint could not be read or is damaged.
+	 */
+	public static SupplierCheckpoint load(File file, ItemStore store)
+			throws IOException {
+		if (!file.exists())
+			return null;
+
+		CheckedInputStream checked = new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file), 64 * 1024),
+				new CRC32());
+		DataInputStream data = new DataInputStream(checked);
+		boolean loaded = false;
+		try {
+			if (data.readInt() != MAGIC || data.readInt() != VERSION)
+				throw new IOException("SupplierCheckpoint: The file ["
+						+ file.getPath() + "] is not a checkpoint.");
+			long segment = data.readLong();
+			long items = 0;
+			while (data.readByte() == ENTRY) {
+				store.add(data.readInt(), data.readLong());
+				items++;
+			}
+			long sequence = data.readLong();
+			long count = data.readLong();
+			int expected = (int) checked.getChecksum().getValue();
+			if (data.readInt() != expected || count != items)
+				throw new IOException("SupplierCheckpoint: The checkpoint ["
+						+ file.getPath() + "] is damaged.");
+			loaded = true;
+			return new SupplierCheckpoint(sequence, segment, items);
+		} catch (EOFException e) {
+			throw new IOException("SupplierCheckpoint: The checkpoint ["
+					+ file.getPath() + "] is incomplete.", e);
+		} finally {
+			data.close();
+			if (!loaded) {
+				store.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return the log ID of the last step contained in the checkpoint
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the last log segment whose steps are all in the checkpoint
+	 */
+	public long getSegment() {
+		return segment;
+	}
+
+	/**
+	 * @return the number of items in the checkpoint
+	 */
+	public long getItems() {
+		return items;
+	}
+
+	@Override
+	public String toString() {
+		return "SupplierCheckpoint: [" + items + " items as of log ID "
+				+ sequence + ", segment " + segment + "]";
+	}
+}
@@ -0,0 +1,40 @@
+package com.acertainsupplychain.log;
+
+/**
+ * The format of the binary supplier log, see SupplierLogRecord. The key of a
+ * STEP or CLEAR record is its log ID.
+ * 
+ * @author Arni
+ * 
+ */
+public class SupplierLogFormat implements LogRecordFormat {
+
+	private final static int MAX_PAYLOAD = 64 * 1024 * 1024;
+
+	@Override
+	public int recordLength(byte[] buffer, int offset, int available) {
+		if (available < SupplierLogRecord.HEADER_SIZE)
+			return 0;
+		byte type = SupplierLogRecord.typeOf(buffer, offset);
+		if (type != SupplierLogRecord.TYPE_INIT
+				&& type != SupplierLogRecord.TYPE_STEP
+				&& type != SupplierLogRecord.TYPE_CLEAR)
+			return -1;
+		int payload = SupplierLogRecord.payloadLength(buffer, offset);
+		if (payload < 0 || payload > MAX_PAYLOAD)
+			return -1;
+		int length = SupplierLogRecord.HEADER_SIZE + payload;
+		if (available < length)
+			return 0;
+		if (!SupplierLogRecord.verify(buffer, offset, length))
+			return -1;
+		return length;
+	}
+
+	@Override
+	public long keyOf(byte[] buffer, int offset, int length) {
+		if (SupplierLogRecord.typeOf(buffer, offset) == SupplierLogRecord.TYPE_INIT)
+			return NO_KEY;
+		return SupplierLogRecord.sequenceOf(buffer, offset);
+	}
+}
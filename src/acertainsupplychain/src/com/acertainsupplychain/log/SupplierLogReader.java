@@ -0,0 +1,167 @@
+package com.acertainsupplychain.log;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class reads the records of a binary supplier log in the order they
+ * were written. Reading stops at the first record that is incomplete or whose
+ * checksum does not match, as such a record can only be the result of a crash
+ * while the log was written.
+ * 
+ * @author Arni
+ * 
+ */
+public class SupplierLogReader {
+
+	private final static int MAX_PAYLOAD = 64 * 1024 * 1024;
+
+	private final InputStream input;
+	private byte[] buffer;
+	private long position;
+	private boolean corrupt;
+
+	/**
+	 * Opens the given log file for reading.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public SupplierLogReader(File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	/**
+	 * Reads the log from the given stream.
+	 * 
+	 * @param input
+	 */
+	public SupplierLogReader(InputStream input) {
+		this.input = new BufferedInputStream(input, 64 * 1024);
+		buffer = new byte[1024];
+		position = 0;
+		corrupt = false;
+	}
+
+	/**
+	 * Returns the next record of the log.
+	 * 
+	 * @return the record, or null if there are no more valid records.
+	 * @throws IOException
+	 */
+	public SupplierLogRecord next() throws IOException {
+		if (corrupt)
+			return null;
+		try {
+			if (!readFully(0, SupplierLogRecord.HEADER_SIZE, true))
+				return null;
+			int payload = SupplierLogRecord.payloadLength(buffer, 0);
+			if (payload < 0 || payload > MAX_PAYLOAD) {
+				corrupt = true;
+				return null;
+			}
+			int length = SupplierLogRecord.HEADER_SIZE + payload;
+			if (buffer.length < length) {
+				byte[] larger = new byte[Math.max(length, buffer.length * 2)];
+				System.arraycopy(buffer, 0, larger, 0,
+						SupplierLogRecord.HEADER_SIZE);
+				buffer = larger;
+			}
+			readFully(SupplierLogRecord.HEADER_SIZE, payload, false);
+
+			SupplierLogRecord record = SupplierLogRecord.decode(buffer, 0,
+					length);
+			if (record == null) {
+				corrupt = true;
+				return null;
+			}
+			position += length;
+			return record;
+		} catch (EOFException e) {
+			corrupt = true;
+			return null;
+		}
+	}
+
+	/**
+	 * Reads exactly the given number of bytes into the buffer.
+	 * 
+	 * @param offset
+	 * @param length
+	 * @param endAllowed
+	 *            , whether the end of the log may be reached before the first
+	 *            byte.
+	 * @return false if the end of the log was reached before the first byte.
+	 * @throws IOException
+	 */
+	private boolean readFully(int offset, int length, boolean endAllowed)
+			throws IOException {
+		int read = 0;
+		while (read < length) {
+			int n = input.read(buffer, offset + read, length - read);
+			if (n < 0) {
+				if (read == 0 && endAllowed)
+					return false;
+				throw new EOFException();
+			}
+			read += n;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if reading stopped at a damaged or incomplete record
+	 */
+	public boolean isCorrupt() {
+		return corrupt;
+	}
+
+	/**
+	 * @return the number of bytes of valid records read so far
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Closes the log.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		input.close();
+	}
+
+	/**
+	 * Prints the binary supplier log in the given file in the text form of the
+	 * old supplier log.
+	 * 
+	 * @param args
+	 *            , the path of the log file.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: SupplierLogReader <log file>");
+			return;
+		}
+		SupplierLogReader reader = new SupplierLogReader(new File(args[0]));
+		try {
+			SupplierLogRecord record;
+			while ((record = reader.next()) != null) {
+				System.out.print(record.toText());
+			}
+			if (reader.isCorrupt()) {
+				System.out.println("SupplierLogReader: The log ends with a "
+						+ "damaged record at byte [" + reader.getPosition()
+						+ "]");
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
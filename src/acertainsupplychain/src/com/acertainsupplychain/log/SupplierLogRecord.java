@@ -0,0 +1,399 @@
+package com.acertainsupplychain.log;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.storage.ItemStoreVisitor;
+
+/**
+ * This class is a single record of the binary supplier log. A record starts
+ * with a fixed-width header followed by a payload:
+ * 
+ * <pre>
+ * offset  0: int  CRC32 of every byte after it
+ * offset  4: byte type
+ * offset  5: int  length of the payload
+ * offset  9: long sequence number
+ * offset 17: long timestamp in milliseconds
+ * offset 25: payload
+ * </pre>
+ * 
+ * The payload of an INIT record is the supplier ID, the payload of a STEP
+ * record is the number of items followed by the item ID and quantity of every
+ * item, and a CLEAR record has no payload. Every number in a payload is
+ * zigzag encoded and written as a varint. A whole order step is a single
+ * record, which replaces the EXEC-START, WRT and EXEC-DONE lines of the text
+ * log.
+ * 
+ * The sequence number of a STEP or CLEAR record is its log ID, and that of an
+ * INIT record is 0. Log IDs are unique, but the records are not written in
+ * their order: a step takes its log ID while it holds the locks of its items
+ * and is appended to the log after that, so steps on distinct items may
+ * reach the log out of order. Only the steps of one item are in the order of
+ * their log IDs. Recovery therefore continues after the largest log ID in the
+ * log, not after the last one.
+ * 
+ * @author Arni
+ * 
+ */
+public final class SupplierLogRecord {
+
+	public final static String FILE_TYPE = "bin";
+
+	public final static byte TYPE_INIT = 1;
+	public final static byte TYPE_STEP = 2;
+	public final static byte TYPE_CLEAR = 3;
+
+	public final static int HEADER_SIZE = 25;
+	final static int CRC_OFFSET = 0;
+	final static int TYPE_OFFSET = 4;
+	final static int LENGTH_OFFSET = 5;
+	final static int SEQUENCE_OFFSET = 9;
+	final static int TIMESTAMP_OFFSET = 17;
+
+	private final byte type;
+	private final long sequence;
+	private final long timestamp;
+	private final int supplierID;
+	private final int[] itemIDs;
+	private final int[] quantities;
+
+	private SupplierLogRecord(byte type, long sequence, long timestamp,
+			int supplierID, int[] itemIDs, int[] quantities) {
+		this.type = type;
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.supplierID = supplierID;
+		this.itemIDs = itemIDs;
+		this.quantities = quantities;
+	}
+
+	/**
+	 * Encodes the record written when a supplier is started.
+	 * 
+	 * @param supplierID
+	 * @return
+	 */
+	public static byte[] encodeInit(int supplierID) {
+		ByteBuffer buffer = allocate(5);
+		putVarint(buffer, zigzag(supplierID));
+		return seal(buffer, TYPE_INIT, 0);
+	}
+
+	/**
+	 * Encodes the record of an executed order step.
+	 * 
+	 * @param sequence
+	 *            , the log ID of the step.
+	 * @param items
+	 * @return
+	 */
+	public static byte[] encodeStep(long sequence, List<ItemQuantity> items) {
+		ByteBuffer buffer = allocate(5 + items.size() * 10);
+		putVarint(buffer, items.size());
+		for (ItemQuantity item : items) {
+			putVarint(buffer, zigzag(item.getItemId()));
+			putVarint(buffer, zigzag(item.getQuantity()));
+		}
+		return seal(buffer, TYPE_STEP, sequence);
+	}
+
+	/**
+	 * Encodes the record written when a supplier is cleared.
+	 * 
+	 * @param sequence
+	 * @return
+	 */
+	public static byte[] encodeClear(long sequence) {
+		return seal(allocate(0), TYPE_CLEAR, sequence);
+	}
+
+	private static ByteBuffer allocate(int maxPayload) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + maxPayload);
+		buffer.position(HEADER_SIZE);
+		return buffer;
+	}
+
+	/**
+	 * Fills in the header of a record whose payload has been written to the
+	 * given buffer, and returns the bytes of the record.
+	 * 
+	 * @param buffer
+	 * @param type
+	 * @param sequence
+	 * @return
+	 */
+	private static byte[] seal(ByteBuffer buffer, byte type, long sequence) {
+		int length = buffer.position();
+		buffer.put(TYPE_OFFSET, type);
+		buffer.putInt(LENGTH_OFFSET, length - HEADER_SIZE);
+		buffer.putLong(SEQUENCE_OFFSET, sequence);
+		buffer.putLong(TIMESTAMP_OFFSET, System.currentTimeMillis());
+
+		byte[] record = new byte[length];
+		System.arraycopy(buffer.array(), 0, record, 0, length);
+		CRC32 crc = new CRC32();
+		crc.update(record, TYPE_OFFSET, length - TYPE_OFFSET);
+		ByteBuffer.wrap(record).putInt(CRC_OFFSET, (int) crc.getValue());
+		return record;
+	}
+
+	/**
+	 * Decodes a record whose header and payload are in the given array.
+	 * 
+	 * @param record
+	 * @param offset
+	 * @param length
+	 *            , the length of the header and payload.
+	 * @return the record, or null if the checksum does not match or the
+	 *         record cannot be decoded.
+	 */
+	public static SupplierLogRecord decode(byte[] record, int offset,
+			int length) {
+		if (length < HEADER_SIZE)
+			return null;
+		ByteBuffer buffer = ByteBuffer.wrap(record, offset, length);
+		CRC32 crc = new CRC32();
+		crc.update(record, offset + TYPE_OFFSET, length - TYPE_OFFSET);
+		if (buffer.getInt(offset + CRC_OFFSET) != (int) crc.getValue())
+			return null;
+
+		byte type = buffer.get(offset + TYPE_OFFSET);
+		long sequence = buffer.getLong(offset + SEQUENCE_OFFSET);
+		long timestamp = buffer.getLong(offset + TIMESTAMP_OFFSET);
+		buffer.position(offset + HEADER_SIZE);
+		try {
+			switch (type) {
+			case TYPE_INIT:
+				return new SupplierLogRecord(type, sequence, timestamp,
+						unzigzag(getVarint(buffer)), null, null);
+			case TYPE_STEP:
+				int count = (int) getVarint(buffer);
+				int[] itemIDs = new int[count];
+				int[] quantities = new int[count];
+				for (int i = 0; i < count; i++) {
+					itemIDs[i] = unzigzag(getVarint(buffer));
+					quantities[i] = unzigzag(getVarint(buffer));
+				}
+				return new SupplierLogRecord(type, sequence, timestamp, 0,
+						itemIDs, quantities);
+			case TYPE_CLEAR:
+				return new SupplierLogRecord(type, sequence, timestamp, 0,
+						null, null);
+			default:
+				return null;
+			}
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the checksum of the record in the given array matches
+	 * its content.
+	 * 
+	 * @param record
+	 * @param offset
+	 * @param length
+	 *            , the length of the header and payload.
+	 * @return
+	 */
+	public static boolean verify(byte[] record, int offset, int length) {
+		if (length < HEADER_SIZE)
+			return false;
+		CRC32 crc = new CRC32();
+		crc.update(record, offset + TYPE_OFFSET, length - TYPE_OFFSET);
+		return ByteBuffer.wrap(record).getInt(offset + CRC_OFFSET) == (int) crc
+				.getValue();
+	}
+
+	/**
+	 * Returns the type of the record whose header is in the given array.
+	 * 
+	 * @param header
+	 * @param offset
+	 * @return
+	 */
+	public static byte typeOf(byte[] header, int offset) {
+		return header[offset + TYPE_OFFSET];
+	}
+
+	/**
+	 * Returns the sequence number of the record whose header is in the given
+	 * array.
+	 * 
+	 * @param header
+	 * @param offset
+	 * @return
+	 */
+	public static long sequenceOf(byte[] header, int offset) {
+		return ByteBuffer.wrap(header).getLong(offset + SEQUENCE_OFFSET);
+	}
+
+	/**
+	 * Decodes the items of a verified STEP record straight into the given
+	 * visitor, without creating a record object. This is used when the log is
+	 * replayed.
+	 * 
+	 * @param record
+	 * @param offset
+	 * @param visitor
+	 */
+	public static void forEachItem(byte[] record, int offset,
+			ItemStoreVisitor visitor) {
+		int position = offset + HEADER_SIZE;
+		long count = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = record[position++];
+			count |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		for (long i = 0; i < count; i++) {
+			long itemID = 0;
+			shift = 0;
+			do {
+				b = record[position++];
+				itemID |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			long quantity = 0;
+			shift = 0;
+			do {
+				b = record[position++];
+				quantity |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			visitor.visit(unzigzag(itemID), unzigzag(quantity));
+		}
+	}
+
+	/**
+	 * Returns the length of the payload of the record whose header is in the
+	 * given array.
+	 * 
+	 * @param header
+	 * @param offset
+	 * @return
+	 */
+	public static int payloadLength(byte[] header, int offset) {
+		return ByteBuffer.wrap(header).getInt(offset + LENGTH_OFFSET);
+	}
+
+	private static long zigzag(int value) {
+		return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+	}
+
+	private static int unzigzag(long value) {
+		int n = (int) value;
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static void putVarint(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static long getVarint(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalStateException("SupplierLogRecord: Malformed varint.");
+	}
+
+	/**
+	 * Returns the record in the text form of the old supplier log.
+	 * 
+	 * @return
+	 */
+	public String toText() {
+		String prefix = "[" + new Timestamp(timestamp).toString() + "] ";
+		String newLine = System.getProperty("line.separator");
+		StringBuilder builder = new StringBuilder();
+		switch (type) {
+		case TYPE_INIT:
+			builder.append(prefix).append("INITSUP ").append(supplierID)
+					.append(newLine);
+			break;
+		case TYPE_STEP:
+			builder.append(prefix).append("EXEC-START ").append(sequence)
+					.append(newLine);
+			for (int i = 0; i < itemIDs.length; i++) {
+				builder.append(prefix).append("WRT ").append(sequence)
+						.append(" ").append(itemIDs[i]).append(" ")
+						.append(quantities[i]).append(newLine);
+			}
+			builder.append(prefix).append("EXEC-DONE ").append(sequence)
+					.append(newLine);
+			break;
+		case TYPE_CLEAR:
+			builder.append(prefix).append("CLEARDONE").append(newLine);
+			break;
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return the type of the record
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return the sequence number of the record, which is not ordered in the
+	 *         log, see above
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the time the record was written, in milliseconds
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the supplier ID of an INIT record
+	 */
+	public int getSupplierID() {
+		return supplierID;
+	}
+
+	/**
+	 * @return the number of items of a STEP record
+	 */
+	public int getItemCount() {
+		return itemIDs == null ? 0 : itemIDs.length;
+	}
+
+	/**
+	 * @param index
+	 * @return the item ID of the item with the given index of a STEP record
+	 */
+	public int getItemID(int index) {
+		return itemIDs[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the quantity of the item with the given index of a STEP record
+	 */
+	public int getQuantity(int index) {
+		return quantities[index];
+	}
+}
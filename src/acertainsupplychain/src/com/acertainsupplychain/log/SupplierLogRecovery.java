@@ -0,0 +1,421 @@
+package com.acertainsupplychain.log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.acertainsupplychain.storage.ItemStore;
+import com.acertainsupplychain.storage.ItemStoreVisitor;
+import com.acertainsupplychain.storage.OpenAddressingItemStore;
+
+/**
+ * This class rebuilds the totals of a supplier by replaying its binary log.
+ * 
+ * The log is read by the calling thread, which only frames the records and
+ * checks their checksums, so the replay stops exactly at the first damaged or
+ * incomplete record. A step without a valid record was never completed and
+ * is therefore discarded. The framed records are handed in batches to a
+ * number of workers, which decode them and sum the quantities per item in
+ * their own stores, split into one part per partition of the item IDs. A
+ * CLEAR record is passed on to every worker in order, so the steps before it
+ * are forgotten. Finally every partition is merged into the target store by
+ * its own thread, so no item is ever written by two threads.
+ * 
+ * A log that has been checkpointed is replayed on top of the checkpoint, from
+ * the segments after it and only for the records after its log ID.
+ * 
+ * @author Arni
+ * 
+ */
+public class SupplierLogRecovery {
+
+	private final static int BATCH_SIZE = 1024 * 1024;
+	private final static int QUEUE_SIZE = 4;
+	private final static int MAX_PAYLOAD = 64 * 1024 * 1024;
+
+	private final static Batch CLEAR = new Batch(0);
+	private final static Batch END = new Batch(0);
+
+	private final int threads;
+
+	/**
+	 * A number of whole records read from the log.
+	 */
+	private static class Batch {
+		private byte[] data;
+		private int size;
+		private int[] offsets;
+		private int count;
+
+		private Batch(int capacity) {
+			data = new byte[capacity];
+			size = 0;
+			offsets = new int[64];
+			count = 0;
+		}
+
+		private int remaining() {
+			return data.length - size;
+		}
+
+		private void addRecord(int offset) {
+			if (count == offsets.length) {
+				int[] larger = new int[offsets.length * 2];
+				System.arraycopy(offsets, 0, larger, 0, count);
+				offsets = larger;
+			}
+			offsets[count++] = offset;
+		}
+	}
+
+	/**
+	 * A thread that decodes batches of records and sums the quantities per
+	 * item.
+	 */
+	private class Worker extends Thread implements ItemStoreVisitor {
+		private final BlockingQueue<Batch> queue;
+		private final ItemStore[] parts;
+		private long steps;
+		private Throwable failure;
+
+		private Worker(int index) {
+			super("SupplierLogRecovery-" + index);
+			queue = new ArrayBlockingQueue<Batch>(QUEUE_SIZE);
+			parts = new ItemStore[threads];
+			for (int i = 0; i < threads; i++) {
+				parts[i] = new OpenAddressingItemStore();
+			}
+			steps = 0;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Batch batch = queue.take();
+					if (batch == END)
+						return;
+					if (batch == CLEAR) {
+						for (ItemStore part : parts) {
+							part.clear();
+						}
+						steps = 0;
+						continue;
+					}
+					for (int i = 0; i < batch.count; i++) {
+						SupplierLogRecord.forEachItem(batch.data,
+								batch.offsets[i], this);
+					}
+					steps += batch.count;
+				}
+			} catch (Throwable e) {
+				failure = e;
+				// Keep draining so the reader is never blocked.
+				while (true) {
+					try {
+						if (queue.take() == END)
+							return;
+					} catch (InterruptedException ignored) {
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void visit(int itemID, long quantity) {
+			parts[partitionOf(itemID)].add(itemID, quantity);
+		}
+	}
+
+	/**
+	 * Initializes the recovery with one worker per available processor.
+	 */
+	public SupplierLogRecovery() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Initializes the recovery with the given number of workers.
+	 * 
+	 * @param threads
+	 */
+	public SupplierLogRecovery(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("SupplierLogRecovery: The "
+					+ "number of threads must be positive.");
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns the partition of the given item.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	private int partitionOf(int itemID) {
+		int h = itemID * 0x9E3779B9;
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % threads;
+	}
+
+	/**
+	 * Replays the given log into the given store. The store is cleared first,
+	 * so afterwards it holds exactly the totals of the steps in the log after
+	 * the last CLEAR record. A missing log file is treated as an empty log.
+	 * 
+	 * @param logFile
+	 * @param store
+	 * @return the statistics of the replay.
+	 * @throws IOException
+	 */
+	public RecoveryStatistics recover(File logFile, ItemStore store)
+			throws IOException {
+		store.clear();
+		return recover(Collections.singletonList(logFile), store, 0);
+	}
+
+	/**
+	 * Replays the given log files in order into the given store, which
+	 * already holds the totals of a checkpoint as of the given log ID. Only
+	 * the records after that log ID are replayed and their quantities are
+	 * added to the store, a CLEAR record after it clears the store as well.
+	 * Missing log files are skipped, and the replay stops at the first
+	 * damaged record of any file. The statistics tell which file that record
+	 * is in and where it starts, so the caller can cut it off.
+	 * 
+	 * @param logFiles
+	 * @param store
+	 * @param afterSequence
+	 *            , the log ID of the checkpoint, 0 if there is none.
+	 * @return the statistics of the replay.
+	 * @throws IOException
+	 */
+	public RecoveryStatistics recover(List<File> logFiles,
+			final ItemStore store, long afterSequence) throws IOException {
+		long startTime = System.nanoTime();
+		List<File> existing = new ArrayList<File>();
+		for (File logFile : logFiles) {
+			if (logFile.exists()) {
+				existing.add(logFile);
+			}
+		}
+		if (existing.isEmpty())
+			return new RecoveryStatistics(0, 0, 0, 0, false,
+					System.nanoTime() - startTime, threads);
+
+		final List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < threads; i++) {
+			Worker worker = new Worker(i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+
+		long bytes = 0;
+		long records = 0;
+		long lastSequence = 0;
+		boolean corrupt = false;
+		File damagedFile = null;
+		long damagedFileLength = 0;
+		boolean cleared = false;
+		int nextWorker = 0;
+
+		try {
+			Batch batch = new Batch(BATCH_SIZE);
+			for (File logFile : existing) {
+				if (corrupt)
+					break;
+				DataInputStream input = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(logFile),
+								BATCH_SIZE));
+				long fileLength = 0;
+				try {
+					while (true) {
+						if (batch.remaining() < SupplierLogRecord.HEADER_SIZE) {
+							nextWorker = dispatch(workers, batch, nextWorker);
+							batch = new Batch(BATCH_SIZE);
+						}
+
+						// Read the header, then the payload right behind it.
+						int offset = batch.size;
+						int read = input.read(batch.data, offset,
+								SupplierLogRecord.HEADER_SIZE);
+						if (read < 0)
+							break;
+						try {
+							if (read < SupplierLogRecord.HEADER_SIZE) {
+								input.readFully(batch.data, offset + read,
+										SupplierLogRecord.HEADER_SIZE - read);
+							}
+							int payload = SupplierLogRecord.payloadLength(
+									batch.data, offset);
+							if (payload < 0 || payload > MAX_PAYLOAD) {
+								corrupt = true;
+								break;
+							}
+							int length = SupplierLogRecord.HEADER_SIZE + payload;
+							if (batch.remaining() < length) {
+								// Move the header to a new batch that has room
+								// for the whole record.
+								Batch next = new Batch(Math.max(BATCH_SIZE,
+										length));
+								System.arraycopy(batch.data, offset, next.data,
+										0, SupplierLogRecord.HEADER_SIZE);
+								nextWorker = dispatch(workers, batch,
+										nextWorker);
+								batch = next;
+								offset = 0;
+							}
+							input.readFully(batch.data, offset
+									+ SupplierLogRecord.HEADER_SIZE, payload);
+							if (!SupplierLogRecord.verify(batch.data, offset,
+									length)) {
+								corrupt = true;
+								break;
+							}
+
+							records++;
+							bytes += length;
+							fileLength += length;
+							long sequence = SupplierLogRecord.sequenceOf(
+									batch.data, offset);
+							lastSequence = Math.max(lastSequence, sequence);
+							byte type = SupplierLogRecord.typeOf(batch.data,
+									offset);
+							if (type == SupplierLogRecord.TYPE_STEP
+									&& sequence > afterSequence) {
+								batch.size = offset + length;
+								batch.addRecord(offset);
+							} else if (type == SupplierLogRecord.TYPE_CLEAR
+									&& sequence > afterSequence) {
+								batch.size = offset;
+								nextWorker = dispatch(workers, batch,
+										nextWorker);
+								batch = new Batch(BATCH_SIZE);
+								for (Worker worker : workers) {
+									put(worker, CLEAR);
+								}
+								cleared = true;
+							} else {
+								// Other records and steps already in the
+								// checkpoint are skipped.
+								batch.size = offset;
+							}
+						} catch (EOFException e) {
+							corrupt = true;
+							break;
+						}
+					}
+				} finally {
+					input.close();
+				}
+				if (corrupt) {
+					damagedFile = logFile;
+					damagedFileLength = fileLength;
+				}
+			}
+			dispatch(workers, batch, nextWorker);
+		} finally {
+			for (Worker worker : workers) {
+				put(worker, END);
+			}
+		}
+
+		long steps = 0;
+		for (Worker worker : workers) {
+			join(worker);
+			if (worker.failure != null)
+				throw new IOException("SupplierLogRecovery: Could not replay "
+						+ "the log " + existing, worker.failure);
+			steps += worker.steps;
+		}
+
+		// The totals of the checkpoint are forgotten if the log was cleared
+		// after it. Then every partition is merged into the store on its own
+		// thread.
+		if (cleared) {
+			store.clear();
+		}
+		List<Thread> mergers = new ArrayList<Thread>();
+		for (int p = 0; p < threads; p++) {
+			final int partition = p;
+			mergers.add(new Thread("SupplierLogRecovery-Merge-" + p) {
+				@Override
+				public void run() {
+					for (Worker worker : workers) {
+						worker.parts[partition].forEach(new ItemStoreVisitor() {
+							@Override
+							public void visit(int itemID, long total) {
+								store.add(itemID, total);
+							}
+						});
+					}
+				}
+			});
+		}
+		for (Thread merger : mergers) {
+			merger.start();
+		}
+		for (Thread merger : mergers) {
+			join(merger);
+		}
+
+		return new RecoveryStatistics(bytes, records, steps, lastSequence,
+				corrupt, System.nanoTime() - startTime, threads, damagedFile,
+				damagedFileLength);
+	}
+
+	/**
+	 * Hands a batch to the next worker, unless it holds no records.
+	 * 
+	 * @param workers
+	 * @param batch
+	 * @param nextWorker
+	 * @return the index of the worker to hand the next batch to.
+	 */
+	private int dispatch(List<Worker> workers, Batch batch, int nextWorker) {
+		if (batch.count == 0)
+			return nextWorker;
+		put(workers.get(nextWorker), batch);
+		return (nextWorker + 1) % workers.size();
+	}
+
+	private void put(Worker worker, Batch batch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				worker.queue.put(batch);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void join(Thread thread) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,803 @@
+package com.acertainsupplychain.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is an append-only log written by a dedicated writer thread.
+ * Appenders never take a lock: an appender claims the bytes of its record by
+ * advancing a shared position, copies the record into a preallocated ring
+ * buffer and then counts the copied bytes against the blocks of the ring they
+ * fall in. Appenders copy side by side and never wait for one another. The
+ * writer thread writes every byte up to the first one that has not been
+ * copied yet to the file with large sequential writes, and forces the file to
+ * disk according to the FsyncPolicy. An appender only waits when the ring is
+ * full, parked until the writer has made room. A record larger than the ring
+ * is copied in pieces as room frees up.
+ * 
+ * The sequence number of a record is the position in the log right after it,
+ * counted in bytes from when the log was opened. Every appender chooses per
+ * record whether to continue as soon as the record is in the ring, or to wait
+ * with awaitDurable until the record is on disk according to the policy of
+ * the log.
+ * 
+ * The log can be rotated, in which case the current file is renamed and the
+ * log continues in a new file, so older records can be archived or deleted.
+ * The writer switches files at the position claimed when it takes up the
+ * request, so a file always ends at the end of a record. A log opened with
+ * LogSegments rolls over to a new numbered segment on request with roll, and
+ * on its own once the current file has grown past the segment size. A
+ * segment grows past the segment size by at most the records claimed but not
+ * yet written when the roll became due.
+ * 
+ * @author Arni
+ * 
+ */
+public class WriteAheadLog {
+
+	public final static int DEFAULT_CAPACITY = 1 << 20;
+	private final static long IDLE_PARK_NANOS = 10 * 1000 * 1000;
+	private final static int BLOCK_SIZE = 64;
+
+	private final File file;
+	private final FsyncPolicy policy;
+	private final long fsyncIntervalNanos;
+	private final byte[] ring;
+	private final int mask;
+	private final ByteBuffer view;
+	private final AtomicLong claimed;
+	// The number of bytes copied into each block of the ring since the writer
+	// last wrote the whole block.
+	private final AtomicIntegerArray copied;
+	private final int blockSize;
+	private final int blockShift;
+	private final ConcurrentLinkedQueue<RoomWaiter> roomWaiters;
+	private final AtomicLong forceRequested;
+	private final AtomicInteger waiters;
+	private final Object lock;
+	private final Thread writer;
+	private final LogSegments segments;
+	private final long segmentSize;
+
+	// The fields below are only changed by the writer thread.
+	private FileOutputStream output;
+	private FileChannel channel;
+	private long fileBytes;
+	// Every byte before this position has been copied into the ring.
+	private long ready;
+	// The position at which the writer switches files, or -1, and the
+	// rotation it switches for, or null for a roll.
+	private long switchAt;
+	private Rotation switchRequest;
+	private volatile long written;
+	private volatile long durable;
+	private volatile long forced;
+	private volatile boolean writerParked;
+	private volatile boolean closed;
+	private volatile IOException failure;
+
+	// The fields below are set by the callers of rotate and close.
+	private volatile Rotation rotation;
+	private volatile boolean closing;
+
+	/**
+	 * A request to rotate the log, handled by the writer thread.
+	 */
+	private static class Rotation {
+		private final File archive;
+		private boolean renamed;
+		private boolean done;
+
+		private Rotation(File archive) {
+			this.archive = archive;
+		}
+	}
+
+	/**
+	 * An appender parked until the writer makes room in the ring for the byte
+	 * at the given position.
+	 */
+	private static class RoomWaiter {
+		private final Thread thread;
+		private final long position;
+
+		private RoomWaiter(Thread thread, long position) {
+			this.thread = thread;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Opens the log in the given file, creating the file and its folder if
+	 * they do not exist. New records are appended to the existing content.
+	 * 
+	 * @param file
+	 * @param policy
+	 * @param fsyncIntervalMillis
+	 *            , the interval between two forces, only used by the INTERVAL
+	 *            policy.
+	 * @throws IOException
+	 */
+	public WriteAheadLog(File file, FsyncPolicy policy, long fsyncIntervalMillis)
+			throws IOException {
+		this(file, policy, fsyncIntervalMillis, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Opens the log in the given file with a ring buffer of at least the given
+	 * number of bytes.
+	 * 
+	 * @param file
+	 * @param policy
+	 * @param fsyncIntervalMillis
+	 *            , the interval between two forces, only used by the INTERVAL
+	 *            policy.
+	 * @param capacity
+	 *            , the size of the ring buffer, rounded up to a power of two.
+	 * @throws IOException
+	 */
+	public WriteAheadLog(File file, FsyncPolicy policy,
+			long fsyncIntervalMillis, int capacity) throws IOException {
+		this(file, policy, fsyncIntervalMillis, capacity, null, 0);
+	}
+
+	/**
+	 * Opens the log in the given file, which rolls over to a new segment of
+	 * the given LogSegments once it holds at least the given number of bytes.
+	 * 
+	 * @param file
+	 * @param policy
+	 * @param fsyncIntervalMillis
+	 *            , the interval between two forces, only used by the INTERVAL
+	 *            policy.
+	 * @param capacity
+	 *            , the size of the ring buffer, rounded up to a power of two.
+	 * @param segments
+	 *            , the segments of the log file, or null if the log does not
+	 *            roll.
+	 * @param segmentSize
+	 *            , the size at which the log rolls, or 0 if it only rolls on
+	 *            request.
+	 * @throws IOException
+	 */
+	public WriteAheadLog(File file, FsyncPolicy policy,
+			long fsyncIntervalMillis, int capacity, LogSegments segments,
+			long segmentSize) throws IOException {
+		if (policy == null)
+			throw new IllegalArgumentException("WriteAheadLog: The fsync "
+					+ "policy cannot be NULL.");
+		if (policy == FsyncPolicy.INTERVAL && fsyncIntervalMillis < 1)
+			throw new IllegalArgumentException("WriteAheadLog: The fsync "
+					+ "interval must be positive.");
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("WriteAheadLog: The capacity "
+					+ "must be between 1 and 2^30 bytes.");
+		if (segmentSize < 0)
+			throw new IllegalArgumentException("WriteAheadLog: The segment "
+					+ "size cannot be negative.");
+		this.file = file;
+		this.segments = segments;
+		this.segmentSize = segments == null ? 0 : segmentSize;
+		this.policy = policy;
+		fsyncIntervalNanos = fsyncIntervalMillis * 1000 * 1000;
+		ring = new byte[Integer.highestOneBit((capacity - 1) | 1) << 1];
+		mask = ring.length - 1;
+		view = ByteBuffer.wrap(ring);
+		claimed = new AtomicLong(0);
+		blockSize = Math.min(BLOCK_SIZE, Math.max(1, ring.length >>> 4));
+		blockShift = Integer.numberOfTrailingZeros(blockSize);
+		copied = new AtomicIntegerArray(ring.length / blockSize);
+		roomWaiters = new ConcurrentLinkedQueue<RoomWaiter>();
+		forceRequested = new AtomicLong(0);
+		waiters = new AtomicInteger(0);
+		lock = new Object();
+		switchAt = -1;
+
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		output = new FileOutputStream(file, true);
+		channel = output.getChannel();
+		fileBytes = file.length();
+
+		writer = new Thread("WriteAheadLog-" + file.getName()) {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Appends a record to the log. The call returns once the record has been
+	 * copied into the ring buffer, which only waits if the ring is full.
+	 * 
+	 * @param record
+	 * @return the sequence number of the record.
+	 * @throws IOException
+	 *             if the log has failed or been closed.
+	 */
+	public long append(byte[] record) throws IOException {
+		return append(record, 0, record.length);
+	}
+
+	/**
+	 * Appends the given part of a buffer to the log as a record, see append.
+	 * The buffer can be reused as soon as the call returns.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return the sequence number of the record.
+	 * @throws IOException
+	 *             if the log has failed or been closed.
+	 */
+	public long append(byte[] buffer, int offset, int length)
+			throws IOException {
+		checkState();
+		long start = claimed.getAndAdd(length);
+
+		int done = 0;
+		while (done < length) {
+			long position = start + done;
+			int piece = (int) Math.min(awaitRoom(position), length - done);
+			int index = (int) (position & mask);
+			int first = Math.min(piece, ring.length - index);
+			System.arraycopy(buffer, offset + done, ring, index, first);
+			if (piece > first) {
+				System.arraycopy(buffer, offset + done + first, ring, 0, piece
+						- first);
+			}
+			countCopied(position, piece);
+			done += piece;
+		}
+		return start + length;
+	}
+
+	/**
+	 * Returns the number of bytes from the given position that fit in the
+	 * ring, parking until the writer has made room if there are none. An
+	 * appender only gets room in a block once the writer has written the whole
+	 * block of the previous round, as the count of the block is shared.
+	 * 
+	 * @param position
+	 * @return the number of bytes from the position that fit in the ring.
+	 * @throws IOException
+	 *             if the log failed or was closed meanwhile.
+	 */
+	private long awaitRoom(long position) throws IOException {
+		long room = (written & -blockSize) + ring.length - position;
+		if (room > 0)
+			return room;
+		RoomWaiter waiter = new RoomWaiter(Thread.currentThread(), position);
+		boolean interrupted = false;
+		// The waiter is queued before the room is checked again, so either
+		// the writer sees the waiter or the waiter sees the room.
+		roomWaiters.add(waiter);
+		try {
+			while (true) {
+				checkWriter();
+				room = (written & -blockSize) + ring.length - position;
+				if (room > 0)
+					return room;
+				LockSupport.park(this);
+				interrupted |= Thread.interrupted();
+			}
+		} finally {
+			roomWaiters.remove(waiter);
+			restoreInterrupt(interrupted);
+		}
+	}
+
+	/**
+	 * Counts the given number of bytes copied from the given position against
+	 * the blocks they fall in, and unparks the writer if it is parked.
+	 * 
+	 * @param position
+	 * @param length
+	 */
+	private void countCopied(long position, int length) {
+		while (length > 0) {
+			int block = (int) ((position & mask) >>> blockShift);
+			int count = (int) Math.min(length, blockSize
+					- (position & (blockSize - 1)));
+			copied.addAndGet(block, count);
+			position += count;
+			length -= count;
+		}
+		if (writerParked) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Moves the ready position of the writer past every byte that has been
+	 * copied into the ring without a gap. A block is passed once all of its
+	 * bytes are copied, and its count is then reset for the next round.
+	 * Within a block the count is read before the claimed position, so a
+	 * count matching the claimed bytes means every one of them was copied.
+	 * 
+	 * @return the ready position.
+	 */
+	private long advanceReady() {
+		while (true) {
+			int block = (int) ((ready & mask) >>> blockShift);
+			long blockStart = ready & -blockSize;
+			int count = copied.get(block);
+			if (count == blockSize) {
+				copied.set(block, 0);
+				ready = blockStart + blockSize;
+				continue;
+			}
+			long tail = claimed.get();
+			if (tail - blockStart == count) {
+				ready = tail;
+			}
+			return ready;
+		}
+	}
+
+	/**
+	 * Unparks the appenders waiting for room in the ring that now have some.
+	 */
+	private void wakeRoomWaiters() {
+		long end = (written & -blockSize) + ring.length;
+		for (RoomWaiter waiter : roomWaiters) {
+			if (waiter.position < end) {
+				LockSupport.unpark(waiter.thread);
+			}
+		}
+	}
+
+	/**
+	 * Appends a record to the log and waits for it to be durable.
+	 * 
+	 * @param record
+	 * @return the sequence number of the record.
+	 * @throws IOException
+	 */
+	public long appendAndWait(byte[] record) throws IOException {
+		long sequence = append(record);
+		awaitDurable(sequence);
+		return sequence;
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is durable, that
+	 * is written by the writer thread and forced to disk if the policy of the
+	 * log does so.
+	 * 
+	 * @param sequence
+	 * @throws IOException
+	 *             if the log failed or was closed before the record became
+	 *             durable.
+	 */
+	public void awaitDurable(long sequence) throws IOException {
+		if (durable >= sequence)
+			return;
+		waitFor(sequence, false);
+	}
+
+	/**
+	 * Forces every record appended so far to disk, whatever the policy of the
+	 * log.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		long target = claimed.get();
+		long requested = forceRequested.get();
+		while (requested < target
+				&& !forceRequested.compareAndSet(requested, target)) {
+			requested = forceRequested.get();
+		}
+		LockSupport.unpark(writer);
+		waitFor(target, true);
+	}
+
+	/**
+	 * Waits until the durable or the forced position of the log reaches the
+	 * given position.
+	 * 
+	 * @param position
+	 * @param mustBeForced
+	 * @throws IOException
+	 */
+	private void waitFor(long position, boolean mustBeForced)
+			throws IOException {
+		// The writer only notifies the lock when someone is waiting, so the
+		// waiter registers before it checks the position under the lock.
+		waiters.incrementAndGet();
+		try {
+			synchronized (lock) {
+				boolean interrupted = false;
+				try {
+					while ((mustBeForced ? forced : durable) < position) {
+						checkWriter();
+						interrupted |= awaitQuietly();
+					}
+				} finally {
+					restoreInterrupt(interrupted);
+				}
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Renames the current file of the log to the given archive file and
+	 * continues the log in a new empty file. Every record appended before the
+	 * call is in the archive file, which is forced to disk, and every record
+	 * appended after it is in the new file. Records appended concurrently may
+	 * be in either file.
+	 * 
+	 * @param archive
+	 * @throws IOException
+	 *             if the file could not be renamed, in which case the log
+	 *             continues in the current file.
+	 */
+	public void rotate(File archive) throws IOException {
+		Rotation request = new Rotation(archive);
+		synchronized (lock) {
+			boolean interrupted = false;
+			try {
+				while (rotation != null) {
+					checkState();
+					interrupted |= awaitQuietly();
+				}
+				checkState();
+				rotation = request;
+				LockSupport.unpark(writer);
+				while (!request.done) {
+					checkWriter();
+					interrupted |= awaitQuietly();
+				}
+			} finally {
+				restoreInterrupt(interrupted);
+			}
+		}
+		if (!request.renamed)
+			throw new IOException("WriteAheadLog: Could not rename the log ["
+					+ file.getPath() + "] to [" + archive.getPath() + "]");
+	}
+
+	/**
+	 * Rolls the log over to the next segment of its LogSegments, see rotate.
+	 * 
+	 * @return the number of the segment holding every record appended before
+	 *         the call.
+	 * @throws IOException
+	 *             if the file could not be renamed.
+	 */
+	public long roll() throws IOException {
+		if (segments == null)
+			throw new IllegalStateException("WriteAheadLog: The log ["
+					+ file.getPath() + "] has no segments.");
+		long segment = segments.allocate();
+		rotate(segments.getSegmentFile(segment));
+		segments.closed(segment);
+		return segment;
+	}
+
+	/**
+	 * Writes every record appended so far, forces the log to disk and closes
+	 * the file. The log cannot be used after it has been closed.
+	 * 
+	 * @throws IOException
+	 *             if the log failed before it was closed.
+	 */
+	public void close() throws IOException {
+		closing = true;
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		restoreInterrupt(interrupted);
+		if (failure != null)
+			throw new IOException("WriteAheadLog: The log [" + file.getPath()
+					+ "] failed.", failure);
+	}
+
+	/**
+	 * The loop of the writer thread.
+	 */
+	private void runWriter() {
+		long lastForce = System.nanoTime();
+		try {
+			while (true) {
+				// The rotation is read before the claimed position, so every
+				// record appended before the rotation was requested is
+				// written to the old file.
+				Rotation request = rotation;
+				boolean rollDue = segmentSize > 0 && fileBytes >= segmentSize;
+				if (switchAt < 0 && (request != null || rollDue)) {
+					switchAt = claimed.get();
+					switchRequest = request;
+				}
+				long target = advanceReady();
+				if (switchAt >= 0) {
+					target = Math.min(target, switchAt);
+				}
+				boolean worked = false;
+
+				if (target > written) {
+					writeUpTo(target);
+					wakeRoomWaiters();
+					if (policy == FsyncPolicy.PER_BATCH) {
+						force();
+						lastForce = System.nanoTime();
+					} else if (policy == FsyncPolicy.NONE) {
+						durable = written;
+					}
+					worked = true;
+				}
+				if (switchAt >= 0 && written == switchAt) {
+					// Every record claimed before the switch is written, so
+					// the file ends at the end of a record.
+					Rotation switching = switchRequest;
+					switchAt = -1;
+					switchRequest = null;
+					if (switching != null) {
+						rotate(switching);
+					} else {
+						long segment = segments.allocate();
+						if (switchFile(segments.getSegmentFile(segment))) {
+							segments.closed(segment);
+						} else {
+							System.out.println("WriteAheadLog: Could not roll "
+									+ "the log [" + file.getPath() + "]");
+						}
+						signal();
+					}
+					lastForce = System.nanoTime();
+					continue;
+				}
+				if ((forceRequested.get() > forced && written > forced)
+						|| (policy == FsyncPolicy.INTERVAL && durable < written && System
+								.nanoTime() - lastForce >= fsyncIntervalNanos)) {
+					force();
+					lastForce = System.nanoTime();
+					worked = true;
+				}
+				if (worked) {
+					signal();
+					continue;
+				}
+
+				if (closing) {
+					if (written == claimed.get()) {
+						force();
+						break;
+					}
+					// An appender that claimed its bytes before the log was
+					// closed is still copying them, and unparks the writer
+					// once it has counted them.
+					writerParked = true;
+					if (advanceReady() == written) {
+						LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					}
+					writerParked = false;
+					continue;
+				}
+
+				// Park until an appender has copied a record. The flag is set
+				// before the copied bytes are checked again, so either the
+				// appender sees the flag or the writer sees the record. A
+				// switch or a sync may wait for records still being copied.
+				writerParked = true;
+				if (advanceReady() == written
+						&& (rotation == null || switchAt >= 0) && !closing
+						&& (forceRequested.get() <= forced || written == forced)) {
+					long parkNanos = IDLE_PARK_NANOS;
+					if (policy == FsyncPolicy.INTERVAL && durable < written) {
+						parkNanos = Math.max(1, fsyncIntervalNanos
+								- (System.nanoTime() - lastForce));
+					}
+					LockSupport.parkNanos(this, parkNanos);
+				}
+				writerParked = false;
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			closed = true;
+			try {
+				channel.close();
+				output.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+			synchronized (lock) {
+				lock.notifyAll();
+			}
+			for (RoomWaiter waiter : roomWaiters) {
+				LockSupport.unpark(waiter.thread);
+			}
+		}
+	}
+
+	/**
+	 * Writes the bytes of the ring from the written position up to the given
+	 * position to the file.
+	 * 
+	 * @param target
+	 * @throws IOException
+	 */
+	private void writeUpTo(long target) throws IOException {
+		long position = written;
+		while (position < target) {
+			int index = (int) (position & mask);
+			int length = (int) Math.min(target - position, ring.length - index);
+			view.limit(index + length);
+			view.position(index);
+			while (view.hasRemaining()) {
+				channel.write(view);
+			}
+			position += length;
+		}
+		fileBytes += target - written;
+		written = target;
+	}
+
+	/**
+	 * Forces the file to disk and makes every written record durable.
+	 * 
+	 * @throws IOException
+	 */
+	private void force() throws IOException {
+		long position = written;
+		channel.force(false);
+		forced = position;
+		durable = position;
+	}
+
+	/**
+	 * Forces and renames the current file, and opens a new one.
+	 * 
+	 * @param request
+	 * @throws IOException
+	 */
+	private void rotate(Rotation request) throws IOException {
+		boolean renamed = switchFile(request.archive);
+		synchronized (lock) {
+			request.renamed = renamed;
+			request.done = true;
+			rotation = null;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Forces the current file, renames it to the given archive file and opens
+	 * a new one.
+	 * 
+	 * @param archive
+	 * @return true if the file was renamed, otherwise the log continues in the
+	 *         current file.
+	 * @throws IOException
+	 */
+	private boolean switchFile(File archive) throws IOException {
+		force();
+		channel.close();
+		output.close();
+		boolean renamed = file.renameTo(archive);
+		output = new FileOutputStream(file, true);
+		channel = output.getChannel();
+		// A file that could not be renamed is not retried before it has
+		// grown by another segment.
+		fileBytes = renamed ? 0 : fileBytes - segmentSize;
+		return renamed;
+	}
+
+	/**
+	 * Wakes the threads waiting for records to become durable.
+	 */
+	private void signal() {
+		if (waiters.get() > 0) {
+			synchronized (lock) {
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits on the lock of the log without giving up on an interrupt. The
+	 * caller must hold the lock, wait in a loop and restore the interrupt once
+	 * done.
+	 * 
+	 * @return true if the thread was interrupted while waiting.
+	 */
+	private boolean awaitQuietly() {
+		try {
+			lock.wait();
+			return false;
+		} catch (InterruptedException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Restores the interrupt of the current thread if it was interrupted
+	 * while waiting.
+	 * 
+	 * @param interrupted
+	 */
+	private static void restoreInterrupt(boolean interrupted) {
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Throws an IOException if the log has failed or is being closed.
+	 * 
+	 * @throws IOException
+	 */
+	private void checkState() throws IOException {
+		checkWriter();
+		if (closing)
+			throw new IOException("WriteAheadLog: The log [" + file.getPath()
+					+ "] was closed.");
+	}
+
+	/**
+	 * Throws an IOException if the writer thread has stopped, in which case
+	 * nothing more is written to the log.
+	 * 
+	 * @throws IOException
+	 */
+	private void checkWriter() throws IOException {
+		if (failure != null)
+			throw new IOException("WriteAheadLog: The log [" + file.getPath()
+					+ "] failed.", failure);
+		if (closed)
+			throw new IOException("WriteAheadLog: The log [" + file.getPath()
+					+ "] was closed.");
+	}
+
+	/**
+	 * @return the sequence number of the last durable record
+	 */
+	public long getDurableSequence() {
+		return durable;
+	}
+
+	/**
+	 * @return the segments of the log, or null if the log does not roll
+	 */
+	public LogSegments getSegments() {
+		return segments;
+	}
+
+	/**
+	 * @return the fsync policy of the log
+	 */
+	public FsyncPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the file of the log
+	 */
+	public File getFile() {
+		return file;
+	}
+}
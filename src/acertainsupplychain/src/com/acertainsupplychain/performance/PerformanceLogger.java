@@ -86,12 +86,13 @@ public class PerformanceLogger {
 	}
 
 	/**
-	 * This function writes a single PerformanceLog object to the file.
+	 * This function writes a single PerformanceLog object to the file. Nothing
+	 * is written if no file is given in the properties.
 	 * 
 	 * @param log
 	 */
 	public void writeLog(PerformanceLog log) {
-		if (log == null)
+		if (log == null || fullPath == null)
 			return;
 		writeRowAndFile(log.toList());
 	}
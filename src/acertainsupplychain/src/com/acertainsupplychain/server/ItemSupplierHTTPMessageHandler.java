@@ -1,6 +1,8 @@
 package com.acertainsupplychain.server;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Set;
 
 import javax.servlet.ServletException;
@@ -15,6 +17,8 @@ import com.acertainsupplychain.OrderProcessingException;
 import com.acertainsupplychain.OrderStep;
 import com.acertainsupplychain.clients.ItemSupplierClientConstants;
 import com.acertainsupplychain.impl.ItemSupplierImpl;
+import com.acertainsupplychain.storage.MappedItemStore;
+import com.acertainsupplychain.storage.OpenAddressingItemStore;
 import com.acertainsupplychain.utility.ItemSupplierMessageTag;
 import com.acertainsupplychain.utility.ItemSupplierResponse;
 import com.acertainsupplychain.utility.ItemSupplierResult;
@@ -31,13 +35,83 @@ import com.acertainsupplychain.utility.ItemSupplierUtility;
  */
 public class ItemSupplierHTTPMessageHandler extends AbstractHandler {
 
+	private final static long CHECKPOINT_INTERVAL_MILLIS = 60 * 1000;
+
 	private ItemSupplier supplier;
+	private final File storeDirectory;
+	private final int expectedItems;
+	private final boolean recover;
 
 	/**
 	 * Initialize the message handler object.
 	 */
 	public ItemSupplierHTTPMessageHandler() {
+		this(null, 0, false);
+	}
+
+	/**
+	 * Initialize the message handler object so that the ItemSupplier keeps its
+	 * totals in a memory-mapped file in the given directory. If the file
+	 * already exists, the ItemSupplier continues from the totals in it.
+	 * 
+	 * @param storeDirectory
+	 *            , the directory of the file, or null to keep the totals on
+	 *            the heap.
+	 * @param expectedItems
+	 *            , the number of items the file must have room for when it is
+	 *            created.
+	 */
+	public ItemSupplierHTTPMessageHandler(File storeDirectory, int expectedItems) {
+		this(storeDirectory, expectedItems, false);
+	}
+
+	/**
+	 * Initialize the message handler object. If recover is true and no store
+	 * directory is given, the ItemSupplier rebuilds its totals from its last
+	 * checkpoint and its log when it is initialized, and takes a new
+	 * checkpoint every minute.
+	 * 
+	 * @param storeDirectory
+	 *            , the directory of the file, or null to keep the totals on
+	 *            the heap.
+	 * @param expectedItems
+	 *            , the number of items the file must have room for when it is
+	 *            created.
+	 * @param recover
+	 *            , whether a supplier keeping its totals on the heap recovers
+	 *            them from its log.
+	 */
+	public ItemSupplierHTTPMessageHandler(File storeDirectory,
+			int expectedItems, boolean recover) {
 		supplier = null;
+		this.storeDirectory = storeDirectory;
+		this.expectedItems = expectedItems;
+		this.recover = recover;
+	}
+
+	/**
+	 * Creates the ItemSupplier with the given ID, using a memory-mapped store
+	 * if a store directory was given. Otherwise the totals are kept on the
+	 * heap, and are only recovered from the last checkpoint and the log of the
+	 * supplier if the handler was asked to, in which case a new checkpoint is
+	 * taken every minute.
+	 * 
+	 * @param supplierID
+	 * @return
+	 * @throws IOException
+	 */
+	private ItemSupplier createSupplier(int supplierID) throws IOException {
+		if (storeDirectory != null)
+			return new ItemSupplierImpl(supplierID, new MappedItemStore(
+					new File(storeDirectory, supplierID + "_Supplier_items.dat"),
+					expectedItems));
+		if (!recover)
+			return new ItemSupplierImpl(supplierID);
+
+		ItemSupplierImpl recovered = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		recovered.startCheckpoints(CHECKPOINT_INTERVAL_MILLIS);
+		return recovered;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -55,6 +129,7 @@ public class ItemSupplierHTTPMessageHandler extends AbstractHandler {
 		String xml;
 		ItemSupplierResponse itemSupplierResponse;
 		OrderStep step;
+		List<OrderStep> steps;
 		Set<Integer> itemIds;
 		Integer supplierID;
 
@@ -74,7 +149,7 @@ public class ItemSupplierHTTPMessageHandler extends AbstractHandler {
 									.getParameter(ItemSupplierClientConstants.INIT_ITEMSUPPLIER_PARAM));
 
 					if (supplier == null) {
-						supplier = new ItemSupplierImpl(supplierID);
+						supplier = createSupplier(supplierID);
 					}
 
 				} catch (OrderProcessingException e) {
@@ -110,6 +185,28 @@ public class ItemSupplierHTTPMessageHandler extends AbstractHandler {
 
 				break;
 
+			case EXECUTESTEPS:
+				xml = ItemSupplierUtility.extractPOSTDataFromRequest(request);
+
+				steps = (List<OrderStep>) ItemSupplierUtility
+						.deserializeXMLStringToObject(xml);
+
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					itemSupplierResponse.setResult(new ItemSupplierResult(
+							supplier.executeSteps(steps)));
+				} catch (OrderProcessingException ex) {
+					itemSupplierResponse.setException(ex);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
 			case GETORDERS:
 				xml = ItemSupplierUtility.extractPOSTDataFromRequest(request);
 
@@ -145,6 +242,43 @@ public class ItemSupplierHTTPMessageHandler extends AbstractHandler {
 				writeResponse(response, itemSupplierResponse);
 				break;
 
+			case LOCKPROFILING:
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					profiledSupplier().setLockProfiling(ItemSupplierUtility
+							.decodeInteger(request
+									.getParameter(ItemSupplierClientConstants.LOCKPROFILING_PARAM)));
+				} catch (OrderProcessingException e) {
+					itemSupplierResponse.setException(e);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
+			case GETLOCKPROFILE:
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					itemSupplierResponse.setResult(new ItemSupplierResult(
+							profiledSupplier().getHottestLocks(ItemSupplierUtility
+									.decodeInteger(request
+											.getParameter(ItemSupplierClientConstants.GETLOCKPROFILE_PARAM)))));
+				} catch (OrderProcessingException e) {
+					itemSupplierResponse.setException(e);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
 			default:
 				System.out.println("Unhandled message tag");
 				break;
@@ -156,6 +290,22 @@ public class ItemSupplierHTTPMessageHandler extends AbstractHandler {
 
 	}
 
+	/**
+	 * Returns the supplier as an ItemSupplierImpl, which is the only kind of
+	 * supplier whose locks can be profiled.
+	 * 
+	 * @return
+	 * @throws OrderProcessingException
+	 */
+	private ItemSupplierImpl profiledSupplier()
+			throws OrderProcessingException {
+		if (!(supplier instanceof ItemSupplierImpl))
+			throw new OrderProcessingException(
+					"ItemSupplierHTTPMessageHandler: The supplier does not"
+							+ " profile its locks.");
+		return (ItemSupplierImpl) supplier;
+	}
+
 	/**
 	 * A wrapper function to prepare and write a resonse object to the HTTP
 	 * response.
@@ -1,8 +1,15 @@
 package com.acertainsupplychain.server;
 
+import java.io.File;
+
 /**
  * Class to start an ItemSupplier server with an ItemSupplierHTTPMessageHandler,
  * the server reads its destined port from the main function arguments.
+ * Optionally a directory and a number of items can be given as the second and
+ * third argument, in which case the totals are kept in a memory-mapped file in
+ * that directory and survive a restart of the server. If "recover" is given
+ * after the port instead, the totals are kept on the heap and the ItemSupplier
+ * rebuilds them from its checkpoint and its log when it is initialized.
  * 
  * @author Arni
  * 
@@ -13,7 +20,15 @@ public class ItemSupplierHTTPServer {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		ItemSupplierHTTPMessageHandler handler = new ItemSupplierHTTPMessageHandler();
+		ItemSupplierHTTPMessageHandler handler;
+		if (args.length >= 2 && args[1].equals("recover")) {
+			handler = new ItemSupplierHTTPMessageHandler(null, 0, true);
+		} else if (args.length >= 3) {
+			handler = new ItemSupplierHTTPMessageHandler(new File(args[1]),
+					Integer.parseInt(args[2]));
+		} else {
+			handler = new ItemSupplierHTTPMessageHandler();
+		}
 		if (ItemSupplierHTTPServerUtility.createServer(
 				Integer.parseInt(args[0]), handler)) {
 			;
@@ -9,6 +9,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
@@ -20,6 +22,7 @@ import com.acertainsupplychain.OrderStep;
 import com.acertainsupplychain.clients.ItemSupplierClientConstants;
 import com.acertainsupplychain.clients.ItemSupplierHTTPProxy;
 import com.acertainsupplychain.impl.OrderManagerImpl;
+import com.acertainsupplychain.storage.WorkflowStateIndex;
 import com.acertainsupplychain.utility.ItemSupplierMessageTag;
 import com.acertainsupplychain.utility.ItemSupplierResponse;
 import com.acertainsupplychain.utility.ItemSupplierResult;
@@ -36,13 +39,43 @@ import com.acertainsupplychain.utility.ItemSupplierUtility;
  */
 public class OrderManagerHTTPMessageHandler extends AbstractHandler {
 
+	// The attribute of a suspended AWAITWORKFLOW request holding its listener.
+	private final static String AWAIT_LISTENER = "awaitWorkflowListener";
+
 	private OrderManager orderManager;
+	private final boolean recover;
+	private final int virtualThreadLimit;
 
 	/**
 	 * Initialize the OrderManagerHTTPMessageHandler object.
 	 */
 	public OrderManagerHTTPMessageHandler() {
+		this(false);
+	}
+
+	/**
+	 * Initialize the OrderManagerHTTPMessageHandler object. If recover is true
+	 * the OrderManager is rebuilt from its log when it is initialized.
+	 * 
+	 * @param recover
+	 */
+	public OrderManagerHTTPMessageHandler(boolean recover) {
+		this(recover, 0);
+	}
+
+	/**
+	 * Initialize the OrderManagerHTTPMessageHandler object. If
+	 * virtualThreadLimit is positive the OrderManager runs its jobs on virtual
+	 * threads with at most that many in flight.
+	 * 
+	 * @param recover
+	 * @param virtualThreadLimit
+	 */
+	public OrderManagerHTTPMessageHandler(boolean recover,
+			int virtualThreadLimit) {
 		orderManager = null;
+		this.recover = recover;
+		this.virtualThreadLimit = virtualThreadLimit;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -118,6 +151,48 @@ public class OrderManagerHTTPMessageHandler extends AbstractHandler {
 
 				break;
 
+			case REGISTERWORKFLOWS:
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					xml = ItemSupplierUtility
+							.extractPOSTDataFromRequest(request);
+					itemSupplierResponse.setResult(new ItemSupplierResult(
+							orderManager
+									.registerOrderWorkflows((List<List<OrderStep>>) ItemSupplierUtility
+											.deserializeXMLStringToObject(xml))));
+				} catch (OrderProcessingException e) {
+					itemSupplierResponse.setException(e);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
+			case GETWORKFLOWSTATUSES:
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					xml = ItemSupplierUtility
+							.extractPOSTDataFromRequest(request);
+					itemSupplierResponse.setResult(new ItemSupplierResult(
+							orderManager
+									.getOrderWorkflowStatuses((int[]) ItemSupplierUtility
+											.deserializeXMLStringToObject(xml))));
+				} catch (OrderProcessingException e) {
+					itemSupplierResponse.setException(e);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
 			case CLEAR:
 				orderManager.clear();
 				writeResponse(response, new ItemSupplierResponse());
@@ -136,7 +211,7 @@ public class OrderManagerHTTPMessageHandler extends AbstractHandler {
 									.getParameter(ItemSupplierClientConstants.INIT_ORDERMANAGER_ID));
 					if (orderManager == null) {
 						orderManager = new OrderManagerImpl(orderManagerID,
-								supplierObjectMap);
+								supplierObjectMap, recover, virtualThreadLimit);
 					}
 				} catch (OrderProcessingException e) {
 					itemSupplierResponse.setException(e);
@@ -173,7 +248,7 @@ public class OrderManagerHTTPMessageHandler extends AbstractHandler {
 													.get(itemSupplierID)));
 						}
 						orderManager = new OrderManagerImpl(orderManagerID,
-								supplierProxies);
+								supplierProxies, recover, virtualThreadLimit);
 					}
 				} catch (OrderProcessingException e) {
 					e.printStackTrace();
@@ -276,6 +351,96 @@ public class OrderManagerHTTPMessageHandler extends AbstractHandler {
 				writeResponse(response, new ItemSupplierResponse());
 				break;
 
+			case LOCKPROFILING:
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					orderManagerImpl().setLockProfiling(ItemSupplierUtility
+							.decodeInteger(request
+									.getParameter(ItemSupplierClientConstants.LOCKPROFILING_PARAM)));
+				} catch (OrderProcessingException e) {
+					itemSupplierResponse.setException(e);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
+			case GETLOCKPROFILE:
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					itemSupplierResponse.setResult(new ItemSupplierResult(
+							orderManagerImpl().getHottestLocks(ItemSupplierUtility
+									.decodeInteger(request
+											.getParameter(ItemSupplierClientConstants.GETLOCKPROFILE_PARAM)))));
+				} catch (OrderProcessingException e) {
+					itemSupplierResponse.setException(e);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
+			case GETWORKFLOWCOUNT:
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					xml = ItemSupplierUtility
+							.extractPOSTDataFromRequest(request);
+					itemSupplierResponse.setResult(new ItemSupplierResult(
+							orderManagerImpl().getWorkflowCount(
+									(WorkflowStateIndex.State) ItemSupplierUtility
+											.deserializeXMLStringToObject(xml))));
+				} catch (OrderProcessingException e) {
+					itemSupplierResponse.setException(e);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
+			case GETWORKFLOWSINSTATE:
+				itemSupplierResponse = new ItemSupplierResponse();
+				try {
+					xml = ItemSupplierUtility
+							.extractPOSTDataFromRequest(request);
+					int fromWorkflowID = ItemSupplierUtility
+							.decodeInteger(request
+									.getParameter(ItemSupplierClientConstants.GETWORKFLOWSINSTATE_PARAM_FROM));
+					int limit = ItemSupplierUtility
+							.decodeInteger(request
+									.getParameter(ItemSupplierClientConstants.GETWORKFLOWSINSTATE_PARAM_LIMIT));
+					itemSupplierResponse.setResult(new ItemSupplierResult(
+							orderManagerImpl().getWorkflowsInState(
+									(WorkflowStateIndex.State) ItemSupplierUtility
+											.deserializeXMLStringToObject(xml),
+									fromWorkflowID, limit)));
+				} catch (OrderProcessingException e) {
+					itemSupplierResponse.setException(e);
+				} catch (Exception e) {
+					itemSupplierResponse
+							.setException(new OrderProcessingException(
+									"Caught unexpected exception", e));
+				}
+
+				writeResponse(response, itemSupplierResponse);
+
+				break;
+
+			case AWAITWORKFLOW:
+				awaitWorkflow(request, response);
+				break;
+
 			default:
 				System.out.println("Unhandled message tag");
 				break;
@@ -286,6 +451,93 @@ public class OrderManagerHTTPMessageHandler extends AbstractHandler {
 
 	}
 
+	/**
+	 * Answers an AWAITWORKFLOW request with the statuses of the workflow once
+	 * it has finished or the timeout expired, without holding a server thread
+	 * in between. The request is suspended as a Jetty continuation and resumed
+	 * by a completion listener of the OrderManager, or by Jetty when the
+	 * timeout expires, after which the request is handled again and answered.
+	 * 
+	 * @param request
+	 * @param response
+	 * @throws IOException
+	 */
+	private void awaitWorkflow(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		ItemSupplierResponse itemSupplierResponse = new ItemSupplierResponse();
+		try {
+			int workflowID = ItemSupplierUtility.decodeInteger(request
+					.getParameter(ItemSupplierClientConstants.AWAITWORKFLOW_PARAM_WID));
+			int timeout = ItemSupplierUtility.decodeInteger(request
+					.getParameter(ItemSupplierClientConstants.AWAITWORKFLOW_PARAM_TIMEOUT));
+			final Continuation continuation = ContinuationSupport
+					.getContinuation(request);
+
+			List<StepStatus> statuses;
+			if (!(orderManager instanceof OrderManagerImpl)) {
+				// Only an OrderManagerImpl has completion listeners.
+				statuses = orderManager.awaitWorkflow(workflowID, timeout);
+			} else if (continuation.isInitial()) {
+				OrderManagerImpl orderManagerImpl = (OrderManagerImpl) orderManager;
+				if (timeout > 0
+						&& !orderManagerImpl.isWorkflowFinished(workflowID)) {
+					continuation.setTimeout(timeout);
+					continuation.suspend();
+					Runnable listener = new Runnable() {
+						@Override
+						public void run() {
+							try {
+								continuation.resume();
+							} catch (IllegalStateException e) {
+								; // The continuation expired meanwhile
+							}
+						}
+					};
+					continuation.setAttribute(AWAIT_LISTENER, listener);
+					// The listener may resume the continuation right away,
+					// Jetty then handles the request again once this returns.
+					orderManagerImpl.addCompletionListener(workflowID, listener);
+					return;
+				}
+				statuses = orderManager.getOrderWorkflowStatus(workflowID);
+			} else {
+				// Resumed by the listener, or expired.
+				Runnable listener = (Runnable) continuation
+						.getAttribute(AWAIT_LISTENER);
+				if (listener != null) {
+					((OrderManagerImpl) orderManager).removeCompletionListener(
+							workflowID, listener);
+				}
+				statuses = orderManager.getOrderWorkflowStatus(workflowID);
+			}
+			itemSupplierResponse.setResult(new ItemSupplierResult(statuses));
+		} catch (OrderProcessingException e) {
+			itemSupplierResponse.setException(e);
+		} catch (Exception e) {
+			itemSupplierResponse.setException(new OrderProcessingException(
+					"Caught unexpected exception", e));
+		}
+
+		writeResponse(response, itemSupplierResponse);
+	}
+
+	/**
+	 * Returns the OrderManager as an OrderManagerImpl, which is the only kind
+	 * of OrderManager whose locks can be profiled and whose workflows are
+	 * indexed by state.
+	 * 
+	 * @return
+	 * @throws OrderProcessingException
+	 */
+	private OrderManagerImpl orderManagerImpl()
+			throws OrderProcessingException {
+		if (!(orderManager instanceof OrderManagerImpl))
+			throw new OrderProcessingException(
+					"OrderManagerHTTPMessageHandler: The OrderManager does not"
+							+ " support this request.");
+		return (OrderManagerImpl) orderManager;
+	}
+
 	/**
 	 * A wrapper function to prepare and write a resonse object to the HTTP
 	 * response.
@@ -1,8 +1,15 @@
 package com.acertainsupplychain.server;
 
+import com.acertainsupplychain.clients.ItemSupplierClientConstants;
+
 /**
  * Class to start an OrderManager server with an OrderManagerHTTPMessageHandler,
  * the server reads its destined port from the main function arguments.
+ * If "recover" is given after the port, the OrderManager rebuilds its
+ * workflows from its log and resumes the unfinished ones when it is
+ * initialized. If "virtual" or "virtual=limit" is given after the port, the
+ * OrderManager runs its jobs on virtual threads with at most the given number,
+ * or ORDERMANAGER_MAX_VIRTUAL_THREADS, in flight.
  * 
  * @author Arni
  * 
@@ -13,7 +20,20 @@ public class OrderManagerHTTPServer {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		OrderManagerHTTPMessageHandler handler = new OrderManagerHTTPMessageHandler();
+		boolean recover = false;
+		int virtualThreadLimit = 0;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("recover")) {
+				recover = true;
+			} else if (args[i].equals("virtual")) {
+				virtualThreadLimit = ItemSupplierClientConstants.ORDERMANAGER_MAX_VIRTUAL_THREADS;
+			} else if (args[i].startsWith("virtual=")) {
+				virtualThreadLimit = Integer.parseInt(args[i]
+						.substring("virtual=".length()));
+			}
+		}
+		OrderManagerHTTPMessageHandler handler = new OrderManagerHTTPMessageHandler(
+				recover, virtualThreadLimit);
 		if (ItemSupplierHTTPServerUtility.createServer(
 				Integer.parseInt(args[0]), handler)) {
 			;
@@ -0,0 +1,78 @@
+package com.acertainsupplychain.storage;
+
+/**
+ * This class implements the parts of the ItemStore interface that are the same
+ * for every store, namely the reservation of items, the memory per item and the
+ * content based equality. The last commit ID is not kept by default.
+ * 
+ * @author Arni
+ * 
+ */
+public abstract class AbstractItemStore implements ItemStore {
+
+	/**
+	 * Stores that make room for an item as it is added only have to check
+	 * that every item can be stored.
+	 */
+	@Override
+	public boolean reserve(int[] itemIDs) {
+		for (int itemID : itemIDs) {
+			if (!canStore(itemID))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public long getLastCommitID() {
+		return 0;
+	}
+
+	@Override
+	public void setLastCommitID(long commitID) {
+	}
+
+	@Override
+	public double getMemoryPerItem() {
+		int size = size();
+		if (size == 0)
+			return getMemoryUsage();
+		return (double) getMemoryUsage() / size;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == null)
+			return false;
+		if (obj == this)
+			return true;
+		if (!(obj instanceof ItemStore))
+			return false;
+
+		final ItemStore other = (ItemStore) obj;
+		if (size() != other.size())
+			return false;
+
+		final boolean[] equal = new boolean[] { true };
+		forEach(new ItemStoreVisitor() {
+			@Override
+			public void visit(int itemID, long total) {
+				if (other.get(itemID) != total)
+					equal[0] = false;
+			}
+		});
+		return equal[0];
+	}
+
+	@Override
+	public int hashCode() {
+		final int[] hash = new int[] { 0 };
+		forEach(new ItemStoreVisitor() {
+			@Override
+			public void visit(int itemID, long total) {
+				hash[0] += itemID ^ (int) (total ^ (total >>> 32));
+			}
+		});
+		return hash[0];
+	}
+}
@@ -0,0 +1,149 @@
+package com.acertainsupplychain.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is an ItemStore for suppliers whose item IDs form a compact range.
+ * The total of an item is stored directly at the index given by its ID, so the
+ * store needs neither keys nor probing. The commit ID of an item is kept at the
+ * same index of a second array. Item IDs outside the range given at
+ * construction cannot be stored.
+ * 
+ * @author Arni
+ * 
+ */
+public class DenseArrayItemStore extends AbstractItemStore {
+
+	private final static int BYTES_PER_SLOT = 8 + 8;
+
+	private final int minItemID;
+	private final int maxItemID;
+	private final AtomicLongArray totals;
+	private final AtomicLongArray commitIDs;
+	private final AtomicInteger nonZeroItems;
+
+	/**
+	 * Initialize the store to cover the item IDs from minItemID to maxItemID,
+	 * both included.
+	 * 
+	 * @param minItemID
+	 * @param maxItemID
+	 */
+	public DenseArrayItemStore(int minItemID, int maxItemID) {
+		if (maxItemID < minItemID)
+			throw new IllegalArgumentException("DenseArrayItemStore: The range ["
+					+ minItemID + "," + maxItemID + "] is empty.");
+		long length = (long) maxItemID - minItemID + 1;
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("DenseArrayItemStore: The range ["
+					+ minItemID + "," + maxItemID + "] is too large.");
+
+		this.minItemID = minItemID;
+		this.maxItemID = maxItemID;
+		totals = new AtomicLongArray((int) length);
+		commitIDs = new AtomicLongArray((int) length);
+		nonZeroItems = new AtomicInteger(0);
+	}
+
+	@Override
+	public boolean contains(int itemID) {
+		return get(itemID) != 0;
+	}
+
+	@Override
+	public long get(int itemID) {
+		if (!canStore(itemID))
+			return 0;
+		return totals.get(itemID - minItemID);
+	}
+
+	@Override
+	public void add(int itemID, long quantity) {
+		checkRange(itemID);
+		long before = totals.getAndAdd(itemID - minItemID, quantity);
+		updateNonZeroItems(before, before + quantity);
+	}
+
+	@Override
+	public void put(int itemID, long total) {
+		checkRange(itemID);
+		updateNonZeroItems(totals.getAndSet(itemID - minItemID, total), total);
+	}
+
+	@Override
+	public long getCommitID(int itemID) {
+		if (!canStore(itemID))
+			return 0;
+		return commitIDs.get(itemID - minItemID);
+	}
+
+	@Override
+	public void setCommitID(int itemID, long commitID) {
+		checkRange(itemID);
+		commitIDs.set(itemID - minItemID, commitID);
+	}
+
+	/**
+	 * Throws an IllegalArgumentException if the item ID is outside the range
+	 * of this store. Callers are expected to have checked canStore already.
+	 * 
+	 * @param itemID
+	 */
+	private void checkRange(int itemID) {
+		if (!canStore(itemID))
+			throw new IllegalArgumentException("DenseArrayItemStore: The item"
+					+ " ID [" + itemID + "] is outside the range [" + minItemID
+					+ "," + maxItemID + "]");
+	}
+
+	/**
+	 * Keeps the count of items with a non-zero total up to date.
+	 * 
+	 * @param before
+	 * @param after
+	 */
+	private void updateNonZeroItems(long before, long after) {
+		if (before == 0 && after != 0) {
+			nonZeroItems.incrementAndGet();
+		} else if (before != 0 && after == 0) {
+			nonZeroItems.decrementAndGet();
+		}
+	}
+
+	@Override
+	public boolean canStore(int itemID) {
+		return itemID >= minItemID && itemID <= maxItemID;
+	}
+
+	@Override
+	public void forEach(ItemStoreVisitor visitor) {
+		int length = totals.length();
+		for (int i = 0; i < length; i++) {
+			long total = totals.get(i);
+			if (total != 0) {
+				visitor.visit(i + minItemID, total);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return nonZeroItems.get();
+	}
+
+	@Override
+	public void clear() {
+		int length = totals.length();
+		for (int i = 0; i < length; i++) {
+			totals.set(i, 0);
+			commitIDs.set(i, 0);
+		}
+		nonZeroItems.set(0);
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return (long) totals.length() * BYTES_PER_SLOT;
+	}
+}
@@ -0,0 +1,145 @@
+package com.acertainsupplychain.storage;
+
+/**
+ * The ItemStore interface abstracts the storage of the summed quantities
+ * ordered per item at an ItemSupplier. Item IDs are primitive ints and the
+ * totals are primitive longs, so that no implementation has to box either of
+ * them.
+ * 
+ * An item whose total is zero is considered unknown to the store, since an
+ * ItemSupplier never accepts a non-positive quantity.
+ * 
+ * All implementations must allow concurrent calls on distinct item IDs. Calls
+ * on the same item ID must be serialized by the caller, which the
+ * ItemSupplierImpl does with its item locks.
+ * 
+ * @author Arni
+ * 
+ */
+public interface ItemStore {
+
+	/**
+	 * Returns true if the store has a non-zero total for the given item ID.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	public boolean contains(int itemID);
+
+	/**
+	 * Returns the total stored for the given item ID, or zero if the item is
+	 * unknown to the store.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	public long get(int itemID);
+
+	/**
+	 * Adds the given quantity to the total of the given item ID.
+	 * 
+	 * @param itemID
+	 * @param quantity
+	 */
+	public void add(int itemID, long quantity);
+
+	/**
+	 * Overwrites the total of the given item ID.
+	 * 
+	 * @param itemID
+	 * @param total
+	 */
+	public void put(int itemID, long total);
+
+	/**
+	 * Returns true if the given item ID can be stored by this store. Stores
+	 * that only cover a fixed range of item IDs return false for any ID
+	 * outside that range.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	public boolean canStore(int itemID);
+
+	/**
+	 * Makes room for every given item ID that is not in the store yet, so that
+	 * adding to any of them cannot fail afterwards. Either room is made for all
+	 * of them, or for none of them and false is returned.
+	 * 
+	 * @param itemIDs
+	 * @return
+	 */
+	public boolean reserve(int[] itemIDs);
+
+	/**
+	 * Returns the ID of the last commit recorded by setLastCommitID. A store
+	 * that keeps its totals across restarts also keeps this ID, any other
+	 * store forgets it and returns 0 when it is created.
+	 * 
+	 * @return
+	 */
+	public long getLastCommitID();
+
+	/**
+	 * Records that the totals of the commit with the given ID are in the store,
+	 * unless a later commit has already been recorded.
+	 * 
+	 * @param commitID
+	 */
+	public void setLastCommitID(long commitID);
+
+	/**
+	 * Returns the commit ID last recorded for the given item ID by
+	 * setCommitID, or zero if none was recorded since the store was created,
+	 * opened or cleared. The commit IDs are kept next to the totals, so a
+	 * SnapshotManager needs no storage of its own per item.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	public long getCommitID(int itemID);
+
+	/**
+	 * Records the given commit ID for the given item ID, making room for the
+	 * item if it is not in the store yet. The total of the item is not
+	 * changed.
+	 * 
+	 * @param itemID
+	 * @param commitID
+	 */
+	public void setCommitID(int itemID, long commitID);
+
+	/**
+	 * Calls the visitor once for every item with a non-zero total. The visit is
+	 * not atomic with respect to concurrent writers.
+	 * 
+	 * @param visitor
+	 */
+	public void forEach(ItemStoreVisitor visitor);
+
+	/**
+	 * Returns the number of items with a non-zero total.
+	 * 
+	 * @return
+	 */
+	public int size();
+
+	/**
+	 * Removes every item from the store.
+	 */
+	public void clear();
+
+	/**
+	 * Returns the approximate number of bytes used by the store.
+	 * 
+	 * @return
+	 */
+	public long getMemoryUsage();
+
+	/**
+	 * Returns the approximate number of bytes used per stored item.
+	 * 
+	 * @return
+	 */
+	public double getMemoryPerItem();
+}
@@ -0,0 +1,19 @@
+package com.acertainsupplychain.storage;
+
+/**
+ * A callback used to iterate over the content of an ItemStore without
+ * allocating an entry object per item.
+ * 
+ * @author Arni
+ * 
+ */
+public interface ItemStoreVisitor {
+
+	/**
+	 * Called once for every item in the visited store.
+	 * 
+	 * @param itemID
+	 * @param total
+	 */
+	public void visit(int itemID, long total);
+}
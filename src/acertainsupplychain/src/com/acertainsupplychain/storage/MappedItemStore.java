@@ -0,0 +1,444 @@
+package com.acertainsupplychain.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * This class is an ItemStore that keeps the totals off the Java heap in a
+ * memory-mapped file. The file holds an open-addressing hash table of fixed
+ * width slots, so the table itself is the persistent index of the items. When
+ * a supplier is restarted on an existing file, the file is mapped again and
+ * the totals can be served at once without rebuilding anything on the heap.
+ * 
+ * The file layout is a header of HEADER_SIZE bytes followed by the slots. Each
+ * slot holds the item ID (int), a used flag (int), the total (long) and the
+ * commit ID of the last write of the item (long). The header also keeps the ID
+ * of the last commit in the store, so the commit IDs of a restarted supplier
+ * continue after the totals it serves. The commit IDs of the items only order
+ * the writes of one process, so they are cleared when an existing file is
+ * opened.
+ * 
+ * The capacity of the table is fixed when the file is created, in line with the
+ * assumption that the set of items managed by a supplier is fixed.
+ * 
+ * @author Arni
+ * 
+ */
+public class MappedItemStore extends AbstractItemStore {
+
+	private final static long MAGIC = 0x4143534954454d53L;
+	private final static int VERSION = 2;
+	private final static float LOAD_FACTOR = 0.75f;
+
+	private final static int HEADER_SIZE = 64;
+	private final static int MAGIC_OFFSET = 0;
+	private final static int VERSION_OFFSET = 8;
+	private final static int CAPACITY_OFFSET = 12;
+	private final static int CLAIMED_OFFSET = 16;
+	private final static int NONZERO_OFFSET = 20;
+	private final static int LAST_COMMIT_OFFSET = 24;
+
+	private final static int SLOT_SIZE = 24;
+	private final static int KEY_OFFSET = 0;
+	private final static int USED_OFFSET = 4;
+	private final static int TOTAL_OFFSET = 8;
+	private final static int COMMIT_OFFSET = 16;
+
+	// Every chunk is mapped on its own, as a single mapping cannot exceed
+	// Integer.MAX_VALUE bytes.
+	private final static int CHUNK_SHIFT = 26;
+	private final static int SLOTS_PER_CHUNK = 1 << CHUNK_SHIFT;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] chunks;
+	private final int capacity;
+	private final int mask;
+	private final int maxItems;
+	private final Object claimLock;
+
+	/**
+	 * Opens the store in the given file. If the file does not exist it is
+	 * created with room for the given number of items, otherwise the existing
+	 * table is mapped and the given number of items is ignored.
+	 * 
+	 * @param file
+	 * @param expectedItems
+	 * @throws IOException
+	 */
+	public MappedItemStore(File file, int expectedItems) throws IOException {
+		this.file = file;
+		boolean existed = file.exists() && file.length() > 0;
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		channel = randomAccessFile.getChannel();
+
+		if (!existed) {
+			int newCapacity = capacityFor(expectedItems);
+			randomAccessFile.setLength(HEADER_SIZE + (long) newCapacity
+					* SLOT_SIZE);
+			header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE);
+			header.putLong(MAGIC_OFFSET, MAGIC);
+			header.putInt(VERSION_OFFSET, VERSION);
+			header.putInt(CAPACITY_OFFSET, newCapacity);
+			header.putInt(CLAIMED_OFFSET, 0);
+			header.putInt(NONZERO_OFFSET, 0);
+			header.putLong(LAST_COMMIT_OFFSET, 0);
+		} else {
+			header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE);
+			if (header.getLong(MAGIC_OFFSET) != MAGIC
+					|| header.getInt(VERSION_OFFSET) != VERSION) {
+				channel.close();
+				randomAccessFile.close();
+				throw new IOException("MappedItemStore: The file ["
+						+ file.getPath() + "] is not an item store.");
+			}
+		}
+
+		capacity = header.getInt(CAPACITY_OFFSET);
+		mask = capacity - 1;
+		maxItems = (int) (capacity * LOAD_FACTOR);
+		claimLock = new Object();
+
+		int numberOfChunks = ((capacity - 1) >>> CHUNK_SHIFT) + 1;
+		chunks = new MappedByteBuffer[numberOfChunks];
+		for (int i = 0; i < numberOfChunks; i++) {
+			long firstSlot = (long) i << CHUNK_SHIFT;
+			long slots = Math.min(SLOTS_PER_CHUNK, capacity - firstSlot);
+			chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+					HEADER_SIZE + firstSlot * SLOT_SIZE, slots * SLOT_SIZE);
+		}
+		if (existed) {
+			clearCommitIDs();
+		}
+	}
+
+	/**
+	 * Clears the commit IDs left in the slots by an earlier process. A write
+	 * that was in progress when that process stopped would otherwise look in
+	 * progress forever. Slots without a commit ID are only read, so their
+	 * pages are not written back.
+	 */
+	private void clearCommitIDs() {
+		for (int slot = 0; slot < capacity; slot++) {
+			MappedByteBuffer chunk = chunkOf(slot);
+			int position = positionOf(slot) + COMMIT_OFFSET;
+			if (chunk.getLong(position) != 0) {
+				chunk.putLong(position, 0);
+			}
+		}
+	}
+
+	/**
+	 * Returns the smallest power of two table capacity that can hold the given
+	 * number of items without exceeding the load factor.
+	 * 
+	 * @param expectedItems
+	 * @return
+	 */
+	private static int capacityFor(int expectedItems) {
+		long needed = (long) Math.ceil(Math.max(expectedItems, 1) / LOAD_FACTOR);
+		int newCapacity = 16;
+		while (newCapacity < needed && newCapacity < (1 << 30)) {
+			newCapacity <<= 1;
+		}
+		return newCapacity;
+	}
+
+	/**
+	 * Spreads the bits of an item ID so that consecutive IDs do not end up in
+	 * consecutive slots.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	private static int hash(int itemID) {
+		int h = itemID * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private MappedByteBuffer chunkOf(int slot) {
+		return chunks[slot >>> CHUNK_SHIFT];
+	}
+
+	private int positionOf(int slot) {
+		return (slot & (SLOTS_PER_CHUNK - 1)) * SLOT_SIZE;
+	}
+
+	/**
+	 * Returns the slot of the given item ID, or -1 if the item is not in the
+	 * table.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	private int find(int itemID) {
+		int slot = hash(itemID) & mask;
+		for (int probes = 0; probes < capacity; probes++) {
+			MappedByteBuffer chunk = chunkOf(slot);
+			int position = positionOf(slot);
+			if (chunk.getInt(position + USED_OFFSET) == 0)
+				return -1;
+			if (chunk.getInt(position + KEY_OFFSET) == itemID)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the slot of the given item ID, claiming an empty slot for it if
+	 * it is not in the table yet. Claims are rare, as they only happen the
+	 * first time an item is ordered, so they are serialized by a single lock.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	private int findOrClaim(int itemID) {
+		int slot = find(itemID);
+		if (slot >= 0)
+			return slot;
+
+		synchronized (claimLock) {
+			return claim(itemID);
+		}
+	}
+
+	/**
+	 * Returns the slot of the given item ID, claiming an empty slot for it if
+	 * it is not in the table yet. The caller must hold the claim lock.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	private int claim(int itemID) {
+		int slot = hash(itemID) & mask;
+		for (int probes = 0; probes < capacity; probes++) {
+			MappedByteBuffer chunk = chunkOf(slot);
+			int position = positionOf(slot);
+			if (chunk.getInt(position + USED_OFFSET) == 0) {
+				if (header.getInt(CLAIMED_OFFSET) >= maxItems)
+					throw new IllegalStateException("MappedItemStore: The "
+							+ "store in [" + file.getPath() + "] is full.");
+				// The key is written before the slot is marked as used, so a
+				// reader never sees a used slot with a stale key.
+				chunk.putLong(position + TOTAL_OFFSET, 0);
+				chunk.putLong(position + COMMIT_OFFSET, 0);
+				chunk.putInt(position + KEY_OFFSET, itemID);
+				chunk.putInt(position + USED_OFFSET, 1);
+				header.putInt(CLAIMED_OFFSET, header.getInt(CLAIMED_OFFSET) + 1);
+				return slot;
+			}
+			if (chunk.getInt(position + KEY_OFFSET) == itemID)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		throw new IllegalStateException("MappedItemStore: The store in ["
+				+ file.getPath() + "] is full.");
+	}
+
+	@Override
+	public boolean contains(int itemID) {
+		return get(itemID) != 0;
+	}
+
+	@Override
+	public long get(int itemID) {
+		int slot = find(itemID);
+		if (slot < 0)
+			return 0;
+		return chunkOf(slot).getLong(positionOf(slot) + TOTAL_OFFSET);
+	}
+
+	@Override
+	public void add(int itemID, long quantity) {
+		int slot = findOrClaim(itemID);
+		MappedByteBuffer chunk = chunkOf(slot);
+		int position = positionOf(slot) + TOTAL_OFFSET;
+		long before = chunk.getLong(position);
+		chunk.putLong(position, before + quantity);
+		updateNonZeroItems(before, before + quantity);
+	}
+
+	@Override
+	public void put(int itemID, long total) {
+		int slot = findOrClaim(itemID);
+		MappedByteBuffer chunk = chunkOf(slot);
+		int position = positionOf(slot) + TOTAL_OFFSET;
+		long before = chunk.getLong(position);
+		chunk.putLong(position, total);
+		updateNonZeroItems(before, total);
+	}
+
+	@Override
+	public long getCommitID(int itemID) {
+		int slot = find(itemID);
+		if (slot < 0)
+			return 0;
+		return chunkOf(slot).getLong(positionOf(slot) + COMMIT_OFFSET);
+	}
+
+	@Override
+	public void setCommitID(int itemID, long commitID) {
+		int slot = findOrClaim(itemID);
+		chunkOf(slot).putLong(positionOf(slot) + COMMIT_OFFSET, commitID);
+	}
+
+	/**
+	 * Keeps the count of items with a non-zero total in the header up to date.
+	 * 
+	 * @param before
+	 * @param after
+	 */
+	private void updateNonZeroItems(long before, long after) {
+		int change = 0;
+		if (before == 0 && after != 0) {
+			change = 1;
+		} else if (before != 0 && after == 0) {
+			change = -1;
+		}
+		if (change != 0) {
+			synchronized (claimLock) {
+				header.putInt(NONZERO_OFFSET, header.getInt(NONZERO_OFFSET)
+						+ change);
+			}
+		}
+	}
+
+	@Override
+	public boolean canStore(int itemID) {
+		return find(itemID) >= 0 || header.getInt(CLAIMED_OFFSET) < maxItems;
+	}
+
+	/**
+	 * Claims a slot for every given item ID that is not in the table yet, if
+	 * there is room for all of them. The slots of a claimed item keep a zero
+	 * total until the item is added to.
+	 */
+	@Override
+	public boolean reserve(int[] itemIDs) {
+		int[] sorted = Arrays.copyOf(itemIDs, itemIDs.length);
+		Arrays.sort(sorted);
+		synchronized (claimLock) {
+			int missing = 0;
+			for (int i = 0; i < sorted.length; i++) {
+				if ((i == 0 || sorted[i] != sorted[i - 1])
+						&& find(sorted[i]) < 0) {
+					missing++;
+				}
+			}
+			if (header.getInt(CLAIMED_OFFSET) + missing > maxItems)
+				return false;
+			for (int itemID : sorted) {
+				claim(itemID);
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public long getLastCommitID() {
+		synchronized (claimLock) {
+			return header.getLong(LAST_COMMIT_OFFSET);
+		}
+	}
+
+	@Override
+	public void setLastCommitID(long commitID) {
+		synchronized (claimLock) {
+			if (commitID > header.getLong(LAST_COMMIT_OFFSET)) {
+				header.putLong(LAST_COMMIT_OFFSET, commitID);
+			}
+		}
+	}
+
+	@Override
+	public void forEach(ItemStoreVisitor visitor) {
+		for (int slot = 0; slot < capacity; slot++) {
+			MappedByteBuffer chunk = chunkOf(slot);
+			int position = positionOf(slot);
+			if (chunk.getInt(position + USED_OFFSET) == 0)
+				continue;
+			long total = chunk.getLong(position + TOTAL_OFFSET);
+			if (total != 0) {
+				visitor.visit(chunk.getInt(position + KEY_OFFSET), total);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		synchronized (claimLock) {
+			return header.getInt(NONZERO_OFFSET);
+		}
+	}
+
+	/**
+	 * Removes every item from the store. The last commit ID is kept, as the
+	 * commit IDs continue after a clear.
+	 */
+	@Override
+	public void clear() {
+		synchronized (claimLock) {
+			for (int slot = 0; slot < capacity; slot++) {
+				MappedByteBuffer chunk = chunkOf(slot);
+				int position = positionOf(slot);
+				chunk.putInt(position + USED_OFFSET, 0);
+				chunk.putInt(position + KEY_OFFSET, 0);
+				chunk.putLong(position + TOTAL_OFFSET, 0);
+				chunk.putLong(position + COMMIT_OFFSET, 0);
+			}
+			header.putInt(CLAIMED_OFFSET, 0);
+			header.putInt(NONZERO_OFFSET, 0);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes mapped by this store. None of them are on
+	 * the Java heap.
+	 */
+	@Override
+	public long getMemoryUsage() {
+		return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+	}
+
+	/**
+	 * Forces every change to the totals to be written to the file.
+	 */
+	public void flush() {
+		header.force();
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+	}
+
+	/**
+	 * Flushes the store and closes the file. The store cannot be used after it
+	 * has been closed.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		flush();
+		channel.close();
+		randomAccessFile.close();
+	}
+
+	/**
+	 * @return the file in which the totals are stored
+	 */
+	public File getFile() {
+		return file;
+	}
+}
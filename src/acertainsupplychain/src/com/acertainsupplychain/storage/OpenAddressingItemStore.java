@@ -0,0 +1,372 @@
+package com.acertainsupplychain.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class is an ItemStore backed by an open-addressing hash table with
+ * linear probing, where the keys are stored in a primitive int array and the
+ * totals and commit IDs in primitive long arrays. No object is allocated per item, neither
+ * when reading nor when writing.
+ * 
+ * New keys are claimed with a compare-and-set on the key array, so writers on
+ * distinct items never block each other. The resize lock is only taken
+ * exclusively when the table has to grow.
+ * 
+ * @author Arni
+ * 
+ */
+public class OpenAddressingItemStore extends AbstractItemStore {
+
+	private final static int DEFAULT_CAPACITY = 1024;
+	private final static float LOAD_FACTOR = 0.75f;
+
+	// The key used to mark an empty slot. The item with this ID is therefore
+	// kept outside of the table.
+	private final static int EMPTY = Integer.MIN_VALUE;
+
+	private final static int BYTES_PER_SLOT = 4 + 8 + 8;
+
+	private volatile Table table;
+	private final AtomicLong emptyKeyTotal;
+	private final AtomicLong emptyKeyCommitID;
+	private final AtomicInteger nonZeroItems;
+	private final ReadWriteLock resizeLock;
+
+	/**
+	 * Initialize the store with the default capacity.
+	 */
+	public OpenAddressingItemStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Initialize the store so that it can hold the given number of items
+	 * before it has to grow.
+	 * 
+	 * @param expectedItems
+	 */
+	public OpenAddressingItemStore(int expectedItems) {
+		table = new Table(capacityFor(expectedItems));
+		emptyKeyTotal = new AtomicLong(0);
+		emptyKeyCommitID = new AtomicLong(0);
+		nonZeroItems = new AtomicInteger(0);
+		resizeLock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Returns the smallest power of two table capacity that can hold the given
+	 * number of items without exceeding the load factor.
+	 * 
+	 * @param expectedItems
+	 * @return
+	 */
+	private static int capacityFor(int expectedItems) {
+		long needed = (long) Math.ceil(Math.max(expectedItems, 1) / LOAD_FACTOR);
+		int capacity = 16;
+		while (capacity < needed && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Spreads the bits of an item ID so that consecutive IDs do not end up in
+	 * consecutive slots.
+	 * 
+	 * @param itemID
+	 * @return
+	 */
+	private static int hash(int itemID) {
+		int h = itemID * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public boolean contains(int itemID) {
+		return get(itemID) != 0;
+	}
+
+	@Override
+	public long get(int itemID) {
+		if (itemID == EMPTY)
+			return emptyKeyTotal.get();
+
+		// The values are copied into the new table while no writer is active,
+		// so a value read from a table that is still the current one after the
+		// read is up to date.
+		while (true) {
+			Table current = table;
+			int slot = current.find(itemID);
+			long total = slot < 0 ? 0 : current.values.get(slot);
+			if (current == table)
+				return total;
+		}
+	}
+
+	@Override
+	public void add(int itemID, long quantity) {
+		update(itemID, quantity, false);
+	}
+
+	@Override
+	public void put(int itemID, long total) {
+		update(itemID, total, true);
+	}
+
+	/**
+	 * Adds the given value to the total of the item, or overwrites the total
+	 * with the value. The table is grown afterwards if the write pushed it
+	 * above its load factor.
+	 * 
+	 * @param itemID
+	 * @param value
+	 * @param overwrite
+	 */
+	private void update(int itemID, long value, boolean overwrite) {
+		if (itemID == EMPTY) {
+			long before = overwrite ? emptyKeyTotal.getAndSet(value)
+					: emptyKeyTotal.getAndAdd(value);
+			updateNonZeroItems(before, overwrite ? value : before + value);
+			return;
+		}
+
+		while (true) {
+			Table current;
+			int slot;
+			resizeLock.readLock().lock();
+			try {
+				current = table;
+				slot = current.findOrClaim(itemID);
+				if (slot >= 0) {
+					long before = overwrite ? current.values.getAndSet(slot,
+							value) : current.values.getAndAdd(slot, value);
+					updateNonZeroItems(before, overwrite ? value : before
+							+ value);
+				}
+			} finally {
+				resizeLock.readLock().unlock();
+			}
+
+			if (slot >= 0) {
+				if (current.claimed.get() > current.threshold) {
+					grow();
+				}
+				return;
+			}
+			// The table was full, grow it and try again.
+			grow();
+		}
+	}
+
+	@Override
+	public long getCommitID(int itemID) {
+		if (itemID == EMPTY)
+			return emptyKeyCommitID.get();
+
+		// The commit IDs are copied along with the values, so the same check
+		// as in get applies.
+		while (true) {
+			Table current = table;
+			int slot = current.find(itemID);
+			long commitID = slot < 0 ? 0 : current.commitIDs.get(slot);
+			if (current == table)
+				return commitID;
+		}
+	}
+
+	@Override
+	public void setCommitID(int itemID, long commitID) {
+		if (itemID == EMPTY) {
+			emptyKeyCommitID.set(commitID);
+			return;
+		}
+
+		while (true) {
+			Table current;
+			int slot;
+			resizeLock.readLock().lock();
+			try {
+				current = table;
+				slot = current.findOrClaim(itemID);
+				if (slot >= 0) {
+					current.commitIDs.set(slot, commitID);
+				}
+			} finally {
+				resizeLock.readLock().unlock();
+			}
+
+			if (slot >= 0) {
+				if (current.claimed.get() > current.threshold) {
+					grow();
+				}
+				return;
+			}
+			grow();
+		}
+	}
+
+	/**
+	 * Keeps the count of items with a non-zero total up to date.
+	 * 
+	 * @param before
+	 * @param after
+	 */
+	private void updateNonZeroItems(long before, long after) {
+		if (before == 0 && after != 0) {
+			nonZeroItems.incrementAndGet();
+		} else if (before != 0 && after == 0) {
+			nonZeroItems.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Doubles the capacity of the table if it is still above its threshold.
+	 * All writers are blocked while the table is copied.
+	 */
+	private void grow() {
+		resizeLock.writeLock().lock();
+		try {
+			Table current = table;
+			if (current.claimed.get() <= current.threshold)
+				return;
+
+			Table grown = new Table(current.capacity << 1);
+			for (int i = 0; i < current.capacity; i++) {
+				int key = current.keys.get(i);
+				if (key != EMPTY) {
+					int slot = grown.findOrClaim(key);
+					grown.values.set(slot, current.values.get(i));
+					grown.commitIDs.set(slot, current.commitIDs.get(i));
+				}
+			}
+			table = grown;
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean canStore(int itemID) {
+		return true;
+	}
+
+	@Override
+	public void forEach(ItemStoreVisitor visitor) {
+		long emptyTotal = emptyKeyTotal.get();
+		if (emptyTotal != 0) {
+			visitor.visit(EMPTY, emptyTotal);
+		}
+
+		resizeLock.readLock().lock();
+		try {
+			Table current = table;
+			for (int i = 0; i < current.capacity; i++) {
+				int key = current.keys.get(i);
+				if (key == EMPTY)
+					continue;
+				long total = current.values.get(i);
+				if (total != 0) {
+					visitor.visit(key, total);
+				}
+			}
+		} finally {
+			resizeLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		return nonZeroItems.get();
+	}
+
+	@Override
+	public void clear() {
+		resizeLock.writeLock().lock();
+		try {
+			table = new Table(table.capacity);
+			emptyKeyTotal.set(0);
+			emptyKeyCommitID.set(0);
+			nonZeroItems.set(0);
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		return (long) table.capacity * BYTES_PER_SLOT;
+	}
+
+	/**
+	 * A single generation of the hash table. The table is replaced as a whole
+	 * when it grows.
+	 */
+	private static final class Table {
+		private final int capacity;
+		private final int mask;
+		private final int threshold;
+		private final AtomicIntegerArray keys;
+		private final AtomicLongArray values;
+		private final AtomicLongArray commitIDs;
+		private final AtomicInteger claimed;
+
+		private Table(int capacity) {
+			this.capacity = capacity;
+			mask = capacity - 1;
+			threshold = (int) (capacity * LOAD_FACTOR);
+			keys = new AtomicIntegerArray(capacity);
+			values = new AtomicLongArray(capacity);
+			commitIDs = new AtomicLongArray(capacity);
+			claimed = new AtomicInteger(0);
+			for (int i = 0; i < capacity; i++) {
+				keys.set(i, EMPTY);
+			}
+		}
+
+		/**
+		 * Returns the slot of the given item ID, or -1 if the item is not in
+		 * the table.
+		 */
+		private int find(int itemID) {
+			int slot = hash(itemID) & mask;
+			for (int probes = 0; probes < capacity; probes++) {
+				int key = keys.get(slot);
+				if (key == itemID)
+					return slot;
+				if (key == EMPTY)
+					return -1;
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the slot of the given item ID, claiming an empty slot for it
+		 * if it is not in the table yet. Returns -1 if the table is full.
+		 */
+		private int findOrClaim(int itemID) {
+			int slot = hash(itemID) & mask;
+			for (int probes = 0; probes < capacity; probes++) {
+				int key = keys.get(slot);
+				if (key == itemID)
+					return slot;
+				if (key == EMPTY) {
+					if (keys.compareAndSet(slot, EMPTY, itemID)) {
+						claimed.incrementAndGet();
+						return slot;
+					}
+					// Another writer claimed the slot, re-read it.
+					if (keys.get(slot) == itemID)
+						return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,492 @@
+package com.acertainsupplychain.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class gives multi-item reads of an ItemStore a consistent snapshot
+ * without taking any per-item locks.
+ * 
+ * Every step that writes to the store is given a commit ID, and the commit IDs
+ * are made visible in ascending order. The commit ID of the last write of
+ * every item is kept next to its total in the store, negated while the write
+ * is in progress. A reader picks the last visible commit ID as its snapshot and
+ * reads every item whose commit ID is not newer than the snapshot directly
+ * from the store. For the other items the old total is found in a chain of
+ * older versions, which writers only keep while readers are active. A chain is
+ * only used if its newest version was replaced by the write the reader found
+ * on the item, as a chain kept while no reader was active is out of date.
+ * 
+ * A writer must hold the write lock of the item between beforeWrite and
+ * afterWrite, and must call endCommit for every commit ID it was given, as
+ * later commits wait for it before they become visible. Threads that wait for
+ * a commit to become visible or for a free reader slot are parked until the
+ * thread making it so unparks them.
+ * 
+ * @author Arni
+ * 
+ */
+public class SnapshotManager {
+
+	private final static int MAX_READERS = 64;
+	private final static long FREE = Long.MAX_VALUE;
+
+	private final ItemStore totals;
+	private final Map<Integer, ItemVersion> versions;
+	private final AtomicLong nextCommitID;
+	private final AtomicLong visibleCommitID;
+	private final AtomicLong pruneHorizon;
+	private final AtomicLongArray readerSnapshots;
+	private final AtomicInteger activeReaders;
+	private final ConcurrentLinkedQueue<CommitWaiter> commitWaiters;
+	private final ConcurrentLinkedQueue<Thread> slotWaiters;
+
+	/**
+	 * An older total of an item together with the commit ID that wrote it and
+	 * the commit ID that replaced it.
+	 */
+	private static class ItemVersion {
+		private final long total;
+		private final long commitID;
+		private final long replacedBy;
+		private volatile ItemVersion older;
+
+		private ItemVersion(long total, long commitID, long replacedBy,
+				ItemVersion older) {
+			this.total = total;
+			this.commitID = commitID;
+			this.replacedBy = replacedBy;
+			this.older = older;
+		}
+	}
+
+	/**
+	 * A thread parked until the given commit is visible.
+	 */
+	private static class CommitWaiter {
+		private final Thread thread;
+		private final long commitID;
+
+		private CommitWaiter(Thread thread, long commitID) {
+			this.thread = thread;
+			this.commitID = commitID;
+		}
+	}
+
+	/**
+	 * Collects the IDs of the items of a store.
+	 */
+	private static class ItemCollector implements ItemStoreVisitor {
+		private int[] itemIDs;
+		private int count;
+
+		private ItemCollector(int expected) {
+			itemIDs = new int[Math.max(expected, 16)];
+			count = 0;
+		}
+
+		@Override
+		public void visit(int itemID, long total) {
+			if (count == itemIDs.length) {
+				int[] larger = new int[itemIDs.length * 2];
+				System.arraycopy(itemIDs, 0, larger, 0, count);
+				itemIDs = larger;
+			}
+			itemIDs[count++] = itemID;
+		}
+
+		private int[] toArray() {
+			int[] result = new int[count];
+			System.arraycopy(itemIDs, 0, result, 0, count);
+			return result;
+		}
+	}
+
+	/**
+	 * Initializes the SnapshotManager for the given store of totals.
+	 * 
+	 * @param totals
+	 */
+	public SnapshotManager(ItemStore totals) {
+		this.totals = totals;
+		versions = new ConcurrentHashMap<Integer, ItemVersion>();
+		nextCommitID = new AtomicLong(0);
+		visibleCommitID = new AtomicLong(0);
+		pruneHorizon = new AtomicLong(0);
+		readerSnapshots = new AtomicLongArray(MAX_READERS);
+		for (int i = 0; i < MAX_READERS; i++) {
+			readerSnapshots.set(i, FREE);
+		}
+		activeReaders = new AtomicInteger(0);
+		commitWaiters = new ConcurrentLinkedQueue<CommitWaiter>();
+		slotWaiters = new ConcurrentLinkedQueue<Thread>();
+	}
+
+	/**
+	 * Returns the commit ID of a new write. The caller must already hold the
+	 * write locks of every item it writes.
+	 * 
+	 * @return the commit ID, the first one being 1.
+	 */
+	public long beginCommit() {
+		return nextCommitID.incrementAndGet();
+	}
+
+	/**
+	 * Continues the commit IDs after the given one, which is used when the
+	 * store has been rebuilt from a log. This must be called before the first
+	 * commit.
+	 * 
+	 * @param commitID
+	 */
+	public void skipTo(long commitID) {
+		nextCommitID.set(commitID);
+		visibleCommitID.set(commitID);
+	}
+
+	/**
+	 * Marks the given item as being written by the given commit. This must be
+	 * called before the total of the item is changed.
+	 * 
+	 * @param itemID
+	 * @param commitID
+	 */
+	public void beforeWrite(int itemID, long commitID) {
+		long current = totals.getCommitID(itemID);
+		if (current == -commitID)
+			return;
+
+		// A reader that registered before this check may need the current
+		// total, so it is kept as an older version. Readers that register
+		// later will see the item as in progress and take a new snapshot if
+		// the version they need is missing. Without readers the chain of the
+		// item is dropped, as it no longer ends at the current total.
+		if (activeReaders.get() > 0) {
+			ItemVersion version = new ItemVersion(totals.get(itemID), current,
+					commitID, versions.get(itemID));
+			versions.put(itemID, version);
+			prune(version, computeHorizon());
+		} else {
+			versions.remove(itemID);
+		}
+		totals.setCommitID(itemID, -commitID);
+	}
+
+	/**
+	 * Marks the given item as written by the given commit. This must be called
+	 * after the total of the item has been changed.
+	 * 
+	 * @param itemID
+	 * @param commitID
+	 */
+	public void afterWrite(int itemID, long commitID) {
+		totals.setCommitID(itemID, commitID);
+	}
+
+	/**
+	 * Makes the given commit visible to readers once every earlier commit is
+	 * visible.
+	 * 
+	 * @param commitID
+	 */
+	public void endCommit(long commitID) {
+		awaitVisible(commitID - 1);
+		visibleCommitID.set(commitID);
+		for (CommitWaiter waiter : commitWaiters) {
+			if (waiter.commitID <= commitID) {
+				LockSupport.unpark(waiter.thread);
+			}
+		}
+	}
+
+	/**
+	 * Parks the calling thread until the given commit is visible.
+	 * 
+	 * @param commitID
+	 */
+	private void awaitVisible(long commitID) {
+		if (visibleCommitID.get() >= commitID)
+			return;
+		CommitWaiter waiter = new CommitWaiter(Thread.currentThread(), commitID);
+		boolean interrupted = false;
+		// The waiter is queued before the commit is checked again, so either
+		// endCommit sees the waiter or the waiter sees the commit.
+		commitWaiters.add(waiter);
+		try {
+			while (visibleCommitID.get() < commitID) {
+				LockSupport.park(this);
+				interrupted |= Thread.interrupted();
+			}
+		} finally {
+			commitWaiters.remove(waiter);
+			restoreInterrupt(interrupted);
+		}
+	}
+
+	/**
+	 * Reads the totals of the given items as of one visible commit.
+	 * 
+	 * @param itemIDs
+	 * @return the totals in the same order as the item IDs.
+	 */
+	public long[] read(int[] itemIDs) {
+		long[] result = new long[itemIDs.length];
+		int slot = register();
+		try {
+			while (true) {
+				long conflict = readAt(readerSnapshots.get(slot), itemIDs,
+						result);
+				if (conflict == 0)
+					return result;
+
+				// A writer that started before this reader registered did not
+				// keep the version needed, so the reader waits for that writer
+				// and takes a newer snapshot.
+				awaitVisible(conflict);
+				publishSnapshot(slot);
+			}
+		} finally {
+			unregister(slot);
+		}
+	}
+
+	/**
+	 * Visits the total of every item in the store as of one visible commit,
+	 * without blocking any writer. This is used to take a checkpoint of the
+	 * store while steps are executed.
+	 * 
+	 * @param visitor
+	 * @return the commit ID of the snapshot the totals were read at.
+	 */
+	public long readAll(ItemStoreVisitor visitor) {
+		long snapshot;
+		int[] itemIDs;
+		long[] result;
+		int slot = register();
+		try {
+			while (true) {
+				// An item written by a commit up to the snapshot was added to
+				// the store before the commit became visible, so the item IDs
+				// are collected once the snapshot has been published.
+				snapshot = readerSnapshots.get(slot);
+				ItemCollector collector = new ItemCollector(totals.size());
+				totals.forEach(collector);
+				itemIDs = collector.toArray();
+				result = new long[itemIDs.length];
+				long conflict = readAt(snapshot, itemIDs, result);
+				if (conflict == 0)
+					break;
+
+				awaitVisible(conflict);
+				publishSnapshot(slot);
+			}
+		} finally {
+			unregister(slot);
+		}
+
+		// The visitor is called once the slot is free, so writers do not keep
+		// older versions while the totals are written out.
+		for (int i = 0; i < itemIDs.length; i++) {
+			if (result[i] != 0) {
+				visitor.visit(itemIDs[i], result[i]);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Reads the totals of the given items as of the given snapshot into the
+	 * result array.
+	 * 
+	 * @param snapshot
+	 * @param itemIDs
+	 * @param result
+	 * @return 0 if every total was read, otherwise the commit ID of a write
+	 *         whose older version is missing.
+	 */
+	private long readAt(long snapshot, int[] itemIDs, long[] result) {
+		for (int i = 0; i < itemIDs.length; i++) {
+			int itemID = itemIDs[i];
+			long total = 0;
+			boolean found = false;
+			long before = totals.getCommitID(itemID);
+
+			while (before >= 0 && before <= snapshot) {
+				total = totals.get(itemID);
+				long after = totals.getCommitID(itemID);
+				if (after == before) {
+					found = true;
+					break;
+				}
+				before = after;
+			}
+
+			if (!found) {
+				// The chain must start at the total replaced by the write the
+				// reader found, otherwise it was kept for an older write.
+				ItemVersion version = versions.get(itemID);
+				if (version != null && version.replacedBy != Math.abs(before)) {
+					version = null;
+				}
+				while (version != null && version.commitID > snapshot) {
+					version = version.older;
+				}
+				if (version == null)
+					return Math.abs(before);
+				total = version.total;
+			}
+			result[i] = total;
+		}
+		return 0;
+	}
+
+	/**
+	 * Claims a free reader slot and publishes a snapshot in it, parking until a
+	 * reader frees a slot if there are none.
+	 * 
+	 * @return the slot.
+	 */
+	private int register() {
+		activeReaders.incrementAndGet();
+		int slot = claimSlot();
+		if (slot < 0) {
+			Thread thread = Thread.currentThread();
+			boolean interrupted = false;
+			// The thread is queued before the slots are scanned again, so
+			// either unregister sees the thread or the thread sees the slot.
+			slotWaiters.add(thread);
+			try {
+				while ((slot = claimSlot()) < 0) {
+					LockSupport.park(this);
+					interrupted |= Thread.interrupted();
+				}
+			} finally {
+				slotWaiters.remove(thread);
+				restoreInterrupt(interrupted);
+			}
+		}
+		publishSnapshot(slot);
+		return slot;
+	}
+
+	/**
+	 * Claims a free reader slot.
+	 * 
+	 * @return the slot, or -1 if every slot is taken.
+	 */
+	private int claimSlot() {
+		for (int slot = 0; slot < MAX_READERS; slot++) {
+			if (readerSnapshots.get(slot) == FREE
+					&& readerSnapshots.compareAndSet(slot, FREE, 0))
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Publishes the last visible commit as the snapshot of the given slot. A
+	 * snapshot older than the prune horizon may already have lost versions, so
+	 * it is replaced by a newer one.
+	 * 
+	 * @param slot
+	 */
+	private void publishSnapshot(int slot) {
+		while (true) {
+			long snapshot = visibleCommitID.get();
+			readerSnapshots.set(slot, snapshot);
+			if (pruneHorizon.get() <= snapshot)
+				return;
+		}
+	}
+
+	/**
+	 * Frees the given reader slot. The last reader to leave removes the older
+	 * versions no reader can need anymore.
+	 * 
+	 * @param slot
+	 */
+	private void unregister(int slot) {
+		readerSnapshots.set(slot, FREE);
+		for (Thread waiter : slotWaiters) {
+			LockSupport.unpark(waiter);
+		}
+		if (activeReaders.decrementAndGet() == 0) {
+			long horizon = computeHorizon();
+			for (Map.Entry<Integer, ItemVersion> entry : versions.entrySet()) {
+				long current = totals.getCommitID(entry.getKey());
+				if (current >= 0 && current <= horizon) {
+					versions.remove(entry.getKey(), entry.getValue());
+				} else {
+					prune(entry.getValue(), horizon);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the oldest snapshot any reader may still use. The prune horizon
+	 * is raised before the slots are scanned, so a reader publishing its
+	 * snapshot concurrently either is seen by the scan or notices the new
+	 * horizon and takes a newer snapshot.
+	 * 
+	 * @return
+	 */
+	private long computeHorizon() {
+		long horizon = visibleCommitID.get();
+		long previous = pruneHorizon.get();
+		while (previous < horizon
+				&& !pruneHorizon.compareAndSet(previous, horizon)) {
+			previous = pruneHorizon.get();
+		}
+		for (int slot = 0; slot < MAX_READERS; slot++) {
+			long snapshot = readerSnapshots.get(slot);
+			if (snapshot < horizon) {
+				horizon = snapshot;
+			}
+		}
+		return horizon;
+	}
+
+	/**
+	 * Cuts the versions that are older than the newest version visible at the
+	 * given horizon off the chain starting at the given version.
+	 * 
+	 * @param version
+	 * @param horizon
+	 */
+	private void prune(ItemVersion version, long horizon) {
+		while (version != null) {
+			if (version.commitID <= horizon) {
+				version.older = null;
+				return;
+			}
+			version = version.older;
+		}
+	}
+
+	/**
+	 * Sets the interrupt flag of the calling thread again if it was
+	 * interrupted while parked.
+	 * 
+	 * @param interrupted
+	 */
+	private static void restoreInterrupt(boolean interrupted) {
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Forgets the older versions of every item. The commit IDs are forgotten
+	 * when the store is cleared. The caller must make sure that no reads or
+	 * writes are in progress.
+	 */
+	public void clear() {
+		versions.clear();
+	}
+}
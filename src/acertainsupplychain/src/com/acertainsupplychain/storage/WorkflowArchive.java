@@ -0,0 +1,351 @@
+package com.acertainsupplychain.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.OrderManager.StepStatus;
+import com.acertainsupplychain.OrderStep;
+
+/**
+ * This class keeps finished workflows of an OrderManager on disk instead of
+ * on the heap. A workflow is appended to a data file as a single record, and
+ * the offset of the record is written to an index file at the position of
+ * the workflow ID, so a workflow is found with one read of the index and one
+ * of the data file:
+ * 
+ * <pre>
+ * index file, for every workflow ID: long offset of its record + 1, or 0
+ * data file, for every workflow:
+ *   int  length of the rest of the record
+ *   int  workflow ID
+ *   int  number of steps
+ *   byte statuses, 4 per byte at 2 bits each, 3 being NULL
+ *   for every step: int supplier ID, int number of items,
+ *     and for every item: byte 1 then int item ID, int quantity, or byte 0
+ *     for a NULL item,
+ *     then int number of dependencies and int index of every dependency
+ * </pre>
+ * 
+ * A small LRU cache keeps the recently read workflows decoded. Both files
+ * are written with positional writes, so workflows are archived and read in
+ * parallel, and only the cache is locked.
+ * 
+ * The archive is not a durable copy of the workflows, the log is. The files
+ * are emptied when the archive is opened, and deleted when the process exits.
+ * 
+ * @author Arni
+ * 
+ */
+public class WorkflowArchive {
+
+	public final static int DEFAULT_CACHE_SIZE = 1024;
+
+	private final static int NULL_CODE = 3;
+	private final static StepStatus[] STATUSES = StepStatus.values();
+
+	private final RandomAccessFile dataFile;
+	private final RandomAccessFile indexFile;
+	private final FileChannel data;
+	private final FileChannel index;
+	private final AtomicLong end;
+	private final AtomicInteger archived;
+	private final Map<Integer, ArchivedWorkflow> cache;
+
+	/**
+	 * A workflow read back from the archive.
+	 */
+	private static class ArchivedWorkflow {
+		private final List<OrderStep> steps;
+		private final List<StepStatus> statuses;
+
+		private ArchivedWorkflow(List<OrderStep> steps,
+				List<StepStatus> statuses) {
+			this.steps = steps;
+			this.statuses = statuses;
+		}
+	}
+
+	/**
+	 * Opens an empty archive in the given data file and an index file next to
+	 * it, with a cache of the given number of workflows.
+	 * 
+	 * @param file
+	 * @param cacheSize
+	 * @throws IOException
+	 */
+	public WorkflowArchive(File file, final int cacheSize) throws IOException {
+		File indexPath = new File(file.getPath() + ".index");
+		file.deleteOnExit();
+		indexPath.deleteOnExit();
+		dataFile = new RandomAccessFile(file, "rw");
+		indexFile = new RandomAccessFile(indexPath, "rw");
+		data = dataFile.getChannel();
+		index = indexFile.getChannel();
+		end = new AtomicLong(0);
+		archived = new AtomicInteger(0);
+		cache = new LinkedHashMap<Integer, ArchivedWorkflow>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, ArchivedWorkflow> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		clear();
+	}
+
+	/**
+	 * Appends the given workflow to the archive. The workflow can be read from
+	 * the archive once the call returns.
+	 * 
+	 * @param workflowID
+	 * @param steps
+	 * @param statuses
+	 * @throws IOException
+	 */
+	public void add(int workflowID, List<OrderStep> steps,
+			List<StepStatus> statuses) throws IOException {
+		if (workflowID < 0)
+			throw new IllegalArgumentException("WorkflowArchive: The "
+					+ "workflow ID [" + workflowID + "] is negative.");
+		ByteBuffer record = encode(workflowID, steps, statuses);
+		long offset = end.getAndAdd(record.remaining());
+		write(data, record, offset);
+
+		// The record is written before its offset, so a reader that finds
+		// the offset also finds the record.
+		ByteBuffer entry = ByteBuffer.allocate(8);
+		entry.putLong(0, offset + 1);
+		write(index, entry, 8L * workflowID);
+		archived.incrementAndGet();
+	}
+
+	/**
+	 * @param workflowID
+	 * @return true if the given workflow is in the archive
+	 * @throws IOException
+	 */
+	public boolean contains(int workflowID) throws IOException {
+		synchronized (cache) {
+			if (cache.containsKey(workflowID))
+				return true;
+		}
+		return offsetOf(workflowID) >= 0;
+	}
+
+	/**
+	 * Returns the steps of the given workflow.
+	 * 
+	 * @param workflowID
+	 * @return the steps, or null if the workflow is not in the archive.
+	 * @throws IOException
+	 */
+	public List<OrderStep> getSteps(int workflowID) throws IOException {
+		ArchivedWorkflow workflow = get(workflowID);
+		return workflow == null ? null : workflow.steps;
+	}
+
+	/**
+	 * Returns a copy of the statuses of the given workflow.
+	 * 
+	 * @param workflowID
+	 * @return the statuses, or null if the workflow is not in the archive.
+	 * @throws IOException
+	 */
+	public List<StepStatus> getStatuses(int workflowID) throws IOException {
+		ArchivedWorkflow workflow = get(workflowID);
+		return workflow == null ? null : new ArrayList<StepStatus>(
+				workflow.statuses);
+	}
+
+	/**
+	 * @return the number of workflows in the archive
+	 */
+	public int size() {
+		return archived.get();
+	}
+
+	/**
+	 * @return the number of bytes of the data file
+	 */
+	public long getDataSize() {
+		return end.get();
+	}
+
+	/**
+	 * Removes every workflow from the archive.
+	 * 
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		synchronized (cache) {
+			cache.clear();
+		}
+		data.truncate(0);
+		index.truncate(0);
+		end.set(0);
+		archived.set(0);
+	}
+
+	/**
+	 * Closes the files of the archive.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		dataFile.close();
+		indexFile.close();
+	}
+
+	private ArchivedWorkflow get(int workflowID) throws IOException {
+		synchronized (cache) {
+			ArchivedWorkflow workflow = cache.get(workflowID);
+			if (workflow != null)
+				return workflow;
+		}
+		long offset = offsetOf(workflowID);
+		if (offset < 0)
+			return null;
+
+		ByteBuffer length = ByteBuffer.allocate(4);
+		read(data, length, offset);
+		ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+		read(data, record, offset + 4);
+		record.flip();
+		if (record.getInt() != workflowID)
+			throw new IOException("WorkflowArchive: The record at offset ["
+					+ offset + "] is not of workflow [" + workflowID + "].");
+		ArchivedWorkflow workflow = decode(record);
+		synchronized (cache) {
+			cache.put(workflowID, workflow);
+		}
+		return workflow;
+	}
+
+	/**
+	 * Reads the offset of the record of the given workflow from the index.
+	 * 
+	 * @param workflowID
+	 * @return the offset, or -1 if the workflow is not in the archive.
+	 * @throws IOException
+	 */
+	private long offsetOf(int workflowID) throws IOException {
+		long position = 8L * workflowID;
+		if (workflowID < 0 || position + 8 > index.size())
+			return -1;
+		ByteBuffer entry = ByteBuffer.allocate(8);
+		read(index, entry, position);
+		return entry.getLong(0) - 1;
+	}
+
+	private static ByteBuffer encode(int workflowID, List<OrderStep> steps,
+			List<StepStatus> statuses) {
+		int length = 4 + 4 + 4 + (steps.size() + 3) / 4;
+		for (OrderStep step : steps) {
+			length += 4 + 4 + 4 + 4 * step.getDependencyCount();
+			for (ItemQuantity item : step.getItems()) {
+				length += item == null ? 1 : 1 + 4 + 4;
+			}
+		}
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(length - 4);
+		record.putInt(workflowID);
+		record.putInt(steps.size());
+		for (int i = 0; i < steps.size(); i += 4) {
+			int packed = 0;
+			for (int j = 0; j < 4; j++) {
+				int code = i + j < steps.size() ? encode(statuses.get(i + j))
+						: 0;
+				packed |= code << (2 * j);
+			}
+			record.put((byte) packed);
+		}
+		for (OrderStep step : steps) {
+			record.putInt(step.getSupplierId());
+			record.putInt(step.getItems().size());
+			for (ItemQuantity item : step.getItems()) {
+				if (item == null) {
+					record.put((byte) 0);
+				} else {
+					record.put((byte) 1);
+					record.putInt(item.getItemId());
+					record.putInt(item.getQuantity());
+				}
+			}
+			record.putInt(step.getDependencyCount());
+			for (int i = 0; i < step.getDependencyCount(); i++) {
+				record.putInt(step.getDependency(i));
+			}
+		}
+		record.flip();
+		return record;
+	}
+
+	private static ArchivedWorkflow decode(ByteBuffer record) {
+		int numSteps = record.getInt();
+		List<StepStatus> statuses = new ArrayList<StepStatus>(numSteps);
+		for (int i = 0; i < numSteps; i += 4) {
+			int packed = record.get();
+			for (int j = 0; j < 4 && i + j < numSteps; j++) {
+				int code = (packed >>> (2 * j)) & 3;
+				statuses.add(code == NULL_CODE ? null : STATUSES[code]);
+			}
+		}
+		List<OrderStep> steps = new ArrayList<OrderStep>(numSteps);
+		for (int i = 0; i < numSteps; i++) {
+			int supplierID = record.getInt();
+			int numItems = record.getInt();
+			List<ItemQuantity> items = new ArrayList<ItemQuantity>(numItems);
+			for (int j = 0; j < numItems; j++) {
+				if (record.get() == 0) {
+					items.add(null);
+				} else {
+					items.add(new ItemQuantity(record.getInt(), record.getInt()));
+				}
+			}
+			int[] dependencies = new int[record.getInt()];
+			for (int j = 0; j < dependencies.length; j++) {
+				dependencies[j] = record.getInt();
+			}
+			steps.add(new OrderStep(supplierID, items, dependencies));
+		}
+		return new ArchivedWorkflow(Collections.unmodifiableList(steps),
+				Collections.unmodifiableList(statuses));
+	}
+
+	private static int encode(StepStatus status) {
+		return status == null ? NULL_CODE : status.ordinal();
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		long written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		long read = 0;
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position + read);
+			if (count < 0)
+				throw new IOException("WorkflowArchive: Unexpected end of the "
+						+ "archive at position [" + (position + read) + "].");
+			read += count;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package com.acertainsupplychain.storage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.acertainsupplychain.OrderManager.StepStatus;
+
+/**
+ * This class indexes the workflows of an OrderManager by their state, so the
+ * workflows in a state are listed and counted without reading the statuses
+ * of every workflow. Every state keeps a bitset over the dense workflow IDs
+ * and a counter, which are updated whenever a workflow changes state.
+ * 
+ * The bitsets are split into pages of consecutive workflow IDs, which are
+ * created on demand, and every bit is set and cleared atomically, so
+ * workflows change state in parallel. A workflow that changes state is added
+ * to its new state before it is removed from the old, so a listing made
+ * meanwhile may show it in both.
+ * 
+ * @author Arni
+ * 
+ */
+public class WorkflowStateIndex {
+
+	/**
+	 * The states of a workflow. IN_PROGRESS means that a step is still
+	 * REGISTERED and none has failed. HAS_FAILURES means that a step is FAILED
+	 * or NULL, even if other steps are still REGISTERED. SUCCESSFUL means that
+	 * every step is SUCCESSFUL.
+	 */
+	public enum State {
+		IN_PROGRESS, SUCCESSFUL, HAS_FAILURES
+	}
+
+	private final static int PAGE_BITS = 16;
+	private final static int PAGE_SIZE = 1 << PAGE_BITS;
+	private final static int PAGE_MASK = PAGE_SIZE - 1;
+	private final static int WORDS_PER_PAGE = PAGE_SIZE / 64;
+	private final static State[] STATES = State.values();
+
+	private final Bits[] bits;
+	private final AtomicInteger[] counts;
+
+	/**
+	 * Initialize an empty index.
+	 */
+	public WorkflowStateIndex() {
+		bits = new Bits[STATES.length];
+		counts = new AtomicInteger[STATES.length];
+		for (int i = 0; i < STATES.length; i++) {
+			bits[i] = new Bits();
+			counts[i] = new AtomicInteger(0);
+		}
+	}
+
+	/**
+	 * Returns the state of a workflow with the given statuses.
+	 * 
+	 * @param statuses
+	 * @return
+	 */
+	public static State stateOf(List<StepStatus> statuses) {
+		boolean registered = false;
+		for (StepStatus status : statuses) {
+			if (status == null || status == StepStatus.FAILED)
+				return State.HAS_FAILURES;
+			if (status == StepStatus.REGISTERED) {
+				registered = true;
+			}
+		}
+		return registered ? State.IN_PROGRESS : State.SUCCESSFUL;
+	}
+
+	/**
+	 * Puts the given workflow into the given state, and removes it from any
+	 * other state. The states of a single workflow must not be changed
+	 * concurrently.
+	 * 
+	 * @param workflowID
+	 * @param state
+	 */
+	public void setState(int workflowID, State state) {
+		if (workflowID < 0)
+			throw new IllegalArgumentException("WorkflowStateIndex: The "
+					+ "workflow ID [" + workflowID + "] is negative.");
+		if (bits[state.ordinal()].set(workflowID)) {
+			counts[state.ordinal()].incrementAndGet();
+		}
+		for (State other : STATES) {
+			if (other != state && bits[other.ordinal()].clear(workflowID)) {
+				counts[other.ordinal()].decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @param workflowID
+	 * @return the state of the given workflow, or null if it is not indexed.
+	 */
+	public State getState(int workflowID) {
+		for (State state : STATES) {
+			if (bits[state.ordinal()].get(workflowID))
+				return state;
+		}
+		return null;
+	}
+
+	/**
+	 * @param state
+	 * @return the number of workflows in the given state
+	 */
+	public int count(State state) {
+		return counts[state.ordinal()].get();
+	}
+
+	/**
+	 * Returns a page of the workflows in the given state, in ascending order.
+	 * The next page starts after the last workflow of this page.
+	 * 
+	 * @param state
+	 * @param fromWorkflowID
+	 *            , the smallest workflow ID of the page.
+	 * @param limit
+	 *            , the largest number of workflows of the page.
+	 * @return the IDs of the workflows.
+	 */
+	public int[] list(State state, int fromWorkflowID, int limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException("WorkflowStateIndex: The "
+					+ "limit must not be negative.");
+		int[] page = new int[Math.min(limit, 1024)];
+		int size = 0;
+		int workflowID = Math.max(0, fromWorkflowID);
+		Bits set = bits[state.ordinal()];
+		while (size < limit && (workflowID = set.next(workflowID)) >= 0) {
+			if (size == page.length) {
+				page = Arrays.copyOf(page, (int) Math.min(limit,
+						2L * page.length));
+			}
+			page[size++] = workflowID;
+			if (workflowID == Integer.MAX_VALUE)
+				break;
+			workflowID++;
+		}
+		return size == page.length ? page : Arrays.copyOf(page, size);
+	}
+
+	/**
+	 * Removes every workflow from the index.
+	 */
+	public void clear() {
+		for (int i = 0; i < STATES.length; i++) {
+			bits[i].clear();
+			counts[i].set(0);
+		}
+	}
+
+	/**
+	 * A growable bitset over the workflow IDs whose bits are set and cleared
+	 * atomically. A new page is always published with a new array of pages,
+	 * as in WorkflowStatusTable.
+	 */
+	private static final class Bits {
+		private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+		/**
+		 * @return true if the bit was not set before
+		 */
+		private boolean set(int bit) {
+			AtomicLongArray page = getPage(bit >>> PAGE_BITS, true);
+			int word = (bit & PAGE_MASK) >>> 6;
+			long mask = 1L << bit;
+			while (true) {
+				long current = page.get(word);
+				if ((current & mask) != 0)
+					return false;
+				if (page.compareAndSet(word, current, current | mask))
+					return true;
+			}
+		}
+
+		/**
+		 * @return true if the bit was set before
+		 */
+		private boolean clear(int bit) {
+			AtomicLongArray page = getPage(bit >>> PAGE_BITS, false);
+			if (page == null)
+				return false;
+			int word = (bit & PAGE_MASK) >>> 6;
+			long mask = 1L << bit;
+			while (true) {
+				long current = page.get(word);
+				if ((current & mask) == 0)
+					return false;
+				if (page.compareAndSet(word, current, current & ~mask))
+					return true;
+			}
+		}
+
+		private boolean get(int bit) {
+			if (bit < 0)
+				return false;
+			AtomicLongArray page = getPage(bit >>> PAGE_BITS, false);
+			return page != null
+					&& (page.get((bit & PAGE_MASK) >>> 6) & (1L << bit)) != 0;
+		}
+
+		/**
+		 * Returns the first set bit from the given bit on, skipping pages that
+		 * do not exist.
+		 * 
+		 * @return the bit, or -1 if no later bit is set.
+		 */
+		private int next(int bit) {
+			AtomicLongArray[] current = pages;
+			for (int index = bit >>> PAGE_BITS; index < current.length; index++) {
+				AtomicLongArray page = current[index];
+				if (page == null)
+					continue;
+				int first = index == bit >>> PAGE_BITS ? bit & PAGE_MASK : 0;
+				for (int word = first >>> 6; word < WORDS_PER_PAGE; word++) {
+					long value = page.get(word);
+					if (word == first >>> 6) {
+						value &= -1L << first;
+					}
+					if (value != 0)
+						return (index << PAGE_BITS) + (word << 6)
+								+ Long.numberOfTrailingZeros(value);
+				}
+			}
+			return -1;
+		}
+
+		private synchronized void clear() {
+			pages = new AtomicLongArray[0];
+		}
+
+		private AtomicLongArray getPage(int index, boolean create) {
+			AtomicLongArray[] current = pages;
+			if (index < current.length && current[index] != null)
+				return current[index];
+			if (!create)
+				return null;
+			synchronized (this) {
+				current = pages;
+				if (index < current.length && current[index] != null)
+					return current[index];
+				AtomicLongArray[] grown = Arrays.copyOf(current,
+						Math.max(index + 1, current.length));
+				grown[index] = new AtomicLongArray(WORDS_PER_PAGE);
+				pages = grown;
+				return grown[index];
+			}
+		}
+	}
+}
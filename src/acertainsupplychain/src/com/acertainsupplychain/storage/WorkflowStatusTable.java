@@ -0,0 +1,382 @@
+package com.acertainsupplychain.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.acertainsupplychain.OrderManager.StepStatus;
+import com.acertainsupplychain.utility.IntStripedLockManager;
+
+/**
+ * This class keeps the step statuses of the workflows of an OrderManager,
+ * indexed by their dense workflow IDs. Every status is packed into 2 bits of
+ * a primitive long array, so a workflow only costs its offset and length
+ * plus 2 bits per step, instead of a map entry and a list of enums.
+ * 
+ * The workflows are split into segments of consecutive workflow IDs. A
+ * segment keeps the offset and number of steps of each of its workflows,
+ * and the statuses of all its workflows in a single array which grows as
+ * workflows are added. Every segment is guarded by its own lock stripe, so
+ * statuses of different segments are set in parallel, and a status is read
+ * optimistically without locking unless its segment is written meanwhile.
+ * Once every workflow of a segment has been removed the segment is dropped.
+ * 
+ * @author Arni
+ * 
+ */
+public class WorkflowStatusTable {
+
+	private final static int SEGMENT_BITS = 10;
+	private final static int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private final static int SEGMENT_MASK = SEGMENT_SIZE - 1;
+	private final static int INITIAL_WORDS = 16;
+
+	// The code of a NULL status, the other statuses are coded by ordinal.
+	private final static int NULL_CODE = 3;
+	private final static StepStatus[] STATUSES = StepStatus.values();
+
+	// The bytes of the offset and length of every workflow of a segment.
+	private final static int BYTES_PER_WORKFLOW = 4 + 4;
+
+	private volatile Segment[] segments;
+	private final IntStripedLockManager lockManager;
+	private final AtomicInteger workflows;
+
+	/**
+	 * Initialize an empty table.
+	 */
+	public WorkflowStatusTable() {
+		segments = new Segment[0];
+		lockManager = new IntStripedLockManager();
+		workflows = new AtomicInteger(0);
+	}
+
+	/**
+	 * Adds a workflow with the given number of steps, which are all
+	 * REGISTERED.
+	 * 
+	 * @param workflowID
+	 * @param steps
+	 * @return false if the workflow already exists.
+	 */
+	public boolean add(int workflowID, int steps) {
+		if (steps < 1)
+			throw new IllegalArgumentException("WorkflowStatusTable: A "
+					+ "workflow must have at least one step.");
+		return add(workflowID, steps, null);
+	}
+
+	/**
+	 * Adds a workflow with the given statuses, e.g. as recovered from a log.
+	 * 
+	 * @param workflowID
+	 * @param statuses
+	 * @return false if the workflow already exists.
+	 */
+	public boolean add(int workflowID, List<StepStatus> statuses) {
+		if (statuses.isEmpty())
+			throw new IllegalArgumentException("WorkflowStatusTable: A "
+					+ "workflow must have at least one step.");
+		return add(workflowID, statuses.size(), statuses);
+	}
+
+	private boolean add(int workflowID, int steps, List<StepStatus> statuses) {
+		int index = workflowID >>> SEGMENT_BITS;
+		int slot = workflowID & SEGMENT_MASK;
+		while (true) {
+			Segment segment = getSegment(workflowID, true);
+			lockManager.acquireWriteLock(index);
+			try {
+				// A segment emptied by remove is dropped, in which case the
+				// workflow is added to a new segment instead.
+				if (!isPublished(index, segment))
+					continue;
+				if (segment.lengths[slot] != 0)
+					return false;
+				int start = segment.allocate(steps);
+				segment.starts[slot] = start;
+				segment.lengths[slot] = steps;
+				segment.live++;
+				if (statuses != null) {
+					for (int i = 0; i < steps; i++) {
+						segment.setCode(start + i, encode(statuses.get(i)));
+					}
+				}
+			} finally {
+				lockManager.releaseWriteLock(index);
+			}
+			workflows.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * Returns a copy of the statuses of the given workflow.
+	 * 
+	 * @param workflowID
+	 * @return the statuses, or null if the workflow does not exist.
+	 */
+	public List<StepStatus> get(int workflowID) {
+		Segment segment = getSegment(workflowID, false);
+		if (segment == null)
+			return null;
+		int index = workflowID >>> SEGMENT_BITS;
+		int slot = workflowID & SEGMENT_MASK;
+
+		// The statuses are first decoded without locking, and only used if
+		// the segment was not written meanwhile.
+		long stamp = lockManager.tryOptimisticRead(index);
+		if (stamp != 0) {
+			List<StepStatus> statuses = segment.read(slot);
+			if (lockManager.validate(index, stamp))
+				return statuses;
+		}
+
+		lockManager.acquireReadLock(index);
+		try {
+			return segment.read(slot);
+		} finally {
+			lockManager.releaseReadLock(index);
+		}
+	}
+
+	/**
+	 * Sets the status of a single step of the given workflow.
+	 * 
+	 * @param workflowID
+	 * @param stepIndex
+	 * @param status
+	 * @return false if the workflow or the step does not exist.
+	 */
+	public boolean set(int workflowID, int stepIndex, StepStatus status) {
+		Segment segment = getSegment(workflowID, false);
+		if (segment == null)
+			return false;
+		int index = workflowID >>> SEGMENT_BITS;
+		int slot = workflowID & SEGMENT_MASK;
+		lockManager.acquireWriteLock(index);
+		try {
+			if (stepIndex < 0 || stepIndex >= segment.lengths[slot])
+				return false;
+			segment.setCode(segment.starts[slot] + stepIndex, encode(status));
+			return true;
+		} finally {
+			lockManager.releaseWriteLock(index);
+		}
+	}
+
+	/**
+	 * Removes the given workflow, e.g. once it has been archived. A segment
+	 * whose workflows have all been removed is dropped, which frees its
+	 * statuses.
+	 * 
+	 * @param workflowID
+	 * @return false if the workflow does not exist.
+	 */
+	public boolean remove(int workflowID) {
+		Segment segment = getSegment(workflowID, false);
+		if (segment == null)
+			return false;
+		int index = workflowID >>> SEGMENT_BITS;
+		int slot = workflowID & SEGMENT_MASK;
+		lockManager.acquireWriteLock(index);
+		try {
+			if (segment.lengths[slot] == 0)
+				return false;
+			segment.starts[slot] = 0;
+			segment.lengths[slot] = 0;
+			if (--segment.live == 0) {
+				drop(index, segment);
+			}
+		} finally {
+			lockManager.releaseWriteLock(index);
+		}
+		workflows.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @param workflowID
+	 * @return true if the given workflow exists
+	 */
+	public boolean contains(int workflowID) {
+		Segment segment = getSegment(workflowID, false);
+		if (segment == null)
+			return false;
+		int index = workflowID >>> SEGMENT_BITS;
+		long stamp = lockManager.tryOptimisticRead(index);
+		boolean contains = segment.lengths[workflowID & SEGMENT_MASK] != 0;
+		if (lockManager.validate(index, stamp))
+			return contains;
+		lockManager.acquireReadLock(index);
+		try {
+			return segment.lengths[workflowID & SEGMENT_MASK] != 0;
+		} finally {
+			lockManager.releaseReadLock(index);
+		}
+	}
+
+	/**
+	 * @return the number of workflows in the table
+	 */
+	public int size() {
+		return workflows.get();
+	}
+
+	/**
+	 * Removes every workflow from the table.
+	 */
+	public synchronized void clear() {
+		segments = new Segment[0];
+		workflows.set(0);
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the segments of the
+	 * table.
+	 * 
+	 * @return
+	 */
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			if (segment != null) {
+				bytes += (long) SEGMENT_SIZE * BYTES_PER_WORKFLOW + 8L
+						* segment.words.length;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the lock manager guarding the segments, whose objects are the
+	 *         segment numbers
+	 */
+	public IntStripedLockManager getLockManager() {
+		return lockManager;
+	}
+
+	/**
+	 * Returns the segment of the given workflow. A new segment is always
+	 * published with a new array of segments, so a reader never sees a
+	 * segment before it is initialized.
+	 * 
+	 * @param workflowID
+	 * @param create
+	 *            , true if a missing segment must be created.
+	 * @return the segment, or null if it does not exist and is not created.
+	 * @throws IllegalArgumentException
+	 *             if a segment for a negative workflow ID must be created.
+	 */
+	private Segment getSegment(int workflowID, boolean create) {
+		if (workflowID < 0) {
+			if (!create)
+				return null;
+			throw new IllegalArgumentException("WorkflowStatusTable: The "
+					+ "workflow ID [" + workflowID + "] is negative.");
+		}
+		int index = workflowID >>> SEGMENT_BITS;
+		Segment[] current = segments;
+		if (index < current.length && current[index] != null)
+			return current[index];
+		if (!create)
+			return null;
+		synchronized (this) {
+			current = segments;
+			if (index < current.length && current[index] != null)
+				return current[index];
+			Segment[] grown = Arrays.copyOf(current,
+					Math.max(index + 1, current.length));
+			grown[index] = new Segment();
+			segments = grown;
+			return grown[index];
+		}
+	}
+
+	/**
+	 * Unpublishes the given empty segment. The caller holds the write lock of
+	 * the segment, so no workflow is added to it meanwhile, and a reader that
+	 * still has the segment finds no workflows in it.
+	 * 
+	 * @param index
+	 * @param segment
+	 */
+	private synchronized void drop(int index, Segment segment) {
+		if (isPublished(index, segment)) {
+			segments[index] = null;
+		}
+	}
+
+	private boolean isPublished(int index, Segment segment) {
+		Segment[] current = segments;
+		return index < current.length && current[index] == segment;
+	}
+
+	private static int encode(StepStatus status) {
+		return status == null ? NULL_CODE : status.ordinal();
+	}
+
+	private static StepStatus decode(int code) {
+		return code == NULL_CODE ? null : STATUSES[code];
+	}
+
+	/**
+	 * The workflows of SEGMENT_SIZE consecutive workflow IDs. A workflow with
+	 * length 0 does not exist. The fields are only written under the write
+	 * lock of the segment.
+	 */
+	private static final class Segment {
+		private final int[] starts = new int[SEGMENT_SIZE];
+		private final int[] lengths = new int[SEGMENT_SIZE];
+		private long[] words = new long[INITIAL_WORDS];
+		private int used = 0;
+		private int live = 0;
+
+		/**
+		 * Reserves the given number of REGISTERED statuses and returns the
+		 * position of the first.
+		 */
+		private int allocate(int steps) {
+			int start = used;
+			long needed = ((long) start + steps + 31) >>> 5;
+			if (needed > Integer.MAX_VALUE)
+				throw new IllegalStateException("WorkflowStatusTable: The "
+						+ "segment is full.");
+			if (needed > words.length) {
+				words = Arrays.copyOf(words,
+						(int) Math.max(needed, 2L * words.length));
+			}
+			used = start + steps;
+			return start;
+		}
+
+		private void setCode(int position, int code) {
+			int shift = (position & 31) << 1;
+			int word = position >>> 5;
+			words[word] = (words[word] & ~(3L << shift))
+					| ((long) code << shift);
+		}
+
+		/**
+		 * Decodes the statuses of the workflow in the given slot. This may
+		 * run concurrently with a writer when the segment is read
+		 * optimistically, so the result is only trusted if the read is
+		 * validated, and a torn offset only makes the read return null.
+		 */
+		private List<StepStatus> read(int slot) {
+			int length = lengths[slot];
+			int start = starts[slot];
+			long[] words = this.words;
+			if (length <= 0 || start < 0
+					|| (long) start + length > 32L * words.length)
+				return null;
+			List<StepStatus> statuses = new ArrayList<StepStatus>(length);
+			for (int i = start; i < start + length; i++) {
+				int code = (int) (words[i >>> 5] >>> ((i & 31) << 1)) & 3;
+				statuses.add(decode(code));
+			}
+			return statuses;
+		}
+	}
+}
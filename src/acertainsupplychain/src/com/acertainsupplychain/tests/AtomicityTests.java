@@ -2,9 +2,11 @@ package com.acertainsupplychain.tests;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -15,11 +17,15 @@ import com.acertainsupplychain.ItemQuantity;
 import com.acertainsupplychain.ItemSupplier;
 import com.acertainsupplychain.OrderStep;
 import com.acertainsupplychain.impl.ItemSupplierImpl;
+import com.acertainsupplychain.storage.ItemStore;
+import com.acertainsupplychain.storage.OpenAddressingItemStore;
+import com.acertainsupplychain.storage.SnapshotManager;
 import com.acertainsupplychain.utility.TestUtility;
 
 /**
  * This JUnit test class is used to test the all-or-nothing semantics of the
- * executeStep function in ItemSupplierImpl.
+ * executeStep function in ItemSupplierImpl, and that getOrdersPerItem reads a
+ * consistent snapshot.
  * 
  * @author Arni
  * 
@@ -100,6 +106,145 @@ public class AtomicityTests {
 				TestUtility.getOrdersPerItem(supplier, itemIDSet));
 	}
 
+	@Test
+	public void testSnapshotReads() {
+		ItemSupplier supplier = new ItemSupplierImpl(0);
+		int numThreads = 10;
+		int numRuns = 2000;
+
+		// Every runner orders one of item 0 together with one of its own
+		// item, so in any consistent state the total of item 0 is the sum of
+		// the totals of the other items.
+		List<Runner> runners = new ArrayList<AtomicityTests.Runner>();
+		Set<Integer> itemIDSet = new HashSet<Integer>();
+		itemIDSet.add(0);
+		for (int i = 1; i <= numThreads; i++) {
+			List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+			items.add(new ItemQuantity(0, 1));
+			items.add(new ItemQuantity(i, 1));
+			runners.add(new Runner(new OrderStep(supplier.getSupplierID(),
+					items), supplier, numRuns));
+			itemIDSet.add(i);
+		}
+
+		// Make sure every item exists before the reader starts.
+		for (Runner runner : runners) {
+			TestUtility.executeStep(supplier, runner.step);
+		}
+
+		SnapshotChecker checker = new SnapshotChecker(itemIDSet, supplier);
+		for (Runner runner : runners) {
+			runner.start();
+		}
+		checker.start();
+
+		for (Runner runner : runners) {
+			try {
+				runner.join();
+			} catch (Exception e) {
+				e.printStackTrace();
+				checker.interrupt();
+				fail();
+			}
+		}
+		checker.interrupt();
+		try {
+			checker.join();
+		} catch (InterruptedException e) {
+			fail();
+		}
+
+		assertFalse(checker.getFailed());
+		assertTrue(checker.getReads() > 0);
+		assertEquals(new ItemQuantity(0, numThreads * (numRuns + 1)),
+				TestUtility.getOrdersPerItem(supplier, itemIDSet).get(0));
+	}
+
+	@Test
+	public void testSnapshotReads_ReaderLeavesDuringWrite() throws Exception {
+		final HookedStore store = new HookedStore();
+		final SnapshotManager snapshots = new SnapshotManager(store);
+		write(snapshots, store, 1, 10);
+		write(snapshots, store, 2, 1);
+
+		// 1. A write of item 1 begins while a reader of item 2 is active, so
+		// the total of item 1 is kept as an older version. The reader leaves
+		// before the write is done.
+		final long[] commitID = new long[1];
+		store.hook(2, new Runnable() {
+			@Override
+			public void run() {
+				commitID[0] = snapshots.beginCommit();
+				snapshots.beforeWrite(1, commitID[0]);
+			}
+		});
+		assertEquals(1, snapshots.read(new int[] { 2 })[0]);
+		store.add(1, 5);
+		snapshots.afterWrite(1, commitID[0]);
+		snapshots.endCommit(commitID[0]);
+
+		// 2. Another write of item 1 is done while no reader is active.
+		write(snapshots, store, 1, 7);
+
+		// 3. A reader that finds item 1 in progress must not read the
+		// version kept for the first write, but the total before or after
+		// the write in progress.
+		long inProgress = snapshots.beginCommit();
+		snapshots.beforeWrite(1, inProgress);
+		final long[] total = new long[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				total[0] = snapshots.read(new int[] { 1 })[0];
+			}
+		};
+		reader.start();
+		Thread.sleep(100);
+		store.add(1, 100);
+		snapshots.afterWrite(1, inProgress);
+		snapshots.endCommit(inProgress);
+		reader.join(10000);
+
+		assertFalse(reader.isAlive());
+		assertTrue("Read " + total[0], total[0] == 22 || total[0] == 122);
+	}
+
+	/**
+	 * Adds the given quantity to an item as a commit of its own.
+	 */
+	private static void write(SnapshotManager snapshots, ItemStore store,
+			int itemID, long quantity) {
+		long commitID = snapshots.beginCommit();
+		snapshots.beforeWrite(itemID, commitID);
+		store.add(itemID, quantity);
+		snapshots.afterWrite(itemID, commitID);
+		snapshots.endCommit(commitID);
+	}
+
+	/**
+	 * A store that runs a hook once the total of an item is read, so a write
+	 * can be started at a given point of a read.
+	 */
+	private static class HookedStore extends OpenAddressingItemStore {
+		private int hookedItemID;
+		private Runnable hook;
+
+		private void hook(int itemID, Runnable hook) {
+			hookedItemID = itemID;
+			this.hook = hook;
+		}
+
+		@Override
+		public long get(int itemID) {
+			if (hook != null && itemID == hookedItemID) {
+				Runnable run = hook;
+				hook = null;
+				run.run();
+			}
+			return super.get(itemID);
+		}
+	}
+
 	private class Runner extends Thread {
 
 		private final OrderStep step;
@@ -127,6 +272,59 @@ public class AtomicityTests {
 
 	}
 
+	private class SnapshotChecker extends Thread {
+
+		private final ItemSupplier supplier;
+		private final Set<Integer> itemIDs;
+
+		private boolean failed;
+		private int reads;
+
+		public SnapshotChecker(Set<Integer> itemIDs, ItemSupplier supplier) {
+			this.itemIDs = itemIDs;
+			this.supplier = supplier;
+			failed = false;
+			reads = 0;
+		}
+
+		public boolean getFailed() {
+			return failed;
+		}
+
+		public int getReads() {
+			return reads;
+		}
+
+		@Override
+		public void run() {
+
+			while (!isInterrupted()) {
+				try {
+					int first = 0;
+					int others = 0;
+					for (ItemQuantity item : supplier.getOrdersPerItem(itemIDs)) {
+						if (item.getItemId() == 0) {
+							first = item.getQuantity();
+						} else {
+							others += item.getQuantity();
+						}
+					}
+					if (first != others) {
+						System.out.println("Failed! The total of item 0 is ["
+								+ first + "] but the other items sum to ["
+								+ others + "]");
+						failed = true;
+					}
+					reads++;
+				} catch (Exception e) {
+					// Should not happen
+					failed = true;
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
 	private class Checker extends Thread {
 
 		private final int divider;
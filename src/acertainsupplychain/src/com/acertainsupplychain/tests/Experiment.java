@@ -15,13 +15,15 @@ import com.acertainsupplychain.ItemQuantity;
 import com.acertainsupplychain.ItemSupplier;
 import com.acertainsupplychain.OrderStep;
 import com.acertainsupplychain.impl.ItemSupplierImpl;
+import com.acertainsupplychain.impl.ShardedItemSupplierImpl;
 import com.acertainsupplychain.performance.PerformanceLogImpl;
 import com.acertainsupplychain.performance.PerformanceLogger;
 import com.acertainsupplychain.utility.TestUtility;
 
 /**
  * This JUnit test class is used to test the performance of my ItemSupplierImpl
- * implementation and how well it scales with concurrency.
+ * and ShardedItemSupplierImpl implementations and how well they scale with
+ * concurrency.
  * 
  * @author Arni
  * 
@@ -30,8 +32,24 @@ public class Experiment {
 
 	@Test
 	public void testScaleNumberOfOrderManagers() {
+		runExperiment(new ItemSupplierImpl(0));
+	}
+
+	@Test
+	public void testScaleNumberOfOrderManagers_Sharded() {
+		ShardedItemSupplierImpl supplier = new ShardedItemSupplierImpl(0);
+		runExperiment(supplier);
+		supplier.shutdown();
+	}
+
+	/**
+	 * Runs the workload of concurrent OrderManagers against the given
+	 * supplier and logs the result.
+	 * 
+	 * @param supplier
+	 */
+	private void runExperiment(ItemSupplier supplier) {
 		PerformanceLogger logger = new PerformanceLogger();
-		ItemSupplier supplier = new ItemSupplierImpl(0);
 		Map<Integer, ItemSupplier> supplierMap = new HashMap<Integer, ItemSupplier>();
 		supplierMap.put(supplier.getSupplierID(), supplier);
 		List<Future<Long>> futures = new ArrayList<Future<Long>>();
@@ -94,6 +112,7 @@ public class Experiment {
 				numberOfOps, numberOfExecuteSteps, numberOfGetOrdersPerItem,
 				totalTestTimeInNS, numberOfDifItemIDs);
 		logger.writeLog(log);
+		executor.shutdown();
 	}
 
 	/**
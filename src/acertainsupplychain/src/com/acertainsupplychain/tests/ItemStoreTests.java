@@ -0,0 +1,309 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.acertainsupplychain.InvalidItemException;
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.ItemSupplier;
+import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.OrderStepResult;
+import com.acertainsupplychain.impl.ItemSupplierImpl;
+import com.acertainsupplychain.storage.DenseArrayItemStore;
+import com.acertainsupplychain.storage.ItemStore;
+import com.acertainsupplychain.storage.MappedItemStore;
+import com.acertainsupplychain.storage.OpenAddressingItemStore;
+import com.acertainsupplychain.utility.TestUtility;
+
+/**
+ * This JUnit test class is used to test the ItemStore implementations used by
+ * ItemSupplierImpl.
+ * 
+ * @author Arni
+ * 
+ */
+public class ItemStoreTests {
+
+	@Test
+	public void testOpenAddressing_Grow() {
+		ItemStore store = new OpenAddressingItemStore(4);
+
+		// 1. Insert far more items than the initial capacity, including the
+		// negative IDs and the ID used internally to mark empty slots.
+		for (int i = -5000; i < 5000; i++) {
+			store.add(i, i + 10000);
+		}
+		store.add(Integer.MIN_VALUE, 3);
+		assertEquals(10001, store.size());
+
+		// 2. Make sure every total survived the resizing.
+		for (int i = -5000; i < 5000; i++) {
+			assertEquals(i + 10000, store.get(i));
+		}
+		assertEquals(3, store.get(Integer.MIN_VALUE));
+		assertFalse(store.contains(5000));
+		assertTrue(store.getMemoryPerItem() > 0);
+
+		// 3. Make sure the store is empty after clear.
+		store.clear();
+		assertEquals(0, store.size());
+		assertFalse(store.contains(0));
+	}
+
+	@Test
+	public void testCommitIDs() throws Exception {
+		File file = File.createTempFile("ItemStoreTests", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		MappedItemStore mapped = new MappedItemStore(file, 100);
+		ItemStore[] stores = new ItemStore[] { new OpenAddressingItemStore(4),
+				new DenseArrayItemStore(-10, 100), mapped };
+
+		for (ItemStore store : stores) {
+			// 1. A commit ID is kept next to the total without changing it,
+			// also while an open-addressing table grows.
+			store.add(1, 5);
+			for (int i = -10; i < 50; i++) {
+				store.setCommitID(i, i + 100);
+			}
+			assertEquals(5, store.get(1));
+			assertEquals(1, store.size());
+			for (int i = -10; i < 50; i++) {
+				assertEquals(i + 100, store.getCommitID(i));
+			}
+			assertEquals(0, store.getCommitID(99));
+
+			// 2. The commit IDs are forgotten with the totals.
+			store.clear();
+			assertEquals(0, store.getCommitID(1));
+		}
+
+		// 3. A write in progress when a mapped store was closed must not be
+		// seen by the next process.
+		mapped.add(7, 3);
+		mapped.setCommitID(7, -4);
+		mapped.close();
+		mapped = new MappedItemStore(file, 0);
+		assertEquals(3, mapped.get(7));
+		assertEquals(0, mapped.getCommitID(7));
+		mapped.close();
+	}
+
+	@Test
+	public void testOpenAddressing_NoOverflow() {
+		ItemStore store = new OpenAddressingItemStore();
+
+		store.add(1, Integer.MAX_VALUE);
+		store.add(1, Integer.MAX_VALUE);
+		assertEquals(2L * Integer.MAX_VALUE, store.get(1));
+	}
+
+	@Test
+	public void testOpenAddressing_Concurrent() {
+		final ItemStore store = new OpenAddressingItemStore(1);
+		int numThreads = 8;
+		final int numItems = 20000;
+
+		// Every thread owns its own range of items, as concurrent writers on
+		// the same item are serialized by the ItemSupplier and not the store.
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < numThreads; t++) {
+			final int offset = t * numItems;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < numItems; i++) {
+						store.add(offset + i, 1);
+						store.add(offset + i, 1);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				fail();
+			}
+		}
+
+		assertEquals(numThreads * numItems, store.size());
+		for (int i = 0; i < numThreads * numItems; i++) {
+			assertEquals(2, store.get(i));
+		}
+	}
+
+	@Test
+	public void testDenseArray_Range() {
+		ItemStore store = new DenseArrayItemStore(-10, 10);
+
+		assertTrue(store.canStore(-10));
+		assertTrue(store.canStore(10));
+		assertFalse(store.canStore(11));
+
+		store.add(-10, 5);
+		store.add(10, 7);
+		store.add(10, 1);
+		assertEquals(2, store.size());
+		assertEquals(5, store.get(-10));
+		assertEquals(8, store.get(10));
+		assertEquals(0, store.get(11));
+
+		// Both stores must be equal when they hold the same totals.
+		ItemStore other = new OpenAddressingItemStore();
+		other.put(-10, 5);
+		other.put(10, 8);
+		assertEquals(store, other);
+	}
+
+	@Test
+	public void testItemSupplier_DenseStore() {
+		ItemSupplier supplier = new ItemSupplierImpl(0,
+				new DenseArrayItemStore(0, 9));
+
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(0, 10));
+		items.add(new ItemQuantity(9, 20));
+		TestUtility.executeStep(supplier,
+				new OrderStep(supplier.getSupplierID(), items));
+
+		// 1. An item outside of the range must be rejected and the step must
+		// not have any effect.
+		List<ItemQuantity> invalidItems = new ArrayList<ItemQuantity>();
+		invalidItems.add(new ItemQuantity(0, 10));
+		invalidItems.add(new ItemQuantity(10, 10));
+		try {
+			supplier.executeStep(new OrderStep(supplier.getSupplierID(),
+					invalidItems));
+			fail();
+		} catch (InvalidItemException e) {
+		} catch (Exception e) {
+			fail();
+		}
+
+		Set<Integer> itemIds = new HashSet<Integer>();
+		itemIds.add(0);
+		itemIds.add(9);
+		List<ItemQuantity> result = TestUtility.getOrdersPerItem(supplier,
+				itemIds);
+		assertTrue(result.contains(new ItemQuantity(0, 10)));
+		assertTrue(result.contains(new ItemQuantity(9, 20)));
+	}
+
+	@Test
+	public void testMapped_Restart() throws Exception {
+		File file = File.createTempFile("ItemStoreTests", ".dat");
+		file.delete();
+		file.deleteOnExit();
+
+		// 1. Execute a step against a supplier backed by a new file.
+		MappedItemStore store = new MappedItemStore(file, 100);
+		ItemSupplier supplier = new ItemSupplierImpl(0, store);
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(-3, 10));
+		items.add(new ItemQuantity(42, 20));
+		items.add(new ItemQuantity(42, 5));
+		TestUtility.executeStep(supplier,
+				new OrderStep(supplier.getSupplierID(), items));
+		long lastCommitID = store.getLastCommitID();
+		assertTrue(lastCommitID > 0);
+		store.close();
+
+		// 2. A supplier restarted on the same file must serve the totals at
+		// once.
+		store = new MappedItemStore(file, 0);
+		supplier = new ItemSupplierImpl(0, store);
+		assertEquals(2, store.size());
+
+		Set<Integer> itemIds = new HashSet<Integer>();
+		itemIds.add(-3);
+		itemIds.add(42);
+		List<ItemQuantity> result = TestUtility.getOrdersPerItem(supplier,
+				itemIds);
+		assertTrue(result.contains(new ItemQuantity(-3, 10)));
+		assertTrue(result.contains(new ItemQuantity(42, 25)));
+
+		// 3. The commit IDs of the restarted supplier must continue after the
+		// ones whose totals are in the file.
+		assertEquals(lastCommitID, store.getLastCommitID());
+		TestUtility.executeStep(supplier,
+				new OrderStep(supplier.getSupplierID(), items));
+		assertEquals(lastCommitID + 1, store.getLastCommitID());
+		store.close();
+	}
+
+	@Test
+	public void testMapped_Full() throws Exception {
+		File file = File.createTempFile("ItemStoreTests", ".dat");
+		file.delete();
+		file.deleteOnExit();
+
+		// A store created for 12 items has room for exactly 12 items.
+		MappedItemStore store = new MappedItemStore(file, 12);
+		ItemSupplier supplier = new ItemSupplierImpl(0, store);
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		for (int i = 0; i < 10; i++) {
+			items.add(new ItemQuantity(i, 1));
+		}
+		TestUtility.executeStep(supplier,
+				new OrderStep(supplier.getSupplierID(), items));
+
+		// 1. A step with more new items than there is room for must be
+		// rejected before any of its items are added.
+		List<ItemQuantity> tooMany = new ArrayList<ItemQuantity>();
+		tooMany.add(new ItemQuantity(0, 5));
+		tooMany.add(new ItemQuantity(10, 5));
+		tooMany.add(new ItemQuantity(11, 5));
+		tooMany.add(new ItemQuantity(12, 5));
+		try {
+			supplier.executeStep(new OrderStep(supplier.getSupplierID(),
+					tooMany));
+			fail();
+		} catch (InvalidItemException e) {
+		} catch (Exception e) {
+			fail();
+		}
+		assertEquals(1, store.get(0));
+		assertEquals(0, store.get(10));
+
+		// 2. The same holds for a step in a batch, which only fails itself.
+		List<OrderStep> steps = new ArrayList<OrderStep>();
+		steps.add(new OrderStep(supplier.getSupplierID(), tooMany));
+		steps.add(new OrderStep(supplier.getSupplierID(), items));
+		try {
+			List<OrderStepResult> results = supplier.executeSteps(steps);
+			assertFalse(results.get(0).isSuccessful());
+			assertTrue(results.get(1).isSuccessful());
+		} catch (Exception e) {
+			fail();
+		}
+		assertEquals(2, store.get(0));
+		assertEquals(0, store.get(10));
+
+		// 3. The items of the rejected steps must not be left locked, and
+		// the remaining room must still be usable.
+		List<ItemQuantity> fits = new ArrayList<ItemQuantity>();
+		fits.add(new ItemQuantity(0, 5));
+		fits.add(new ItemQuantity(10, 5));
+		fits.add(new ItemQuantity(11, 5));
+		TestUtility.executeStep(supplier,
+				new OrderStep(supplier.getSupplierID(), fits));
+		assertEquals(7, store.get(0));
+		assertEquals(5, store.get(11));
+		assertEquals(12, store.size());
+		store.close();
+	}
+}
@@ -19,6 +19,7 @@ import com.acertainsupplychain.ItemQuantity;
 import com.acertainsupplychain.ItemSupplier;
 import com.acertainsupplychain.OrderProcessingException;
 import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.OrderStepResult;
 import com.acertainsupplychain.impl.ItemSupplierImpl;
 import com.acertainsupplychain.utility.TestUtility;
 
@@ -459,4 +460,85 @@ public class ItemSupplierSimple {
 		assertEquals(localList, TestUtility.getOrdersPerItem(supplier, itemIds));
 	}
 
+	@Test
+	public final void testExecuteSteps_Valid() {
+		supplier.clear();
+
+		List<ItemQuantity> items1 = new ArrayList<ItemQuantity>();
+		items1.add(new ItemQuantity(0, 10));
+		items1.add(new ItemQuantity(1, 20));
+		List<ItemQuantity> items2 = new ArrayList<ItemQuantity>();
+		items2.add(new ItemQuantity(1, 5));
+		items2.add(new ItemQuantity(2, 30));
+
+		List<OrderStep> steps = new ArrayList<OrderStep>();
+		steps.add(new OrderStep(supplier.getSupplierID(), items1));
+		steps.add(new OrderStep(supplier.getSupplierID(), items2));
+
+		List<OrderStepResult> results = null;
+		try {
+			results = supplier.executeSteps(steps);
+		} catch (Exception e) {
+			fail();
+		}
+
+		assertEquals(2, results.size());
+		assertTrue(results.get(0).isSuccessful());
+		assertTrue(results.get(1).isSuccessful());
+
+		List<ItemQuantity> localList = new ArrayList<ItemQuantity>();
+		localList.add(new ItemQuantity(0, 10));
+		localList.add(new ItemQuantity(1, 25));
+		localList.add(new ItemQuantity(2, 30));
+		assertEquals(localList, TestUtility.getOrdersPerItem(supplier,
+				TestUtility.extractItemIds(localList)));
+	}
+
+	@Test
+	public final void testExecuteSteps_PartiallyInvalid() {
+		// Initialize the state of the supplier pre exception and make sure it
+		// is in the state we expect
+		List<ItemQuantity> localList = TestUtility
+				.setUpPreExceptionSupplierState(supplier);
+		Set<Integer> itemIds = TestUtility.extractItemIds(localList);
+		assertEquals(localList, TestUtility.getOrdersPerItem(supplier, itemIds));
+
+		List<ItemQuantity> validItems = new ArrayList<ItemQuantity>();
+		validItems.add(new ItemQuantity(0, 1));
+		List<ItemQuantity> invalidItems = new ArrayList<ItemQuantity>();
+		invalidItems.add(new ItemQuantity(1, 1));
+		invalidItems.add(new ItemQuantity(2, -1));
+
+		List<OrderStep> steps = new ArrayList<OrderStep>();
+		steps.add(new OrderStep(supplier.getSupplierID(), invalidItems));
+		steps.add(null);
+		steps.add(new OrderStep(supplier.getSupplierID(), validItems));
+
+		List<OrderStepResult> results = null;
+		try {
+			results = supplier.executeSteps(steps);
+		} catch (Exception e) {
+			fail();
+		}
+
+		// Only the valid step must have been executed
+		assertFalse(results.get(0).isSuccessful());
+		assertFalse(results.get(1).isSuccessful());
+		assertTrue(results.get(2).isSuccessful());
+
+		localList.set(0, new ItemQuantity(0, 11));
+		assertEquals(localList, TestUtility.getOrdersPerItem(supplier, itemIds));
+	}
+
+	@Test
+	public final void testExecuteSteps_NullList() {
+		try {
+			supplier.executeSteps(null);
+			fail();
+		} catch (OrderProcessingException e) {
+		} catch (Exception e) {
+			fail();
+		}
+	}
+
 }
@@ -0,0 +1,304 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.acertainsupplychain.utility.IntStripedLockManager;
+import com.acertainsupplychain.utility.LockManager;
+import com.acertainsupplychain.utility.LockMapManager;
+import com.acertainsupplychain.utility.LockProfile;
+import com.acertainsupplychain.utility.LockProfiler;
+import com.acertainsupplychain.utility.StripedLockManager;
+
+/**
+ * This JUnit test class is used to test the lock managers guarding the items
+ * of a supplier and the workflows of an OrderManager.
+ * 
+ * @author Arni
+ * 
+ */
+public class LockManagerTests {
+
+	/**
+	 * Locks and unlocks random lists of objects on several threads, with the
+	 * objects of every list in random order, and checks that no two threads
+	 * ever hold the write lock of the same object.
+	 * 
+	 * @param lockManager
+	 * @param objects
+	 * @throws InterruptedException
+	 */
+	private void runConcurrentWrites(final LockManager<Integer> lockManager,
+			final int objects) throws InterruptedException {
+		final int[] owners = new int[objects];
+		final AtomicInteger violations = new AtomicInteger(0);
+		int numThreads = 8;
+		final CountDownLatch done = new CountDownLatch(numThreads);
+		List<Integer> all = new ArrayList<Integer>();
+		for (int i = 0; i < objects; i++) {
+			all.add(i);
+		}
+		lockManager.addToLockMap(all);
+
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t + 1;
+			new Thread() {
+				@Override
+				public void run() {
+					List<Integer> list = new ArrayList<Integer>();
+					for (int n = 0; n < 2000; n++) {
+						list.clear();
+						for (int k = 0; k < 4; k++) {
+							list.add((n * 31 + k * 17 + thread) % objects);
+						}
+						Collections.shuffle(list);
+						lockManager.acquireWriteLocks(list);
+						for (int object : list) {
+							if (owners[object] != 0
+									&& owners[object] != thread) {
+								violations.incrementAndGet();
+							}
+							owners[object] = thread;
+						}
+						for (int object : list) {
+							owners[object] = 0;
+						}
+						lockManager.releaseWriteLocks(list);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		// A deadlock would keep the threads from finishing.
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		assertEquals(0, violations.get());
+	}
+
+	@Test
+	public void testLockMapManager() throws Exception {
+		runConcurrentWrites(new LockMapManager<Integer>(), 64);
+	}
+
+	@Test
+	public void testStripedLockManager() throws Exception {
+		// 1. Many objects share every stripe.
+		runConcurrentWrites(new StripedLockManager<Integer>(16), 1000);
+
+		// 2. The number of stripes is rounded up to a power of two.
+		assertEquals(1024, new StripedLockManager<Integer>().getStripes());
+		assertEquals(16, new StripedLockManager<Integer>(9).getStripes());
+		assertEquals(1, new StripedLockManager<Integer>(1).getStripes());
+	}
+
+	@Test
+	public void testIntStripedLockManager() throws Exception {
+		// 1. A lock order is sorted by stripe and then by value, and holds
+		// every object once.
+		assertTrue(Arrays.equals(new int[] { -3, 5, 9 },
+				new IntStripedLockManager(1).lockOrder(new int[] { 5, -3, 5, 9,
+						-3 })));
+		final IntStripedLockManager lockManager = new IntStripedLockManager(16);
+		int[] lockOrder = lockManager.lockOrder(new int[] { 7, 1, 7, 300, 2 });
+		assertEquals(4, lockOrder.length);
+		assertTrue(Arrays.equals(lockOrder, lockManager.lockOrder(lockOrder
+				.clone())));
+
+		// 2. No two threads ever hold the write lock of the same object, and
+		// the threads never deadlock.
+		final int objects = 1000;
+		final int[] owners = new int[objects];
+		final AtomicInteger violations = new AtomicInteger(0);
+		int numThreads = 8;
+		final CountDownLatch done = new CountDownLatch(numThreads);
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t + 1;
+			new Thread() {
+				@Override
+				public void run() {
+					for (int n = 0; n < 2000; n++) {
+						int[] itemIDs = new int[4];
+						for (int k = 0; k < 4; k++) {
+							itemIDs[(k + n) % 4] = (n * 31 + k * 17 + thread)
+									% objects;
+						}
+						itemIDs = lockManager.lockOrder(itemIDs);
+						lockManager.acquireWriteLocks(itemIDs);
+						for (int object : itemIDs) {
+							if (owners[object] != 0
+									&& owners[object] != thread) {
+								violations.incrementAndGet();
+							}
+							owners[object] = thread;
+						}
+						for (int object : itemIDs) {
+							owners[object] = 0;
+						}
+						lockManager.releaseWriteLocks(itemIDs);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		assertEquals(0, violations.get());
+	}
+
+	@Test
+	public void testSharedStripe() throws Exception {
+		final StripedLockManager<Integer> lockManager = new StripedLockManager<Integer>(
+				1);
+		List<Integer> objects = new ArrayList<Integer>(Arrays.asList(5, 3, 5,
+				9));
+
+		// 1. A stripe shared by several objects is only locked once, so a
+		// single release frees it for other threads.
+		lockManager.acquireWriteLocks(objects);
+		lockManager.releaseWriteLocks(objects);
+		assertTrue(tryReadLock(lockManager, 42));
+
+		// 2. A write lock on the stripe blocks readers of any object on it.
+		lockManager.acquireWriteLock(3);
+		assertFalse(tryReadLock(lockManager, 42));
+		lockManager.releaseWriteLock(3);
+
+		// 3. Readers of objects on the same stripe do not block each other.
+		lockManager.acquireReadLocks(objects);
+		assertTrue(tryReadLock(lockManager, 42));
+		lockManager.releaseReadLocks(objects);
+	}
+
+	@Test
+	public void testOptimisticRead() throws Exception {
+		List<LockManager<Integer>> lockManagers = new ArrayList<LockManager<Integer>>();
+		lockManagers.add(new LockMapManager<Integer>());
+		lockManagers.add(new StripedLockManager<Integer>());
+		for (LockManager<Integer> lockManager : lockManagers) {
+			lockManager.addToLockMap(Arrays.asList(1, 2));
+
+			// 1. A read with no writer in between is valid, also while other
+			// readers hold the read lock.
+			long stamp = lockManager.tryOptimisticRead(1);
+			lockManager.acquireReadLock(1);
+			lockManager.releaseReadLock(1);
+			assertTrue(lockManager.validate(1, stamp));
+
+			// 2. A read during which a writer locked the object is not.
+			stamp = lockManager.tryOptimisticRead(1);
+			lockManager.acquireWriteLock(1);
+			lockManager.releaseWriteLock(1);
+			assertFalse(lockManager.validate(1, stamp));
+
+			// 3. No stamp is given while the object is write locked.
+			lockManager.acquireWriteLocks(new ArrayList<Integer>(Arrays.asList(
+					2, 1, 2)));
+			assertEquals(0, lockManager.tryOptimisticRead(1));
+			assertFalse(lockManager.validate(1, 0));
+			lockManager.releaseWriteLocks(new ArrayList<Integer>(Arrays
+					.asList(1, 2, 2)));
+			assertTrue(lockManager.tryOptimisticRead(1) != 0);
+		}
+	}
+
+	@Test
+	public void testLockProfiler() throws Exception {
+		List<LockManager<Integer>> lockManagers = new ArrayList<LockManager<Integer>>();
+		lockManagers.add(new LockMapManager<Integer>());
+		lockManagers.add(new StripedLockManager<Integer>());
+		for (final LockManager<Integer> lockManager : lockManagers) {
+			lockManager.addToLockMap(Arrays.asList(1, 2, 3));
+			LockProfiler<Integer> profiler = new LockProfiler<Integer>(1);
+			lockManager.setProfiler(profiler);
+
+			// Another thread waits for object 1 while it is held for 20 ms.
+			lockManager.acquireWriteLock(1);
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					List<Integer> objects = new ArrayList<Integer>(Arrays
+							.asList(2, 1));
+					lockManager.acquireWriteLocks(objects);
+					lockManager.releaseWriteLocks(objects);
+				}
+			};
+			writer.start();
+			Thread.sleep(20);
+			lockManager.releaseWriteLock(1);
+			writer.join();
+			lockManager.acquireReadLock(3);
+			lockManager.releaseReadLock(3);
+
+			// 1. The object that was waited for is the hottest, and every
+			// acquisition is in its histogram.
+			List<LockProfile> hottest = profiler.getHottestKeys(1);
+			assertEquals(1, hottest.size());
+			LockProfile profile = hottest.get(0);
+			assertEquals(1, profile.getKey());
+			assertEquals(2, profile.getAcquisitions());
+			assertTrue(profile.getMaxWaitNanos() >= 10000000);
+			assertTrue(profile.getMaxHoldNanos() >= 10000000);
+			long waits = 0;
+			for (long count : profile.getWaitHistogram()) {
+				waits += count;
+			}
+			assertEquals(2, waits);
+			assertEquals(3, profiler.getHottestKeys(10).size());
+
+			// 2. Nothing is recorded once the profiler is removed.
+			lockManager.setProfiler(null);
+			lockManager.acquireWriteLock(1);
+			lockManager.releaseWriteLock(1);
+			assertEquals(2, profiler.getHottestKeys(1).get(0)
+					.getAcquisitions());
+		}
+
+		// 3. A sampling profiler estimates the number of acquisitions.
+		LockManager<Integer> lockManager = new LockMapManager<Integer>();
+		lockManager.addToLockMap(5);
+		LockProfiler<Integer> profiler = new LockProfiler<Integer>(4);
+		lockManager.setProfiler(profiler);
+		for (int i = 0; i < 4000; i++) {
+			lockManager.acquireReadLock(5);
+			lockManager.releaseReadLock(5);
+		}
+		long acquisitions = profiler.getHottestKeys(1).get(0)
+				.getAcquisitions();
+		assertTrue(acquisitions > 3000 && acquisitions < 5000);
+	}
+
+	/**
+	 * Returns true if another thread can take and release the read lock of the
+	 * given object within a second.
+	 * 
+	 * @param lockManager
+	 * @param object
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private boolean tryReadLock(final LockManager<Integer> lockManager,
+			final int object) throws InterruptedException {
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				lockManager.acquireReadLock(object);
+				locked.countDown();
+				lockManager.releaseReadLock(object);
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		return locked.await(1, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,350 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.log.FsyncPolicy;
+import com.acertainsupplychain.log.LogReader;
+import com.acertainsupplychain.log.LogRecordFormat;
+import com.acertainsupplychain.log.LogScanner;
+import com.acertainsupplychain.log.LogSegmentIndex;
+import com.acertainsupplychain.log.LogSegments;
+import com.acertainsupplychain.log.OrderManagerLogFormat;
+import com.acertainsupplychain.log.RecoveryStatistics;
+import com.acertainsupplychain.log.SupplierLogFormat;
+import com.acertainsupplychain.log.SupplierLogRecord;
+import com.acertainsupplychain.log.SupplierLogRecovery;
+import com.acertainsupplychain.log.WriteAheadLog;
+import com.acertainsupplychain.storage.OpenAddressingItemStore;
+
+/**
+ * This JUnit test class is used to test the rolling log segments, their
+ * sparse indexes and the LogReader that finds the records of a single key.
+ * 
+ * @author Arni
+ * 
+ */
+public class LogReaderTests {
+
+	/**
+	 * Creates a new empty folder for the segments of a log.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private File createLogFolder() throws IOException {
+		File folder = File.createTempFile("LogReaderTests", "");
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+
+	/**
+	 * Deletes the given folder and every file in it.
+	 * 
+	 * @param folder
+	 */
+	private void deleteFolder(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	/**
+	 * Writes a supplier log of the given number of steps, rolling every given
+	 * number of bytes.
+	 * 
+	 * @param file
+	 * @param numSteps
+	 * @param segmentSize
+	 * @return the segments of the log.
+	 * @throws IOException
+	 */
+	private LogSegments writeSupplierLog(File file, int numSteps,
+			long segmentSize) throws IOException {
+		// A small ring keeps the batches of the writer, and so the bytes a
+		// segment grows past its size, small.
+		LogSegments segments = new LogSegments(file, new SupplierLogFormat());
+		WriteAheadLog log = new WriteAheadLog(file, FsyncPolicy.NONE, 0, 256,
+				segments, segmentSize);
+		log.append(SupplierLogRecord.encodeInit(1));
+		for (int i = 1; i <= numSteps; i++) {
+			List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+			items.add(new ItemQuantity(i % 10, 1));
+			log.append(SupplierLogRecord.encodeStep(i, items));
+		}
+		log.close();
+		return segments;
+	}
+
+	@Test
+	public void testRolling() throws Exception {
+		File folder = createLogFolder();
+		try {
+			File file = new File(folder, "supplier.bin");
+			int numSteps = 2000;
+			LogSegments segments = writeSupplierLog(file, numSteps, 1024);
+
+			// 1. The log must have rolled into several segments, each ending
+			// at the end of a whole record.
+			long[] archived = segments.listSegments();
+			assertTrue(archived.length > 10);
+			for (long segment : archived) {
+				File segmentFile = segments.getSegmentFile(segment);
+				assertTrue(segmentFile.length() >= 1024);
+				assertEquals(segmentFile.length(), LogScanner.scan(
+						segmentFile, 0, Long.MAX_VALUE,
+						new SupplierLogFormat(),
+						new LogScanner.RecordVisitor() {
+							@Override
+							public void visit(long offset, byte[] buffer,
+									int start, int length) {
+							}
+						}));
+			}
+
+			// 2. Replaying every segment and the log file must give every
+			// step exactly once.
+			OpenAddressingItemStore store = new OpenAddressingItemStore();
+			RecoveryStatistics statistics = new SupplierLogRecovery()
+					.recover(segments.getTail(0), store, 0);
+			assertEquals(numSteps, statistics.getSteps());
+			assertEquals(numSteps, statistics.getLastSequence());
+			for (int i = 0; i < 10; i++) {
+				assertEquals(numSteps / 10, store.get(i));
+			}
+
+			// 3. New segments must be numbered after every existing one.
+			assertEquals(archived[archived.length - 1] + 1,
+					segments.allocate());
+		} finally {
+			deleteFolder(folder);
+		}
+	}
+
+	@Test
+	public void testSegmentIndex() throws Exception {
+		File folder = createLogFolder();
+		try {
+			File file = new File(folder, "supplier.bin");
+			LogSegments segments = writeSupplierLog(file, 500, 1 << 20);
+			long segment = segments.allocate();
+			assertTrue(file.renameTo(segments.getSegmentFile(segment)));
+			File segmentFile = segments.getSegmentFile(segment);
+
+			// 1. The index must hold one block per interval and the range of
+			// the keys in the segment.
+			LogSegmentIndex index = LogSegmentIndex.build(segmentFile,
+					new SupplierLogFormat(), 256);
+			assertTrue(index.getBlocks() > 10);
+			assertEquals(segmentFile.length(), index.getLength());
+			assertEquals(1, index.getMinKey());
+			assertEquals(500, index.getMaxKey());
+
+			// 2. An index that was written must be read back the same.
+			File indexFile = segments.getIndexFile(segment);
+			index.write(indexFile);
+			LogSegmentIndex loaded = LogSegmentIndex.load(indexFile);
+			assertEquals(index.getBlocks(), loaded.getBlocks());
+			assertEquals(index.getLength(), loaded.getLength());
+
+			// 3. The ranges of a key must be a single block that holds it.
+			for (long key = 1; key <= 500; key += 37) {
+				long[] ranges = loaded.find(key);
+				assertEquals(2, ranges.length);
+				assertTrue(ranges[1] - ranges[0] < 512);
+			}
+			assertEquals(0, loaded.find(0).length);
+			assertEquals(0, loaded.find(501).length);
+		} finally {
+			deleteFolder(folder);
+		}
+	}
+
+	@Test
+	public void testTruncateWhileIndexing() throws Exception {
+		File folder = createLogFolder();
+		try {
+			// 1. Truncate every segment while the indexes of the segments
+			// are still being built in the background.
+			File file = new File(folder, "supplier.bin");
+			LogSegments segments = writeSupplierLog(file, 2000, 1024);
+			long[] archived = segments.listSegments();
+			assertTrue(archived.length > 10);
+			assertEquals(archived.length,
+					segments.truncate(archived[archived.length - 1]));
+
+			// 2. The segments are indexed in order, so once a segment closed
+			// afterwards is indexed, every earlier one is done.
+			long last = segments.allocate();
+			assertTrue(file.renameTo(segments.getSegmentFile(last)));
+			segments.closed(last);
+			File lastIndex = segments.getIndexFile(last);
+			for (int i = 0; i < 1000 && !lastIndex.exists(); i++) {
+				Thread.sleep(10);
+			}
+			assertTrue(lastIndex.exists());
+
+			// 3. No index must be left of a deleted segment.
+			for (long segment : archived) {
+				assertFalse(segments.getIndexFile(segment).exists());
+			}
+		} finally {
+			deleteFolder(folder);
+		}
+	}
+
+	@Test
+	public void testFindSupplierRecords() throws Exception {
+		File folder = createLogFolder();
+		try {
+			File file = new File(folder, "supplier.bin");
+			int numSteps = 2000;
+			writeSupplierLog(file, numSteps, 2048);
+
+			// 1. Every step must be found, whether it is archived or still in
+			// the log file.
+			LogReader reader = new LogReader(file, new SupplierLogFormat());
+			for (long key = 1; key <= numSteps; key += 97) {
+				List<byte[]> records = reader.find(key);
+				assertEquals(1, records.size());
+				byte[] record = records.get(0);
+				SupplierLogRecord decoded = SupplierLogRecord.decode(record,
+						0, record.length);
+				assertEquals(key, decoded.getSequence());
+				assertEquals((int) (key % 10), decoded.getItemID(0));
+			}
+			assertEquals(1, reader.find(numSteps).size());
+			assertEquals(0, reader.find(numSteps + 1).size());
+		} finally {
+			deleteFolder(folder);
+		}
+	}
+
+	/**
+	 * Appends the given steps to a supplier log that may already exist.
+	 * 
+	 * @param file
+	 * @param segments
+	 * @param first
+	 * @param last
+	 * @param segmentSize
+	 * @throws IOException
+	 */
+	private void appendSteps(File file, LogSegments segments, int first,
+			int last, long segmentSize) throws IOException {
+		WriteAheadLog log = new WriteAheadLog(file, FsyncPolicy.NONE, 0, 256,
+				segments, segmentSize);
+		for (int i = first; i <= last; i++) {
+			List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+			items.add(new ItemQuantity(i % 10, 1));
+			log.append(SupplierLogRecord.encodeStep(i, items));
+		}
+		log.close();
+	}
+
+	@Test
+	public void testFindInGrowingLogFile() throws Exception {
+		File folder = createLogFolder();
+		try {
+			File file = new File(folder, "supplier.bin");
+			LogSegments segments = writeSupplierLog(file, 500, 1 << 20);
+			assertEquals(0, segments.listSegments().length);
+			LogReader reader = new LogReader(file, new SupplierLogFormat());
+			assertEquals(1, reader.find(250).size());
+			assertEquals(0, reader.find(750).size());
+
+			// 1. Steps appended after a search must be found by the next one.
+			appendSteps(file, segments, 501, 1000, 1 << 20);
+			assertEquals(0, segments.listSegments().length);
+			for (long key = 1; key <= 1000; key += 37) {
+				assertEquals(1, reader.find(key).size());
+			}
+			assertEquals(1, reader.find(1000).size());
+
+			// 2. Steps must still be found once the log has rolled and the log
+			// file has been replaced.
+			appendSteps(file, segments, 1001, 1500, 1024);
+			assertTrue(segments.listSegments().length > 0);
+			for (long key = 1; key <= 1500; key += 37) {
+				assertEquals(1, reader.find(key).size());
+			}
+			assertEquals(1, reader.find(1500).size());
+			assertEquals(0, reader.find(1501).size());
+		} finally {
+			deleteFolder(folder);
+		}
+	}
+
+	@Test
+	public void testFindWorkflowRecords() throws Exception {
+		File folder = createLogFolder();
+		try {
+			File file = new File(folder, "ordermanager.txt");
+			LogSegments segments = new LogSegments(file,
+					new OrderManagerLogFormat());
+			WriteAheadLog log = new WriteAheadLog(file, FsyncPolicy.NONE, 0,
+					256, segments, 512);
+			log.append("[2015-01-01 12:00:00.0] INITOM 1\n".getBytes());
+			int numWorkflows = 300;
+			for (int i = 0; i < numWorkflows; i++) {
+				log.append(("[2015-01-01 12:00:00.0] REGISTER " + i
+						+ " [1,(1,1)] \n").getBytes());
+				// Workflow 0 is updated long after it was registered.
+				int updated = i % 50 == 0 ? 0 : i;
+				log.append(("[2015-01-01 12:00:00.0] UPDATE " + updated
+						+ " 0 SUCCESSFUL\n").getBytes());
+			}
+			log.close();
+			assertTrue(segments.listSegments().length > 1);
+
+			// 1. Every line of a workflow must be found in the order it was
+			// logged.
+			LogReader reader = new LogReader(file, new OrderManagerLogFormat());
+			List<byte[]> records = reader.find(0);
+			assertEquals(1 + numWorkflows / 50, records.size());
+			assertTrue(new String(records.get(0)).contains("REGISTER 0 "));
+			for (int i = 1; i < records.size(); i++) {
+				assertTrue(new String(records.get(i)).contains("UPDATE 0 "));
+			}
+			assertEquals(2, reader.find(123).size());
+			assertEquals(1, reader.find(150).size());
+			assertEquals(0, reader.find(numWorkflows).size());
+		} finally {
+			deleteFolder(folder);
+		}
+	}
+
+	@Test
+	public void testOrderManagerFormat() {
+		LogRecordFormat format = new OrderManagerLogFormat();
+		byte[] line = "[2015-01-01 12:00:00.0] REGISTER 42 [1,(1,1)] \n"
+				.getBytes();
+
+		// 1. A record is a whole line.
+		assertEquals(line.length, format.recordLength(line, 0, line.length));
+		assertEquals(0, format.recordLength(line, 0, line.length - 1));
+		assertEquals(42, format.keyOf(line, 0, line.length));
+
+		// 2. Lines without a workflow ID have no key.
+		byte[] other = "INITOM 1\n".getBytes();
+		assertEquals(LogRecordFormat.NO_KEY,
+				format.keyOf(other, 0, other.length));
+		byte[] update = "UPDATE 7 0 SUCCESSFUL\n".getBytes();
+		assertEquals(7, format.keyOf(update, 0, update.length));
+	}
+}
@@ -0,0 +1,280 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.ItemSupplier;
+import com.acertainsupplychain.OrderManager.StepStatus;
+import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.impl.ItemSupplierImpl;
+import com.acertainsupplychain.impl.OrderManagerImpl;
+import com.acertainsupplychain.log.OrderManagerLogEncoder;
+import com.acertainsupplychain.log.OrderManagerLogFormat;
+import com.acertainsupplychain.log.OrderManagerLogRecovery;
+import com.acertainsupplychain.log.RecoveryStatistics;
+import com.acertainsupplychain.utility.FileLogger;
+
+/**
+ * This JUnit test class is used to test that an OrderManager can rebuild its
+ * workflows from its log and resume the workflows that were not finished.
+ * 
+ * @author Arni
+ * 
+ */
+public class OrderManagerRecoveryTests {
+
+	private final static String TIMESTAMP = "[2015-01-01 12:00:00.0] ";
+
+	@Test
+	public void testLogRecovery() throws Exception {
+		File file = File.createTempFile("OrderManagerRecoveryTests", ".txt");
+		file.deleteOnExit();
+		FileOutputStream output = new FileOutputStream(file);
+		output.write(("How to read this log file?%n" + TIMESTAMP + "INITOM 1\n"
+				+ TIMESTAMP + "REGISTER 0 [1,(2,3),(-4,5)] \n" + TIMESTAMP
+				+ "REGISTER 1 [1,(null)(2,1)] [2] \n" + TIMESTAMP
+				+ "UPDATE 0 0 SUCCESSFUL\r\n" + TIMESTAMP + "CLEARDONE\n"
+				+ TIMESTAMP + "REGISTER 0 [3,(7,8)] [4,(9,10)] \n" + TIMESTAMP
+				+ "UPDATE 0 1 FAILED\n" + TIMESTAMP + "REGISTER 5 [3,(-1,1)] \n"
+				+ TIMESTAMP + "REGISTER 6 [3,(1,1)] ").getBytes());
+		output.close();
+
+		for (int threads = 1; threads <= 3; threads++) {
+			Map<Integer, List<OrderStep>> workflows = new HashMap<Integer, List<OrderStep>>();
+			Map<Integer, List<StepStatus>> status = new HashMap<Integer, List<StepStatus>>();
+			RecoveryStatistics statistics = new OrderManagerLogRecovery(
+					threads).recover(Collections.singletonList(file),
+					workflows, status);
+
+			// 1. Only the workflows after the clear must be recovered, and the
+			// torn last line must be ignored.
+			assertEquals(new HashSet<Integer>(Arrays.asList(0, 5)),
+					workflows.keySet());
+			assertEquals(2, statistics.getSteps());
+			assertEquals(5, statistics.getLastSequence());
+			assertEquals(8, statistics.getRecords());
+			assertTrue(statistics.isCorrupt());
+
+			// 2. The steps and the last status of every step must be rebuilt.
+			assertEquals(Arrays.asList(
+					new OrderStep(3, Arrays.asList(new ItemQuantity(7, 8))),
+					new OrderStep(4, Arrays.asList(new ItemQuantity(9, 10)))),
+					workflows.get(0));
+			assertEquals(
+					Arrays.asList(StepStatus.REGISTERED, StepStatus.FAILED),
+					status.get(0));
+			assertEquals(Arrays.asList(new OrderStep(3, Arrays
+					.asList(new ItemQuantity(-1, 1)))), workflows.get(5));
+			assertEquals(Arrays.asList(StepStatus.REGISTERED), status.get(5));
+		}
+	}
+
+	@Test
+	public void testLogRecovery_FinishedWorkflows() throws Exception {
+		File file = File.createTempFile("OrderManagerRecoveryTests", ".txt");
+		file.deleteOnExit();
+		FileOutputStream output = new FileOutputStream(file);
+		output.write((TIMESTAMP + "REGISTER 0 [1,(1,1)] \n" + TIMESTAMP
+				+ "UPDATE 0 0 FAILED\n" + TIMESTAMP + "CLEARDONE\n"
+				+ TIMESTAMP + "REGISTER 0 [1,(1,1)] [2,(2,2)] \n" + TIMESTAMP
+				+ "REGISTER 1 [1,(3,3)] \n" + TIMESTAMP
+				+ "UPDATE 0 1 SUCCESSFUL\n" + TIMESTAMP
+				+ "UPDATE 1 0 SUCCESSFUL\n" + TIMESTAMP
+				+ "REGISTER 2 [1,(4,4)] \n").getBytes());
+		output.close();
+
+		for (int threads = 1; threads <= 3; threads++) {
+			final Map<Integer, List<StepStatus>> finished = Collections
+					.synchronizedMap(new HashMap<Integer, List<StepStatus>>());
+			final int[] clears = new int[1];
+			Map<Integer, List<OrderStep>> workflows = new HashMap<Integer, List<OrderStep>>();
+			Map<Integer, List<StepStatus>> status = new HashMap<Integer, List<StepStatus>>();
+			RecoveryStatistics statistics = new OrderManagerLogRecovery(
+					threads).recover(Collections.singletonList(file),
+					workflows, status,
+					new OrderManagerLogRecovery.FinishedWorkflows() {
+						@Override
+						public void finished(int workflowID,
+								List<OrderStep> steps, List<StepStatus> statuses) {
+							finished.put(workflowID, statuses);
+						}
+
+						@Override
+						public void cleared() {
+							finished.clear();
+							clears[0]++;
+						}
+					});
+
+			// 1. Only the workflows that have a step left must be kept, and
+			// the finished ones must be handed on, those before the clear
+			// being forgotten.
+			assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)),
+					workflows.keySet());
+			assertEquals(workflows.keySet(), status.keySet());
+			assertEquals(1, clears[0]);
+			assertEquals(Collections.singleton(1), finished.keySet());
+			assertEquals(Arrays.asList(StepStatus.SUCCESSFUL),
+					finished.get(1));
+
+			// 2. The statistics must still count every recovered workflow.
+			assertEquals(3, statistics.getSteps());
+			assertEquals(2, statistics.getLastSequence());
+		}
+	}
+
+	@Test
+	public void testStepParsing() throws Exception {
+		File file = File.createTempFile("OrderManagerRecoveryTests", ".txt");
+		file.deleteOnExit();
+		FileOutputStream output = new FileOutputStream(file);
+		output.write((TIMESTAMP + "REGISTER 3 [1,(null)(2,1)] [2] \n"
+				+ TIMESTAMP + "UPDATE 3 1 (null)\n" + TIMESTAMP
+				+ "UPDATE 3 7 SUCCESSFUL\n").getBytes());
+		output.close();
+
+		Map<Integer, List<OrderStep>> workflows = new HashMap<Integer, List<OrderStep>>();
+		Map<Integer, List<StepStatus>> status = new HashMap<Integer, List<StepStatus>>();
+		RecoveryStatistics statistics = new OrderManagerLogRecovery(2)
+				.recover(Collections.singletonList(file), workflows, status);
+		assertFalse(statistics.isCorrupt());
+
+		// 1. An update of a step the workflow does not have must be skipped
+		// and counted.
+		assertEquals(1, statistics.getSkipped());
+
+		// 2. A NULL item, a step without items and a NULL status must be read
+		// back as they were logged.
+		List<OrderStep> steps = workflows.get(3);
+		assertEquals(2, steps.size());
+		assertNull(steps.get(0).getItems().get(0));
+		assertEquals(new ItemQuantity(2, 1), steps.get(0).getItems().get(1));
+		assertEquals(2, steps.get(1).getSupplierId());
+		assertTrue(steps.get(1).getItems().isEmpty());
+		assertEquals(StepStatus.REGISTERED, status.get(3).get(0));
+		assertNull(status.get(3).get(1));
+	}
+
+	@Test
+	public void testLogEncoding() throws Exception {
+		OrderManagerLogEncoder encoder = new OrderManagerLogEncoder();
+		String separator = System.getProperty("line.separator");
+		List<OrderStep> steps = Arrays.asList(
+				new OrderStep(1, Arrays.asList(null, new ItemQuantity(2, 1))),
+				new OrderStep(2, new ArrayList<ItemQuantity>()),
+				new OrderStep(-7, Arrays.asList(new ItemQuantity(
+						Integer.MIN_VALUE, Integer.MAX_VALUE)), new int[] { 0,
+						1 }));
+
+		// 1. The lines are encoded as FileLogger would write them, with the
+		// timestamp of java.sql.Timestamp.
+		long[] times = { 1420113600000L, 1420113601120L, 1420113659999L,
+				1420113660005L };
+		for (long time : times) {
+			String timestamp = "[" + new Timestamp(time) + "] ";
+			int length = encoder.encodeRegister(3, steps, time);
+			assertEquals(timestamp + "REGISTER 3 [1,(null)(2,1)] [2] [-7,("
+					+ Integer.MIN_VALUE + "," + Integer.MAX_VALUE + ")]<0,1> "
+					+ separator,
+					new String(encoder.getBuffer(), 0, length));
+			length = encoder.encodeUpdate(3, 1, StepStatus.FAILED, time);
+			assertEquals(timestamp + "UPDATE 3 1 FAILED" + separator,
+					new String(encoder.getBuffer(), 0, length));
+			length = encoder.encodeUpdate(3, 0, null, time);
+			assertEquals(timestamp + "UPDATE 3 0 (null)" + separator,
+					new String(encoder.getBuffer(), 0, length));
+		}
+
+		// 2. The encoded lines, with a batch of appended registrations, are
+		// read back by the recovery.
+		File file = File.createTempFile("OrderManagerRecoveryTests", ".txt");
+		file.deleteOnExit();
+		FileOutputStream output = new FileOutputStream(file);
+		encoder.encodeRegister(3, steps, times[0]);
+		output.write(encoder.getBuffer(), 0,
+				encoder.appendRegister(4, steps.subList(1, 2), times[0]));
+		encoder.trim();
+		output.write(encoder.getBuffer(), 0,
+				encoder.encodeUpdate(3, 2, StepStatus.SUCCESSFUL, times[0]));
+		output.close();
+		Map<Integer, List<OrderStep>> workflows = new HashMap<Integer, List<OrderStep>>();
+		Map<Integer, List<StepStatus>> status = new HashMap<Integer, List<StepStatus>>();
+		new OrderManagerLogRecovery(1).recover(Collections.singletonList(file),
+				workflows, status);
+		assertEquals(steps, workflows.get(3));
+		assertEquals(Arrays.asList(StepStatus.REGISTERED,
+				StepStatus.REGISTERED, StepStatus.SUCCESSFUL), status.get(3));
+		assertEquals(steps.subList(1, 2), workflows.get(4));
+		assertEquals(Arrays.asList(StepStatus.REGISTERED), status.get(4));
+	}
+
+	@Test
+	public void testOrderManagerRecovery() throws Exception {
+		ItemSupplier first = new ItemSupplierImpl(95);
+		ItemSupplier second = new ItemSupplierImpl(96);
+		first.clear();
+		second.clear();
+		Map<Integer, ItemSupplier> suppliers = new HashMap<Integer, ItemSupplier>();
+		suppliers.put(95, first);
+		suppliers.put(96, second);
+
+		OrderManagerImpl orderManager = new OrderManagerImpl(93, suppliers);
+		orderManager.clear();
+		int numWorkflows = 20;
+		for (int i = 0; i < numWorkflows; i++) {
+			List<OrderStep> steps = new ArrayList<OrderStep>();
+			steps.add(new OrderStep(95, Arrays.asList(new ItemQuantity(1, 1))));
+			steps.add(new OrderStep(96, Arrays.asList(new ItemQuantity(2, 1))));
+			assertEquals(i, orderManager.registerOrderWorkflow(steps));
+		}
+		orderManager.waitForJobsToFinish();
+
+		// A workflow whose job was lost when the OrderManager stopped.
+		FileLogger logger = new FileLogger("93_OrderManager_logfile",
+				OrderManagerLogFormat.FILE_TYPE, "",
+				new OrderManagerLogFormat());
+		logger.awaitDurable(logger.logToFile("REGISTER " + numWorkflows
+				+ " [95,(3,4)] " + System.getProperty("line.separator"), true));
+
+		// 1. The restarted OrderManager must know every workflow and status.
+		OrderManagerImpl restarted = new OrderManagerImpl(93, suppliers, true);
+		for (int i = 0; i < numWorkflows; i++) {
+			assertEquals(
+					Arrays.asList(StepStatus.SUCCESSFUL, StepStatus.SUCCESSFUL),
+					restarted.getOrderWorkflowStatus(i));
+		}
+
+		// 2. The unfinished workflow must be executed, and only once.
+		restarted.waitForJobsToFinish();
+		assertEquals(Arrays.asList(StepStatus.SUCCESSFUL),
+				restarted.getOrderWorkflowStatus(numWorkflows));
+		assertEquals(Arrays.asList(new ItemQuantity(1, numWorkflows)),
+				first.getOrdersPerItem(Collections.singleton(1)));
+		assertEquals(Arrays.asList(new ItemQuantity(3, 4)),
+				first.getOrdersPerItem(Collections.singleton(3)));
+
+		// 3. New workflows must continue after the recovered ones.
+		assertEquals(numWorkflows + 1, restarted.registerOrderWorkflow(Arrays
+				.asList(new OrderStep(96, Arrays.asList(new ItemQuantity(2, 1))))));
+		restarted.waitForJobsToFinish();
+		restarted.clear();
+		first.clear();
+		second.clear();
+	}
+}
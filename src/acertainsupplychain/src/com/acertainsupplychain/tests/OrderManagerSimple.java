@@ -7,14 +7,18 @@ import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.acertainsupplychain.InvalidItemException;
 import com.acertainsupplychain.InvalidWorkflowException;
 import com.acertainsupplychain.ItemQuantity;
 import com.acertainsupplychain.ItemSupplier;
@@ -22,8 +26,10 @@ import com.acertainsupplychain.OrderManager;
 import com.acertainsupplychain.OrderManager.StepStatus;
 import com.acertainsupplychain.OrderProcessingException;
 import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.OrderStepResult;
 import com.acertainsupplychain.impl.ItemSupplierImpl;
 import com.acertainsupplychain.impl.OrderManagerImpl;
+import com.acertainsupplychain.storage.WorkflowStateIndex.State;
 import com.acertainsupplychain.utility.TestUtility;
 
 /**
@@ -951,6 +957,403 @@ public class OrderManagerSimple {
 				TestUtility.getOrderWorkflowStatus(orderManager, workflowID)));
 	}
 
+	@Test
+	public final void testRegisterOrderWorkflows() {
+		// 1. A batch of workflows gets consecutive IDs and is processed as if
+		// registered one by one
+		List<List<OrderStep>> workflows = new ArrayList<List<OrderStep>>();
+		for (int i = 0; i < 5; i++) {
+			List<OrderStep> steps = new ArrayList<OrderStep>();
+			for (int j = 0; j <= i; j++) {
+				steps.add(TestUtility.createRandomValidOrderStep(supplierIDs));
+			}
+			workflows.add(steps);
+		}
+
+		int[] workflowIDs = null;
+		try {
+			workflowIDs = orderManager.registerOrderWorkflows(workflows);
+		} catch (Exception e) {
+			fail();
+		}
+		assertEquals(workflows.size(), workflowIDs.length);
+		for (int i = 0; i < workflowIDs.length; i++) {
+			assertEquals(workflowIDs[0] + i, workflowIDs[i]);
+			try {
+				assertEquals(workflows.get(i),
+						orderManager.jobGetWorkflow(workflowIDs[i]));
+			} catch (Exception e) {
+				fail();
+			}
+		}
+
+		TestUtility.waitForJobsToFinish(orderManager);
+
+		List<List<StepStatus>> statuses = null;
+		try {
+			statuses = orderManager.getOrderWorkflowStatuses(workflowIDs);
+		} catch (Exception e) {
+			fail();
+		}
+		assertEquals(workflowIDs.length, statuses.size());
+		for (int i = 0; i < workflowIDs.length; i++) {
+			assertEquals(workflows.get(i).size(), statuses.get(i).size());
+			assertFalse(statuses.get(i).contains(StepStatus.REGISTERED));
+			assertEquals(statuses.get(i), TestUtility.getOrderWorkflowStatus(
+					orderManager, workflowIDs[i]));
+		}
+
+		// 2. A batch with an invalid workflow registers none of them
+		workflows.add(new ArrayList<OrderStep>());
+		try {
+			orderManager.registerOrderWorkflows(workflows);
+			fail();
+		} catch (InvalidWorkflowException e) {
+		} catch (Exception e) {
+			fail();
+		}
+		List<OrderStep> steps = new ArrayList<OrderStep>();
+		steps.add(TestUtility.createRandomValidOrderStep(supplierIDs));
+		assertEquals(workflowIDs[workflowIDs.length - 1] + 1,
+				TestUtility.registerOrderWorkflow(orderManager, steps));
+
+		// 3. Querying an unknown workflow among known ones throws the proper
+		// exception
+		try {
+			orderManager.getOrderWorkflowStatuses(new int[] { workflowIDs[0],
+					workflowIDs[workflowIDs.length - 1] + 2 });
+			fail();
+		} catch (InvalidWorkflowException e) {
+		} catch (Exception e) {
+			fail();
+		}
+	}
+
+	@Test
+	public final void testArchivedWorkflows() throws Exception {
+		// 1. Finished workflows are moved out of memory into the archive
+		OrderManagerImpl orderManagerImpl = (OrderManagerImpl) orderManager;
+		List<List<OrderStep>> workflows = new ArrayList<List<OrderStep>>();
+		for (int i = 0; i < 20; i++) {
+			List<OrderStep> steps = new ArrayList<OrderStep>();
+			steps.add(TestUtility.createRandomValidOrderStep(supplierIDs));
+			steps.add(TestUtility.createRandomValidOrderStep(supplierIDs));
+			workflows.add(steps);
+		}
+		int[] workflowIDs = orderManager.registerOrderWorkflows(workflows);
+		TestUtility.waitForJobsToFinish(orderManager);
+
+		assertEquals(0, orderManagerImpl.getWorkflowsInMemory());
+		assertEquals(workflows.size(), orderManagerImpl.getArchivedWorkflows());
+
+		// 2. Archived workflows are read as if they were in memory
+		for (int i = 0; i < workflowIDs.length; i++) {
+			List<StepStatus> statuses = orderManager
+					.getOrderWorkflowStatus(workflowIDs[i]);
+			assertEquals(2, statuses.size());
+			assertFalse(statuses.contains(StepStatus.REGISTERED));
+			assertEquals(workflows.get(i),
+					orderManager.jobGetWorkflow(workflowIDs[i]));
+			assertEquals(statuses,
+					orderManager.awaitWorkflow(workflowIDs[i], 1000));
+		}
+		assertEquals(workflowIDs.length, orderManager
+				.getOrderWorkflowStatuses(workflowIDs).size());
+
+		// 3. An archived workflow cannot be changed
+		try {
+			orderManager.jobSetStatus(workflowIDs[0], 0, StepStatus.FAILED);
+			fail();
+		} catch (InvalidWorkflowException e) {
+		}
+	}
+
+	@Test
+	public final void testWorkflowStates() throws Exception {
+		// 1. Workflows are indexed by state as their steps are executed
+		OrderManagerImpl orderManagerImpl = (OrderManagerImpl) orderManager;
+		List<List<OrderStep>> workflows = new ArrayList<List<OrderStep>>();
+		for (int i = 0; i < 10; i++) {
+			List<OrderStep> steps = new ArrayList<OrderStep>();
+			steps.add(new OrderStep(supplierIDs[i % supplierIDs.length],
+					Arrays.asList(new ItemQuantity(i, 5))));
+			if (i % 3 == 0) {
+				steps.add(new OrderStep(supplierIDs[0], Arrays
+						.asList(new ItemQuantity(1, -1))));
+			}
+			workflows.add(steps);
+		}
+		int[] workflowIDs = orderManager.registerOrderWorkflows(workflows);
+		TestUtility.waitForJobsToFinish(orderManager);
+
+		assertEquals(0, orderManagerImpl.getWorkflowCount(State.IN_PROGRESS));
+		assertEquals(4, orderManagerImpl.getWorkflowCount(State.HAS_FAILURES));
+		assertEquals(6, orderManagerImpl.getWorkflowCount(State.SUCCESSFUL));
+
+		// 2. The listed workflows agree with their statuses
+		int[] failed = orderManagerImpl.getWorkflowsInState(
+				State.HAS_FAILURES, 0, 100);
+		assertTrue(Arrays.equals(new int[] { workflowIDs[0], workflowIDs[3],
+				workflowIDs[6], workflowIDs[9] }, failed));
+		for (int workflowID : orderManagerImpl.getWorkflowsInState(
+				State.SUCCESSFUL, 0, 100)) {
+			for (StepStatus status : orderManager
+					.getOrderWorkflowStatus(workflowID)) {
+				assertEquals(StepStatus.SUCCESSFUL, status);
+			}
+		}
+		assertTrue(Arrays.equals(new int[] { workflowIDs[6] },
+				orderManagerImpl.getWorkflowsInState(State.HAS_FAILURES,
+						workflowIDs[4], 1)));
+	}
+
+	@Test
+	public final void testRegisterOrderWorkflow_InvalidDependency() {
+		List<OrderStep> steps = new ArrayList<OrderStep>();
+		steps.add(TestUtility.createRandomValidOrderStep(supplierIDs));
+		steps.add(new OrderStep(supplierIDs[0], Arrays.asList(new ItemQuantity(
+				1, 1)), new int[] { 1 }));
+		try {
+			orderManager.registerOrderWorkflow(steps);
+			fail();
+		} catch (InvalidWorkflowException e) {
+		} catch (Exception e) {
+			fail();
+		}
+	}
+
+	@Test
+	public final void testStepDependencies() throws Exception {
+		// 1. The same workflows end with the same statuses whether their steps
+		// are executed one after another or in parallel.
+		OrderManagerImpl orderManagerImpl = (OrderManagerImpl) orderManager;
+		List<StepStatus> expected = Arrays.asList(StepStatus.SUCCESSFUL,
+				StepStatus.SUCCESSFUL, StepStatus.FAILED, StepStatus.FAILED,
+				StepStatus.FAILED, StepStatus.SUCCESSFUL, StepStatus.SUCCESSFUL);
+		try {
+			for (boolean parallelSteps : new boolean[] { false, true }) {
+				orderManagerImpl.setParallelSteps(parallelSteps);
+				List<List<OrderStep>> workflows = new ArrayList<List<OrderStep>>();
+				for (int i = 0; i < 20; i++) {
+					List<OrderStep> steps = new ArrayList<OrderStep>();
+					steps.add(new OrderStep(0, Arrays.asList(new ItemQuantity(
+							100, 1))));
+					steps.add(new OrderStep(1, Arrays.asList(new ItemQuantity(
+							100, 1))));
+					// A failed step fails the steps that depend on it, also
+					// through other steps, but not the next step at its
+					// supplier.
+					steps.add(new OrderStep(0, Arrays.asList(new ItemQuantity(
+							101, -1))));
+					steps.add(new OrderStep(2, Arrays.asList(new ItemQuantity(
+							101, 1)), new int[] { 2 }));
+					steps.add(new OrderStep(3, Arrays.asList(new ItemQuantity(
+							101, 1)), new int[] { 0, 3 }));
+					steps.add(new OrderStep(4, Arrays.asList(new ItemQuantity(
+							100, 1)), new int[] { 0, 1 }));
+					steps.add(new OrderStep(0, Arrays.asList(new ItemQuantity(
+							102, 1))));
+					workflows.add(steps);
+				}
+				for (int workflowID : orderManager
+						.registerOrderWorkflows(workflows)) {
+					assertEquals(expected,
+							orderManager.awaitWorkflow(workflowID, 10000));
+				}
+				orderManager.waitForJobsToFinish();
+
+				// 2. A failed dependency is never executed.
+				assertEquals(Arrays.asList(new ItemQuantity(100, 20)),
+						allSuppliers.get(4).getOrdersPerItem(
+								Collections.singleton(100)));
+				try {
+					allSuppliers.get(2).getOrdersPerItem(
+							Collections.singleton(101));
+					fail();
+				} catch (InvalidItemException e) {
+				}
+				tearDown();
+			}
+		} finally {
+			orderManagerImpl.setParallelSteps(false);
+		}
+	}
+
+	@Test
+	public final void testStepCoalescing() throws Exception {
+		// The suppliers count the requests they get.
+		final AtomicInteger singleSteps = new AtomicInteger(0);
+		final AtomicInteger batches = new AtomicInteger(0);
+		Map<Integer, ItemSupplier> suppliers = new HashMap<Integer, ItemSupplier>();
+		for (final ItemSupplier supplier : allSuppliers.values()) {
+			suppliers.put(supplier.getSupplierID(), new ItemSupplier() {
+				@Override
+				public void executeStep(OrderStep step)
+						throws OrderProcessingException {
+					singleSteps.incrementAndGet();
+					supplier.executeStep(step);
+				}
+
+				@Override
+				public List<OrderStepResult> executeSteps(List<OrderStep> steps)
+						throws OrderProcessingException {
+					batches.incrementAndGet();
+					return supplier.executeSteps(steps);
+				}
+
+				@Override
+				public List<ItemQuantity> getOrdersPerItem(Set<Integer> itemIds)
+						throws InvalidItemException {
+					return supplier.getOrdersPerItem(itemIds);
+				}
+
+				@Override
+				public void clear() {
+					supplier.clear();
+				}
+
+				@Override
+				public int getSupplierID() {
+					return supplier.getSupplierID();
+				}
+			});
+		}
+		OrderManagerImpl coalescing = new OrderManagerImpl(97, suppliers);
+		coalescing.clear();
+		coalescing.setStepCoalescing(50, 20);
+
+		try {
+			for (boolean parallelSteps : new boolean[] { false, true }) {
+				coalescing.setParallelSteps(parallelSteps);
+				singleSteps.set(0);
+				batches.set(0);
+
+				// 1. A single step is sent once the flush interval has passed,
+				// even if its batch never fills up.
+				List<OrderStep> single = new ArrayList<OrderStep>();
+				single.add(new OrderStep(0, Arrays.asList(new ItemQuantity(200,
+						1))));
+				assertEquals(Arrays.asList(StepStatus.SUCCESSFUL),
+						coalescing.awaitWorkflow(
+								coalescing.registerOrderWorkflow(single), 10000));
+
+				// 2. The steps of many workflows are sent in far fewer batches,
+				// and every status is recorded in its own workflow.
+				int numWorkflows = 300;
+				List<List<OrderStep>> workflows = new ArrayList<List<OrderStep>>();
+				for (int i = 0; i < numWorkflows; i++) {
+					List<OrderStep> steps = new ArrayList<OrderStep>();
+					steps.add(new OrderStep(0, Arrays.asList(new ItemQuantity(
+							200, 1))));
+					steps.add(new OrderStep(1, Arrays.asList(new ItemQuantity(
+							201, i % 10 == 0 ? -1 : 1))));
+					steps.add(new OrderStep(2, Arrays.asList(new ItemQuantity(
+							202, 1)), new int[] { 1 }));
+					workflows.add(steps);
+				}
+				int[] workflowIDs = coalescing.registerOrderWorkflows(workflows);
+				coalescing.waitForJobsToFinish();
+				for (int i = 0; i < numWorkflows; i++) {
+					StepStatus expected = i % 10 == 0 ? StepStatus.FAILED
+							: StepStatus.SUCCESSFUL;
+					assertEquals(Arrays.asList(StepStatus.SUCCESSFUL, expected,
+							expected),
+							coalescing.getOrderWorkflowStatus(workflowIDs[i]));
+				}
+				assertEquals(0, singleSteps.get());
+				assertTrue(batches.get() < numWorkflows);
+				assertEquals(Arrays.asList(new ItemQuantity(202, numWorkflows
+						- numWorkflows / 10)), suppliers.get(2)
+						.getOrdersPerItem(Collections.singleton(202)));
+
+				coalescing.clear();
+				for (ItemSupplier supplier : allSuppliers.values()) {
+					supplier.clear();
+				}
+			}
+		} finally {
+			coalescing.clear();
+		}
+	}
+
+	@Test
+	public final void testVirtualThreads() throws Exception {
+		try {
+			new OrderManagerImpl(96, allSuppliers, false, -1);
+			fail();
+		} catch (OrderProcessingException e) {
+		}
+
+		// The workflows are executed alike on virtual threads, or on the
+		// fixed pool on a JVM without them.
+		OrderManagerImpl virtual = new OrderManagerImpl(96, allSuppliers,
+				false, 4);
+		virtual.clear();
+		try {
+			for (boolean parallelSteps : new boolean[] { false, true }) {
+				virtual.setParallelSteps(parallelSteps);
+				List<List<OrderStep>> workflows = new ArrayList<List<OrderStep>>();
+				for (int i = 0; i < 100; i++) {
+					List<OrderStep> steps = new ArrayList<OrderStep>();
+					for (Integer supplierID : supplierIDs) {
+						steps.add(new OrderStep(supplierID, Arrays
+								.asList(new ItemQuantity(300, 1))));
+					}
+					workflows.add(steps);
+				}
+				virtual.registerOrderWorkflows(workflows);
+				virtual.waitForJobsToFinish();
+				assertEquals(100, virtual.getWorkflowCount(State.SUCCESSFUL));
+				virtual.clear();
+			}
+		} finally {
+			virtual.clear();
+			for (ItemSupplier supplier : allSuppliers.values()) {
+				supplier.clear();
+			}
+		}
+	}
+
+	@Test
+	public final void testAwaitWorkflow() {
+		// 1. Waiting for a workflow returns once no step is REGISTERED
+		List<OrderStep> steps = new ArrayList<OrderStep>();
+		steps.add(TestUtility.createRandomValidOrderStep(supplierIDs));
+		steps.add(TestUtility.createRandomValidOrderStep(supplierIDs));
+		steps.add(TestUtility.createRandomValidOrderStep(supplierIDs));
+
+		Integer workflowID = TestUtility.registerOrderWorkflow(orderManager,
+				steps);
+
+		List<StepStatus> statuses = null;
+		try {
+			statuses = orderManager.awaitWorkflow(workflowID, 10000);
+		} catch (Exception e) {
+			fail();
+		}
+		assertEquals(steps.size(), statuses.size());
+		assertFalse(statuses.contains(StepStatus.REGISTERED));
+		assertEquals(statuses,
+				TestUtility.getOrderWorkflowStatus(orderManager, workflowID));
+
+		// 2. A finished workflow is returned right away, also without timeout
+		try {
+			assertEquals(statuses, orderManager.awaitWorkflow(workflowID, 0));
+		} catch (Exception e) {
+			fail();
+		}
+
+		// 3. Test that waiting for an unknown workflow throws the proper
+		// exception
+		try {
+			orderManager.awaitWorkflow(workflowID + 1, 10000);
+			fail();
+		} catch (InvalidWorkflowException e) {
+		} catch (Exception e) {
+			fail();
+		}
+	}
+
 	@Test
 	public final void testJobGetSupplier() {
 		// 1. Test that all the suppliers created in BeforeClass are the same as
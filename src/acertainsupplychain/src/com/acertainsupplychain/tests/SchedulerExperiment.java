@@ -0,0 +1,192 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.acertainsupplychain.InvalidItemException;
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.ItemSupplier;
+import com.acertainsupplychain.OrderProcessingException;
+import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.OrderStepResult;
+import com.acertainsupplychain.clients.ItemSupplierClientConstants;
+import com.acertainsupplychain.impl.ItemSupplierImpl;
+import com.acertainsupplychain.impl.OrderManagerImpl;
+import com.acertainsupplychain.performance.PerformanceLogImpl;
+import com.acertainsupplychain.performance.PerformanceLogger;
+import com.acertainsupplychain.storage.WorkflowStateIndex.State;
+
+/**
+ * This JUnit test class is used to compare the throughput of the
+ * OrderManagerScheduler on its fixed pool of threads and on virtual threads,
+ * when every request to a supplier blocks for a round trip. Each mode writes
+ * a row to the performance log, whose number of OM's is the number of jobs
+ * the mode runs at once, and must take at least as long as its jobs at once
+ * need for every round trip. On virtual threads it must also beat the least
+ * time of the fixed pool, as more jobs than the pool has threads wait at
+ * once.
+ * 
+ * The round trip is modelled with Thread.sleep, which parks a virtual thread
+ * and frees its carrier thread, so this measures the scheduler and not the
+ * HTTP client. An ItemSupplierHTTPProxy instead blocks in the
+ * HttpExchange.waitForDone of Jetty 8, a wait on a monitor, which pins the
+ * carrier thread of a virtual thread before Java 24. Through the proxy at
+ * most as many jobs as there are carrier threads, by default one per
+ * processor, wait for a supplier at once, so the numbers of the virtual mode
+ * are an upper bound, and on fewer than ORDERMANAGER_MAX_THREADSPOOL_SIZE
+ * processors the fixed pool is faster.
+ * 
+ * @author Arni
+ * 
+ */
+public class SchedulerExperiment {
+
+	// The time every request to a supplier blocks, as a network round trip.
+	private final static long ROUND_TRIP_MILLIS = 2;
+	private final static int NUMBER_OF_SUPPLIERS = 5;
+	private final static int NUMBER_OF_WORKFLOWS = 2000;
+	private final static int STEPS_PER_WORKFLOW = 4;
+
+	// The least time the fixed pool needs, as every round trip takes one of
+	// its threads.
+	private final static long POOL_LOWER_BOUND_NS = lowerBound(ItemSupplierClientConstants.ORDERMANAGER_MAX_THREADSPOOL_SIZE);
+
+	@Test
+	public void testPlatformThreads() throws Exception {
+		runExperiment(0);
+	}
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		runExperiment(ItemSupplierClientConstants.ORDERMANAGER_MAX_VIRTUAL_THREADS);
+	}
+
+	/**
+	 * Returns the least time every round trip of the experiment takes with
+	 * the given number of jobs waiting at once.
+	 * 
+	 * @param numberOfJobs
+	 * @return
+	 */
+	private static long lowerBound(int numberOfJobs) {
+		return TimeUnit.MILLISECONDS.toNanos(ROUND_TRIP_MILLIS)
+				* NUMBER_OF_WORKFLOWS * STEPS_PER_WORKFLOW / numberOfJobs;
+	}
+
+	/**
+	 * Registers the workflows with an OrderManager whose jobs run with the
+	 * given limit of virtual threads, waits for them to finish and logs the
+	 * result.
+	 * 
+	 * @param virtualThreadLimit
+	 * @throws Exception
+	 */
+	private void runExperiment(int virtualThreadLimit) throws Exception {
+		Map<Integer, ItemSupplier> suppliers = new HashMap<Integer, ItemSupplier>();
+		for (int i = 0; i < NUMBER_OF_SUPPLIERS; i++) {
+			suppliers.put(i, new RemoteItemSupplier(new ItemSupplierImpl(i)));
+		}
+		OrderManagerImpl orderManager = new OrderManagerImpl(94, suppliers,
+				false, virtualThreadLimit);
+		orderManager.clear();
+
+		List<ItemQuantity> items = Arrays.asList(new ItemQuantity(0, 10),
+				new ItemQuantity(1, 10));
+		List<List<OrderStep>> workflows = new ArrayList<List<OrderStep>>();
+		for (int i = 0; i < NUMBER_OF_WORKFLOWS; i++) {
+			List<OrderStep> workflow = new ArrayList<OrderStep>();
+			for (int j = 0; j < STEPS_PER_WORKFLOW; j++) {
+				workflow.add(new OrderStep((i + j) % NUMBER_OF_SUPPLIERS,
+						items));
+			}
+			workflows.add(workflow);
+		}
+
+		long totalTestTimeInNS = System.nanoTime();
+		orderManager.registerOrderWorkflows(workflows);
+		orderManager.waitForJobsToFinish();
+		totalTestTimeInNS = System.nanoTime() - totalTestTimeInNS;
+		assertEquals(NUMBER_OF_WORKFLOWS,
+				orderManager.getWorkflowCount(State.SUCCESSFUL));
+
+		// No mode runs more jobs at once than its limit, and only virtual
+		// threads run more jobs at once than the pool has threads.
+		int numberOfJobs = orderManager.isVirtualThreads() ? virtualThreadLimit
+				: ItemSupplierClientConstants.ORDERMANAGER_MAX_THREADSPOOL_SIZE;
+		assertTrue(totalTestTimeInNS >= lowerBound(numberOfJobs));
+		if (orderManager.isVirtualThreads()) {
+			assertTrue(totalTestTimeInNS < POOL_LOWER_BOUND_NS);
+		}
+
+		// Log the result
+		int numberOfOps = NUMBER_OF_WORKFLOWS * STEPS_PER_WORKFLOW;
+		PerformanceLogImpl log = new PerformanceLogImpl(numberOfJobs,
+				numberOfOps, numberOfOps, 0, totalTestTimeInNS, items.size());
+		new PerformanceLogger().writeLog(log);
+
+		orderManager.clear();
+		for (ItemSupplier supplier : suppliers.values()) {
+			supplier.clear();
+		}
+	}
+
+	/**
+	 * An ItemSupplier that blocks for a round trip before every request, like
+	 * an ItemSupplierHTTPProxy to a remote supplier.
+	 */
+	private static class RemoteItemSupplier implements ItemSupplier {
+
+		private final ItemSupplier supplier;
+
+		private RemoteItemSupplier(ItemSupplier supplier) {
+			this.supplier = supplier;
+		}
+
+		private void roundTrip() throws OrderProcessingException {
+			try {
+				Thread.sleep(ROUND_TRIP_MILLIS);
+			} catch (InterruptedException e) {
+				throw new OrderProcessingException(e);
+			}
+		}
+
+		@Override
+		public void executeStep(OrderStep step) throws OrderProcessingException {
+			roundTrip();
+			supplier.executeStep(step);
+		}
+
+		@Override
+		public List<OrderStepResult> executeSteps(List<OrderStep> steps)
+				throws OrderProcessingException {
+			roundTrip();
+			return supplier.executeSteps(steps);
+		}
+
+		@Override
+		public List<ItemQuantity> getOrdersPerItem(Set<Integer> itemIds)
+				throws InvalidItemException {
+			return supplier.getOrdersPerItem(itemIds);
+		}
+
+		@Override
+		public void clear() {
+			supplier.clear();
+		}
+
+		@Override
+		public int getSupplierID() {
+			return supplier.getSupplierID();
+		}
+	}
+}
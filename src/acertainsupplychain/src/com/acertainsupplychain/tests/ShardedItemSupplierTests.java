@@ -0,0 +1,245 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.acertainsupplychain.InvalidItemException;
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.OrderProcessingException;
+import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.impl.ShardedItemSupplierImpl;
+import com.acertainsupplychain.storage.MappedItemStore;
+import com.acertainsupplychain.utility.TestUtility;
+
+/**
+ * This JUnit class is used to test the functionality of the
+ * ShardedItemSupplierImpl class.
+ * 
+ * @author Arni
+ * 
+ */
+public class ShardedItemSupplierTests {
+
+	private static ShardedItemSupplierImpl supplier;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		supplier = new ShardedItemSupplierImpl(0, 4);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		supplier.shutdown();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		supplier.clear();
+	}
+
+	@Test
+	public final void testExecuteStep_ManyShards() {
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		Set<Integer> itemIds = new HashSet<Integer>();
+
+		// 1. A step with enough items to span every shard.
+		for (int i = 0; i < 50; i++) {
+			items.add(new ItemQuantity(i, i + 1));
+			itemIds.add(i);
+		}
+		items.add(new ItemQuantity(7, 3));
+		TestUtility.executeStep(supplier, new OrderStep(0, items));
+
+		List<ItemQuantity> result = TestUtility.getOrdersPerItem(supplier,
+				itemIds);
+		assertEquals(50, result.size());
+		assertTrue(result.contains(new ItemQuantity(0, 1)));
+		assertTrue(result.contains(new ItemQuantity(7, 11)));
+		assertTrue(result.contains(new ItemQuantity(49, 50)));
+
+		// 2. An unknown item must be rejected.
+		itemIds.add(1000);
+		try {
+			supplier.getOrdersPerItem(itemIds);
+			fail();
+		} catch (InvalidItemException e) {
+		} catch (Exception e) {
+			fail();
+		}
+
+		// 3. The supplier is empty after clear.
+		supplier.clear();
+		itemIds.clear();
+		itemIds.add(0);
+		try {
+			supplier.getOrdersPerItem(itemIds);
+			fail();
+		} catch (InvalidItemException e) {
+		} catch (Exception e) {
+			fail();
+		}
+	}
+
+	@Test
+	public final void testExecuteStep_Invalid() {
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(1, 10));
+		items.add(new ItemQuantity(2, -1));
+
+		// 1. A step with a non-positive quantity must not have any effect.
+		try {
+			supplier.executeStep(new OrderStep(0, items));
+			fail();
+		} catch (OrderProcessingException e) {
+		}
+
+		// 2. A step for another supplier must be rejected.
+		items.remove(1);
+		try {
+			supplier.executeStep(new OrderStep(1, items));
+			fail();
+		} catch (OrderProcessingException e) {
+		}
+
+		Set<Integer> itemIds = new HashSet<Integer>();
+		itemIds.add(1);
+		try {
+			supplier.getOrdersPerItem(itemIds);
+			fail();
+		} catch (InvalidItemException e) {
+		}
+	}
+
+	@Test
+	public final void testExecuteStep_Atomic() {
+		final int numThreads = 8;
+		final int numRuns = 2000;
+
+		// Every thread orders item 0 together with one of its own items, so in
+		// any consistent state the total of item 0 is the sum of the others.
+		final Set<Integer> itemIds = new HashSet<Integer>();
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t = 1; t <= numThreads; t++) {
+			final List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+			items.add(new ItemQuantity(0, 1));
+			items.add(new ItemQuantity(t, 1));
+			itemIds.add(t);
+			TestUtility.executeStep(supplier, new OrderStep(0, items));
+			writers.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < numRuns; i++) {
+						TestUtility.executeStep(supplier, new OrderStep(0,
+								items));
+					}
+				}
+			});
+		}
+		itemIds.add(0);
+
+		final boolean[] failed = new boolean[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					int first = 0;
+					int others = 0;
+					List<ItemQuantity> result;
+					try {
+						result = supplier.getOrdersPerItem(itemIds);
+					} catch (InvalidItemException e) {
+						// The read is aborted when this thread is interrupted.
+						if (!isInterrupted()) {
+							failed[0] = true;
+						}
+						return;
+					}
+					for (ItemQuantity item : result) {
+						if (item.getItemId() == 0) {
+							first = item.getQuantity();
+						} else {
+							others += item.getQuantity();
+						}
+					}
+					if (first != others) {
+						failed[0] = true;
+					}
+				}
+			}
+		};
+
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		reader.start();
+		try {
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			reader.interrupt();
+			reader.join();
+		} catch (InterruptedException e) {
+			fail();
+		}
+
+		assertFalse(failed[0]);
+		Set<Integer> first = new HashSet<Integer>();
+		first.add(0);
+		assertEquals(new ItemQuantity(0, numThreads * (numRuns + 1)),
+				TestUtility.getOrdersPerItem(supplier, first).get(0));
+	}
+
+	@Test
+	public final void testExecuteStep_NoRoom() throws Exception {
+		// Two shards whose stores each have room for 12 items.
+		MappedItemStore[] stores = new MappedItemStore[2];
+		for (int i = 0; i < stores.length; i++) {
+			File file = File.createTempFile("ShardedItemSupplierTests", ".dat");
+			file.delete();
+			file.deleteOnExit();
+			stores[i] = new MappedItemStore(file, 12);
+		}
+		ShardedItemSupplierImpl small = new ShardedItemSupplierImpl(5, stores);
+
+		// 1. A step with 30 new items spans both shards, and one of them has
+		// no room for its part, so the whole step must be aborted.
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		for (int i = 0; i < 30; i++) {
+			items.add(new ItemQuantity(i, 1));
+		}
+		try {
+			small.executeStep(new OrderStep(5, items));
+			fail();
+		} catch (InvalidItemException e) {
+		}
+		assertEquals(0, stores[0].size());
+		assertEquals(0, stores[1].size());
+
+		// 2. The shards must have been released, so a step that fits is
+		// still committed.
+		items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(0, 1));
+		items.add(new ItemQuantity(1, 2));
+		items.add(new ItemQuantity(2, 3));
+		TestUtility.executeStep(small, new OrderStep(5, items));
+		assertEquals(3, stores[0].size() + stores[1].size());
+
+		small.shutdown();
+		for (MappedItemStore store : stores) {
+			store.close();
+		}
+	}
+}
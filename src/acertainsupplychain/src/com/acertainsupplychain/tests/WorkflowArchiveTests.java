@@ -0,0 +1,76 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.OrderManager.StepStatus;
+import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.storage.WorkflowArchive;
+
+/**
+ * This JUnit test class is used to test the on-disk archive of finished
+ * workflows used by OrderManagerImpl.
+ * 
+ * @author Arni
+ * 
+ */
+public class WorkflowArchiveTests {
+
+	@Test
+	public void testArchive() throws Exception {
+		File file = File.createTempFile("WorkflowArchiveTests", ".dat");
+		WorkflowArchive archive = new WorkflowArchive(file, 4);
+
+		// 1. Workflows of every shape are read back as archived, also once
+		// they have been evicted from the cache.
+		int numWorkflows = 200;
+		List<List<OrderStep>> workflows = new ArrayList<List<OrderStep>>();
+		List<List<StepStatus>> statuses = new ArrayList<List<StepStatus>>();
+		for (int i = 0; i < numWorkflows; i++) {
+			List<OrderStep> steps = new ArrayList<OrderStep>();
+			List<StepStatus> status = new ArrayList<StepStatus>();
+			for (int j = 0; j <= i % 7; j++) {
+				steps.add(new OrderStep(i, Arrays.asList(new ItemQuantity(j,
+						i), null, new ItemQuantity(Integer.MIN_VALUE, -j)),
+						j % 2 == 1 ? new int[] { 0, j - 1 } : null));
+				status.add(j % 3 == 0 ? StepStatus.SUCCESSFUL
+						: j % 3 == 1 ? StepStatus.FAILED : null);
+			}
+			workflows.add(steps);
+			statuses.add(status);
+			archive.add(i * 2, steps, status);
+		}
+		assertEquals(numWorkflows, archive.size());
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < numWorkflows; i++) {
+				assertTrue(archive.contains(i * 2));
+				assertEquals(workflows.get(i), archive.getSteps(i * 2));
+				assertEquals(statuses.get(i), archive.getStatuses(i * 2));
+			}
+		}
+
+		// 2. Unknown workflows are not found.
+		assertFalse(archive.contains(1));
+		assertFalse(archive.contains(numWorkflows * 2));
+		assertFalse(archive.contains(-1));
+		assertNull(archive.getSteps(3));
+		assertNull(archive.getStatuses(1 << 20));
+
+		// 3. A cleared archive is empty.
+		archive.clear();
+		assertEquals(0, archive.size());
+		assertEquals(0, archive.getDataSize());
+		assertFalse(archive.contains(0));
+		archive.close();
+	}
+}
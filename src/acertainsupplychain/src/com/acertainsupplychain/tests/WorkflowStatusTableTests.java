@@ -0,0 +1,242 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.acertainsupplychain.OrderManager.StepStatus;
+import com.acertainsupplychain.storage.WorkflowStateIndex;
+import com.acertainsupplychain.storage.WorkflowStateIndex.State;
+import com.acertainsupplychain.storage.WorkflowStatusTable;
+
+/**
+ * This JUnit test class is used to test the packed table of step statuses
+ * and the index of workflow states used by OrderManagerImpl.
+ * 
+ * @author Arni
+ * 
+ */
+public class WorkflowStatusTableTests {
+
+	@Test
+	public void testStatuses() {
+		WorkflowStatusTable table = new WorkflowStatusTable();
+
+		// 1. Workflows spanning several segments, of varying lengths, start
+		// with every step REGISTERED.
+		int numWorkflows = 5000;
+		for (int i = 0; i < numWorkflows; i++) {
+			assertTrue(table.add(i, 1 + i % 40));
+		}
+		assertFalse(table.add(7, 3));
+		assertEquals(numWorkflows, table.size());
+		assertEquals(Arrays.asList(StepStatus.REGISTERED,
+				StepStatus.REGISTERED), table.get(4001));
+
+		// 2. Setting a step only changes that step, and every status
+		// including NULL is read back.
+		for (int i = 0; i < numWorkflows; i++) {
+			int steps = 1 + i % 40;
+			assertTrue(table.set(i, steps - 1, StepStatus.SUCCESSFUL));
+			if (steps > 1) {
+				assertTrue(table.set(i, 0, i % 2 == 0 ? StepStatus.FAILED
+						: null));
+			}
+		}
+		for (int i = 0; i < numWorkflows; i++) {
+			int steps = 1 + i % 40;
+			List<StepStatus> statuses = table.get(i);
+			assertEquals(steps, statuses.size());
+			assertEquals(StepStatus.SUCCESSFUL, statuses.get(steps - 1));
+			if (steps > 2) {
+				assertEquals(i % 2 == 0 ? StepStatus.FAILED : null,
+						statuses.get(0));
+				assertEquals(StepStatus.REGISTERED, statuses.get(1));
+			}
+		}
+
+		// 3. Unknown workflows and steps are rejected.
+		assertNull(table.get(numWorkflows));
+		assertNull(table.get(-1));
+		assertFalse(table.contains(1 << 20));
+		assertFalse(table.set(0, 1, StepStatus.FAILED));
+		assertFalse(table.set(numWorkflows, 0, StepStatus.FAILED));
+
+		// 4. Recovered statuses are stored as given.
+		List<StepStatus> recovered = Arrays.asList(StepStatus.FAILED, null,
+				StepStatus.SUCCESSFUL, StepStatus.REGISTERED);
+		assertTrue(table.add(numWorkflows, recovered));
+		assertEquals(recovered, table.get(numWorkflows));
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertFalse(table.contains(0));
+	}
+
+	@Test
+	public void testMemoryUsage() {
+		WorkflowStatusTable table = new WorkflowStatusTable();
+		int numWorkflows = 100000;
+		for (int i = 0; i < numWorkflows; i++) {
+			table.add(i, 3);
+		}
+
+		// A workflow of three steps costs its offset and length and a few
+		// bits, against well over a hundred bytes as a map entry holding a
+		// list of enums.
+		double bytesPerWorkflow = (double) table.getMemoryUsage()
+				/ numWorkflows;
+		assertTrue(bytesPerWorkflow < 12);
+	}
+
+	@Test
+	public void testRemove() {
+		WorkflowStatusTable table = new WorkflowStatusTable();
+		int numWorkflows = 3000;
+		for (int i = 0; i < numWorkflows; i++) {
+			table.add(i, 3);
+		}
+		long memory = table.getMemoryUsage();
+
+		// 1. A removed workflow is gone, the others are untouched.
+		assertTrue(table.remove(5));
+		assertFalse(table.remove(5));
+		assertFalse(table.contains(5));
+		assertNull(table.get(5));
+		assertFalse(table.set(5, 0, StepStatus.FAILED));
+		assertEquals(numWorkflows - 1, table.size());
+		assertEquals(3, table.get(6).size());
+
+		// 2. Emptying the first segment frees it, and a workflow can be added
+		// to its range again.
+		for (int i = 0; i < 1024; i++) {
+			table.remove(i);
+		}
+		assertTrue(table.getMemoryUsage() < memory);
+		assertEquals(numWorkflows - 1024, table.size());
+		assertTrue(table.add(7, 2));
+		assertEquals(Arrays.asList(StepStatus.REGISTERED,
+				StepStatus.REGISTERED), table.get(7));
+		assertEquals(3, table.get(1024).size());
+	}
+
+	@Test
+	public void testStateIndex() {
+		WorkflowStateIndex index = new WorkflowStateIndex();
+
+		// 1. The state of a workflow follows from its statuses.
+		assertEquals(State.IN_PROGRESS, WorkflowStateIndex.stateOf(Arrays
+				.asList(StepStatus.SUCCESSFUL, StepStatus.REGISTERED)));
+		assertEquals(State.HAS_FAILURES, WorkflowStateIndex.stateOf(Arrays
+				.asList(StepStatus.REGISTERED, StepStatus.FAILED)));
+		assertEquals(State.HAS_FAILURES, WorkflowStateIndex.stateOf(Arrays
+				.asList(StepStatus.SUCCESSFUL, null)));
+		assertEquals(State.SUCCESSFUL, WorkflowStateIndex.stateOf(Arrays
+				.asList(StepStatus.SUCCESSFUL, StepStatus.SUCCESSFUL)));
+
+		// 2. Workflows spanning several pages are counted and listed in the
+		// state they were last put in.
+		int numWorkflows = 200000;
+		for (int i = 0; i < numWorkflows; i++) {
+			index.setState(i, State.IN_PROGRESS);
+		}
+		for (int i = 0; i < numWorkflows; i += 1000) {
+			index.setState(i, State.HAS_FAILURES);
+		}
+		index.setState(0, State.HAS_FAILURES);
+		assertEquals(numWorkflows / 1000, index.count(State.HAS_FAILURES));
+		assertEquals(numWorkflows - numWorkflows / 1000,
+				index.count(State.IN_PROGRESS));
+		assertEquals(0, index.count(State.SUCCESSFUL));
+		assertEquals(State.HAS_FAILURES, index.getState(1000));
+		assertEquals(State.IN_PROGRESS, index.getState(1001));
+		assertNull(index.getState(numWorkflows));
+
+		// 3. Pages continue after the last ID of the previous page.
+		List<Integer> failed = new ArrayList<Integer>();
+		int from = 0;
+		int[] page;
+		while ((page = index.list(State.HAS_FAILURES, from, 30)).length > 0) {
+			assertTrue(page.length <= 30);
+			for (int workflowID : page) {
+				failed.add(workflowID);
+			}
+			from = page[page.length - 1] + 1;
+		}
+		assertEquals(numWorkflows / 1000, failed.size());
+		for (int i = 0; i < failed.size(); i++) {
+			assertEquals(i * 1000, (int) failed.get(i));
+		}
+		assertEquals(0, index.list(State.SUCCESSFUL, 0, 10).length);
+		assertEquals(0, index.list(State.IN_PROGRESS, 0, 0).length);
+		assertTrue(Arrays.equals(new int[] { 1001, 1002 },
+				index.list(State.IN_PROGRESS, 1000, 2)));
+
+		index.clear();
+		assertEquals(0, index.count(State.IN_PROGRESS));
+		assertNull(index.getState(1));
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		final WorkflowStatusTable table = new WorkflowStatusTable();
+		final int numWorkflows = 4096;
+		final int steps = 5;
+		int numThreads = 8;
+		final AtomicInteger errors = new AtomicInteger(0);
+		final CountDownLatch done = new CountDownLatch(numThreads);
+
+		// Every thread registers its own workflows and completes their steps
+		// one by one, while reading the workflows of the other threads. A
+		// status must never go back to REGISTERED once it is set.
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int id = thread; id < numWorkflows; id += 8) {
+						table.add(id, steps);
+					}
+					for (int step = 0; step < steps; step++) {
+						for (int id = thread; id < numWorkflows; id += 8) {
+							table.set(id, step, StepStatus.SUCCESSFUL);
+							List<StepStatus> own = table.get(id);
+							for (int i = 0; i <= step; i++) {
+								if (own.get(i) != StepStatus.SUCCESSFUL) {
+									errors.incrementAndGet();
+								}
+							}
+							List<StepStatus> other = table.get(id ^ 1);
+							if (other != null && other.size() != steps) {
+								errors.incrementAndGet();
+							}
+						}
+					}
+					done.countDown();
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		assertEquals(0, errors.get());
+		for (int id = 0; id < numWorkflows; id++) {
+			assertEquals(Arrays.asList(StepStatus.SUCCESSFUL,
+					StepStatus.SUCCESSFUL, StepStatus.SUCCESSFUL,
+					StepStatus.SUCCESSFUL, StepStatus.SUCCESSFUL),
+					table.get(id));
+		}
+	}
+}
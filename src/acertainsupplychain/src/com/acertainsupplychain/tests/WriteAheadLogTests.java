@@ -0,0 +1,549 @@
+package com.acertainsupplychain.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.acertainsupplychain.InvalidItemException;
+import com.acertainsupplychain.ItemQuantity;
+import com.acertainsupplychain.ItemSupplier;
+import com.acertainsupplychain.OrderStep;
+import com.acertainsupplychain.impl.ItemSupplierImpl;
+import com.acertainsupplychain.log.FsyncPolicy;
+import com.acertainsupplychain.log.RecoveryStatistics;
+import com.acertainsupplychain.log.SupplierCheckpoint;
+import com.acertainsupplychain.log.SupplierLogReader;
+import com.acertainsupplychain.log.SupplierLogRecord;
+import com.acertainsupplychain.log.SupplierLogRecovery;
+import com.acertainsupplychain.log.WriteAheadLog;
+import com.acertainsupplychain.storage.ItemStore;
+import com.acertainsupplychain.storage.OpenAddressingItemStore;
+import com.acertainsupplychain.utility.FileLogger;
+import com.acertainsupplychain.utility.TestUtility;
+
+/**
+ * This JUnit test class is used to test the WriteAheadLog used by the
+ * FileLogger, the binary supplier log written to it and the recovery of a
+ * supplier from that log.
+ * 
+ * @author Arni
+ * 
+ */
+public class WriteAheadLogTests {
+
+	/**
+	 * Creates a new empty file that is deleted when the tests are done.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private File createLogFile() throws IOException {
+		File file = File.createTempFile("WriteAheadLogTests", ".txt");
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Reads every line of the given file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	@Test
+	public void testConcurrentAppends() throws Exception {
+		final WriteAheadLog log = new WriteAheadLog(createLogFile(),
+				FsyncPolicy.PER_BATCH, 0);
+		int numThreads = 8;
+		final int numRecords = 500;
+
+		// 1. Let several threads append and wait for their records.
+		final boolean[] failed = new boolean[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < numRecords; i++) {
+							long sequence = log.appendAndWait((thread + " "
+									+ i + "\n").getBytes());
+							if (log.getDurableSequence() < sequence) {
+								failed[0] = true;
+							}
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+						failed[0] = true;
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		log.close();
+
+		// 2. Every record must be in the file once and in one piece, and the
+		// records of a single thread must be in order.
+		assertTrue(!failed[0]);
+		List<String> lines = readLines(log.getFile());
+		assertEquals(numThreads * numRecords, lines.size());
+		Set<String> unique = new HashSet<String>(lines);
+		assertEquals(lines.size(), unique.size());
+		int[] next = new int[numThreads];
+		for (String line : lines) {
+			String[] parts = line.split(" ");
+			int thread = Integer.parseInt(parts[0]);
+			assertEquals(next[thread], Integer.parseInt(parts[1]));
+			next[thread]++;
+		}
+	}
+
+	@Test
+	public void testSmallRing() throws Exception {
+		final WriteAheadLog log = new WriteAheadLog(createLogFile(),
+				FsyncPolicy.NONE, 0, 64);
+		int numThreads = 4;
+		final int numRecords = 300;
+
+		// 1. Records shorter and longer than the ring must wrap around it and
+		// be written in one piece.
+		final boolean[] failed = new boolean[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < numRecords; i++) {
+							StringBuilder record = new StringBuilder();
+							record.append(thread).append(" ").append(i)
+									.append(" ");
+							for (int j = 0; j < (i * 7) % 150; j++) {
+								record.append('x');
+							}
+							log.append(record.append("\n").toString()
+									.getBytes());
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+						failed[0] = true;
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		log.close();
+
+		assertFalse(failed[0]);
+		List<String> lines = readLines(log.getFile());
+		assertEquals(numThreads * numRecords, lines.size());
+		int[] next = new int[numThreads];
+		for (String line : lines) {
+			String[] parts = line.split(" ");
+			int thread = Integer.parseInt(parts[0]);
+			int record = Integer.parseInt(parts[1]);
+			assertEquals(next[thread], record);
+			assertEquals((record * 7) % 150, parts.length > 2 ? parts[2]
+					.length() : 0);
+			next[thread]++;
+		}
+	}
+
+	@Test
+	public void testIntervalPolicy() throws Exception {
+		WriteAheadLog log = new WriteAheadLog(createLogFile(),
+				FsyncPolicy.INTERVAL, 5);
+
+		// 1. A record is only acknowledged once the background thread has
+		// forced the log.
+		long sequence = log.append("first\n".getBytes());
+		log.awaitDurable(sequence);
+		assertTrue(log.getDurableSequence() >= sequence);
+
+		// 2. The log cannot be used after it has been closed.
+		log.close();
+		try {
+			log.append("second\n".getBytes());
+			fail();
+		} catch (IOException e) {
+		}
+		assertEquals(1, readLines(log.getFile()).size());
+	}
+
+	@Test
+	public void testRotation() throws Exception {
+		File file = createLogFile();
+		File archive = new File(file.getPath() + ".1");
+		archive.deleteOnExit();
+		WriteAheadLog log = new WriteAheadLog(file, FsyncPolicy.NONE, 0);
+
+		// 1. Records appended before a rotation must be in the archive, and
+		// records appended after it in the new file.
+		long first = log.append("first\n".getBytes());
+		log.rotate(archive);
+		long second = log.append("second\n".getBytes());
+		assertTrue(second > first);
+		log.close();
+
+		List<String> archived = readLines(archive);
+		assertEquals(1, archived.size());
+		assertEquals("first", archived.get(0));
+		List<String> current = readLines(file);
+		assertEquals(1, current.size());
+		assertEquals("second", current.get(0));
+	}
+
+	@Test
+	public void testSupplierLogRecords() throws Exception {
+		File file = createLogFile();
+		WriteAheadLog log = new WriteAheadLog(file, FsyncPolicy.NONE, 0);
+
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(-7, 1));
+		items.add(new ItemQuantity(Integer.MAX_VALUE, Integer.MAX_VALUE));
+		items.add(new ItemQuantity(300, 128));
+		log.append(SupplierLogRecord.encodeInit(4));
+		log.append(SupplierLogRecord.encodeStep(1, items));
+		log.append(SupplierLogRecord.encodeClear(2));
+		log.close();
+
+		// 1. Every record must be read back as it was written.
+		SupplierLogReader reader = new SupplierLogReader(file);
+		SupplierLogRecord record = reader.next();
+		assertEquals(SupplierLogRecord.TYPE_INIT, record.getType());
+		assertEquals(4, record.getSupplierID());
+
+		record = reader.next();
+		assertEquals(SupplierLogRecord.TYPE_STEP, record.getType());
+		assertEquals(1, record.getSequence());
+		assertEquals(3, record.getItemCount());
+		for (int i = 0; i < items.size(); i++) {
+			assertEquals(items.get(i).getItemId(), record.getItemID(i));
+			assertEquals(items.get(i).getQuantity(), record.getQuantity(i));
+		}
+		assertTrue(record.toText().contains("WRT 1 -7 1"));
+		assertTrue(record.toText().contains("EXEC-DONE 1"));
+
+		record = reader.next();
+		assertEquals(SupplierLogRecord.TYPE_CLEAR, record.getType());
+		assertEquals(2, record.getSequence());
+		assertNull(reader.next());
+		assertFalse(reader.isCorrupt());
+		long validLength = reader.getPosition();
+		reader.close();
+		assertEquals(file.length(), validLength);
+
+		// 2. A torn last record must be detected and skipped.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(validLength - 1);
+		raf.close();
+		reader = new SupplierLogReader(file);
+		assertEquals(SupplierLogRecord.TYPE_INIT, reader.next().getType());
+		assertEquals(SupplierLogRecord.TYPE_STEP, reader.next().getType());
+		assertNull(reader.next());
+		assertTrue(reader.isCorrupt());
+		reader.close();
+
+		// 3. A damaged byte must be caught by the checksum.
+		raf = new RandomAccessFile(file, "rw");
+		raf.seek(SupplierLogRecord.HEADER_SIZE);
+		raf.write(0x55);
+		raf.close();
+		reader = new SupplierLogReader(file);
+		assertNull(reader.next());
+		assertTrue(reader.isCorrupt());
+		reader.close();
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		File file = createLogFile();
+		WriteAheadLog log = new WriteAheadLog(file, FsyncPolicy.NONE, 0);
+		int numSteps = 20000;
+		int numItems = 1000;
+
+		// 1. Steps before a clear must be forgotten.
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(-1, 100));
+		log.append(SupplierLogRecord.encodeInit(0));
+		log.append(SupplierLogRecord.encodeStep(1, items));
+		log.append(SupplierLogRecord.encodeClear(2));
+
+		// 2. Every step after it must be summed, followed by a torn step.
+		long[] expected = new long[numItems];
+		for (int i = 0; i < numSteps; i++) {
+			items.clear();
+			items.add(new ItemQuantity(i % numItems, 1 + i % 7));
+			items.add(new ItemQuantity((i * 31) % numItems, 2));
+			expected[i % numItems] += 1 + i % 7;
+			expected[(i * 31) % numItems] += 2;
+			log.append(SupplierLogRecord.encodeStep(i + 3, items));
+		}
+		byte[] torn = SupplierLogRecord.encodeStep(numSteps + 3, items);
+		byte[] tornPart = new byte[torn.length - 2];
+		System.arraycopy(torn, 0, tornPart, 0, tornPart.length);
+		log.append(tornPart);
+		log.close();
+
+		ItemStore store = new OpenAddressingItemStore();
+		store.add(5, 1);
+		RecoveryStatistics statistics = new SupplierLogRecovery(4).recover(
+				file, store);
+
+		assertTrue(statistics.isCorrupt());
+		assertEquals(numSteps, statistics.getSteps());
+		assertEquals(numSteps + 2, statistics.getLastSequence());
+		assertFalse(store.contains(-1));
+		assertEquals(numItems, store.size());
+		for (int i = 0; i < numItems; i++) {
+			assertEquals(expected[i], store.get(i));
+		}
+		assertTrue(statistics.getRecordsPerSecond() > 0);
+	}
+
+	@Test
+	public void testItemSupplierRecovery() {
+		// Use a supplier ID no other test uses, and start from a cleared log.
+		int supplierID = 71;
+		ItemSupplier supplier = new ItemSupplierImpl(supplierID);
+		supplier.clear();
+
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(1, 10));
+		items.add(new ItemQuantity(2, 20));
+		TestUtility.executeStep(supplier, new OrderStep(supplierID, items));
+		TestUtility.executeStep(supplier, new OrderStep(supplierID, items));
+
+		// 1. A restarted supplier must serve the same totals.
+		ItemSupplierImpl restarted = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		assertEquals(2, restarted.getRecoveryStatistics().getSteps());
+		Set<Integer> itemIds = new HashSet<Integer>();
+		itemIds.add(1);
+		itemIds.add(2);
+		List<ItemQuantity> result = TestUtility.getOrdersPerItem(restarted,
+				itemIds);
+		assertTrue(result.contains(new ItemQuantity(1, 20)));
+		assertTrue(result.contains(new ItemQuantity(2, 40)));
+
+		// 2. The log IDs must continue after the recovered ones.
+		TestUtility.executeStep(restarted, new OrderStep(supplierID, items));
+		restarted = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		assertEquals(3, restarted.getRecoveryStatistics().getSteps());
+		assertTrue(restarted.getRecoveryStatistics().getLastSequence() >= 4);
+		restarted.clear();
+	}
+
+	@Test
+	public void testItemSupplierRecovery_TornTail() throws Exception {
+		// Use a supplier ID no other test uses, and start from a cleared log.
+		int supplierID = 77;
+		ItemSupplierImpl supplier = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		supplier.clear();
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(1, 100));
+		for (int i = 0; i < 5; i++) {
+			TestUtility.executeStep(supplier, new OrderStep(supplierID, items));
+		}
+
+		// 1. Tear the last step, as a crash in the middle of its write would.
+		File logFile = new File(new FileLogger(supplierID
+				+ "_Supplier_logfile", SupplierLogRecord.FILE_TYPE, "")
+				.getFullPath());
+		RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+
+		// 2. A restarted supplier must drop the torn step, and the steps it
+		// acknowledges after that must survive the next restart.
+		ItemSupplierImpl restarted = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		assertTrue(restarted.getRecoveryStatistics().isCorrupt());
+		assertEquals(4, restarted.getRecoveryStatistics().getSteps());
+		for (int i = 0; i < 10; i++) {
+			TestUtility.executeStep(restarted,
+					new OrderStep(supplierID, items));
+		}
+		Set<Integer> itemIds = new HashSet<Integer>();
+		itemIds.add(1);
+		assertEquals(new ItemQuantity(1, 1400), TestUtility.getOrdersPerItem(
+				restarted, itemIds).get(0));
+
+		restarted = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		assertFalse(restarted.getRecoveryStatistics().isCorrupt());
+		assertEquals(14, restarted.getRecoveryStatistics().getSteps());
+		assertEquals(new ItemQuantity(1, 1400), TestUtility.getOrdersPerItem(
+				restarted, itemIds).get(0));
+		restarted.clear();
+	}
+
+	@Test
+	public void testCheckpointRecovery_Damaged() throws Exception {
+		// Use a supplier ID no other test uses, and start from a cleared log.
+		int supplierID = 78;
+		ItemSupplierImpl supplier = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		supplier.clear();
+		List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+		items.add(new ItemQuantity(1, 100));
+		TestUtility.executeStep(supplier, new OrderStep(supplierID, items));
+		supplier.checkpoint();
+		TestUtility.executeStep(supplier, new OrderStep(supplierID, items));
+
+		// 1. The segments in the checkpoint have been deleted, so a supplier
+		// whose checkpoint is damaged must not start from the rest of the log.
+		File logFile = new File(new FileLogger(supplierID
+				+ "_Supplier_logfile", SupplierLogRecord.FILE_TYPE, "")
+				.getFullPath());
+		File checkpointFile = new File(logFile.getParentFile(), supplierID
+				+ "_Supplier_checkpoint." + SupplierCheckpoint.FILE_TYPE);
+		RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw");
+		byte[] checkpoint = new byte[(int) file.length()];
+		file.readFully(checkpoint);
+		file.setLength(checkpoint.length - 1);
+		file.close();
+		try {
+			new ItemSupplierImpl(supplierID, new OpenAddressingItemStore(),
+					true);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+
+		// 2. Once the checkpoint is repaired the supplier starts with every
+		// step.
+		file = new RandomAccessFile(checkpointFile, "rw");
+		file.write(checkpoint);
+		file.close();
+		ItemSupplierImpl restarted = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		Set<Integer> itemIds = new HashSet<Integer>();
+		itemIds.add(1);
+		assertEquals(new ItemQuantity(1, 200), TestUtility.getOrdersPerItem(
+				restarted, itemIds).get(0));
+		restarted.clear();
+	}
+
+	@Test
+	public void testCheckpointRecovery() throws Exception {
+		// Use a supplier ID no other test uses, and start from a cleared log.
+		final int supplierID = 72;
+		final ItemSupplierImpl supplier = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		supplier.clear();
+		long firstCheckpoint = supplier.checkpoint();
+		int numThreads = 4;
+		final int numSteps = 2000;
+		final int numItems = 50;
+
+		// 1. Take checkpoints while several threads execute steps.
+		final boolean[] failed = new boolean[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < numThreads; t++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < numSteps; i++) {
+						List<ItemQuantity> items = new ArrayList<ItemQuantity>();
+						items.add(new ItemQuantity(i % numItems, 1));
+						items.add(new ItemQuantity(numItems, 1));
+						try {
+							supplier.executeStep(new OrderStep(supplierID,
+									items));
+						} catch (Exception e) {
+							e.printStackTrace();
+							failed[0] = true;
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		long lastCheckpoint = firstCheckpoint;
+		for (int i = 0; i < 5; i++) {
+			long sequence = supplier.checkpoint();
+			assertTrue(sequence >= lastCheckpoint);
+			lastCheckpoint = sequence;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertFalse(failed[0]);
+
+		// 2. A restarted supplier must load the checkpoint and only replay
+		// the steps after it.
+		ItemSupplierImpl restarted = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		int totalSteps = numThreads * numSteps;
+		assertEquals(firstCheckpoint + totalSteps - lastCheckpoint, restarted
+				.getRecoveryStatistics().getSteps());
+		Set<Integer> itemIds = new HashSet<Integer>();
+		for (int i = 0; i <= numItems; i++) {
+			itemIds.add(i);
+		}
+		List<ItemQuantity> result = TestUtility.getOrdersPerItem(restarted,
+				itemIds);
+		for (int i = 0; i < numItems; i++) {
+			assertTrue(result.contains(new ItemQuantity(i, totalSteps
+					/ numItems)));
+		}
+		assertTrue(result.contains(new ItemQuantity(numItems, totalSteps)));
+
+		// 3. A checkpoint of the restarted supplier holds every step, and a
+		// clear after it is still replayed.
+		restarted.checkpoint();
+		restarted.clear();
+		restarted = new ItemSupplierImpl(supplierID,
+				new OpenAddressingItemStore(), true);
+		assertEquals(0, restarted.getRecoveryStatistics().getSteps());
+		try {
+			restarted.getOrdersPerItem(itemIds);
+			fail();
+		} catch (InvalidItemException e) {
+		}
+	}
+}
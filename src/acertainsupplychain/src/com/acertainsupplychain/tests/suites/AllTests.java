@@ -6,15 +6,27 @@ import org.junit.runners.Suite.SuiteClasses;
 
 import com.acertainsupplychain.tests.AtomicityTests;
 import com.acertainsupplychain.tests.FailureHandlingTests;
+import com.acertainsupplychain.tests.ItemStoreTests;
 import com.acertainsupplychain.tests.ItemSupplierAdvanced;
 import com.acertainsupplychain.tests.ItemSupplierSimple;
+import com.acertainsupplychain.tests.LockManagerTests;
+import com.acertainsupplychain.tests.LogReaderTests;
 import com.acertainsupplychain.tests.OrderManagerAdvanced;
+import com.acertainsupplychain.tests.OrderManagerRecoveryTests;
 import com.acertainsupplychain.tests.OrderManagerSimple;
+import com.acertainsupplychain.tests.ShardedItemSupplierTests;
+import com.acertainsupplychain.tests.WorkflowArchiveTests;
+import com.acertainsupplychain.tests.WorkflowStatusTableTests;
+import com.acertainsupplychain.tests.WriteAheadLogTests;
 
 @RunWith(Suite.class)
 @SuiteClasses({ AtomicityTests.class, FailureHandlingTests.class,
-		ItemSupplierAdvanced.class, ItemSupplierSimple.class,
-		OrderManagerAdvanced.class, OrderManagerSimple.class })
+		ItemStoreTests.class, ItemSupplierAdvanced.class,
+		ItemSupplierSimple.class, LockManagerTests.class,
+		LogReaderTests.class, OrderManagerAdvanced.class,
+		OrderManagerRecoveryTests.class, OrderManagerSimple.class,
+		ShardedItemSupplierTests.class, WorkflowArchiveTests.class,
+		WorkflowStatusTableTests.class, WriteAheadLogTests.class })
 public class AllTests {
 
 }
@@ -1,14 +1,32 @@
 package com.acertainsupplychain.utility;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Timestamp;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import com.acertainsupplychain.log.FsyncPolicy;
+import com.acertainsupplychain.log.LogRecordFormat;
+import com.acertainsupplychain.log.LogSegments;
+import com.acertainsupplychain.log.WriteAheadLog;
+
 /**
- * Class used to appends strings to a text file.
+ * Class used to appends strings or binary records to a log file. The file is
+ * kept open in a WriteAheadLog, which is shared by every FileLogger of the
+ * same file. A log call only copies the record into the ring buffer of the
+ * log and returns its sequence number, the record is written to disk by the
+ * writer thread of the log. A caller that must know the record is on disk
+ * waits for it with awaitDurable, ideally after releasing any locks it holds.
+ * 
+ * The log rolls over to a new numbered segment once the log file reaches the
+ * segment size in the properties, see LogSegments, and the segments of a log
+ * with a record format are indexed so that LogReader can find the records of
+ * one log ID or workflow ID.
  * 
  * @author Arni
  * 
@@ -16,11 +34,17 @@ import java.util.Properties;
 public class FileLogger {
 
 	private final String fullPath;
+	private final WriteAheadLog log;
 	private final static String FILE_TYPE = "txt";
 
 	private final static String PROPERTY_PATH = "filepath.properties";
 	private final static String PROPERTY_NAME = "logfilepath";
+	private final static String PROPERTY_FSYNC_POLICY = "logfsyncpolicy";
+	private final static String PROPERTY_FSYNC_INTERVAL = "logfsyncinterval";
+	private final static String PROPERTY_SEGMENT_SIZE = "logsegmentsize";
 	private final static String DEFAULT_FILENAME = "default_log";
+	private final static long DEFAULT_FSYNC_INTERVAL = 100;
+	private final static Map<String, WriteAheadLog> OPEN_LOGS = new HashMap<String, WriteAheadLog>();
 	private String initialContent;
 
 	/**
@@ -31,6 +55,35 @@ public class FileLogger {
 	 * @param initialContent
 	 */
 	public FileLogger(String fileTitle, String initialContent) {
+		this(fileTitle, FILE_TYPE, initialContent);
+	}
+
+	/**
+	 * Initialize the FileLogger object with a specific title and type of the
+	 * log file and the initial content of the file. Binary logs use another
+	 * type than the text logs.
+	 * 
+	 * @param fileTitle
+	 * @param fileType
+	 * @param initialContent
+	 */
+	public FileLogger(String fileTitle, String fileType, String initialContent) {
+		this(fileTitle, fileType, initialContent, null);
+	}
+
+	/**
+	 * Initialize the FileLogger object with a specific title and type of the
+	 * log file, the initial content of the file and the format of its records,
+	 * which is used to index the segments of the log.
+	 * 
+	 * @param fileTitle
+	 * @param fileType
+	 * @param initialContent
+	 * @param format
+	 *            , or null if the segments are not indexed.
+	 */
+	public FileLogger(String fileTitle, String fileType,
+			String initialContent, LogRecordFormat format) {
 		String title = fileTitle;
 		if (!validateFileTitle(fileTitle)) {
 			System.out.println("FileLogger: The given file title [" + fileTitle
@@ -43,9 +96,72 @@ public class FileLogger {
 			this.initialContent = "";
 		}
 
-		fullPath = createFullPath(title, FILE_TYPE);
-		// Create the file if it does not exist
-		logToFile("", false);
+		Properties properties = loadProperties();
+		fullPath = createFullPath(properties, title, fileType);
+		log = openLog(properties, fullPath, this.initialContent, format);
+	}
+
+	/**
+	 * Returns the WriteAheadLog of the given file, opening it if no other
+	 * FileLogger has done so. A new file starts with the initial content.
+	 * 
+	 * @param properties
+	 * @param path
+	 * @param initialContent
+	 * @param format
+	 * @return the log, or null if the file could not be opened.
+	 */
+	private static WriteAheadLog openLog(Properties properties, String path,
+			String initialContent, LogRecordFormat format) {
+		synchronized (OPEN_LOGS) {
+			WriteAheadLog openLog = OPEN_LOGS.get(path);
+			if (openLog != null)
+				return openLog;
+
+			FsyncPolicy policy = FsyncPolicy.NONE;
+			long interval = DEFAULT_FSYNC_INTERVAL;
+			long segmentSize = 0;
+			try {
+				String value = properties.getProperty(PROPERTY_FSYNC_POLICY);
+				if (value != null) {
+					policy = FsyncPolicy.valueOf(value.trim().toUpperCase());
+				}
+				value = properties.getProperty(PROPERTY_FSYNC_INTERVAL);
+				if (value != null) {
+					interval = Long.parseLong(value.trim());
+				}
+			} catch (IllegalArgumentException e) {
+				System.out.println("FileLogger: Invalid fsync settings in "
+						+ PROPERTY_PATH + ", using policy [" + policy + "]");
+			}
+			try {
+				String value = properties.getProperty(PROPERTY_SEGMENT_SIZE);
+				if (value != null) {
+					segmentSize = Math.max(0, Long.parseLong(value.trim()));
+				}
+			} catch (NumberFormatException e) {
+				System.out.println("FileLogger: Invalid segment size in "
+						+ PROPERTY_PATH + ", the log will not roll");
+			}
+
+			try {
+				File file = new File(path);
+				boolean isNew = !file.exists() || file.length() == 0;
+				openLog = new WriteAheadLog(file, policy, interval,
+						WriteAheadLog.DEFAULT_CAPACITY, new LogSegments(file,
+								format), segmentSize);
+				if (isNew && !initialContent.isEmpty()) {
+					openLog.append(initialContent.getBytes());
+				}
+				OPEN_LOGS.put(path, openLog);
+				return openLog;
+			} catch (IOException e) {
+				System.out.println("FileLogger: Could not open logfile"
+						+ " with path [" + path + "]");
+				e.printStackTrace();
+				return null;
+			}
+		}
 	}
 
 	/**
@@ -65,25 +181,19 @@ public class FileLogger {
 	}
 
 	/**
-	 * This function creates the full file path specified by the given file
-	 * title, type and the property file.
+	 * Loads the property file. If it cannot be read the returned properties
+	 * are empty.
 	 * 
-	 * @param fileTitle
-	 * @param type
 	 * @return
 	 */
-	private String createFullPath(String fileTitle, String type) {
-
+	private Properties loadProperties() {
 		Properties properties = new Properties();
 		InputStream input = null;
-		String fullTitle = fileTitle + "." + type;
 
 		try {
 			input = getClass().getClassLoader().getResourceAsStream(
 					PROPERTY_PATH);
 			properties.load(input);
-			return appendTitleToFolder(properties.getProperty(PROPERTY_NAME),
-					fullTitle);
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
@@ -95,6 +205,24 @@ public class FileLogger {
 				}
 			}
 		}
+		return properties;
+	}
+
+	/**
+	 * This function creates the full file path specified by the given file
+	 * title, type and the property file.
+	 * 
+	 * @param properties
+	 * @param fileTitle
+	 * @param type
+	 * @return
+	 */
+	private String createFullPath(Properties properties, String fileTitle,
+			String type) {
+		String fullTitle = fileTitle + "." + type;
+		String folder = properties.getProperty(PROPERTY_NAME);
+		if (folder != null)
+			return appendTitleToFolder(folder, fullTitle);
 
 		// As a last resort try to fall back to the user home directory
 		// http://stackoverflow.com/questions/585534/what-is-the-best-way-to-find-the-users-home-directory-in-java
@@ -125,13 +253,35 @@ public class FileLogger {
 	 * @param addTimeStamp
 	 *            , a boolean indicated whether or not a timestamp shall be
 	 *            automatically prepending to the given string.
+	 * @return the sequence number of the write, see awaitDurable.
 	 */
-	public void logToFile(String log, boolean addTimeStamp) {
+	public long logToFile(String log, boolean addTimeStamp) {
 		String string = log;
 		if (addTimeStamp) {
 			string = "[" + getTimeStamp() + "] " + log;
 		}
-		logToFile(string);
+		return logToFile(string);
+	}
+
+	/**
+	 * Log a list of strings to the associated log file with a single write.
+	 * 
+	 * @param logs
+	 *            , the strings to log, in order.
+	 * @param addTimeStamp
+	 *            , a boolean indicated whether or not a timestamp shall be
+	 *            automatically prepending to each of the given strings.
+	 * @return the sequence number of the write, see awaitDurable.
+	 */
+	public long logToFile(List<String> logs, boolean addTimeStamp) {
+		if (logs.isEmpty())
+			return 0;
+		StringBuilder builder = new StringBuilder();
+		String timeStamp = addTimeStamp ? "[" + getTimeStamp() + "] " : "";
+		for (String log : logs) {
+			builder.append(timeStamp).append(log);
+		}
+		return logToFile(builder.toString());
 	}
 
 	/**
@@ -145,37 +295,114 @@ public class FileLogger {
 	}
 
 	/**
-	 * Log a string to the associated log file.
+	 * Log a string to the associated log file. The call does not wait for the
+	 * string to be written, and the string is only forced to disk according
+	 * to the fsync policy in the property file.
 	 * 
 	 * @param log
 	 *            , the string to log.
+	 * @return the sequence number of the write, see awaitDurable.
 	 */
-	synchronized public void logToFile(String log) {
-		String content = log;
-
-		File file = new File(fullPath);
-
-		if (!file.exists()) {
-			content = initialContent + log;
+	public long logToFile(String log) {
+		if (this.log == null || log.isEmpty())
+			return 0;
+		try {
+			return this.log.append(log.getBytes());
+		} catch (IOException e) {
+			System.out.println("FileLogger: Could not write log to logfile"
+					+ " with path [" + fullPath + "]");
+			e.printStackTrace();
+			return 0;
 		}
+	}
 
-		if (file.getParentFile() != null) {
-			file.getParentFile().mkdirs();
+	/**
+	 * Log a binary record to the associated log file.
+	 * 
+	 * @param record
+	 *            , the bytes of the record.
+	 * @return the sequence number of the write, see awaitDurable.
+	 */
+	public long logToFile(byte[] record) {
+		if (log == null || record.length == 0)
+			return 0;
+		try {
+			return log.append(record);
+		} catch (IOException e) {
+			System.out.println("FileLogger: Could not write record to logfile"
+					+ " with path [" + fullPath + "]");
+			e.printStackTrace();
+			return 0;
 		}
-		FileWriter fileWriter = null;
+	}
 
+	/**
+	 * Log a part of a buffer as a record to the associated log file. The
+	 * buffer can be reused as soon as the call returns.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return the sequence number of the write, see awaitDurable.
+	 */
+	public long logToFile(byte[] buffer, int offset, int length) {
+		if (log == null || length == 0)
+			return 0;
 		try {
-			fileWriter = new FileWriter(file, true);
-			fileWriter.write(content);
-		} catch (Exception e) {
-			System.out.println("FileLogger: Could not write log to logfile"
+			return log.append(buffer, offset, length);
+		} catch (IOException e) {
+			System.out.println("FileLogger: Could not write record to logfile"
 					+ " with path [" + fullPath + "]");
 			e.printStackTrace();
+			return 0;
 		}
+	}
+
+	/**
+	 * Archives the log file as the next segment of the log and continues
+	 * logging to a new empty log file, see WriteAheadLog.roll.
+	 * 
+	 * @return the number of the segment holding every record logged before
+	 *         the call.
+	 * @throws IOException
+	 */
+	public long roll() throws IOException {
+		if (log == null)
+			throw new IOException("FileLogger: The logfile with path ["
+					+ fullPath + "] is not open.");
+		return log.roll();
+	}
+
+	/**
+	 * @return the segments of the log file, or null if it is not open
+	 */
+	public LogSegments getSegments() {
+		return log == null ? null : log.getSegments();
+	}
+
+	/**
+	 * @return the full path of the log file
+	 */
+	public String getFullPath() {
+		return fullPath;
+	}
+
+	/**
+	 * Waits until the write with the given sequence number is on disk.
+	 * 
+	 * @param sequence
+	 *            , a sequence number returned by one of the log functions.
+	 * @return true if the write is durable, false if the log failed.
+	 */
+	public boolean awaitDurable(long sequence) {
+		if (log == null)
+			return false;
 		try {
-			fileWriter.close();
-		} catch (Exception e) {
+			log.awaitDurable(sequence);
+			return true;
+		} catch (IOException e) {
 			e.printStackTrace();
+			return false;
 		}
 	}
 }
@@ -0,0 +1,314 @@
+package com.acertainsupplychain.utility;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class is a StripedLockManager for int objects, e.g. item IDs, which
+ * locks several objects given as an int array instead of a list, so that no
+ * object is boxed and the objects are not sorted again for every call.
+ * 
+ * The caller puts the objects into lock order once with lockOrder, which
+ * sorts them by stripe and removes duplicates, and passes the same array to
+ * the acquire and the release call. Locking the objects of a lock order takes
+ * every stripe once in ascending order, and releasing them releases the
+ * stripes in descending order, as in StripedLockManager.
+ * 
+ * An object is mapped to the same stripe as by a StripedLockManager<Integer>
+ * with the same number of stripes.
+ * 
+ * @author Arni
+ * 
+ */
+public class IntStripedLockManager {
+
+	private final StampedLock[] stripes;
+	private final int mask;
+	private volatile LockProfiler<Integer> profiler;
+
+	/**
+	 * Initialize the IntStripedLockManager with the default number of stripes.
+	 */
+	public IntStripedLockManager() {
+		this(StripedLockManager.DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Initialize the IntStripedLockManager with at least the given number of
+	 * stripes, rounded up to a power of two.
+	 * 
+	 * @param stripes
+	 */
+	public IntStripedLockManager(int stripes) {
+		if (stripes < 1 || stripes > (1 << 24))
+			throw new IllegalArgumentException("IntStripedLockManager: The "
+					+ "number of stripes must be between 1 and 2^24.");
+		int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+		this.stripes = new StampedLock[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new StampedLock();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Returns the stripe of the given object.
+	 * 
+	 * @param object
+	 * @return
+	 */
+	private int stripeOf(int object) {
+		int h = object * 0x9E3779B9;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+	/**
+	 * Sorts the given objects into lock order, by stripe and then by value,
+	 * and removes duplicates. The array is sorted in place, and returned
+	 * unless it held duplicates.
+	 * 
+	 * @param objects
+	 * @return the distinct objects in lock order.
+	 */
+	public int[] lockOrder(int[] objects) {
+		// The stripe of every object in the high half and the object in the
+		// low half, with the sign bit flipped so that it sorts as unsigned.
+		long[] entries = new long[objects.length];
+		for (int i = 0; i < objects.length; i++) {
+			entries[i] = ((long) stripeOf(objects[i]) << 32)
+					| ((objects[i] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+		}
+		Arrays.sort(entries);
+		int distinct = 0;
+		for (int i = 0; i < entries.length; i++) {
+			if (distinct == 0 || entries[i] != entries[i - 1]) {
+				objects[distinct++] = (int) entries[i] ^ Integer.MIN_VALUE;
+			}
+		}
+		return distinct == objects.length ? objects : Arrays.copyOf(objects,
+				distinct);
+	}
+
+	/**
+	 * Lock the write lock associated with the given object.
+	 * 
+	 * @param object
+	 */
+	public void acquireWriteLock(int object) {
+		lock(stripes[stripeOf(object)].asWriteLock(), object);
+	}
+
+	/**
+	 * Unlock the write lock associated with the given object.
+	 * 
+	 * @param object
+	 */
+	public void releaseWriteLock(int object) {
+		stripes[stripeOf(object)].asWriteLock().unlock();
+		released(object);
+	}
+
+	/**
+	 * Lock the read lock associated with the given object.
+	 * 
+	 * @param object
+	 */
+	public void acquireReadLock(int object) {
+		lock(stripes[stripeOf(object)].asReadLock(), object);
+	}
+
+	/**
+	 * Unlock the read lock associated with the given object.
+	 * 
+	 * @param object
+	 */
+	public void releaseReadLock(int object) {
+		stripes[stripeOf(object)].asReadLock().unlock();
+		released(object);
+	}
+
+	/**
+	 * Lock the write locks associated with the given objects.
+	 * 
+	 * @param lockOrder
+	 *            , the objects as returned by lockOrder.
+	 */
+	public void acquireWriteLocks(int[] lockOrder) {
+		acquireLocks(lockOrder, true);
+	}
+
+	/**
+	 * Unlock the write locks associated with the given objects.
+	 * 
+	 * @param lockOrder
+	 *            , the objects as returned by lockOrder.
+	 */
+	public void releaseWriteLocks(int[] lockOrder) {
+		releaseLocks(lockOrder, true);
+	}
+
+	/**
+	 * Lock the read locks associated with the given objects.
+	 * 
+	 * @param lockOrder
+	 *            , the objects as returned by lockOrder.
+	 */
+	public void acquireReadLocks(int[] lockOrder) {
+		acquireLocks(lockOrder, false);
+	}
+
+	/**
+	 * Unlock the read locks associated with the given objects.
+	 * 
+	 * @param lockOrder
+	 *            , the objects as returned by lockOrder.
+	 */
+	public void releaseReadLocks(int[] lockOrder) {
+		releaseLocks(lockOrder, false);
+	}
+
+	/**
+	 * Locks the stripe of every object in the given lock order once. If the
+	 * call is sampled by the profiler, the wait for a stripe is recorded for
+	 * every object on the stripe.
+	 * 
+	 * @param lockOrder
+	 * @param write
+	 */
+	private void acquireLocks(int[] lockOrder, boolean write) {
+		LockProfiler<Integer> profiler = this.profiler;
+		if (profiler != null && !profiler.sample()) {
+			profiler = null;
+		}
+		int i = 0;
+		while (i < lockOrder.length) {
+			int stripe = stripeOf(lockOrder[i]);
+			int end = i + 1;
+			while (end < lockOrder.length && stripeOf(lockOrder[end]) == stripe) {
+				end++;
+			}
+			Lock lock = write ? stripes[stripe].asWriteLock() : stripes[stripe]
+					.asReadLock();
+			if (profiler == null) {
+				lock.lock();
+			} else {
+				long start = System.nanoTime();
+				lock.lock();
+				long now = System.nanoTime();
+				for (int j = i; j < end; j++) {
+					profiler.acquired(lockOrder[j], now - start, now);
+				}
+			}
+			i = end;
+		}
+	}
+
+	/**
+	 * Unlocks the stripe of every object in the given lock order once, in
+	 * descending order.
+	 * 
+	 * @param lockOrder
+	 * @param write
+	 */
+	private void releaseLocks(int[] lockOrder, boolean write) {
+		int i = lockOrder.length - 1;
+		while (i >= 0) {
+			int stripe = stripeOf(lockOrder[i]);
+			if (write) {
+				stripes[stripe].asWriteLock().unlock();
+			} else {
+				stripes[stripe].asReadLock().unlock();
+			}
+			i--;
+			while (i >= 0 && stripeOf(lockOrder[i]) == stripe) {
+				i--;
+			}
+		}
+		LockProfiler<Integer> profiler = this.profiler;
+		if (profiler != null) {
+			for (int object : lockOrder) {
+				profiler.released(object);
+			}
+		}
+	}
+
+	/**
+	 * Locks the given lock of the given object, and times it if the call is
+	 * sampled by the profiler.
+	 * 
+	 * @param lock
+	 * @param object
+	 */
+	private void lock(Lock lock, int object) {
+		LockProfiler<Integer> profiler = this.profiler;
+		if (profiler == null || !profiler.sample()) {
+			lock.lock();
+			return;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		long now = System.nanoTime();
+		profiler.acquired(object, now - start, now);
+	}
+
+	/**
+	 * Records the release of the lock of the given object in the profiler.
+	 * 
+	 * @param object
+	 */
+	private void released(int object) {
+		LockProfiler<Integer> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(object);
+		}
+	}
+
+	/**
+	 * Returns a stamp for an optimistic read of the given object, see
+	 * LockManager.
+	 * 
+	 * @param object
+	 * @return the stamp, or 0 if the object is write locked.
+	 */
+	public long tryOptimisticRead(int object) {
+		return stripes[stripeOf(object)].tryOptimisticRead();
+	}
+
+	/**
+	 * Returns true if the given object has not been write locked since the
+	 * given stamp was taken.
+	 * 
+	 * @param object
+	 * @param stamp
+	 * @return
+	 */
+	public boolean validate(int object, long stamp) {
+		return stamp != 0 && stripes[stripeOf(object)].validate(stamp);
+	}
+
+	/**
+	 * Starts recording the contention on the locks in the given profiler, or
+	 * stops recording if the profiler is null.
+	 * 
+	 * @param profiler
+	 */
+	public void setProfiler(LockProfiler<Integer> profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * @return the profiler the contention is recorded in, or null
+	 */
+	public LockProfiler<Integer> getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * @return the number of stripes
+	 */
+	public int getStripes() {
+		return stripes.length;
+	}
+}
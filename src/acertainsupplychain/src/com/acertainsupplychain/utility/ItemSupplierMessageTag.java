@@ -8,8 +8,9 @@ package com.acertainsupplychain.utility;
  * 
  */
 public enum ItemSupplierMessageTag {
-	EXECUTESTEP, GETORDERS, CLEAR, GETSUPID, REGISTERWORKFLOW,
+	EXECUTESTEP, EXECUTESTEPS, GETORDERS, CLEAR, GETSUPID, REGISTERWORKFLOW,
 	GETWORKFLOWSTATUS, INIT_ORDERMANAGER, JOBGETSUPID, JOBGETWORKFLOW, 
 	JOBSETSTATUS, WAITFORJOBS, INIT_ITEMSUPPLIER, INIT_ORDERMANAGER_PROXY, 
-	ORDERMANAGER_STOP;
+	ORDERMANAGER_STOP, LOCKPROFILING, GETLOCKPROFILE, AWAITWORKFLOW,
+	REGISTERWORKFLOWS, GETWORKFLOWSTATUSES, GETWORKFLOWCOUNT, GETWORKFLOWSINSTATE;
 }
@@ -0,0 +1,130 @@
+package com.acertainsupplychain.utility;
+
+import java.util.List;
+
+/**
+ * The LockManager interface is implemented by the lock managers that guard
+ * the objects of a supplier or an OrderManager, e.g. item IDs or workflow IDs,
+ * with read/write locks. A caller that needs the locks of several objects
+ * must take them through the functions on lists, which lock them in a fixed
+ * order so that two callers can never deadlock.
+ * 
+ * An object that is read far more often than it is written can be read
+ * optimistically: the reader takes a stamp with tryOptimisticRead, reads the
+ * object without locking and checks with validate that no writer locked the
+ * object in the meantime. Only if the check fails does the reader take the
+ * read lock and read the object again. The locks are not reentrant.
+ * 
+ * A lock manager can be given a LockProfiler, which samples the lock calls to
+ * find the objects whose locks are contended.
+ * 
+ * @author Arni
+ * 
+ * @param <E>
+ *            the type of the objects that are locked upon.
+ */
+public interface LockManager<E extends Comparable<E>> {
+
+	/**
+	 * Makes sure that a lock exists for the given object. This must be called
+	 * before the object is locked for the first time.
+	 * 
+	 * @param object
+	 */
+	public void addToLockMap(E object);
+
+	/**
+	 * Makes sure that a lock exists for every object in the given list.
+	 * 
+	 * @param objects
+	 */
+	public void addToLockMap(List<E> objects);
+
+	/**
+	 * Lock the write lock associated with the given object.
+	 * 
+	 * @param object
+	 */
+	public void acquireWriteLock(E object);
+
+	/**
+	 * Unlock the write lock associated with the given object.
+	 * 
+	 * @param object
+	 */
+	public void releaseWriteLock(E object);
+
+	/**
+	 * Lock the read lock associated with the given object.
+	 * 
+	 * @param object
+	 */
+	public void acquireReadLock(E object);
+
+	/**
+	 * Unlock the read lock associated with the given object.
+	 * 
+	 * @param object
+	 */
+	public void releaseReadLock(E object);
+
+	/**
+	 * Lock the write locks associated with every object in the given list.
+	 * 
+	 * @param objects
+	 */
+	public void acquireWriteLocks(List<E> objects);
+
+	/**
+	 * Unlock the write locks associated with every object in the given list.
+	 * 
+	 * @param objects
+	 */
+	public void releaseWriteLocks(List<E> objects);
+
+	/**
+	 * Lock the read locks associated with every object in the given list.
+	 * 
+	 * @param objects
+	 */
+	public void acquireReadLocks(List<E> objects);
+
+	/**
+	 * Unlock the read locks associated with every object in the given list.
+	 * 
+	 * @param objects
+	 */
+	public void releaseReadLocks(List<E> objects);
+
+	/**
+	 * Returns a stamp for an optimistic read of the given object, which is
+	 * checked with validate once the object has been read.
+	 * 
+	 * @param object
+	 * @return the stamp, or 0 if the object is write locked.
+	 */
+	public long tryOptimisticRead(E object);
+
+	/**
+	 * Returns true if the given object has not been write locked since the
+	 * given stamp was taken, in which case an optimistic read of it is valid.
+	 * 
+	 * @param object
+	 * @param stamp
+	 * @return
+	 */
+	public boolean validate(E object, long stamp);
+
+	/**
+	 * Starts recording the contention on the locks in the given profiler, or
+	 * stops recording if the profiler is null.
+	 * 
+	 * @param profiler
+	 */
+	public void setProfiler(LockProfiler<E> profiler);
+
+	/**
+	 * @return the profiler the contention is recorded in, or null
+	 */
+	public LockProfiler<E> getProfiler();
+}
@@ -4,12 +4,23 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * This class is a lock manager that manages a tree of locks which are all
- * associated with a single object each of type E.
+ * associated with a single object each of type E. A lock is kept for every
+ * object ever added, see StripedLockManager for a lock manager whose size is
+ * fixed.
+ * 
+ * The locks are StampedLocks, so an object can also be read optimistically.
+ * They are not reentrant, so an object that occurs several times in a list is
+ * only locked once.
+ * 
+ * If the lock manager has a LockProfiler, the sampled lock calls are timed for
+ * every object they lock.
  * 
  * @author Arni
  * 
@@ -17,16 +28,18 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  *            the type of the object used as key into the map, and which are
  *            locked upon.
  */
-public class LockMapManager<E extends Comparable<E>> {
+public class LockMapManager<E extends Comparable<E>> implements
+		LockManager<E> {
 
-	private final Map<E, ReadWriteLock> lockMap;
+	private final Map<E, StampedLock> lockMap;
 	private final ReadWriteLock mapLock;
+	private volatile LockProfiler<E> profiler;
 
 	/**
 	 * Initialize the LockMapManager instance.
 	 */
 	public LockMapManager() {
-		lockMap = new HashMap<E, ReadWriteLock>();
+		lockMap = new HashMap<E, StampedLock>();
 		mapLock = new ReentrantReadWriteLock();
 	}
 
@@ -35,10 +48,11 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * 
 	 * @param object
 	 */
+	@Override
 	public void addToLockMap(E object) {
 		mapLock.writeLock().lock();
 		if (!lockMap.containsKey(object)) {
-			lockMap.put(object, new ReentrantReadWriteLock());
+			lockMap.put(object, new StampedLock());
 		}
 		mapLock.writeLock().unlock();
 	}
@@ -49,11 +63,12 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * 
 	 * @param objects
 	 */
+	@Override
 	public void addToLockMap(List<E> objects) {
 		mapLock.writeLock().lock();
 		for (E object : objects) {
 			if (!lockMap.containsKey(object)) {
-				lockMap.put(object, new ReentrantReadWriteLock());
+				lockMap.put(object, new StampedLock());
 			}
 		}
 		mapLock.writeLock().unlock();
@@ -65,8 +80,11 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * @param object
 	 *            , the object to lock upon.
 	 */
+	@Override
 	public void acquireWriteLock(E object) {
-		lockMap.get(object).writeLock().lock();
+		LockProfiler<E> profiler = this.profiler;
+		lock(lockMap.get(object).asWriteLock(), object,
+				profiler != null && profiler.sample() ? profiler : null);
 	}
 
 	/**
@@ -75,8 +93,13 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * @param object
 	 *            , the object to unlock upon.
 	 */
+	@Override
 	public void releaseWriteLock(E object) {
-		lockMap.get(object).writeLock().unlock();
+		lockMap.get(object).asWriteLock().unlock();
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(object);
+		}
 	}
 
 	/**
@@ -85,8 +108,11 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * @param object
 	 *            , the object to lock upon.
 	 */
+	@Override
 	public void acquireReadLock(E object) {
-		lockMap.get(object).readLock().lock();
+		LockProfiler<E> profiler = this.profiler;
+		lock(lockMap.get(object).asReadLock(), object,
+				profiler != null && profiler.sample() ? profiler : null);
 	}
 
 	/**
@@ -95,8 +121,13 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * @param object
 	 *            , the object to unlock upon.
 	 */
+	@Override
 	public void releaseReadLock(E object) {
-		lockMap.get(object).readLock().unlock();
+		lockMap.get(object).asReadLock().unlock();
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(object);
+		}
 	}
 
 	/**
@@ -106,10 +137,19 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * @param objects
 	 *            , the list of objects to lock.
 	 */
+	@Override
 	public void acquireWriteLocks(List<E> objects) {
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null && !profiler.sample()) {
+			profiler = null;
+		}
 		Collections.sort(objects);
+		E previous = null;
 		for (E object : objects) {
-			lockMap.get(object).writeLock().lock();
+			if (!object.equals(previous)) {
+				lock(lockMap.get(object).asWriteLock(), object, profiler);
+			}
+			previous = object;
 		}
 	}
 
@@ -120,11 +160,20 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * @param objects
 	 *            , the list of objects to unlock.
 	 */
+	@Override
 	public void releaseWriteLocks(List<E> objects) {
 		Collections.sort(objects);
 		Collections.reverse(objects);
+		E previous = null;
 		for (E object : objects) {
-			lockMap.get(object).writeLock().unlock();
+			if (!object.equals(previous)) {
+				lockMap.get(object).asWriteLock().unlock();
+			}
+			previous = object;
+		}
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(objects);
 		}
 	}
 
@@ -135,10 +184,19 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * @param objects
 	 *            , the list of objects to lock.
 	 */
+	@Override
 	public void acquireReadLocks(List<E> objects) {
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null && !profiler.sample()) {
+			profiler = null;
+		}
 		Collections.sort(objects);
+		E previous = null;
 		for (E object : objects) {
-			lockMap.get(object).readLock().lock();
+			if (!object.equals(previous)) {
+				lock(lockMap.get(object).asReadLock(), object, profiler);
+			}
+			previous = object;
 		}
 	}
 
@@ -149,11 +207,59 @@ public class LockMapManager<E extends Comparable<E>> {
 	 * @param objects
 	 *            , the list of objects to unlock.
 	 */
+	@Override
 	public void releaseReadLocks(List<E> objects) {
 		Collections.sort(objects);
 		Collections.reverse(objects);
+		E previous = null;
 		for (E object : objects) {
-			lockMap.get(object).readLock().unlock();
+			if (!object.equals(previous)) {
+				lockMap.get(object).asReadLock().unlock();
+			}
+			previous = object;
 		}
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(objects);
+		}
+	}
+
+	/**
+	 * Locks the given lock of the given object, and records the time it took
+	 * in the given profiler unless it is null.
+	 * 
+	 * @param lock
+	 * @param object
+	 * @param profiler
+	 */
+	private void lock(Lock lock, E object, LockProfiler<E> profiler) {
+		if (profiler == null) {
+			lock.lock();
+			return;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		long now = System.nanoTime();
+		profiler.acquired(object, now - start, now);
+	}
+
+	@Override
+	public long tryOptimisticRead(E object) {
+		return lockMap.get(object).tryOptimisticRead();
+	}
+
+	@Override
+	public boolean validate(E object, long stamp) {
+		return stamp != 0 && lockMap.get(object).validate(stamp);
+	}
+
+	@Override
+	public void setProfiler(LockProfiler<E> profiler) {
+		this.profiler = profiler;
+	}
+
+	@Override
+	public LockProfiler<E> getProfiler() {
+		return profiler;
 	}
 }
@@ -0,0 +1,108 @@
+package com.acertainsupplychain.utility;
+
+/**
+ * An immutable summary of the contention on the lock of a single object, see
+ * LockProfiler. Every count is estimated from the sampled lock calls, the
+ * maximum wait and hold times are those of the sampled calls.
+ * 
+ * @author Arni
+ * 
+ */
+public final class LockProfile {
+
+	private final Object key;
+	private final long acquisitions;
+	private final long sampledAcquisitions;
+	private final long totalWaitNanos;
+	private final long maxWaitNanos;
+	private final long maxHoldNanos;
+	private final long[] waitHistogram;
+
+	public LockProfile(Object key, long acquisitions, long sampledAcquisitions,
+			long totalWaitNanos, long maxWaitNanos, long maxHoldNanos,
+			long[] waitHistogram) {
+		this.key = key;
+		this.acquisitions = acquisitions;
+		this.sampledAcquisitions = sampledAcquisitions;
+		this.totalWaitNanos = totalWaitNanos;
+		this.maxWaitNanos = maxWaitNanos;
+		this.maxHoldNanos = maxHoldNanos;
+		this.waitHistogram = waitHistogram.clone();
+	}
+
+	/**
+	 * @return the object whose lock is profiled
+	 */
+	public Object getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the estimated number of times the lock was acquired
+	 */
+	public long getAcquisitions() {
+		return acquisitions;
+	}
+
+	/**
+	 * @return the number of acquisitions that were sampled
+	 */
+	public long getSampledAcquisitions() {
+		return sampledAcquisitions;
+	}
+
+	/**
+	 * @return the estimated total time callers waited for the lock in
+	 *         nanoseconds
+	 */
+	public long getTotalWaitNanos() {
+		return totalWaitNanos;
+	}
+
+	/**
+	 * @return the longest sampled wait for the lock in nanoseconds
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos;
+	}
+
+	/**
+	 * @return the longest time a sampled caller held the lock in nanoseconds
+	 */
+	public long getMaxHoldNanos() {
+		return maxHoldNanos;
+	}
+
+	/**
+	 * @return the estimated number of waits in every bucket of the histogram,
+	 *         see LockProfiler.BUCKETS
+	 */
+	public long[] getWaitHistogram() {
+		return waitHistogram.clone();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder histogram = new StringBuilder();
+		for (int i = 0; i < waitHistogram.length; i++) {
+			if (waitHistogram[i] == 0)
+				continue;
+			if (histogram.length() > 0) {
+				histogram.append(", ");
+			}
+			if (i == 0) {
+				histogram.append("<1");
+			} else if (i == waitHistogram.length - 1) {
+				histogram.append(">=").append(1L << (i - 1));
+			} else {
+				histogram.append("<").append(1L << i);
+			}
+			histogram.append("us: ").append(waitHistogram[i]);
+		}
+		return "LockProfile: [" + key + ": " + acquisitions
+				+ " acquisitions, " + (totalWaitNanos / 1000)
+				+ " us waited, max wait " + (maxWaitNanos / 1000)
+				+ " us, max hold " + (maxHoldNanos / 1000) + " us, waits {"
+				+ histogram + "}]";
+	}
+}
@@ -0,0 +1,307 @@
+package com.acertainsupplychain.utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records how contended the locks of a lock manager are. A lock
+ * manager with a profiler asks it for every lock call whether the call is
+ * sampled, and only times the sampled calls, which are on average one in
+ * every sampling calls. For every object locked by a sampled call the
+ * profiler records the time the caller waited for the lock in a histogram,
+ * and the time until the caller released the lock again.
+ * 
+ * The counts of a report are the sampled counts multiplied by the sampling,
+ * so they are estimates. A profiler that samples one in a hundred calls only
+ * reads a thread local counter for the other calls, which keeps the overhead
+ * of the profiler well below the cost of the locks themselves.
+ * 
+ * @author Arni
+ * 
+ * @param <E>
+ *            the type of the objects that are locked upon.
+ */
+public class LockProfiler<E> {
+
+	public final static int DEFAULT_SAMPLING = 100;
+
+	/**
+	 * The number of buckets of the wait time histograms. Bucket 0 counts the
+	 * waits below a microsecond and bucket i the waits from 2^(i-1) up to 2^i
+	 * microseconds, the last bucket counts every longer wait.
+	 */
+	public final static int BUCKETS = 24;
+
+	/**
+	 * The largest number of sampled locks a thread can hold at once, a thread
+	 * that holds more only records the hold time of the latest ones.
+	 */
+	private final static int MAX_HOLDS = 64;
+
+	private final int sampling;
+	private final ConcurrentMap<E, KeyStatistics> statistics;
+	private final ThreadLocal<ThreadState> threadStates;
+
+	/**
+	 * Initialize the LockProfiler with the default sampling.
+	 */
+	public LockProfiler() {
+		this(DEFAULT_SAMPLING);
+	}
+
+	/**
+	 * Initialize the LockProfiler so that on average one in every sampling
+	 * lock calls is sampled.
+	 * 
+	 * @param sampling
+	 */
+	public LockProfiler(int sampling) {
+		if (sampling < 1)
+			throw new IllegalArgumentException(
+					"LockProfiler: The sampling must be positive.");
+		this.sampling = sampling;
+		statistics = new ConcurrentHashMap<E, KeyStatistics>();
+		threadStates = new ThreadLocal<ThreadState>() {
+			@Override
+			protected ThreadState initialValue() {
+				return new ThreadState(nextCountdown());
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of calls until the next sampled call. The distance
+	 * is random so that a caller that locks in a fixed pattern is not always
+	 * sampled at the same point.
+	 * 
+	 * @return
+	 */
+	private int nextCountdown() {
+		if (sampling == 1)
+			return 1;
+		return 1 + ThreadLocalRandom.current().nextInt(2 * sampling - 1);
+	}
+
+	/**
+	 * Returns true if the current lock call of the calling thread must be
+	 * timed.
+	 * 
+	 * @return
+	 */
+	public boolean sample() {
+		ThreadState state = threadStates.get();
+		if (--state.countdown > 0)
+			return false;
+		state.countdown = nextCountdown();
+		return true;
+	}
+
+	/**
+	 * Records that the calling thread acquired the lock of the given object
+	 * in a sampled call.
+	 * 
+	 * @param object
+	 * @param waitNanos
+	 *            , the time the thread waited for the lock.
+	 * @param acquiredNanos
+	 *            , the System.nanoTime at which the lock was acquired.
+	 */
+	public void acquired(E object, long waitNanos, long acquiredNanos) {
+		KeyStatistics keyStatistics = statistics.get(object);
+		if (keyStatistics == null) {
+			keyStatistics = new KeyStatistics();
+			KeyStatistics existing = statistics.putIfAbsent(object,
+					keyStatistics);
+			if (existing != null) {
+				keyStatistics = existing;
+			}
+		}
+		keyStatistics.acquired(waitNanos);
+		threadStates.get().hold(object, keyStatistics, acquiredNanos);
+	}
+
+	/**
+	 * Records that the calling thread released the lock of the given object.
+	 * Only the release of a lock acquired in a sampled call is recorded.
+	 * 
+	 * @param object
+	 */
+	public void released(E object) {
+		ThreadState state = threadStates.get();
+		if (state.holds > 0) {
+			state.release(object, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Records that the calling thread released the locks of the given
+	 * objects.
+	 * 
+	 * @param objects
+	 */
+	public void released(List<E> objects) {
+		ThreadState state = threadStates.get();
+		if (state.holds == 0)
+			return;
+		long now = System.nanoTime();
+		for (E object : objects) {
+			state.release(object, now);
+		}
+	}
+
+	/**
+	 * Returns the profiles of the given number of objects whose callers
+	 * waited the longest in total, the longest wait first.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	public List<LockProfile> getHottestKeys(int count) {
+		List<LockProfile> profiles = new ArrayList<LockProfile>();
+		for (Map.Entry<E, KeyStatistics> entry : statistics.entrySet()) {
+			profiles.add(entry.getValue().toProfile(entry.getKey(), sampling));
+		}
+		Collections.sort(profiles, new Comparator<LockProfile>() {
+			@Override
+			public int compare(LockProfile first, LockProfile second) {
+				if (first.getTotalWaitNanos() != second.getTotalWaitNanos())
+					return first.getTotalWaitNanos() > second
+							.getTotalWaitNanos() ? -1 : 1;
+				return Long.compare(second.getAcquisitions(),
+						first.getAcquisitions());
+			}
+		});
+		if (profiles.size() <= count)
+			return profiles;
+		return new ArrayList<LockProfile>(profiles.subList(0,
+				Math.max(0, count)));
+	}
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset() {
+		statistics.clear();
+	}
+
+	/**
+	 * @return the average number of lock calls per sampled call
+	 */
+	public int getSampling() {
+		return sampling;
+	}
+
+	/**
+	 * Returns the histogram bucket of the given wait time.
+	 * 
+	 * @param waitNanos
+	 * @return
+	 */
+	static int bucketOf(long waitNanos) {
+		long micros = waitNanos / 1000;
+		if (micros <= 0)
+			return 0;
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/**
+	 * Raises the given maximum to the given value.
+	 * 
+	 * @param maximum
+	 * @param value
+	 */
+	private static void raise(AtomicLong maximum, long value) {
+		long current = maximum.get();
+		while (value > current && !maximum.compareAndSet(current, value)) {
+			current = maximum.get();
+		}
+	}
+
+	/**
+	 * The sampled statistics of a single object.
+	 */
+	private static class KeyStatistics {
+		private final AtomicLong sampled = new AtomicLong();
+		private final AtomicLong totalWait = new AtomicLong();
+		private final AtomicLong maxWait = new AtomicLong();
+		private final AtomicLong maxHold = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		private void acquired(long waitNanos) {
+			sampled.incrementAndGet();
+			totalWait.addAndGet(waitNanos);
+			raise(maxWait, waitNanos);
+			histogram.incrementAndGet(bucketOf(waitNanos));
+		}
+
+		private void released(long holdNanos) {
+			raise(maxHold, holdNanos);
+		}
+
+		private LockProfile toProfile(Object key, int sampling) {
+			long[] buckets = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = histogram.get(i) * sampling;
+			}
+			long count = sampled.get();
+			return new LockProfile(key, count * sampling, count,
+					totalWait.get() * sampling, maxWait.get(), maxHold.get(),
+					buckets);
+		}
+	}
+
+	/**
+	 * The countdown to the next sampled call of a thread and the sampled
+	 * locks it holds.
+	 */
+	private static class ThreadState {
+		private int countdown;
+		private int holds;
+		private final Object[] objects = new Object[MAX_HOLDS];
+		private final KeyStatistics[] keyStatistics = new KeyStatistics[MAX_HOLDS];
+		private final long[] acquiredNanos = new long[MAX_HOLDS];
+
+		private ThreadState(int countdown) {
+			this.countdown = countdown;
+		}
+
+		private void hold(Object object, KeyStatistics statistics, long nanos) {
+			if (holds == MAX_HOLDS) {
+				remove(0);
+			}
+			objects[holds] = object;
+			keyStatistics[holds] = statistics;
+			acquiredNanos[holds] = nanos;
+			holds++;
+		}
+
+		private void release(Object object, long nanos) {
+			for (int i = holds - 1; i >= 0; i--) {
+				if (objects[i].equals(object)) {
+					keyStatistics[i].released(nanos - acquiredNanos[i]);
+					remove(i);
+					return;
+				}
+			}
+		}
+
+		private void remove(int index) {
+			holds--;
+			System.arraycopy(objects, index + 1, objects, index, holds - index);
+			System.arraycopy(keyStatistics, index + 1, keyStatistics, index,
+					holds - index);
+			System.arraycopy(acquiredNanos, index + 1, acquiredNanos, index,
+					holds - index);
+			objects[holds] = null;
+			keyStatistics[holds] = null;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.acertainsupplychain.utility;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class is a lock manager with a fixed number of lock stripes. Every
+ * object is guarded by the stripe its hash code maps to, so the memory used by
+ * the locks does not grow with the number of objects and no lock ever has to
+ * be registered. Two objects on the same stripe block each other, which is
+ * rare as long as there are many more stripes than threads.
+ * 
+ * The locks of several objects are taken in ascending order of their stripes
+ * and released in descending order, and a stripe shared by several of the
+ * objects is only locked once.
+ * 
+ * The stripes are StampedLocks, so an optimistic read of an object only reads
+ * the state of its stripe and never writes to it.
+ * 
+ * If the lock manager has a LockProfiler, a sampled call records the time it
+ * waited for a stripe for every object on the stripe, so the profile shows
+ * the contended objects rather than the contended stripes.
+ * 
+ * @author Arni
+ * 
+ * @param <E>
+ *            the type of the objects that are locked upon.
+ */
+public class StripedLockManager<E extends Comparable<E>> implements
+		LockManager<E> {
+
+	public final static int DEFAULT_STRIPES = 1024;
+
+	private final StampedLock[] stripes;
+	private final int mask;
+	private volatile LockProfiler<E> profiler;
+
+	/**
+	 * Initialize the StripedLockManager with the default number of stripes.
+	 */
+	public StripedLockManager() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Initialize the StripedLockManager with at least the given number of
+	 * stripes, rounded up to a power of two.
+	 * 
+	 * @param stripes
+	 */
+	public StripedLockManager(int stripes) {
+		if (stripes < 1 || stripes > (1 << 24))
+			throw new IllegalArgumentException("StripedLockManager: The "
+					+ "number of stripes must be between 1 and 2^24.");
+		int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+		this.stripes = new StampedLock[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new StampedLock();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Returns the stripe of the given object.
+	 * 
+	 * @param object
+	 * @return
+	 */
+	private int stripeOf(E object) {
+		int h = object.hashCode() * 0x9E3779B9;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+	/**
+	 * Returns the distinct stripes of the given objects in ascending order.
+	 * 
+	 * @param objects
+	 * @return
+	 */
+	private int[] stripesOf(List<E> objects) {
+		int[] indexes = new int[objects.size()];
+		int count = 0;
+		for (E object : objects) {
+			indexes[count++] = stripeOf(object);
+		}
+		Arrays.sort(indexes);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || indexes[distinct - 1] != indexes[i]) {
+				indexes[distinct++] = indexes[i];
+			}
+		}
+		return distinct == count ? indexes : Arrays.copyOf(indexes, distinct);
+	}
+
+	/**
+	 * Locks the stripes of the given objects like acquireWriteLocks and
+	 * acquireReadLocks, and records the time the wait for every stripe took
+	 * for each of the objects on the stripe in the given profiler.
+	 * 
+	 * @param objects
+	 * @param write
+	 * @param profiler
+	 */
+	private void lockProfiled(List<E> objects, boolean write,
+			LockProfiler<E> profiler) {
+		// The stripe of every object in the high half, its position in the
+		// low half, so that sorting groups the objects by stripe.
+		long[] entries = new long[objects.size()];
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = ((long) stripeOf(objects.get(i)) << 32) | i;
+		}
+		Arrays.sort(entries);
+		int i = 0;
+		while (i < entries.length) {
+			int stripe = (int) (entries[i] >>> 32);
+			Lock lock = write ? stripes[stripe].asWriteLock() : stripes[stripe]
+					.asReadLock();
+			long start = System.nanoTime();
+			lock.lock();
+			long now = System.nanoTime();
+			for (; i < entries.length && (int) (entries[i] >>> 32) == stripe; i++) {
+				profiler.acquired(objects.get((int) entries[i]), now - start,
+						now);
+			}
+		}
+	}
+
+	/**
+	 * Every object already has a stripe, so nothing is registered.
+	 */
+	@Override
+	public void addToLockMap(E object) {
+	}
+
+	/**
+	 * Every object already has a stripe, so nothing is registered.
+	 */
+	@Override
+	public void addToLockMap(List<E> objects) {
+	}
+
+	@Override
+	public void acquireWriteLock(E object) {
+		Lock lock = stripes[stripeOf(object)].asWriteLock();
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler == null || !profiler.sample()) {
+			lock.lock();
+			return;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		long now = System.nanoTime();
+		profiler.acquired(object, now - start, now);
+	}
+
+	@Override
+	public void releaseWriteLock(E object) {
+		stripes[stripeOf(object)].asWriteLock().unlock();
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(object);
+		}
+	}
+
+	@Override
+	public void acquireReadLock(E object) {
+		Lock lock = stripes[stripeOf(object)].asReadLock();
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler == null || !profiler.sample()) {
+			lock.lock();
+			return;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		long now = System.nanoTime();
+		profiler.acquired(object, now - start, now);
+	}
+
+	@Override
+	public void releaseReadLock(E object) {
+		stripes[stripeOf(object)].asReadLock().unlock();
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(object);
+		}
+	}
+
+	@Override
+	public void acquireWriteLocks(List<E> objects) {
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null && profiler.sample()) {
+			lockProfiled(objects, true, profiler);
+			return;
+		}
+		for (int stripe : stripesOf(objects)) {
+			stripes[stripe].asWriteLock().lock();
+		}
+	}
+
+	@Override
+	public void releaseWriteLocks(List<E> objects) {
+		int[] indexes = stripesOf(objects);
+		for (int i = indexes.length - 1; i >= 0; i--) {
+			stripes[indexes[i]].asWriteLock().unlock();
+		}
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(objects);
+		}
+	}
+
+	@Override
+	public void acquireReadLocks(List<E> objects) {
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null && profiler.sample()) {
+			lockProfiled(objects, false, profiler);
+			return;
+		}
+		for (int stripe : stripesOf(objects)) {
+			stripes[stripe].asReadLock().lock();
+		}
+	}
+
+	@Override
+	public void releaseReadLocks(List<E> objects) {
+		int[] indexes = stripesOf(objects);
+		for (int i = indexes.length - 1; i >= 0; i--) {
+			stripes[indexes[i]].asReadLock().unlock();
+		}
+		LockProfiler<E> profiler = this.profiler;
+		if (profiler != null) {
+			profiler.released(objects);
+		}
+	}
+
+	@Override
+	public long tryOptimisticRead(E object) {
+		return stripes[stripeOf(object)].tryOptimisticRead();
+	}
+
+	@Override
+	public boolean validate(E object, long stamp) {
+		return stamp != 0 && stripes[stripeOf(object)].validate(stamp);
+	}
+
+	@Override
+	public void setProfiler(LockProfiler<E> profiler) {
+		this.profiler = profiler;
+	}
+
+	@Override
+	public LockProfiler<E> getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * @return the number of stripes
+	 */
+	public int getStripes() {
+		return stripes.length;
+	}
+}